@@ -1,13 +1,14 @@
+import json
 import os
 import random
 import time
+import urllib.error
+import urllib.request
 from argparse import ArgumentParser
 from datetime import datetime, timezone
 from zoneinfo import ZoneInfo
 from typing import Optional
 
-from influxdb_client import InfluxDBClient, Point, WriteOptions
-
 
 def parse_duration(s: Optional[str]) -> Optional[float]:
     if s is None:
@@ -193,7 +194,75 @@ class SensorSimulator:
         }
 
 
-def run(sim: SensorSimulator, interval: float, duration: Optional[float], influx_cfg: dict):
+class BackendSink:
+    """Envía cada lectura a POST /sensors/upload del backend, igual que un sensor real.
+
+    Es el camino que alimenta el estado en memoria del backend (buffer reciente, estadísticas y detectores);
+    el backend se encarga de escribir en InfluxDB.
+    """
+
+    def __init__(self, base_url: str, timeout: float = 10.0):
+        self.url = base_url.rstrip('/') + '/sensors/upload'
+        self.timeout = timeout
+
+    def write(self, r: dict) -> bool:
+        body = json.dumps([{
+            'timestamp': r['timestamp'].astimezone(timezone.utc).isoformat().replace('+00:00', 'Z'),
+            'sensorId': r['sensor_id'],
+            'ph': r['ph'],
+            'turbidity': r['turbidity'],
+            'conductivity': r['conductivity'],
+            'flowRate': r['flowRate'],
+        }]).encode('utf-8')
+        req = urllib.request.Request(self.url, data=body, method='POST',
+                                     headers={'Content-Type': 'application/json'})
+        try:
+            with urllib.request.urlopen(req, timeout=self.timeout):
+                return True
+        except urllib.error.HTTPError as e:
+            # 429/503: el backend está saturado; se descarta la lectura y se sigue
+            print(f"Backend respondió {e.code} para sensor {r['sensor_id']}")
+        except (urllib.error.URLError, OSError) as e:
+            print(f"No se pudo enviar al backend: {e}")
+        return False
+
+    def close(self):
+        pass
+
+
+class InfluxSink:
+    """Escribe directo en InfluxDB (sin pasar por el backend).
+
+    El backend no ve estas lecturas en vivo: sus detectores no las evalúan y las vistas recientes las leen de
+    Influx solo cuando el buffer en memoria no está recibiendo ingesta.
+    """
+
+    def __init__(self, cfg: dict):
+        from influxdb_client import InfluxDBClient, WriteOptions
+        self.client = InfluxDBClient(url=cfg['url'], token=cfg['token'], org=cfg['org'])
+        self.write_api = self.client.write_api(write_options=WriteOptions(batch_size=1))  # escribir punto a punto
+        self.bucket = cfg.get('bucket', 'datos_agua')
+
+    def write(self, r: dict) -> bool:
+        from influxdb_client import Point
+        p = Point("water_sensors").tag("sensor_id", str(r['sensor_id'])) \
+            .field("flowRate", float(r['flowRate'])) \
+            .field("turbidity", float(r['turbidity'])) \
+            .field("ph", float(r['ph'])) \
+            .field("conductivity", float(r['conductivity'])) \
+            .time(r['timestamp'])
+        self.write_api.write(bucket=self.bucket, record=p)
+        return True
+
+    def close(self):
+        try:
+            self.write_api.__del__()
+        except Exception:
+            pass
+        self.client.close()
+
+
+def run(sim: SensorSimulator, interval: float, duration: Optional[float], sink):
     if interval <= 0:
         raise ValueError("El intervalo debe ser > 0")
     if sim.n <= 0:
@@ -202,10 +271,6 @@ def run(sim: SensorSimulator, interval: float, duration: Optional[float], influx
     stagger = interval / sim.n  # para que no manden todos a la vez
     end_time = time.time() + duration if duration is not None else None
 
-    client = InfluxDBClient(url=influx_cfg['url'], token=influx_cfg['token'], org=influx_cfg['org'])
-    write_api = client.write_api(write_options=WriteOptions(batch_size=1))  # escribir punto a punto
-    bucket = influx_cfg.get('bucket', 'datos_agua')
-
     start = time.time()
     sent = 0
     try:
@@ -213,14 +278,8 @@ def run(sim: SensorSimulator, interval: float, duration: Optional[float], influx
             for sensor_id in range(1, sim.n + 1):
                 ts = now_bogota()
                 r = sim.sample(sensor_id, ts, interval)
-                p = Point("water_sensors").tag("sensor_id", str(r['sensor_id'])) \
-                    .field("flowRate", float(r['flowRate'])) \
-                    .field("turbidity", float(r['turbidity'])) \
-                    .field("ph", float(r['ph'])) \
-                    .field("conductivity", float(r['conductivity'])) \
-                    .time(r['timestamp'])
-                write_api.write(bucket=bucket, record=p)
-                sent += 1
+                if sink.write(r):
+                    sent += 1
                 time.sleep(stagger)
 
             if end_time is not None and time.time() >= end_time:
@@ -228,17 +287,15 @@ def run(sim: SensorSimulator, interval: float, duration: Optional[float], influx
     except KeyboardInterrupt:
         pass
     finally:
-        try:
-            write_api.__del__()
-        except Exception:
-            pass
-        client.close()
+        sink.close()
         elapsed = time.time() - start
         print(f"Envío finalizado. Puntos enviados: {sent}. Tiempo: {elapsed:.1f}s")
 
 
 def main(argv=None):
-    p = ArgumentParser(description='Simulador simple en tiempo real hacia InfluxDB')
+    p = ArgumentParser(description='Simulador simple en tiempo real hacia el backend (o directo a InfluxDB)')
+    p.add_argument('--backend-url', type=str, default=os.environ.get('BACKEND_URL'),
+                   help='URL base del backend (env BACKEND_URL); si falta se escribe directo en InfluxDB')
     p.add_argument('--sensors', '-n', type=int, default=4, help='Cantidad de sensores a simular')
     p.add_argument('--interval', '-i', type=float, default=5.0, help='Intervalo entre lecturas (segundos)')
     p.add_argument('--duration', '-d', type=str, default=None, help="Duración total: segundos o '1h','30m','45s'")
@@ -257,15 +314,21 @@ def main(argv=None):
 
     duration = parse_duration(args.duration)
 
-    influx_cfg = {
-        'url': os.environ.get('INFLUXDB_URL'),
-        'token': os.environ.get('INFLUXDB_TOKEN'),
-        'org': os.environ.get('INFLUXDB_ORG'),
-        'bucket': os.environ.get('INFLUXDB_BUCKET', 'datos_agua'),
-    }
-    missing = [k for k, v in influx_cfg.items() if k in ('url', 'token', 'org') and not v]
-    if missing:
-        raise SystemExit(f"Faltan variables de entorno para InfluxDB: {', '.join(missing)}")
+    if args.backend_url:
+        sink = BackendSink(args.backend_url)
+        target = f"backend {sink.url}"
+    else:
+        influx_cfg = {
+            'url': os.environ.get('INFLUXDB_URL'),
+            'token': os.environ.get('INFLUXDB_TOKEN'),
+            'org': os.environ.get('INFLUXDB_ORG'),
+            'bucket': os.environ.get('INFLUXDB_BUCKET', 'datos_agua'),
+        }
+        missing = [k for k, v in influx_cfg.items() if k in ('url', 'token', 'org') and not v]
+        if missing:
+            raise SystemExit(f"Faltan BACKEND_URL o las variables de entorno para InfluxDB: {', '.join(missing)}")
+        sink = InfluxSink(influx_cfg)
+        target = f"InfluxDB bucket={influx_cfg['bucket']}"
 
     sim = SensorSimulator(
         args.sensors,
@@ -275,11 +338,11 @@ def main(argv=None):
         turbidity_spike_prob=args.turbidity_spike_prob,
         intensity=args.intensity,
     )
-    print(f"Simulando {sim.n} sensores, intervalo={args.interval}s, destino=InfluxDB bucket={influx_cfg['bucket']}")
+    print(f"Simulando {sim.n} sensores, intervalo={args.interval}s, destino={target}")
     if duration is not None:
         print(f"Duración: {duration} segundos")
 
-    run(sim, args.interval, duration, influx_cfg)
+    run(sim, args.interval, duration, sink)
 
 
 if __name__ == '__main__':
@@ -1,12 +1,20 @@
 package com.hydro.watertap.config;
 
+import io.micrometer.observation.ObservationRegistry;
 import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.model.tool.ToolCallingManager;
 import org.springframework.ai.openai.OpenAiChatModel;
 import org.springframework.ai.openai.api.OpenAiApi;
 import org.springframework.ai.openai.OpenAiChatOptions;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.web.client.RestClient;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
 
 @Configuration
 public class AiGroqConfig {
@@ -20,10 +28,27 @@ public class AiGroqConfig {
     @Value("${spring.ai.openai.chat.model:llama-3.3-70b-versatile}")
     private String model;
 
+    @Value("${ai.http.connect-timeout-ms:5000}")
+    private long connectTimeoutMs;
+
+    @Value("${ai.http.read-timeout-ms:20000}")
+    private long readTimeoutMs;
+
     @Bean
     public ChatModel chatModel() {
-        OpenAiApi api = new OpenAiApi(baseUrl, apiKey);
+        // El timeout de Reactor solo abandona la espera: sin timeouts HTTP el hilo del bulkhead seguiría bloqueado
+        HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(connectTimeoutMs)).build();
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(http);
+        requestFactory.setReadTimeout(Duration.ofMillis(readTimeoutMs));
+        OpenAiApi api = OpenAiApi.builder()
+                .baseUrl(baseUrl)
+                .apiKey(apiKey)
+                .restClientBuilder(RestClient.builder().requestFactory(requestFactory))
+                .build();
         OpenAiChatOptions options = OpenAiChatOptions.builder().model(model).build();
-        return new OpenAiChatModel(api, options);
+        // Un solo intento: los reintentos (con jitter), el timeout y el cortocircuito los gestiona AiAnomalyService
+        RetryTemplate singleAttempt = RetryTemplate.builder().maxAttempts(1).build();
+        return new OpenAiChatModel(api, options, ToolCallingManager.builder().build(), singleAttempt,
+                ObservationRegistry.NOOP);
     }
 }
@@ -0,0 +1,46 @@
+package com.hydro.watertap.config;
+
+import com.hydro.watertap.service.Bulkhead;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Compartimentos para el trabajo bloqueante: lecturas del dashboard (historial, alertas, ajustes) y reportes
+ * PDF/CSV van por separado, para que un reporte lento no deje sin hilos a las vistas en vivo. La ingesta tiene
+ * el suyo porque puede bloquear (WAL, backpressure BLOCK, ack FLUSHED): una ráfaga de subidas no debe dejar al
+ * dashboard respondiendo 503. Las llamadas al modelo de IA tienen el suyo, con tantos hilos como lotes en vuelo
+ * (ai.shard.max-in-flight).
+ */
+@Configuration
+public class BulkheadConfig {
+
+    @Bean(destroyMethod = "dispose")
+    public Bulkhead dashboardBulkhead(MeterRegistry registry,
+                                      @Value("${bulkhead.dashboard.threads:32}") int threads,
+                                      @Value("${bulkhead.dashboard.queue:1000}") int queue) {
+        return new Bulkhead("dashboard", threads, queue, registry);
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Bulkhead reportBulkhead(MeterRegistry registry,
+                                   @Value("${bulkhead.report.threads:2}") int threads,
+                                   @Value("${bulkhead.report.queue:20}") int queue) {
+        return new Bulkhead("report", threads, queue, registry);
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Bulkhead ingestBulkhead(MeterRegistry registry,
+                                   @Value("${bulkhead.ingest.threads:8}") int threads,
+                                   @Value("${bulkhead.ingest.queue:200}") int queue) {
+        return new Bulkhead("ingest", threads, queue, registry);
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Bulkhead aiBulkhead(MeterRegistry registry,
+                               @Value("${ai.shard.max-in-flight:4}") int threads,
+                               @Value("${bulkhead.ai.queue:100}") int queue) {
+        return new Bulkhead("ai", threads, queue, registry);
+    }
+}
@@ -2,8 +2,11 @@ package com.hydro.watertap.controller;
 
 import com.hydro.watertap.model.entity.AiSettingsEntity;
 import com.hydro.watertap.service.AiSettingsService;
+import com.hydro.watertap.service.Bulkhead;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
 
 @RestController
 @RequestMapping("/ai")
@@ -11,26 +14,32 @@ import org.springframework.web.bind.annotation.*;
 public class AiSettingsController {
 
     private final AiSettingsService service;
+    private final Bulkhead dashboard;
 
-    public AiSettingsController(AiSettingsService service) { this.service = service; }
+    public AiSettingsController(AiSettingsService service, @Qualifier("dashboardBulkhead") Bulkhead dashboard) {
+        this.service = service;
+        this.dashboard = dashboard;
+    }
 
     @GetMapping("/settings")
-    public AiSettingsEntity get() { return service.getOrCreate(); }
+    public Mono<AiSettingsEntity> get() { return dashboard.call(service::getOrCreate); }
 
     @PostMapping("/settings")
-    public AiSettingsEntity save(@RequestBody AiSettingsEntity settings) {
-        if (settings.getId() == null) {
-            // merge sobre existente para evitar múltiples filas
-            AiSettingsEntity existing = service.getOrCreate();
-            settings.setId(existing.getId());
-        }
-        return service.save(settings);
+    public Mono<AiSettingsEntity> save(@RequestBody AiSettingsEntity settings) {
+        return dashboard.call(() -> {
+            if (settings.getId() == null) {
+                // merge sobre existente para evitar múltiples filas
+                AiSettingsEntity existing = service.getOrCreate();
+                settings.setId(existing.getId());
+            }
+            return service.save(settings);
+        });
     }
 
     @PostMapping("/enable")
-    public void enable() { service.setAiEnabled(true); }
+    public Mono<Void> enable() { return dashboard.run(() -> service.setAiEnabled(true)); }
 
     @PostMapping("/disable")
-    public void disable() { service.setAiEnabled(false); }
+    public Mono<Void> disable() { return dashboard.run(() -> service.setAiEnabled(false)); }
 }
 
@@ -1,12 +1,19 @@
 package com.hydro.watertap.controller;
 
+import com.hydro.watertap.model.dto.AlertPage;
 import com.hydro.watertap.model.entity.SensorAlertEntity;
+import com.hydro.watertap.service.AlertHistoryService;
+import com.hydro.watertap.service.Bulkhead;
 import com.hydro.watertap.service.SensorAlertService;
+import com.hydro.watertap.service.SensorFilters;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import java.time.Instant;
 import java.util.List;
 
 @RestController
@@ -15,35 +22,60 @@ import java.util.List;
 public class AlertController {
 
     private final SensorAlertService alertService;
+    private final AlertHistoryService historyService;
+    private final SensorFilters sensorFilters;
+    private final Bulkhead dashboard;
 
-    public AlertController(SensorAlertService alertService) {
+    public AlertController(SensorAlertService alertService, AlertHistoryService historyService, SensorFilters sensorFilters,
+                           @Qualifier("dashboardBulkhead") Bulkhead dashboard) {
         this.alertService = alertService;
+        this.historyService = historyService;
+        this.sensorFilters = sensorFilters;
+        this.dashboard = dashboard;
     }
 
-    // SSE con snapshot inicial + stream
+    // SSE con snapshot inicial + stream; filtrable por sensorIds y/o site
     @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<SensorAlertEntity> streamAlerts() {
-        return alertService.getAlertStreamWithSnapshot();
+    public Flux<String> streamAlerts(
+            @RequestParam(name = "sensorIds", required = false) List<Integer> sensorIds,
+            @RequestParam(name = "site", required = false) List<String> sites
+    ) {
+        return alertService.getAlertStreamWithSnapshot(sensorFilters.of(sensorIds, sites));
     }
 
+    // Desde memoria: no necesita el compartimento
     @GetMapping
-    public List<SensorAlertEntity> getActive() { return alertService.getActiveAlerts(); }
+    public Mono<List<SensorAlertEntity>> getActive() { return Mono.fromSupplier(alertService::getActiveAlerts); }
+
+    // Historial paginado por cursor (más recientes primero); para la siguiente página se envía nextCursor
+    @GetMapping("/history")
+    public Mono<AlertPage> history(
+            @RequestParam(name = "sensorIds", required = false) List<Integer> sensorIds,
+            @RequestParam(name = "severity", required = false) String severity,
+            @RequestParam(name = "active", required = false) Boolean active,
+            @RequestParam(name = "from", required = false) Instant from,
+            @RequestParam(name = "to", required = false) Instant to,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "limit", required = false) Integer limit
+    ) {
+        return dashboard.call(() -> historyService.findPage(sensorIds, severity, active, from, to, cursor, limit));
+    }
 
     @PostMapping
-    public SensorAlertEntity createAlert(@RequestBody SensorAlertEntity alert) {
+    public Mono<SensorAlertEntity> createAlert(@RequestBody SensorAlertEntity alert) {
         alert.setId(null);
-        return alertService.createAlert(alert);
+        return dashboard.call(() -> alertService.createAlert(alert));
     }
 
     // Desactivar alerta
     @PostMapping("/{id}/deactivate")
-    public void deactivateAlert(@PathVariable Long id) {
-        alertService.deactivateAlert(id);
+    public Mono<Void> deactivateAlert(@PathVariable Long id) {
+        return dashboard.call(() -> alertService.deactivateAlert(id)).then();
     }
 
     // Borrar alerta
     @DeleteMapping("/{id}")
-    public void deleteAlert(@PathVariable Long id) {
-        alertService.removeAlert(id);
+    public Mono<Void> deleteAlert(@PathVariable Long id) {
+        return dashboard.run(() -> alertService.removeAlert(id));
     }
 }
@@ -1,9 +1,11 @@
 package com.hydro.watertap.controller;
 
 import com.hydro.watertap.service.PdfReportService;
+import com.hydro.watertap.service.Bulkhead;
 import com.hydro.watertap.service.CsvReportService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -11,6 +13,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
@@ -22,15 +25,18 @@ public class ReportController {
 
     private final PdfReportService reportService;
     private final CsvReportService csvReportService;
+    private final Bulkhead reports;
 
-    public ReportController(PdfReportService reportService, CsvReportService csvReportService) {
+    public ReportController(PdfReportService reportService, CsvReportService csvReportService,
+                            @Qualifier("reportBulkhead") Bulkhead reports) {
         this.reportService = reportService;
         this.csvReportService = csvReportService;
+        this.reports = reports;
     }
 
     @GetMapping(produces = MediaType.APPLICATION_PDF_VALUE)
     @Operation(summary = "Genera un reporte PDF", description = "Parámetros: amount (int), unit (m|h|d), agg opcional (e.g., 1h, 1d)")
-    public ResponseEntity<byte[]> generate(
+    public Mono<ResponseEntity<byte[]>> generate(
             @RequestParam(name = "amount", defaultValue = "1") int amount,
             @RequestParam(name = "unit", defaultValue = "d") String unit,
             @RequestParam(name = "agg", required = false) String agg
@@ -40,18 +46,18 @@ public class ReportController {
         Instant to = Instant.now();
         Instant from = to.minus(amount, chrono);
 
-        byte[] pdf = reportService.generateReport(from, to, agg);
         String filename = "reporte-" + unit + amount + ".pdf";
 
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + filename)
-                .contentType(MediaType.APPLICATION_PDF)
-                .body(pdf);
+        return reports.call(() -> reportService.generateReport(from, to, agg))
+                .map(pdf -> ResponseEntity.ok()
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + filename)
+                        .contentType(MediaType.APPLICATION_PDF)
+                        .body(pdf));
     }
 
     @GetMapping(value = "/csv", produces = "text/csv")
     @Operation(summary = "Genera un reporte CSV", description = "CSV con datos crudos y estadísticas por buckets. Parámetros: amount (int), unit (m|h|d)")
-    public ResponseEntity<byte[]> generateCsv(
+    public Mono<ResponseEntity<byte[]>> generateCsv(
             @RequestParam(name = "amount", defaultValue = "1") int amount,
             @RequestParam(name = "unit", defaultValue = "d") String unit
     ) {
@@ -60,13 +66,13 @@ public class ReportController {
         Instant to = Instant.now();
         Instant from = to.minus(amount, chrono);
 
-        byte[] csv = csvReportService.generateCsv(from, to);
         String filename = "reporte-" + unit + amount + ".csv";
 
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + filename)
-                .contentType(MediaType.parseMediaType("text/csv"))
-                .body(csv);
+        return reports.call(() -> csvReportService.generateCsv(from, to))
+                .map(csv -> ResponseEntity.ok()
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + filename)
+                        .contentType(MediaType.parseMediaType("text/csv"))
+                        .body(csv));
     }
 
     private ChronoUnit parseUnit(String unit) {
@@ -2,11 +2,20 @@ package com.hydro.watertap.controller;
 
 import com.hydro.watertap.model.dto.DeleteRequest;
 import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.service.Bulkhead;
 import com.hydro.watertap.service.SensorDataService;
+import com.hydro.watertap.service.SensorFilters;
+import com.hydro.watertap.service.SensorIngestService;
+import com.hydro.watertap.service.SensorStreamService;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.time.*;
 import java.time.temporal.ChronoUnit;
@@ -17,45 +26,67 @@ import java.util.List;
 @Tag(name = "Sensors", description = "Endpoints para datos de sensores")
 public class SensorController {
 
-    private final Flux<List<SensorRecordDTO>> sharedStream;
     private final SensorDataService sensorDataService;
+    private final SensorIngestService sensorIngestService;
+    private final SensorStreamService sensorStreamService;
+    private final SensorFilters sensorFilters;
+    private final Bulkhead dashboard;
+    private final Bulkhead ingest;
 
-    public SensorController(SensorDataService sensorDataService) {
+    public SensorController(SensorDataService sensorDataService, SensorIngestService sensorIngestService,
+                            SensorStreamService sensorStreamService, SensorFilters sensorFilters,
+                            @Qualifier("dashboardBulkhead") Bulkhead dashboard,
+                            @Qualifier("ingestBulkhead") Bulkhead ingest) {
         this.sensorDataService = sensorDataService;
-        this.sharedStream = Flux.interval(Duration.ZERO, Duration.ofSeconds(15))
-                .map(tick -> sensorDataService.getRecentSensorData(5))
-                .replay(1)
-                .refCount()
-                .share();
+        this.sensorIngestService = sensorIngestService;
+        this.sensorStreamService = sensorStreamService;
+        this.sensorFilters = sensorFilters;
+        this.dashboard = dashboard;
+        this.ingest = ingest;
     }
 
+    // Ventana reciente completa en cada disparo; filtrable por sensorIds y/o site
     @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<List<SensorRecordDTO>> streamSensorData() {
-        return sharedStream;
+    public Flux<String> streamSensorData(
+            @RequestParam(name = "sensorIds", required = false) List<Integer> sensorIds,
+            @RequestParam(name = "site", required = false) List<String> sites
+    ) {
+        return sensorStreamService.windowStream(sensorFilters.of(sensorIds, sites));
+    }
+
+    // SSE por deltas: snapshot inicial y luego solo lecturas nuevas; reanudable con Last-Event-ID
+    @GetMapping(value = "/stream/delta", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> streamSensorDeltas(
+            @RequestHeader(name = "Last-Event-ID", required = false) String lastEventId,
+            @RequestParam(name = "sensorIds", required = false) List<Integer> sensorIds,
+            @RequestParam(name = "site", required = false) List<String> sites
+    ) {
+        return sensorStreamService.deltaStream(lastEventId, sensorFilters.of(sensorIds, sites));
     }
 
     @GetMapping("/history")
-    public List<SensorRecordDTO> getHistoryData(
+    public Mono<List<SensorRecordDTO>> getHistoryData(
             @RequestParam("from") Instant from,
             @RequestParam("to") Instant to
     ) {
-        return sensorDataService.getHistory(from, to);
+        return dashboard.wrap(sensorDataService.getHistoryMono(from, to));
     }
 
     @GetMapping("/history/since")
-    public List<SensorRecordDTO> getHistorySince(
+    public Mono<List<SensorRecordDTO>> getHistorySince(
             @RequestParam(name = "amount") int amount,
             @RequestParam(name = "unit") String unit,
             @RequestParam(name = "agg", required = false) String agg
     ) {
         if (amount <= 0) amount = 1;
         ChronoUnit chrono = parseUnit(unit);
-        Instant to = Instant.now();
+        // Alineado al segundo para que las peticiones simultáneas compartan la misma consulta
+        Instant to = Instant.now().truncatedTo(ChronoUnit.SECONDS);
         Instant from = to.minus(amount, chrono);
         if (agg != null && !agg.isBlank()) {
-            return sensorDataService.getAggregatedHistory(from, to, agg);
+            return dashboard.wrap(sensorDataService.getAggregatedHistoryMono(from, to, agg));
         }
-        return sensorDataService.getHistory(from, to);
+        return dashboard.wrap(sensorDataService.getHistoryMono(from, to));
     }
 
     private ChronoUnit parseUnit(String unit) {
@@ -89,16 +120,26 @@ public class SensorController {
     }
 
     @PostMapping("/upload")
-    public void uploadSensorData(@RequestBody List<SensorRecordDTO> records) {
-        sensorDataService.saveSensorData(records);
+    public Mono<ResponseEntity<Void>> uploadSensorData(@RequestBody List<SensorRecordDTO> records) {
+        // ingest puede bloquear (WAL, backpressure BLOCK, ack FLUSHED): compartimento propio, no el del dashboard
+        return ingest.call(() -> {
+            if (!sensorIngestService.ingest(records)) {
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).<Void>build();
+            }
+            // QUEUED: aceptado pero aún no escrito en Influx
+            if (sensorIngestService.getAckMode() == SensorIngestService.AckMode.QUEUED) {
+                return ResponseEntity.accepted().<Void>build();
+            }
+            return ResponseEntity.ok().<Void>build();
+        });
     }
 
     @DeleteMapping("/data")
-    public int deleteData(@RequestBody DeleteRequest req) {
-        return sensorDataService.deleteData(
+    public Mono<Integer> deleteData(@RequestBody DeleteRequest req) {
+        return dashboard.call(() -> sensorDataService.deleteData(
                 req.getSensorIds(),
                 req.getFrom(),
                 req.getTo()
-        );
+        ));
     }
 }
@@ -0,0 +1,13 @@
+package com.hydro.watertap.model.dto;
+
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+
+import java.util.List;
+
+/**
+ * Página del historial de alertas. {@code nextCursor} es null cuando no hay más resultados.
+ */
+public record AlertPage(
+        List<SensorAlertEntity> items,
+        String nextCursor
+) { }
@@ -10,7 +10,13 @@ import org.hibernate.annotations.Type;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "sensor_alerts")
+@Table(name = "sensor_alerts", indexes = {
+        // Historial: orden (created_at, id) para paginar por cursor, con y sin filtros
+        @Index(name = "idx_sensor_alerts_created", columnList = "created_at, id"),
+        @Index(name = "idx_sensor_alerts_sensor_created", columnList = "sensor_id, created_at, id"),
+        @Index(name = "idx_sensor_alerts_severity_created", columnList = "severity, created_at, id"),
+        @Index(name = "idx_sensor_alerts_active_created", columnList = "active, created_at, id")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
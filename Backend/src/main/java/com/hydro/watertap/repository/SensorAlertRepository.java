@@ -2,6 +2,10 @@ package com.hydro.watertap.repository;
 
 import com.hydro.watertap.model.entity.SensorAlertEntity;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
@@ -9,9 +13,24 @@ import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface SensorAlertRepository extends JpaRepository<SensorAlertEntity, Long> {
+public interface SensorAlertRepository extends JpaRepository<SensorAlertEntity, Long>, JpaSpecificationExecutor<SensorAlertEntity> {
     List<SensorAlertEntity> findByActiveTrue();
     List<SensorAlertEntity> findBySensorIdAndActiveTrue(Integer sensorId);
     Optional<SensorAlertEntity> findFirstBySensorIdAndDescriptionAndSeverityAndActiveTrue(Integer sensorId, String description, String severity);
     List<SensorAlertEntity> findByActiveTrueAndCreatedAtBefore(LocalDateTime threshold);
+
+    // Escritura diferida: actualiza el estado sin cargar la entidad (si ya se borró no afecta filas)
+    @Modifying
+    @Query("UPDATE SensorAlertEntity a SET a.description = :description, a.severity = :severity, a.solution = :solution, " +
+            "a.active = :active, a.updatedAt = :updatedAt WHERE a.id = :id")
+    int updateState(@Param("id") Long id, @Param("description") String description, @Param("severity") String severity,
+                    @Param("solution") String solution, @Param("active") Boolean active,
+                    @Param("updatedAt") LocalDateTime updatedAt);
+
+    // Auto-resolución por tramos: desactiva hasta :limit alertas vencidas (las más antiguas primero) y devuelve sus ids.
+    // Debe ejecutarse dentro de una transacción de escritura
+    @Query(nativeQuery = true, value = "UPDATE sensor_alerts SET active = false, updated_at = now() WHERE id IN (" +
+            "SELECT id FROM sensor_alerts WHERE active AND created_at < :threshold ORDER BY id LIMIT :limit " +
+            "FOR UPDATE SKIP LOCKED) RETURNING id")
+    List<Long> resolveExpiredChunk(@Param("threshold") LocalDateTime threshold, @Param("limit") int limit);
 }
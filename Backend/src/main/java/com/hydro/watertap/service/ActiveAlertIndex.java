@@ -0,0 +1,78 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Alertas activas en memoria, por id y por sensor. Se reconstruye desde BD al arrancar y
+ * {@link SensorAlertService} la mantiene al día en cada cambio, de modo que el snapshot de cada conexión SSE
+ * y las búsquedas por sensor no consultan Postgres.
+ *
+ * Las lecturas son concurrentes; las escrituras las serializa {@link SensorAlertService}.
+ */
+@Component
+public class ActiveAlertIndex {
+
+    private final Map<Long, SensorAlertEntity> byId = new ConcurrentHashMap<>();
+    private final Map<Integer, Map<Long, SensorAlertEntity>> bySensor = new ConcurrentHashMap<>();
+
+    public void load(Collection<SensorAlertEntity> actives) {
+        byId.clear();
+        bySensor.clear();
+        actives.forEach(this::put);
+    }
+
+    /**
+     * Registra el estado de la alerta: si está activa se indexa (o reemplaza), si no se quita.
+     */
+    public void put(SensorAlertEntity alert) {
+        if (alert.getId() == null) return;
+        if (!Boolean.TRUE.equals(alert.getActive())) {
+            remove(alert.getId());
+            return;
+        }
+        SensorAlertEntity previous = byId.put(alert.getId(), alert);
+        if (previous != null && previous.getSensorId() != null && !previous.getSensorId().equals(alert.getSensorId())) {
+            unindexSensor(previous);
+        }
+        if (alert.getSensorId() != null) {
+            bySensor.computeIfAbsent(alert.getSensorId(), k -> new ConcurrentHashMap<>()).put(alert.getId(), alert);
+        }
+    }
+
+    public void remove(Long id) {
+        SensorAlertEntity previous = byId.remove(id);
+        if (previous != null && previous.getSensorId() != null) unindexSensor(previous);
+    }
+
+    public Optional<SensorAlertEntity> find(Long id) {
+        return Optional.ofNullable(byId.get(id));
+    }
+
+    public List<SensorAlertEntity> forSensor(Integer sensorId) {
+        Map<Long, SensorAlertEntity> m = sensorId == null ? null : bySensor.get(sensorId);
+        if (m == null) return List.of();
+        List<SensorAlertEntity> list = new ArrayList<>(m.values());
+        list.sort(Comparator.comparing(SensorAlertEntity::getId));
+        return list;
+    }
+
+    public List<SensorAlertEntity> all() {
+        return new ArrayList<>(byId.values());
+    }
+
+    private void unindexSensor(SensorAlertEntity alert) {
+        bySensor.computeIfPresent(alert.getSensorId(), (k, m) -> {
+            m.remove(alert.getId());
+            return m.isEmpty() ? null : m;
+        });
+    }
+}
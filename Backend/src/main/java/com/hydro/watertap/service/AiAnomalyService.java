@@ -3,130 +3,400 @@ package com.hydro.watertap.service;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.hydro.watertap.model.dto.SensorRecordDTO;
 import com.hydro.watertap.model.entity.SensorAlertEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.ai.chat.metadata.Usage;
 import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Service
 public class AiAnomalyService {
 
     private static final ObjectMapper MAPPER = new ObjectMapper();
     private static final Logger log = LoggerFactory.getLogger(AiAnomalyService.class);
+    // Ventana de contexto (base6h) para el modelo
+    private static final Duration CONTEXT_WINDOW = Duration.ofHours(6);
 
     private final ChatModel chatModel;
-    private final SensorDataService sensorDataService;
+    private final SlidingStatsService slidingStats;
     private final SensorAlertService alertService;
     private final AiSettingsService settingsService;
+    private final SensorRuleEngine ruleEngine;
+    private final Bulkhead aiBulkhead;
+    private final MeterRegistry registry;
 
     @Value("${ai.recent.minutes:10}")
     private int recentMinutes;
 
+    @Value("${ai.gate.quantum.ph:0.1}")
+    private double phQuantum;
+
+    @Value("${ai.gate.quantum.turbidity:0.1}")
+    private double turbidityQuantum;
+
+    @Value("${ai.gate.quantum.conductivity:10}")
+    private double conductivityQuantum;
+
+    @Value("${ai.gate.quantum.flow:0.05}")
+    private double flowQuantum;
+
+    @Value("${ai.cache.max-entries:500}")
+    private int cacheMaxEntries;
+
+    @Value("${ai.cache.ttl-minutes:60}")
+    private long cacheTtlMinutes;
+
+    // Lotes: presupuesto de tokens (estimados) por prompt completo y tope de sensores por lote
+    @Value("${ai.shard.max-tokens:3000}")
+    private int shardMaxTokens;
+
+    @Value("${ai.shard.max-sensors:25}")
+    private int shardMaxSensors;
+
+    @Value("${ai.shard.max-in-flight:4}")
+    private int maxInFlight;
+
+    @Value("${ai.call.timeout-ms:20000}")
+    private long callTimeoutMs;
+
+    @Value("${ai.call.retries:2}")
+    private int callRetries;
+
+    @Value("${ai.call.retry-backoff-ms:500}")
+    private long retryBackoffMs;
+
+    @Value("${ai.breaker.failure-threshold:3}")
+    private int breakerFailureThreshold;
+
+    @Value("${ai.breaker.open-ms:120000}")
+    private long breakerOpenMs;
+
+    private ResponseCache responseCache;
+    private CircuitBreaker breaker;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Counter cacheHits;
+    private final Counter modelCalls;
+    private final Counter fallbacks;
+    private final DistributionSummary shardSensors;
+    private final DistributionSummary promptTokens;
+    private final DistributionSummary completionTokens;
+
     public AiAnomalyService(ChatModel chatModel,
-                            SensorDataService sensorDataService,
+                            SlidingStatsService slidingStats,
                             SensorAlertService alertService,
-                            AiSettingsService settingsService) {
+                            AiSettingsService settingsService,
+                            SensorRuleEngine ruleEngine,
+                            @Qualifier("aiBulkhead") Bulkhead aiBulkhead,
+                            MeterRegistry registry) {
         this.chatModel = chatModel;
-        this.sensorDataService = sensorDataService;
+        this.slidingStats = slidingStats;
         this.alertService = alertService;
         this.settingsService = settingsService;
+        this.ruleEngine = ruleEngine;
+        this.aiBulkhead = aiBulkhead;
+        this.registry = registry;
+        this.cacheHits = Counter.builder("ai.enrichment").tag("source", "cache").register(registry);
+        this.modelCalls = Counter.builder("ai.enrichment").tag("source", "model").register(registry);
+        this.fallbacks = Counter.builder("ai.enrichment").tag("source", "fallback")
+                .description("Alertas que se quedan con la descripción del motor de reglas").register(registry);
+        this.shardSensors = DistributionSummary.builder("ai.shard.sensors").register(registry);
+        this.promptTokens = DistributionSummary.builder("ai.shard.tokens").tag("type", "prompt").register(registry);
+        this.completionTokens = DistributionSummary.builder("ai.shard.tokens").tag("type", "completion").register(registry);
+    }
+
+    @PostConstruct
+    void initCache() {
+        responseCache = new ResponseCache(cacheMaxEntries, Duration.ofMinutes(cacheTtlMinutes).toMillis());
+        breaker = new CircuitBreaker("ai", breakerFailureThreshold, breakerOpenMs, registry);
     }
 
-    // Para pruebas: ejecutar cada 1 minuto
+    // Cada minuto: redactar con IA la descripción de las alertas que levantó el motor de reglas desde la pasada
+    // anterior (el motor es el filtro previo: sin alertas nuevas no se llama al modelo; la severidad la decide él).
+    // Cada alerta se identifica por una huella de su estado cuantizado; si esa huella ya se redactó antes se
+    // reutiliza la respuesta guardada y solo van al modelo las que cambiaron de forma apreciable.
+    // Las pendientes se reparten en lotes acotados (ai.shard.*) que se evalúan en paralelo en el compartimento
+    // "ai", sin bloquear el hilo del scheduler; mientras una pasada sigue en curso las nuevas esperan a la siguiente
     @Scheduled(fixedRateString = "${ai.check.rate-ms:60000}", initialDelayString = "${ai.check.initial-delay-ms:30000}")
     public void runAiCheck() {
+        if (!running.compareAndSet(false, true)) {
+            log.debug("AI: pasada anterior aún en curso");
+            return;
+        }
+        boolean started = false;
         try {
-            if (!settingsService.isAiEnabled()) return;
+            Map<Integer, SensorRuleEngine.Finding> findings = ruleEngine.drainPendingEnrichment();
+            if (findings.isEmpty() || !settingsService.isAiEnabled()) return;
 
             ZoneId bogota = ZoneId.of("America/Bogota");
             LocalDateTime nowLocal = LocalDateTime.now(bogota);
             boolean workTime = settingsService.isWorkTime(nowLocal);
 
-            // Obtener últimos 10 minutos de datos crudos
-            List<SensorRecordDTO> last10min = sensorDataService.getRecentSensorData(recentMinutes);
-            // Obtener últimas ~6 horas agregadas por hora para contexto
-            Instant nowInstant = Instant.now();
-            Instant from = nowInstant.minusSeconds(6 * 3600);
-            Instant to = nowInstant;
-            List<SensorRecordDTO> lastHours = sensorDataService.getAggregatedHistory(from, to, "1h");
+            // Estadísticos en memoria (ventana reciente y ~6 horas) solo de los sensores con alerta: sin consultar Influx
+            List<Pending> toAsk = new ArrayList<>();
+            for (SensorRuleEngine.Finding f : findings.values()) {
+                SlidingStatsService.SensorStats r = slidingStats.snapshot(f.sensorId(), Duration.ofMinutes(recentMinutes));
+                String fp = fingerprint(f, r, workTime);
+                Enrichment cached = responseCache.get(fp);
+                if (cached != null) {
+                    cacheHits.increment();
+                    apply(f, fill(cached, f));
+                    continue;
+                }
+                toAsk.add(new Pending(new AnomalySummaryEncoder.Row(f, r, slidingStats.snapshot(f.sensorId(), CONTEXT_WINDOW)), fp));
+            }
+            List<List<Pending>> shards = shard(toAsk);
+            log.info("AI: {} alertas por redactar en {} lotes, {} reutilizadas de caché",
+                    toAsk.size(), shards.size(), findings.size() - toAsk.size());
+            if (shards.isEmpty()) return;
+
+            Flux.fromIterable(shards)
+                    .flatMap(shard -> evaluateShard(shard, workTime), Math.max(1, maxInFlight))
+                    .doFinally(sig -> running.set(false))
+                    .subscribe(null, e -> log.warn("AI anomaly check falló: {}", e.getMessage()));
+            started = true;
+        } catch (Exception e) {
+            log.warn("AI anomaly check falló: {}", e.getMessage());
+        } finally {
+            if (!started) running.set(false);
+        }
+    }
+
+    // Alerta pendiente de redactar: sus filas del resumen y la huella con la que se guarda la respuesta
+    private record Pending(AnomalySummaryEncoder.Row row, String fingerprint) {
+        SensorRuleEngine.Finding finding() { return row.finding(); }
+    }
+
+    // Reparto voraz por orden de sensor: cada lote cabe en ai.shard.max-sensors y su prompt completo
+    // (instrucciones + cabeceras + filas, estimado antes de enviar) en ai.shard.max-tokens; un sensor que por sí
+    // solo supere el presupuesto va en un lote propio
+    private List<List<Pending>> shard(List<Pending> pending) {
+        List<Pending> sorted = new ArrayList<>(pending);
+        sorted.sort(Comparator.comparing(p -> p.finding().sensorId()));
+        int budget = shardMaxTokens - AnomalySummaryEncoder.estimateTokens(buildPrompt(""))
+                - AnomalySummaryEncoder.overheadTokens();
+        List<List<Pending>> shards = new ArrayList<>();
+        List<Pending> current = new ArrayList<>();
+        int tokens = 0;
+        for (Pending p : sorted) {
+            int t = AnomalySummaryEncoder.estimateTokens(p.row());
+            if (!current.isEmpty() && (tokens + t > budget || current.size() >= Math.max(1, shardMaxSensors))) {
+                shards.add(current);
+                current = new ArrayList<>();
+                tokens = 0;
+            }
+            current.add(p);
+            tokens += t;
+        }
+        if (!current.isEmpty()) shards.add(current);
+        return shards;
+    }
 
-            if (last10min.isEmpty() && lastHours.isEmpty()) return;
+    // Un lote: una llamada al modelo con timeout y reintentos con jitter. Con el circuito abierto, o si el lote
+    // falla del todo, las alertas se quedan con la descripción y la solución que puso el motor de reglas
+    private Mono<Void> evaluateShard(List<Pending> shard, boolean workTime) {
+        return Mono.defer(() -> {
+            if (!breaker.tryAcquire()) {
+                fallbacks.increment(shard.size());
+                log.debug("AI: circuito abierto, {} alertas quedan con la descripción del motor de reglas", shard.size());
+                return Mono.empty();
+            }
+            Map<Integer, Pending> bySensor = new LinkedHashMap<>();
+            List<AnomalySummaryEncoder.Row> rows = new ArrayList<>(shard.size());
+            for (Pending p : shard) {
+                bySensor.put(p.finding().sensorId(), p);
+                rows.add(p.row());
+            }
+            String prompt = buildPrompt(AnomalySummaryEncoder.encode(rows, workTime, Instant.now()));
+            log.debug("AI Prompt: {}", prompt);
+            shardSensors.record(shard.size());
+            long start = System.nanoTime();
+
+            return aiBulkhead.call(() -> chatModel.call(new Prompt(prompt)))
+                    .switchIfEmpty(Mono.error(() -> new IllegalStateException("respuesta vacía del modelo")))
+                    .timeout(Duration.ofMillis(callTimeoutMs))
+                    .retryWhen(Retry.backoff(Math.max(0, callRetries), Duration.ofMillis(Math.max(1, retryBackoffMs)))
+                            .jitter(0.5)
+                            .onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+                    .doOnNext(response -> {
+                        breaker.onSuccess();
+                        recordShard(start, "success");
+                        modelCalls.increment(shard.size());
+                        recordUsage(response, prompt);
+                        try {
+                            applyResponse(response, bySensor);
+                        } catch (RuntimeException e) {
+                            log.warn("AI: no se pudo aplicar la respuesta del lote: {}", e.getMessage());
+                        }
+                    })
+                    .onErrorResume(e -> {
+                        breaker.onFailure();
+                        recordShard(start, e instanceof TimeoutException ? "timeout" : "error");
+                        fallbacks.increment(shard.size());
+                        log.warn("AI: lote de {} alertas sin redactar ({}), se mantiene la descripción del motor de reglas",
+                                shard.size(), e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+                        return Mono.empty();
+                    })
+                    // Si la llamada se cancela, la prueba del circuito semiabierto no debe quedarse ocupada
+                    .doFinally(sig -> breaker.release())
+                    .then();
+        });
+    }
 
-            String summary = buildCompactJson(last10min, lastHours, workTime);
+    private void applyResponse(ChatResponse response, Map<Integer, Pending> bySensor) {
+        String content = response.getResult() == null ? null : response.getResult().getOutput().getText();
+        Map<String, Object> parsed = parseJson(content);
+
+        log.debug("AI Response: {}", parsed);
+        if (parsed == null) return;
+
+        Map<Integer, SensorAlertEntity> bestBySensor = dedupeAlerts(parsed.get("alerts"));
+        for (SensorAlertEntity entity : bestBySensor.values()) {
+            Pending pending = bySensor.get(entity.getSensorId());
+            if (pending == null) continue; // el modelo no puede crear alertas nuevas
+            Enrichment e = new Enrichment(entity.getDescription(), entity.getSolution());
+            Enrichment template = template(e, pending.finding());
+            if (template != null) responseCache.put(pending.fingerprint(), template);
+            apply(pending.finding(), e);
+        }
+    }
 
-            String prompt = buildPrompt(summary);
+    // Latencia por lote (incluidos reintentos), etiquetada con el resultado
+    private void recordShard(long startNanos, String outcome) {
+        Timer.builder("ai.shard.latency").tag("outcome", outcome).register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
 
-            log.info("AI Prompt: {}", prompt);
+    // Tokens del lote según el proveedor; si no los informa, estimación del prompt
+    private void recordUsage(ChatResponse response, String prompt) {
+        Usage usage = response.getMetadata() == null ? null : response.getMetadata().getUsage();
+        Integer in = usage == null ? null : usage.getPromptTokens();
+        Integer out = usage == null ? null : usage.getCompletionTokens();
+        promptTokens.record(in != null && in > 0 ? in : AnomalySummaryEncoder.estimateTokens(prompt));
+        if (out != null && out > 0) completionTokens.record(out);
+    }
 
-            String content = chatModel.call(prompt);
+    private record Enrichment(String description, String solution) { }
+
+    // La caché guarda plantillas: la huella no incluye el intervalo, así que from/to del hallazgo se guardan como
+    // marcadores y se rellenan con los del hallazgo que reutiliza la respuesta
+    private static final String FROM_MARK = "{from}";
+    private static final String TO_MARK = "{to}";
+    // Fechas/horas en cualquier forma habitual (ISO con o sin fracción/zona, o solo HH:mm)
+    private static final Pattern TIMESTAMP = Pattern.compile(
+            "\\d{4}-\\d{2}-\\d{2}[T ]\\d{2}:\\d{2}(?::\\d{2}(?:\\.\\d+)?)?(?:Z|[+-]\\d{2}:?\\d{2})?|\\b\\d{1,2}:\\d{2}(?::\\d{2})?\\b");
+
+    /** Plantilla cacheable de la respuesta, o null si cita instantes distintos de from/to del hallazgo. */
+    private static Enrichment template(Enrichment e, SensorRuleEngine.Finding f) {
+        String description = templateText(e.description(), f);
+        String solution = templateText(e.solution(), f);
+        if (e.description() != null && description == null) return null;
+        if (e.solution() != null && solution == null) return null;
+        return new Enrichment(description, solution);
+    }
 
+    private static Enrichment fill(Enrichment template, SensorRuleEngine.Finding f) {
+        return new Enrichment(fillText(template.description(), f), fillText(template.solution(), f));
+    }
 
+    private static String templateText(String text, SensorRuleEngine.Finding f) {
+        if (text == null) return null;
+        String from = iso(f.from());
+        String to = iso(f.to());
+        Matcher m = TIMESTAMP.matcher(text);
+        StringBuilder sb = new StringBuilder(text.length());
+        while (m.find()) {
+            String ts = m.group();
+            String mark = ts.equals(from) ? FROM_MARK : ts.equals(to) ? TO_MARK : null;
+            if (mark == null) return null;
+            m.appendReplacement(sb, Matcher.quoteReplacement(mark));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
 
-            Map<String, Object> parsed = parseJson(content);
+    private static String fillText(String template, SensorRuleEngine.Finding f) {
+        return template == null ? null : template.replace(FROM_MARK, iso(f.from())).replace(TO_MARK, iso(f.to()));
+    }
 
-            log.info("AI Response: {}", parsed);
-            if (parsed == null) return;
+    private static String iso(Instant ts) {
+        return ts == null ? "" : ts.truncatedTo(ChronoUnit.SECONDS).toString();
+    }
 
-            Map<Integer, SensorAlertEntity> bestBySensor = dedupeAlerts(parsed.get("alerts"));
-            for (SensorAlertEntity entity : bestBySensor.values()) {
-                alertService.createOrUpdateAlertForSensor(entity);
-            }
-        } catch (Exception e) {
-            log.warn("AI anomaly check falló: {}", e.getMessage());
+    // Solo actualiza la alerta que creó el hallazgo, y solo si nadie la resolvió ni la cambió desde entonces
+    private void apply(SensorRuleEngine.Finding finding, Enrichment e) {
+        boolean applied = alertService.updateIfUnchanged(finding.alertId(), finding.severity(), finding.description(),
+                e.description(), e.solution() != null ? e.solution() : finding.solution()).isPresent();
+        if (!applied) {
+            log.debug("AI: la alerta {} del sensor {} ya no está como la dejó el motor de reglas, no se redacta",
+                    finding.alertId(), finding.sensorId());
         }
     }
 
-    private String buildPrompt(String summary) {
-        return "Eres analista de consumo de agua. Responde SIEMPRE en español. Responde SOLO en JSON exacto con este esquema: {\\n" +
-                "  \\\"alerts\\\": [\\n" +
-                "    {\\n" +
-                "      \\\"sensorId\\\": entero,\\n" +
-                "      \\\"severity\\\": uno de [\\\\\\\"LOW\\\\\\\", \\\\\\\"MEDIUM\\\\\\\", \\\\\\\"HIGH\\\\\\\"],\\n" +
-                "      \\\"description\\\": string concisa y específica (incluye magnitud/criterio y fecha/hora o intervalo ISO SIN fracciones de segundo, p.ej. \\\"flujo ~0.50 L/min entre 2025-10-25T05:10:00Z y 2025-10-25T05:25:00Z; pH~7.00; turbidez~0.40; conductividad~250.00\\\"),\\n" +
-                "      \\\"solution\\\": string opcional SOLO si el problema es de flujo (p.ej. \\\"cerrar llave de paso y revisar posible fuga\\\")\\n" +
-                "    }\\n" +
-                "  ]\\n" +
-                "}.\\n" +
-                "Reglas urgentes (leer con atención):\\n" +
-                "1) Usa EXCLUSIVAMENTE el array last10min para decidir alertas. Si last10min está vacío o no contiene lecturas válidas, responde exactamente: {\\\"alerts\\\": []}.\\n" +
-                "2) IGNORA lastHours para la generación de alertas (solo contexto analítico).\\n" +
-                "3) Dentro de last10min, da mayor peso a los puntos más recientes (1–3 min > 4–10 min).\\n" +
-                "4) Interpreta workTime:\\n" +
-                "   • workTime=true → horario laboral; consumo moderado esperado; alerta solo si flujo en last10min es anormalmente alto o sostenido DENTRO de esos 10 minutos. NUNCA uses 'fuera de horario' aquí.\\n" +
-                "   • workTime=false → fuera de horario; consumo debe ser muy bajo; flujo alto o sostenido es sospechoso y puedes indicar 'fuera de horario'.\\n" +
-                "5) PRIORIDAD entre variables: **no** priorizar automáticamente el flujo. Los parámetros de calidad (pH, turbidez, conductividad) deben evaluarse con igual o mayor peso que el flujo. Si CUALQUIERA de pH/turbidez/conductividad está fuera de los umbrales, GENERA alerta aunque el flujo sea bajo (salvo que la lectura sea inválida).\\n" +
-                "6) Umbrales sugeridos para un lavamanos (ajustables):\\n" +
-                "   • pH: normal 6.5–8.5. Fuera de rango: pH < 6.5 o pH > 8.5.\\n" +
-                "   • Turbidez (NTU): normal < 1.0. Fuera de rango: >= 1.0.\\n" +
-                "   • Conductividad (µS/cm): normal < 500. Fuera de rango: >= 500.\\n" +
-                "   • Flujo (L/min) para lavamanos: típico bajo; considera alerta si flujo medio en last10min supera un umbral definido por tu contexto (p. ej. > 0.8 L/min sostenido en los últimos minutos) — pero recuerda que un problema de calidad debe pesar más que un flujo moderado.\\n" +
-                "7) Severidad (reglas combinadas):\\n" +
-                "   • HIGH: alguna variable de calidad fuera de rango de forma clara (pH muy bajo/alto o turbidez >= 2.0 o conductividad >> 500) o combinación de flujo alto + calidad fuera de rango en last10min.\\n" +
-                "   • MEDIUM: calidad ligeramente fuera de rango (pH marginal, turbidez >=1.0 y <2.0, conductividad alrededor de límite) o flujo moderado-alto sostenido en last10min sin fuerte evidencia de problema de calidad.\\n" +
-                "   • LOW: anomalía leve en alguno de los parámetros que no representa riesgo inmediato pero merece seguimiento.\\n" +
-                "8) Lecturas INVÁLIDAS se IGNORAN: pH <= 0, flowRate <= 0, todos campos = 0, sensorId absurdo (>1_000_000_000). Si tras descartar inválidos no hay lecturas válidas en last10min, aplica regla (1).\\n" +
-                "9) La description NUNCA debe incluir el número del sensor ni mencionar errores/configuraciones o texto sobre datos raros. Describir SOLO comportamiento del agua con magnitud redondeada a 2 decimales y timestamps ISO SIN fracciones.\\n" +
-                "10) PROHIBIDO en description: expresiones de duración en palabras (\\\"durante 5 min\\\", etc.). Usa SOLO intervalos/timestamps ISO.\\n" +
-                "11) No inventes datos. No incluyas soluciones en description; usa solution solo si aplica y únicamente para problemas de flujo.\\n" +
-                "12) Unica alerta por sensorId: si hay múltiples lecturas válidas en last10min para el mismo sensor, sintetiza una alerta que represente el patrón usando la mayor severidad y un intervalo ISO que cubra las lecturas relevantes. Incluye en la description, además del flujo, los valores relevantes de pH, turbidez y conductividad redondeados a 2 decimales si ayudan a justificar la alerta.\\n" +
-                "13) Responde EXACTAMENTE con JSON válido y NADA más.\\n" +
-                "Ejemplo correcto de description:\\n" +
-                "\\\"flujo ~0.95 L/min entre 2025-10-25T08:16:00Z y 2025-10-25T08:20:00Z; pH~5.90; turbidez~1.50; conductividad~620.00\\\"\\n" +
-                "Datos recientes y contexto a analizar (contiene workTime, generatedAt, last10min, lastHours):\\n" + summary;
+    // Huella del estado que ve el modelo: reglas disparadas, severidad, horario y estadísticos recientes
+    // cuantizados (ai.gate.quantum.*), de modo que variaciones pequeñas no cuentan como cambio
+    private String fingerprint(SensorRuleEngine.Finding f, SlidingStatsService.SensorStats r, boolean workTime) {
+        StringBuilder sb = new StringBuilder()
+                .append(f.sensorId()).append('|').append(f.severity()).append('|').append(f.rules())
+                .append('|').append(workTime);
+        if (r != null) {
+            quantized(sb, r.ph(), phQuantum);
+            quantized(sb, r.turbidity(), turbidityQuantum);
+            quantized(sb, r.conductivity(), conductivityQuantum);
+            quantized(sb, r.flowRate(), flowQuantum);
+        }
+        return sb.toString();
     }
 
+    private static void quantized(StringBuilder sb, SlidingStatsService.MetricStats m, double quantum) {
+        sb.append('|').append(q(m.mean(), quantum)).append(',').append(q(m.max(), quantum));
+    }
 
+    private static String q(Double v, double quantum) {
+        return v == null ? "-" : Long.toString(Math.round(v / quantum));
+    }
 
+    private String buildPrompt(String summary) {
+        return "Eres analista de consumo de agua. Responde SIEMPRE en español y SOLO con JSON válido, sin nada más:\n" +
+                "{\"alerts\":[{\"sensorId\":entero,\"description\":string,\"solution\":string opcional}]}\n" +
+                "Un motor de reglas de umbrales YA detectó las anomalías de findings; solo redactas su description (y solution si aplica).\n" +
+                "Reglas:\n" +
+                "1) Exactamente una alerta por cada sensorId de findings y ninguna otra. No cambies ni menciones la severidad.\n" +
+                "2) description concisa: comportamiento del agua con magnitudes a 2 decimales y como intervalo exactamente from y to " +
+                "de findings, ISO sin fracciones (p.ej. \"flujo ~0.50 L/min entre 2025-10-25T05:10:00Z y 2025-10-25T05:25:00Z; pH~7.00\"); " +
+                "ningún otro instante. " +
+                "Nunca el número del sensor, duraciones en palabras, soluciones ni menciones a errores/configuración/datos raros. No inventes datos.\n" +
+                "3) Usa recent para precisar magnitudes; base6h (promedios de ~6 h) solo indica si el comportamiento es nuevo o habitual.\n" +
+                "4) workTime=false: puedes decir 'fuera de horario' si el problema es de flujo; workTime=true: NUNCA.\n" +
+                "5) solution SOLO para problemas de flujo (p.ej. \"cerrar llave de paso y revisar posible fuga\").\n" +
+                "Datos (tablas con cabecera; campos separados por '|', vacío = sin dato):\n" + summary;
+    }
 
     // Parsea y deduplica alertas por sensorId, eligiendo la de mayor severidad; en empate, la que tenga solución
     private Map<Integer, SensorAlertEntity> dedupeAlerts(Object alertsObj) {
@@ -206,149 +476,35 @@ public class AiAnomalyService {
         }
     }
 
-    private String buildCompactJson(List<SensorRecordDTO> last10min, List<SensorRecordDTO> lastHours, boolean workTime) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\n  \"workTime\": ").append(workTime).append(",\n");
-
-        // Delimitar ventana temporal de los últimos N minutos (min y max timestamp observados)
-        Instant minTs = null, maxTs = null;
-
-        // Agregar últimos 10 minutos por sensor con estadísticos
-        Map<Integer, Stats> map = new LinkedHashMap<>();
-        for (SensorRecordDTO r : last10min) {
-            if (r.sensorId() == null) continue;
-            Stats s = map.computeIfAbsent(r.sensorId(), Stats::new);
-            s.update10m(r);
-            if (r.timestamp() != null) {
-                if (minTs == null || r.timestamp().isBefore(minTs)) minTs = r.timestamp();
-                if (maxTs == null || r.timestamp().isAfter(maxTs)) maxTs = r.timestamp();
-            }
-        }
-        if (minTs != null) sb.append("  \"windowStart\": \"").append(minTs).append("\",\n");
-        if (maxTs != null) sb.append("  \"windowEnd\": \"").append(maxTs).append("\",\n");
-        sb.append("  \"generatedAt\": \"").append(Instant.now()).append("\",\n");
-        sb.append("  \"last10min\": [");
-        int idx = 0;
-        for (Stats s : map.values()) {
-            if (idx++ > 0) sb.append(",");
-            // Flow
-            Double avgFlow = s.flowCount > 0 ? (s.flowSum / s.flowCount) : null;
-            Double varFlow = s.flowCount > 0 ? (s.flowSumSq / s.flowCount) - (avgFlow == null ? 0.0 : avgFlow * avgFlow) : null;
-            Double stdFlow = varFlow == null ? null : Math.sqrt(Math.max(0.0, varFlow));
-            Double minFlow = s.flowMin == Double.POSITIVE_INFINITY ? null : s.flowMin;
-            Double maxFlow = s.flowMax == Double.NEGATIVE_INFINITY ? null : s.flowMax;
-            // pH
-            Double avgPh = s.phCount > 0 ? (s.phSum / s.phCount) : null;
-            Double varPh = s.phCount > 0 ? (s.phSumSq / s.phCount) - (avgPh == null ? 0.0 : avgPh * avgPh) : null;
-            Double stdPh = varPh == null ? null : Math.sqrt(Math.max(0.0, varPh));
-            Double minPh = s.phMin == Double.POSITIVE_INFINITY ? null : s.phMin;
-            Double maxPh = s.phMax == Double.NEGATIVE_INFINITY ? null : s.phMax;
-            // Turbidez
-            Double avgTurb = s.turbCount > 0 ? (s.turbSum / s.turbCount) : null;
-            Double varTurb = s.turbCount > 0 ? (s.turbSumSq / s.turbCount) - (avgTurb == null ? 0.0 : avgTurb * avgTurb) : null;
-            Double stdTurb = varTurb == null ? null : Math.sqrt(Math.max(0.0, varTurb));
-            Double minTurb = s.turbMin == Double.POSITIVE_INFINITY ? null : s.turbMin;
-            Double maxTurb = s.turbMax == Double.NEGATIVE_INFINITY ? null : s.turbMax;
-            // Conductividad
-            Double avgCond = s.condCount > 0 ? (s.condSum / s.condCount) : null;
-            Double varCond = s.condCount > 0 ? (s.condSumSq / s.condCount) - (avgCond == null ? 0.0 : avgCond * avgCond) : null;
-            Double stdCond = varCond == null ? null : Math.sqrt(Math.max(0.0, varCond));
-            Double minCond = s.condMin == Double.POSITIVE_INFINITY ? null : s.condMin;
-            Double maxCond = s.condMax == Double.NEGATIVE_INFINITY ? null : s.condMax;
-
-            sb.append("{\"sensorId\":").append(s.sensorId)
-              .append(",\"firstTs\":\"").append(s.firstTs == null ? "" : s.firstTs).append("\"")
-              .append(",\"lastTs\":\"").append(s.lastTs == null ? "" : s.lastTs).append("\"")
-              .append(",\"count\":").append(s.flowCount)
-              .append(",\"activeMin\":").append(s.activeMin)
-              .append(",\"lastFlow\":").append(s.lastFlow)
-              .append(",\"avgFlowRate\":").append(avgFlow == null ? "null" : avgFlow)
-              .append(",\"stdFlowRate\":").append(stdFlow == null ? "null" : stdFlow)
-              .append(",\"minFlowRate\":").append(minFlow == null ? "null" : minFlow)
-              .append(",\"maxFlowRate\":").append(maxFlow == null ? "null" : maxFlow)
-              .append(",\"avgPh\":").append(avgPh == null ? "null" : avgPh)
-              .append(",\"stdPh\":").append(stdPh == null ? "null" : stdPh)
-              .append(",\"minPh\":").append(minPh == null ? "null" : minPh)
-              .append(",\"maxPh\":").append(maxPh == null ? "null" : maxPh)
-              .append(",\"avgTurbidity\":").append(avgTurb == null ? "null" : avgTurb)
-              .append(",\"stdTurbidity\":").append(stdTurb == null ? "null" : stdTurb)
-              .append(",\"minTurbidity\":").append(minTurb == null ? "null" : minTurb)
-              .append(",\"maxTurbidity\":").append(maxTurb == null ? "null" : maxTurb)
-              .append(",\"avgConductivity\":").append(avgCond == null ? "null" : avgCond)
-              .append(",\"stdConductivity\":").append(stdCond == null ? "null" : stdCond)
-              .append(",\"minConductivity\":").append(minCond == null ? "null" : minCond)
-              .append(",\"maxConductivity\":").append(maxCond == null ? "null" : maxCond)
-              .append("}");
-        }
-        sb.append("],\n  \"lastHours\": [");
-        for (int i = 0; i < lastHours.size(); i++) {
-            SensorRecordDTO r = lastHours.get(i);
-            sb.append(toObj(r));
-            if (i < lastHours.size() - 1) sb.append(",");
-        }
-        sb.append("]\n}");
-        return sb.toString();
-    }
+    // Respuestas del modelo por huella: LRU acotada con caducidad
+    private static final class ResponseCache {
+        private record Entry(Enrichment value, long storedAt) { }
 
-    private String toObj(SensorRecordDTO r) {
-        return "{\"t\":\"" + r.timestamp() + "\"," +
-                "\"sensorId\":" + r.sensorId() + "," +
-                "\"flowRate\":" + (r.flowRate() == null ? "null" : r.flowRate()) + "," +
-                "\"ph\":" + (r.ph() == null ? "null" : r.ph()) + "," +
-                "\"turbidity\":" + (r.turbidity() == null ? "null" : r.turbidity()) + "," +
-                "\"conductivity\":" + (r.conductivity() == null ? "null" : r.conductivity()) +
-                "}";
-    }
+        private final long ttlMs;
+        private final Map<String, Entry> entries;
 
-    private static class Stats {
-        final int sensorId;
-        // 10 minutos
-        double lastFlow = 0.0;
-        Instant lastTs = Instant.EPOCH;
-        Instant firstTs = null;
-        double flowSum = 0.0; int flowCount = 0; double max10m = Double.NEGATIVE_INFINITY; double avg10m = 0.0;
-        int activeMin = 0; // minutos con flujo > 0.1
-        double phSum = 0.0; int phCount = 0;
-        double turbSum = 0.0; int turbCount = 0;
-        double condSum = 0.0; int condCount = 0;
-        // 6 horas agregadas
-        double h6FlowSum = 0.0; int h6Count = 0; double h6Max = Double.NEGATIVE_INFINITY;
-
-        // Para min, max y desviación estándar en 10 minutos
-        double flowMin = Double.POSITIVE_INFINITY; double flowMax = Double.NEGATIVE_INFINITY; double flowSumSq = 0.0;
-        double phMin = Double.POSITIVE_INFINITY; double phMax = Double.NEGATIVE_INFINITY; double phSumSq = 0.0;
-        double turbMin = Double.POSITIVE_INFINITY; double turbMax = Double.NEGATIVE_INFINITY; double turbSumSq = 0.0;
-        double condMin = Double.POSITIVE_INFINITY; double condMax = Double.NEGATIVE_INFINITY; double condSumSq = 0.0;
-
-        Stats(int id) { this.sensorId = id; }
-
-        void update10m(SensorRecordDTO r) {
-            Instant ts = r.timestamp();
-            if (ts != null && ts.isAfter(lastTs)) {
-                lastTs = ts;
-                if (r.flowRate() != null) lastFlow = r.flowRate();
-            }
-            if (ts != null && (firstTs == null || ts.isBefore(firstTs))) firstTs = ts;
-            if (r.flowRate() != null) {
-                double f = r.flowRate();
-                flowSum += f; flowCount++; flowSumSq += f * f;
-                if (f > max10m) max10m = f;
-                if (f > flowMax) flowMax = f;
-                if (f < flowMin) flowMin = f;
-                if (f > 0.1) activeMin++;
-            }
-            if (r.ph() != null) { double v = r.ph(); phSum += v; phCount++; phSumSq += v * v; if (v > phMax) phMax = v; if (v < phMin) phMin = v; }
-            if (r.turbidity() != null) { double v = r.turbidity(); turbSum += v; turbCount++; turbSumSq += v * v; if (v > turbMax) turbMax = v; if (v < turbMin) turbMin = v; }
-            if (r.conductivity() != null) { double v = r.conductivity(); condSum += v; condCount++; condSumSq += v * v; if (v > condMax) condMax = v; if (v < condMin) condMin = v; }
-            if (flowCount > 0) avg10m = flowSum / flowCount;
+        ResponseCache(int maxEntries, long ttlMs) {
+            this.ttlMs = ttlMs;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > Math.max(1, maxEntries);
+                }
+            };
         }
 
-        void update6h(SensorRecordDTO r) {
-            if (r.flowRate() != null) {
-                double f = r.flowRate();
-                h6FlowSum += f; h6Count++;
-                if (f > h6Max) h6Max = f;
+        synchronized Enrichment get(String key) {
+            Entry e = entries.get(key);
+            if (e == null) return null;
+            if (System.currentTimeMillis() - e.storedAt() > ttlMs) {
+                entries.remove(key);
+                return null;
             }
+            return e.value();
+        }
+
+        synchronized void put(String key, Enrichment value) {
+            entries.put(key, new Entry(value, System.currentTimeMillis()));
         }
     }
 }
@@ -0,0 +1,99 @@
+package com.hydro.watertap.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Archivo opcional (alerts.archive.enabled) de alertas resueltas antiguas: las que llevan más de
+ * alerts.archive.after-days se mueven de sensor_alerts a sensor_alerts_archive, particionada por mes de
+ * created_at, para que la tabla principal y sus índices se mantengan pequeños. Se mueve por tramos de
+ * alerts.archive.chunk-size, cada uno en su propia transacción (DELETE ... RETURNING + INSERT en una sola
+ * sentencia). Las alertas activas nunca se archivan.
+ */
+@Service
+public class AlertArchiveService {
+
+    private static final Logger log = LoggerFactory.getLogger(AlertArchiveService.class);
+
+    private static final String COLUMNS = "id, sensor_id, description, severity, active, solution, created_at, updated_at";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+
+    @Value("${alerts.archive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${alerts.archive.after-days:365}")
+    private int afterDays;
+
+    @Value("${alerts.archive.chunk-size:1000}")
+    private int chunkSize;
+
+    private volatile boolean tableReady;
+
+    public AlertArchiveService(JdbcTemplate jdbc, TransactionTemplate tx) {
+        this.jdbc = jdbc;
+        this.tx = tx;
+    }
+
+    @Scheduled(fixedDelayString = "${alerts.archive.check-ms:3600000}", initialDelay = 120000)
+    public void archiveOldAlerts() {
+        if (!enabled || afterDays <= 0) return;
+        Timestamp cutoff = Timestamp.valueOf(LocalDateTime.now().minusDays(afterDays));
+        try {
+            ensureTable();
+            ensurePartitions(cutoff);
+            int chunk = Math.max(1, chunkSize);
+            int total = 0;
+            Integer moved;
+            do {
+                moved = tx.execute(status -> jdbc.update(
+                        "WITH moved AS (DELETE FROM sensor_alerts WHERE id IN (" +
+                                "SELECT id FROM sensor_alerts WHERE active = false AND created_at < ? " +
+                                "ORDER BY created_at, id LIMIT ?) RETURNING " + COLUMNS + ") " +
+                                "INSERT INTO sensor_alerts_archive (" + COLUMNS + ") SELECT " + COLUMNS + " FROM moved",
+                        cutoff, chunk));
+                total += moved == null ? 0 : moved;
+            } while (moved != null && moved == chunk);
+            if (total > 0) log.info("Alertas archivadas: {}", total);
+        } catch (RuntimeException e) {
+            log.warn("Error archivando alertas (se reintentará en la siguiente pasada): {}", e.getMessage());
+        }
+    }
+
+    private void ensureTable() {
+        if (tableReady) return;
+        jdbc.execute("CREATE TABLE IF NOT EXISTS sensor_alerts_archive (" +
+                "id BIGINT NOT NULL, sensor_id INTEGER, description VARCHAR(255) NOT NULL, severity VARCHAR(255) NOT NULL, " +
+                "active BOOLEAN, solution VARCHAR(255), created_at TIMESTAMP(6) NOT NULL, updated_at TIMESTAMP(6)" +
+                ") PARTITION BY RANGE (created_at)");
+        jdbc.execute("CREATE INDEX IF NOT EXISTS idx_sensor_alerts_archive_sensor_created " +
+                "ON sensor_alerts_archive (sensor_id, created_at, id)");
+        tableReady = true;
+    }
+
+    // Una partición por cada mes con filas a archivar (sin partición por defecto: crearla después fallaría)
+    private void ensurePartitions(Timestamp cutoff) {
+        List<Timestamp> months = jdbc.queryForList(
+                "SELECT DISTINCT date_trunc('month', created_at) FROM sensor_alerts WHERE active = false AND created_at < ?",
+                Timestamp.class, cutoff);
+        for (Timestamp m : months) {
+            LocalDate start = m.toLocalDateTime().toLocalDate();
+            LocalDate end = start.plusMonths(1);
+            jdbc.execute("CREATE TABLE IF NOT EXISTS sensor_alerts_archive_p" + start.format(PARTITION_SUFFIX) +
+                    " PARTITION OF sensor_alerts_archive FOR VALUES FROM ('" + start + "') TO ('" + end + "')");
+        }
+    }
+}
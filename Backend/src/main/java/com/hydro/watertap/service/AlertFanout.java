@@ -0,0 +1,179 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * Reparto de alertas (ya serializadas) a los suscriptores SSE. Cada suscriptor tiene su propio buffer
+ * acotado (alerts.stream.buffer-size) y solo recibe según la demanda de su conexión, así un cliente lento
+ * no hace crecer memoria compartida ni retrasa a los demás. Al llenarse se aplica alerts.stream.overflow:
+ * <ul>
+ *   <li>DROP_OLDEST: descarta la alerta más antigua pendiente.</li>
+ *   <li>COALESCE: conserva solo el último estado por sensor (reemplaza en su lugar); si aun así no cabe,
+ *       descarta la más antigua.</li>
+ *   <li>DISCONNECT: cierra la conexión con error; el cliente reconecta y recibe el snapshot.</li>
+ * </ul>
+ */
+@Component
+public class AlertFanout {
+
+    private static final Logger log = LoggerFactory.getLogger(AlertFanout.class);
+
+    public enum Overflow { DROP_OLDEST, COALESCE, DISCONNECT }
+
+    @Value("${alerts.stream.buffer-size:256}")
+    private int bufferSize;
+
+    @Value("${alerts.stream.overflow:COALESCE}")
+    private Overflow overflow;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Counter dropped;
+    private final Counter coalesced;
+    private final Counter disconnected;
+
+    public AlertFanout(MeterRegistry registry) {
+        this.dropped = Counter.builder("alerts.stream.emit.failures").tag("reason", "dropped")
+                .description("Alertas no entregadas a un suscriptor por buffer lleno").register(registry);
+        // Fusionar no pierde el último estado del sensor: no es un fallo de entrega
+        this.coalesced = Counter.builder("alerts.stream.coalesced")
+                .description("Alertas pendientes reemplazadas por un estado más nuevo del mismo sensor").register(registry);
+        this.disconnected = Counter.builder("alerts.stream.emit.failures").tag("reason", "disconnected").register(registry);
+        Gauge.builder("alerts.stream.subscribers", subscribers, List::size).register(registry);
+        Gauge.builder("alerts.stream.buffered", this, AlertFanout::bufferedTotal)
+                .description("Alertas pendientes sumando todos los suscriptores").register(registry);
+    }
+
+    /**
+     * Entrega la alerta a cada suscriptor cuyo filtro la acepte.
+     */
+    public void publish(Integer sensorId, String json) {
+        for (Subscriber s : subscribers) {
+            if (s.filter.matches(sensorId)) s.offer(sensorId, json);
+        }
+    }
+
+    /**
+     * Entrega un lote como un único evento: a cada suscriptor le llega un array JSON con las alertas del lote
+     * que acepta su filtro (o la alerta sola si es una).
+     */
+    public void publishBatch(List<Item> items) {
+        for (Subscriber s : subscribers) {
+            List<Item> mine = items.stream().filter(i -> s.filter.matches(i.sensorId())).toList();
+            if (mine.size() == 1) {
+                s.offer(mine.get(0).sensorId(), mine.get(0).json());
+            } else if (!mine.isEmpty()) {
+                // Sin sensor: un lote no se fusiona con otras alertas
+                s.offer(null, mine.stream().map(Item::json).collect(Collectors.joining(",", "[", "]")));
+            }
+        }
+    }
+
+    /**
+     * Stream para un suscriptor: primero {@code snapshot} y luego las alertas en vivo. El suscriptor se registra
+     * antes de leer el snapshot, de modo que lo publicado mientras tanto queda en su buffer.
+     */
+    public Flux<String> subscribe(SensorFilter filter, Flux<String> snapshot) {
+        return Flux.defer(() -> {
+            Subscriber sub = new Subscriber(filter);
+            subscribers.add(sub);
+            return snapshot.concatWith(Flux.create(sub::attach, FluxSink.OverflowStrategy.ERROR))
+                    .doFinally(sig -> subscribers.remove(sub));
+        });
+    }
+
+    private double bufferedTotal() {
+        long total = 0;
+        for (Subscriber s : subscribers) total += s.depth();
+        return total;
+    }
+
+    /** Alerta ya serializada junto al sensor al que pertenece. */
+    public record Item(Integer sensorId, String json) { }
+
+    private final class Subscriber {
+        final SensorFilter filter;
+        private final ArrayDeque<Item> queue = new ArrayDeque<>();
+        private FluxSink<String> sink;
+        private boolean closed;
+
+        Subscriber(SensorFilter filter) {
+            this.filter = filter;
+        }
+
+        synchronized void attach(FluxSink<String> sink) {
+            this.sink = sink;
+            if (closed) {
+                // Se desbordó mientras se enviaba el snapshot
+                sink.error(new IllegalStateException("Cliente de alertas demasiado lento"));
+                return;
+            }
+            sink.onRequest(n -> drain());
+            sink.onDispose(() -> {
+                synchronized (this) {
+                    closed = true;
+                    queue.clear();
+                }
+            });
+        }
+
+        synchronized int depth() { return queue.size(); }
+
+        synchronized void offer(Integer sensorId, String json) {
+            if (closed) return;
+            if (overflow == Overflow.COALESCE && sensorId != null && replace(sensorId, json)) {
+                coalesced.increment();
+                drain();
+                return;
+            }
+            if (queue.size() >= bufferSize) {
+                if (overflow == Overflow.DISCONNECT) {
+                    disconnected.increment();
+                    closed = true;
+                    queue.clear();
+                    subscribers.remove(this);
+                    log.warn("Suscriptor de alertas desconectado por buffer lleno ({} pendientes)", bufferSize);
+                    if (sink != null) sink.error(new IllegalStateException("Cliente de alertas demasiado lento"));
+                    return;
+                }
+                queue.poll();
+                dropped.increment();
+            }
+            queue.add(new Item(sensorId, json));
+            drain();
+        }
+
+        private boolean replace(Integer sensorId, String json) {
+            for (Iterator<Item> it = queue.iterator(); it.hasNext(); ) {
+                Item p = it.next();
+                if (sensorId.equals(p.sensorId())) {
+                    // Se mantiene el orden: la nueva va al final y se quita la anterior
+                    it.remove();
+                    queue.add(new Item(sensorId, json));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void drain() {
+            if (sink == null || closed) return;
+            while (!queue.isEmpty() && sink.requestedFromDownstream() > 0) {
+                sink.next(queue.poll().json());
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.AlertPage;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import com.hydro.watertap.repository.SensorAlertRepository;
+import jakarta.persistence.criteria.Predicate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Historial de alertas (activas y resueltas) con paginación por cursor sobre (createdAt, id), de la más reciente
+ * a la más antigua. Cada página continúa desde la última fila de la anterior en lugar de usar OFFSET, así el coste
+ * no crece con la profundidad de la página; los índices de {@link SensorAlertEntity} cubren cada filtro.
+ * Las filas movidas al archivo ({@link AlertArchiveService}) no aparecen aquí.
+ */
+@Service
+public class AlertHistoryService {
+
+    private static final Sort NEWEST_FIRST = Sort.by(Sort.Order.desc("createdAt"), Sort.Order.desc("id"));
+
+    private final SensorAlertRepository alertRepository;
+
+    @Value("${alerts.history.default-page-size:100}")
+    private int defaultPageSize;
+
+    @Value("${alerts.history.max-page-size:500}")
+    private int maxPageSize;
+
+    public AlertHistoryService(SensorAlertRepository alertRepository) {
+        this.alertRepository = alertRepository;
+    }
+
+    record Cursor(LocalDateTime createdAt, long id) { }
+
+    /**
+     * @param sensorIds sensores a incluir (null o vacío = todos)
+     * @param severity  severidad exacta (opcional)
+     * @param active    solo activas / solo resueltas (opcional)
+     * @param from      creadas desde, inclusive (opcional)
+     * @param to        creadas antes de, exclusivo (opcional)
+     * @param cursor    {@code nextCursor} de la página anterior (opcional)
+     * @param limit     tamaño de página (opcional, acotado a alerts.history.max-page-size)
+     */
+    public AlertPage findPage(List<Integer> sensorIds, String severity, Boolean active,
+                              Instant from, Instant to, String cursor, Integer limit) {
+        int size = limit == null || limit <= 0 ? defaultPageSize : Math.min(limit, maxPageSize);
+        Specification<SensorAlertEntity> spec = filters(sensorIds, severity, active, from, to);
+        if (cursor != null && !cursor.isBlank()) spec = spec.and(before(decode(cursor)));
+
+        // Se pide una fila de más para saber si hay otra página sin contar el total
+        List<SensorAlertEntity> rows = alertRepository.findBy(spec, q -> q.sortBy(NEWEST_FIRST).limit(size + 1).all());
+        if (rows.size() <= size) return new AlertPage(rows, null);
+        List<SensorAlertEntity> page = new ArrayList<>(rows.subList(0, size));
+        SensorAlertEntity last = page.get(size - 1);
+        return new AlertPage(page, encode(new Cursor(last.getCreatedAt(), last.getId())));
+    }
+
+    private static Specification<SensorAlertEntity> filters(List<Integer> sensorIds, String severity, Boolean active,
+                                                            Instant from, Instant to) {
+        return (root, query, cb) -> {
+            List<Predicate> p = new ArrayList<>();
+            if (sensorIds != null && !sensorIds.isEmpty()) p.add(root.get("sensorId").in(sensorIds));
+            if (severity != null && !severity.isBlank()) p.add(cb.equal(root.get("severity"), severity));
+            if (active != null) p.add(cb.equal(root.get("active"), active));
+            if (from != null) p.add(cb.greaterThanOrEqualTo(root.get("createdAt"), toLocal(from)));
+            if (to != null) p.add(cb.lessThan(root.get("createdAt"), toLocal(to)));
+            return cb.and(p.toArray(Predicate[]::new));
+        };
+    }
+
+    // Filas estrictamente posteriores al cursor en orden (createdAt desc, id desc)
+    private static Specification<SensorAlertEntity> before(Cursor c) {
+        return (root, query, cb) -> cb.or(
+                cb.lessThan(root.get("createdAt"), c.createdAt()),
+                cb.and(cb.equal(root.get("createdAt"), c.createdAt()), cb.lessThan(root.get("id"), c.id())));
+    }
+
+    // createdAt se guarda en hora local del servidor (@CreationTimestamp con LocalDateTime)
+    private static LocalDateTime toLocal(Instant t) {
+        return LocalDateTime.ofInstant(t, ZoneId.systemDefault());
+    }
+
+    static String encode(Cursor c) {
+        String raw = c.createdAt() + "|" + c.id();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Cursor decode(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int sep = raw.lastIndexOf('|');
+            return new Cursor(LocalDateTime.parse(raw.substring(0, sep)), Long.parseLong(raw.substring(sep + 1)));
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cursor inválido");
+        }
+    }
+}
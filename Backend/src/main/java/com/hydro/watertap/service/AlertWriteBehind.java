@@ -0,0 +1,93 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import com.hydro.watertap.repository.SensorAlertRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Escritura diferida de cambios de estado de alertas ya existentes. Cada alerta guarda solo su último estado
+ * pendiente y cada alerts.write-behind.flush-ms se escriben todas en una única transacción (UPDATE directo,
+ * sin cargar la entidad). Si la escritura falla, los cambios siguen pendientes para el siguiente intento.
+ * Las altas no pasan por aquí: necesitan el id generado por la BD.
+ */
+@Component
+public class AlertWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(AlertWriteBehind.class);
+
+    private final SensorAlertRepository alertRepository;
+    private final TransactionTemplate tx;
+    private final Map<Long, SensorAlertEntity> pending = new ConcurrentHashMap<>();
+    private final Counter written;
+
+    public AlertWriteBehind(SensorAlertRepository alertRepository, TransactionTemplate tx, MeterRegistry registry) {
+        this.alertRepository = alertRepository;
+        this.tx = tx;
+        Gauge.builder("alerts.write-behind.pending", pending, Map::size).register(registry);
+        this.written = Counter.builder("alerts.write-behind.written").register(registry);
+    }
+
+    /**
+     * Programa la escritura de {@code alert}, que no debe modificarse después.
+     */
+    public void enqueue(SensorAlertEntity alert) {
+        pending.put(alert.getId(), alert);
+    }
+
+    /** Estado pendiente de escribir, más reciente que el de la BD. */
+    public Optional<SensorAlertEntity> pending(Long id) {
+        return Optional.ofNullable(pending.get(id));
+    }
+
+    public void discard(Long id) {
+        pending.remove(id);
+    }
+
+    /**
+     * Ejecuta {@code work} sin que haya una escritura de lote en curso; para cambios hechos directamente en BD
+     * que deben reflejarse en lo pendiente antes de la siguiente escritura.
+     */
+    public synchronized <T> T exclusive(Supplier<T> work) {
+        return work.get();
+    }
+
+    @Scheduled(fixedDelayString = "${alerts.write-behind.flush-ms:2000}")
+    public synchronized void flush() {
+        if (pending.isEmpty()) return;
+        List<SensorAlertEntity> batch = new ArrayList<>(pending.values());
+        try {
+            tx.executeWithoutResult(status -> {
+                for (SensorAlertEntity a : batch) {
+                    alertRepository.updateState(a.getId(), a.getDescription(), a.getSeverity(), a.getSolution(),
+                            a.getActive(), a.getUpdatedAt());
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("No se pudieron escribir {} cambios de alertas, se reintentará: {}", batch.size(), e.getMessage());
+            return;
+        }
+        // Solo se quitan las que no cambiaron otra vez mientras se escribía
+        batch.forEach(a -> pending.remove(a.getId(), a));
+        written.increment(batch.size());
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+}
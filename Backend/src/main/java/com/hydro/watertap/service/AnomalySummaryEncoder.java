@@ -0,0 +1,116 @@
+package com.hydro.watertap.service;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resumen compacto para el prompt de IA: tablas con la cabecera una sola vez y campos separados por '|'
+ * (vacío = sin dato), valores redondeados a la precisión que usan las reglas y descripciones (pH, turbidez y flujo
+ * a 2 decimales, conductividad entera) y timestamps ISO sin fracciones. Solo van los campos que pueden cambiar la
+ * redacción: nada de desviaciones ni de mínimos de métricas que solo tienen umbral superior, y de las ~6 horas
+ * únicamente los promedios.
+ *
+ * <pre>
+ * findings[sensorId|severity|from|to|rule]
+ * recent[sensorId|from|to|n|activeN|lastFlow|flowAvg|flowMax|phAvg|phMin|phMax|turbAvg|turbMax|condAvg|condMax]
+ * base6h[sensorId|flowAvg|phAvg|turbAvg|condAvg]
+ * </pre>
+ */
+final class AnomalySummaryEncoder {
+
+    static final String FINDINGS_HEADER = "findings[sensorId|severity|from|to|rule]";
+    static final String RECENT_HEADER =
+            "recent[sensorId|from|to|n|activeN|lastFlow|flowAvg|flowMax|phAvg|phMin|phMax|turbAvg|turbMax|condAvg|condMax]";
+    static final String BASE_HEADER = "base6h[sensorId|flowAvg|phAvg|turbAvg|condAvg]";
+
+    /** Alerta a resumir con sus estadísticos recientes y de contexto (cualquiera puede ser null). */
+    record Row(SensorRuleEngine.Finding finding, SlidingStatsService.SensorStats recent,
+               SlidingStatsService.SensorStats base) { }
+
+    private AnomalySummaryEncoder() { }
+
+    static String encode(List<Row> rows, boolean workTime, Instant generatedAt) {
+        StringBuilder sb = new StringBuilder(64 + rows.size() * 200);
+        sb.append("workTime=").append(workTime).append(" generatedAt=").append(iso(generatedAt)).append('\n');
+        sb.append(FINDINGS_HEADER).append('\n');
+        for (Row r : rows) appendFinding(sb, r.finding());
+        sb.append(RECENT_HEADER).append('\n');
+        for (Row r : rows) if (r.recent() != null) appendRecent(sb, r.recent());
+        sb.append(BASE_HEADER).append('\n');
+        for (Row r : rows) if (r.base() != null) appendBase(sb, r.base());
+        return sb.toString();
+    }
+
+    /** Tokens estimados de las líneas de una alerta (sin cabeceras). */
+    static int estimateTokens(Row row) {
+        StringBuilder sb = new StringBuilder(256);
+        appendFinding(sb, row.finding());
+        if (row.recent() != null) appendRecent(sb, row.recent());
+        if (row.base() != null) appendBase(sb, row.base());
+        return estimateTokens(sb);
+    }
+
+    /** Tokens estimados de las partes fijas (cabeceras y línea inicial). */
+    static int overheadTokens() {
+        return estimateTokens("workTime=false generatedAt=2025-01-01T00:00:00Z\n" + FINDINGS_HEADER + '\n'
+                + RECENT_HEADER + '\n' + BASE_HEADER + '\n');
+    }
+
+    // Aproximación habitual de ~4 caracteres por token; basta para acotar el tamaño del prompt
+    static int estimateTokens(CharSequence text) {
+        return (text.length() + 3) / 4;
+    }
+
+    private static void appendFinding(StringBuilder sb, SensorRuleEngine.Finding f) {
+        sb.append(f.sensorId()).append('|').append(f.severity())
+          .append('|').append(iso(f.from())).append('|').append(iso(f.to()))
+          .append('|').append(f.description() == null ? "" : f.description().replace('|', '/').replace('\n', ' '))
+          .append('\n');
+    }
+
+    private static void appendRecent(StringBuilder sb, SlidingStatsService.SensorStats s) {
+        sb.append(s.sensorId())
+          .append('|').append(iso(s.firstTs())).append('|').append(iso(s.lastTs()))
+          .append('|').append(s.flowRate().count()).append('|').append(s.activeCount());
+        num(sb, s.lastFlow(), 2);
+        num(sb, s.flowRate().mean(), 2);
+        num(sb, s.flowRate().max(), 2);
+        num(sb, s.ph().mean(), 2);
+        num(sb, s.ph().min(), 2);
+        num(sb, s.ph().max(), 2);
+        num(sb, s.turbidity().mean(), 2);
+        num(sb, s.turbidity().max(), 2);
+        num(sb, s.conductivity().mean(), 0);
+        num(sb, s.conductivity().max(), 0);
+        sb.append('\n');
+    }
+
+    private static void appendBase(StringBuilder sb, SlidingStatsService.SensorStats s) {
+        sb.append(s.sensorId());
+        num(sb, s.flowRate().mean(), 2);
+        num(sb, s.ph().mean(), 2);
+        num(sb, s.turbidity().mean(), 2);
+        num(sb, s.conductivity().mean(), 0);
+        sb.append('\n');
+    }
+
+    // '|' + valor redondeado sin ceros de más (vacío si no hay dato)
+    private static void num(StringBuilder sb, Double v, int decimals) {
+        sb.append('|');
+        if (v == null || !Double.isFinite(v)) return;
+        String s = String.format(Locale.ROOT, "%." + decimals + "f", v);
+        if (decimals > 0) {
+            int end = s.length();
+            while (s.charAt(end - 1) == '0') end--;
+            if (s.charAt(end - 1) == '.') end--;
+            s = s.substring(0, end);
+        }
+        sb.append("-0".equals(s) ? "0" : s);
+    }
+
+    private static String iso(Instant ts) {
+        return ts == null ? "" : ts.truncatedTo(ChronoUnit.SECONDS).toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Agregación por (sensor x bucket de tiempo) en una sola pasada, con estado en arreglos primitivos indexados
+ * por un mapa long -> slot. Calcula count, sum, min, max, media y varianza (Welford) de cada métrica.
+ * Las métricas siguen los índices de {@link SensorSeries} y los valores NaN se ignoran.
+ *
+ * La clave del mapa es (sensor, bucket relativo al primero visto) en 32 + 32 bits: un rango de más de 2^31
+ * buckets (p.ej. ~25 días con buckets de 1 ms) se rechaza en lugar de mezclar buckets que compartan los bits bajos.
+ */
+public final class BucketAggregator {
+
+    private static final int M = SensorSeries.METRICS;
+
+    private static final long NO_BUCKET = Long.MIN_VALUE;
+
+    private final long bucketMs;
+    private long baseBucket = NO_BUCKET;
+    private final LongIntHashMap slotByKey = new LongIntHashMap(256);
+
+    private int slots;
+    private int[] sensorIds = new int[64];
+    private long[] bucketStarts = new long[64];
+    // por slot * M + métrica
+    private long[] count = new long[64 * M];
+    private double[] sum = new double[64 * M];
+    private double[] min = new double[64 * M];
+    private double[] max = new double[64 * M];
+    private double[] mean = new double[64 * M];
+    private double[] m2 = new double[64 * M];
+
+    public BucketAggregator(Duration bucket) {
+        if (bucket == null || bucket.isZero() || bucket.isNegative()) bucket = Duration.ofMinutes(10);
+        this.bucketMs = Math.max(1, bucket.toMillis());
+    }
+
+    public void accept(long epochMs, int sensorId, double ph, double turbidity, double conductivity, double flowRate) {
+        int s = slotFor(epochMs, sensorId);
+        add(s, SensorSeries.PH, ph);
+        add(s, SensorSeries.TURBIDITY, turbidity);
+        add(s, SensorSeries.CONDUCTIVITY, conductivity);
+        add(s, SensorSeries.FLOW_RATE, flowRate);
+    }
+
+    public BucketAggregator acceptAll(SensorSeries series) {
+        for (int i = 0; i < series.size(); i++) {
+            int sid = series.sensorId(i);
+            if (sid == SensorSeries.NO_SENSOR) continue;
+            int s = slotFor(Math.floorDiv(series.timestampNanos(i), 1_000_000L), sid);
+            for (int m = 0; m < M; m++) add(s, m, series.value(i, m));
+        }
+        return this;
+    }
+
+    public BucketAggregator acceptAll(List<SensorRecordDTO> records) {
+        for (SensorRecordDTO r : records) {
+            if (r.timestamp() == null || r.sensorId() == null) continue;
+            accept(r.timestamp().toEpochMilli(), r.sensorId(),
+                    nan(r.ph()), nan(r.turbidity()), nan(r.conductivity()), nan(r.flowRate()));
+        }
+        return this;
+    }
+
+    /** Número de buckets (sensor x intervalo) con datos. */
+    public int size() { return slots; }
+
+    /**
+     * Slots ordenados por inicio de bucket y luego por sensor.
+     */
+    public int[] orderedSlots() {
+        Integer[] idx = new Integer[slots];
+        for (int s = 0; s < slots; s++) idx[s] = s;
+        Arrays.sort(idx, (a, b) -> bucketStarts[a] != bucketStarts[b]
+                ? Long.compare(bucketStarts[a], bucketStarts[b])
+                : Integer.compare(sensorIds[a], sensorIds[b]));
+        int[] out = new int[slots];
+        for (int s = 0; s < slots; s++) out[s] = idx[s];
+        return out;
+    }
+
+    public int sensorId(int slot) { return sensorIds[slot]; }
+
+    public long bucketStartMs(int slot) { return bucketStarts[slot]; }
+
+    public long count(int slot, int metric) { return count[slot * M + metric]; }
+
+    public double sum(int slot, int metric) { return sum[slot * M + metric]; }
+
+    /** Media; NaN si no hubo valores. */
+    public double mean(int slot, int metric) { return count(slot, metric) > 0 ? mean[slot * M + metric] : Double.NaN; }
+
+    public double min(int slot, int metric) { return count(slot, metric) > 0 ? min[slot * M + metric] : Double.NaN; }
+
+    public double max(int slot, int metric) { return count(slot, metric) > 0 ? max[slot * M + metric] : Double.NaN; }
+
+    /** Varianza poblacional; NaN si no hubo valores. */
+    public double variance(int slot, int metric) {
+        long n = count(slot, metric);
+        return n > 0 ? m2[slot * M + metric] / n : Double.NaN;
+    }
+
+    /** Convierte NaN en null para las vistas con Double. */
+    public static Double boxed(double v) {
+        return Double.isNaN(v) ? null : v;
+    }
+
+    private static double nan(Double v) {
+        return v == null ? Double.NaN : v;
+    }
+
+    private int slotFor(long epochMs, int sensorId) {
+        long bucket = Math.floorDiv(epochMs, bucketMs);
+        if (baseBucket == NO_BUCKET) baseBucket = bucket;
+        long rel = bucket - baseBucket;
+        if (rel != (int) rel) {
+            throw new IllegalArgumentException("Rango demasiado amplio para agregar en intervalos de " + bucketMs + " ms");
+        }
+        long key = ((long) sensorId << 32) | (rel & 0xFFFFFFFFL);
+        int s = slotByKey.get(key);
+        if (s != LongIntHashMap.MISSING) return s;
+        s = slots++;
+        if (s == sensorIds.length) grow();
+        sensorIds[s] = sensorId;
+        bucketStarts[s] = bucket * bucketMs;
+        slotByKey.put(key, s);
+        return s;
+    }
+
+    private void add(int slot, int metric, double v) {
+        if (Double.isNaN(v)) return;
+        int i = slot * M + metric;
+        long n = ++count[i];
+        sum[i] += v;
+        if (n == 1) {
+            min[i] = v;
+            max[i] = v;
+        } else {
+            if (v < min[i]) min[i] = v;
+            if (v > max[i]) max[i] = v;
+        }
+        double delta = v - mean[i];
+        mean[i] += delta / n;
+        m2[i] += delta * (v - mean[i]);
+    }
+
+    private void grow() {
+        int cap = sensorIds.length * 2;
+        sensorIds = Arrays.copyOf(sensorIds, cap);
+        bucketStarts = Arrays.copyOf(bucketStarts, cap);
+        count = Arrays.copyOf(count, cap * M);
+        sum = Arrays.copyOf(sum, cap * M);
+        min = Arrays.copyOf(min, cap * M);
+        max = Arrays.copyOf(max, cap * M);
+        mean = Arrays.copyOf(mean, cap * M);
+        m2 = Arrays.copyOf(m2, cap * M);
+    }
+}
@@ -0,0 +1,106 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compartimento para trabajo bloqueante (Influx, JPA, generación de reportes) fuera del event loop de Netty:
+ * un scheduler bounded-elastic propio con tope de hilos y de tareas en cola. Publica tareas en cola, tiempo
+ * de espera hasta empezar, duración y rechazos, etiquetados con el nombre del compartimento.
+ * Cuando la cola está llena la petición se rechaza con 503. El tope de cola se aplica al compartimento
+ * entero con el contador {@code queued}: el de {@code newBoundedElastic} es por hilo y con N hilos dejaría
+ * encolar N veces más.
+ */
+public final class Bulkhead {
+
+    private final String name;
+    private final int queueCapacity;
+    private final Scheduler scheduler;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Timer waitTimer;
+    private final Timer execTimer;
+    private final Counter rejected;
+
+    public Bulkhead(String name, int threads, int queueCapacity, MeterRegistry registry) {
+        this.name = name;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.scheduler = Schedulers.newBoundedElastic(Math.max(1, threads), Math.max(1, queueCapacity), "bulkhead-" + name);
+        Gauge.builder("bulkhead.queued", queued, AtomicInteger::get).tag("name", name)
+                .description("Tareas esperando un hilo del compartimento").register(registry);
+        this.waitTimer = Timer.builder("bulkhead.wait").tag("name", name)
+                .description("Espera desde el envío hasta empezar a ejecutarse").register(registry);
+        this.execTimer = Timer.builder("bulkhead.execution").tag("name", name).register(registry);
+        this.rejected = Counter.builder("bulkhead.rejected").tag("name", name).register(registry);
+    }
+
+    public String getName() { return name; }
+
+    public Scheduler scheduler() { return scheduler; }
+
+    /**
+     * Ejecuta {@code work} en el compartimento.
+     */
+    public <T> Mono<T> call(Callable<T> work) {
+        return wrap(Mono.fromCallable(work));
+    }
+
+    /**
+     * Ejecuta {@code work} (sin resultado) en el compartimento.
+     */
+    public Mono<Void> run(Runnable work) {
+        return wrap(Mono.fromRunnable(work));
+    }
+
+    /**
+     * Suscribe {@code source} (que puede bloquear al suscribirse) en el compartimento, midiendo la espera.
+     */
+    public <T> Mono<T> wrap(Mono<T> source) {
+        return Mono.defer(() -> {
+            long enqueued = System.nanoTime();
+            long[] startedAt = new long[1];
+            AtomicBoolean started = new AtomicBoolean();
+            if (queued.incrementAndGet() > queueCapacity) {
+                queued.decrementAndGet();
+                rejected.increment();
+                return Mono.error(busy());
+            }
+            return source
+                    .doOnSubscribe(s -> {
+                        if (started.compareAndSet(false, true)) queued.decrementAndGet();
+                        startedAt[0] = System.nanoTime();
+                        waitTimer.record(startedAt[0] - enqueued, TimeUnit.NANOSECONDS);
+                    })
+                    .doFinally(sig -> execTimer.record(System.nanoTime() - startedAt[0], TimeUnit.NANOSECONDS))
+                    .subscribeOn(scheduler)
+                    .doFinally(sig -> {
+                        if (started.compareAndSet(false, true)) queued.decrementAndGet();
+                    })
+                    .onErrorMap(RejectedExecutionException.class, e -> {
+                        rejected.increment();
+                        return busy();
+                    });
+        });
+    }
+
+    private ResponseStatusException busy() {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                "Servidor ocupado (" + name + "), intente de nuevo");
+    }
+
+    public void dispose() {
+        scheduler.dispose();
+    }
+}
@@ -0,0 +1,72 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Cortocircuito para un servicio externo: tras {@code failureThreshold} fallos seguidos se abre durante
+ * {@code openMs} y {@link #tryAcquire()} devuelve false (el llamador usa su alternativa local). Pasado ese tiempo
+ * deja pasar una sola llamada de prueba: si va bien se cierra y si falla vuelve a abrirse.
+ * Publica el estado como gauge {@code circuit.state} (0 cerrado, 1 semiabierto, 2 abierto).
+ */
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, HALF_OPEN, OPEN }
+
+    private final int failureThreshold;
+    private final long openMs;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMs, MeterRegistry registry) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMs = Math.max(0, openMs);
+        Gauge.builder("circuit.state", this, b -> b.state().ordinal()).tag("name", name).register(registry);
+    }
+
+    public synchronized State state() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMs) state = State.HALF_OPEN;
+        return state;
+    }
+
+    /**
+     * true si la llamada puede hacerse; en semiabierto solo se concede una a la vez.
+     */
+    public synchronized boolean tryAcquire() {
+        return switch (state()) {
+            case CLOSED -> true;
+            case HALF_OPEN -> {
+                if (trialInFlight) yield false;
+                trialInFlight = true;
+                yield true;
+            }
+            case OPEN -> false;
+        };
+    }
+
+    /**
+     * Libera la llamada de prueba sin resultado (cancelada o terminada sin respuesta): la siguiente vuelve a
+     * probar. Sin llamada de prueba en curso no hace nada, así que puede llamarse siempre al terminar.
+     */
+    public synchronized void release() {
+        trialInFlight = false;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    public synchronized void onFailure() {
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            failures = 0;
+        }
+    }
+}
@@ -1,16 +1,19 @@
 package com.hydro.watertap.service;
 
-import com.hydro.watertap.model.dto.SensorRecordDTO;
 import org.springframework.stereotype.Service;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.*;
 
 @Service
 public class CsvReportService {
 
+    // Orden de columnas del agregado: flow, ph, turb, cond
+    private static final int[] CSV_METRICS = {
+            SensorSeries.FLOW_RATE, SensorSeries.PH, SensorSeries.TURBIDITY, SensorSeries.CONDUCTIVITY
+    };
+
     private final SensorDataService sensorDataService;
 
     public CsvReportService(SensorDataService sensorDataService) {
@@ -27,65 +30,39 @@ public class CsvReportService {
         StringBuilder sb = new StringBuilder();
 
         // 1) Datos crudos
-        List<SensorRecordDTO> raw = sensorDataService.getRawHistory(from, to);
+        SensorSeries raw = sensorDataService.getRawHistorySeries(from, to);
         sb.append("# Datos crudos\n");
         sb.append("timestamp,sensorId,ph,turbidity,conductivity,flowRate\n");
-        for (SensorRecordDTO r : raw) {
-            sb.append(nz(r.timestamp() != null ? r.timestamp().toString() : null)).append(",")
-              .append(nz(r.sensorId())).append(",")
-              .append(nz(r.ph())).append(",")
-              .append(nz(r.turbidity())).append(",")
-              .append(nz(r.conductivity())).append(",")
-              .append(nz(r.flowRate())).append("\n");
+        for (int i = 0; i < raw.size(); i++) {
+            sb.append(EpochNanos.toInstant(raw.timestampNanos(i))).append(",");
+            if (raw.sensorId(i) != SensorSeries.NO_SENSOR) sb.append(raw.sensorId(i));
+            for (int m = 0; m < SensorSeries.METRICS; m++) {
+                sb.append(",");
+                if (!raw.isNull(i, m)) sb.append(raw.value(i, m));
+            }
+            sb.append("\n");
         }
 
-        // 2) Datos agregados por bucket útil para Excel
+        // 2) Datos agregados por bucket útil para Excel, sobre la misma consulta cruda
         long minutes = Duration.between(from, to).toMinutes();
         int bucketMinutes = minutes < 12 * 60 ? 15 : 60;
-        List<SensorRecordDTO> bucketed = sensorDataService.getRawHistoryAggregatedInMemory(from, to, Duration.ofMinutes(bucketMinutes));
-        Map<String, Agg> acc = new LinkedHashMap<>(); // key sensorId|bucketStart
-        long bucketMs = Duration.ofMinutes(bucketMinutes).toMillis();
-        for (SensorRecordDTO r : bucketed) {
-            if (r.sensorId() == null || r.timestamp() == null) continue;
-            long b = (r.timestamp().toEpochMilli() / bucketMs) * bucketMs;
-            String key = r.sensorId() + "|" + b;
-            Agg a = acc.computeIfAbsent(key, k -> new Agg(r.sensorId(), b));
-            if (r.flowRate() != null) a.flowStats.accept(r.flowRate());
-            if (r.ph() != null) a.phStats.accept(r.ph());
-            if (r.turbidity() != null) a.turbStats.accept(r.turbidity());
-            if (r.conductivity() != null) a.condStats.accept(r.conductivity());
-        }
+        BucketAggregator agg = new BucketAggregator(Duration.ofMinutes(bucketMinutes)).acceptAll(raw);
 
         sb.append("\n# Agregado por ").append(bucketMinutes).append("m\n");
         sb.append("bucketStart,sensorId,avgFlow,minFlow,maxFlow,avgPh,minPh,maxPh,avgTurb,minTurb,maxTurb,avgCond,minCond,maxCond\n");
-        for (Agg a : acc.values()) {
-            sb.append(Instant.ofEpochMilli(a.bucketStart).toString()).append(",")
-              .append(a.sensorId).append(",")
-              .append(nz(a.flowStats.avg())).append(",").append(nz(a.flowStats.min())).append(",").append(nz(a.flowStats.max())).append(",")
-              .append(nz(a.phStats.avg())).append(",").append(nz(a.phStats.min())).append(",").append(nz(a.phStats.max())).append(",")
-              .append(nz(a.turbStats.avg())).append(",").append(nz(a.turbStats.min())).append(",").append(nz(a.turbStats.max())).append(",")
-              .append(nz(a.condStats.avg())).append(",").append(nz(a.condStats.min())).append(",").append(nz(a.condStats.max())).append("\n");
+        for (int s : agg.orderedSlots()) {
+            sb.append(Instant.ofEpochMilli(agg.bucketStartMs(s)).toString()).append(",")
+              .append(agg.sensorId(s));
+            for (int m : CSV_METRICS) {
+                sb.append(",").append(nz(agg.mean(s, m)))
+                  .append(",").append(nz(agg.min(s, m)))
+                  .append(",").append(nz(agg.max(s, m)));
+            }
+            sb.append("\n");
         }
 
         return sb.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    private String nz(Object v) { return v == null ? "" : String.valueOf(v); }
-
-    private static class Agg {
-        final int sensorId; final long bucketStart;
-        final Stats flowStats = new Stats();
-        final Stats phStats = new Stats();
-        final Stats turbStats = new Stats();
-        final Stats condStats = new Stats();
-        Agg(int sid, long b) { this.sensorId = sid; this.bucketStart = b; }
-    }
-    private static class Stats {
-        double sum = 0; int n = 0; Double min = null; Double max = null;
-        void accept(double v) { sum += v; n++; min = (min==null? v: Math.min(min, v)); max = (max==null? v: Math.max(max, v)); }
-        Double avg() { return n>0 ? sum/n : null; }
-        Double min() { return min; }
-        Double max() { return max; }
-    }
+    private String nz(double v) { return Double.isNaN(v) ? "" : String.valueOf(v); }
 }
-
@@ -0,0 +1,19 @@
+package com.hydro.watertap.service;
+
+import java.time.Instant;
+
+/**
+ * Conversión entre Instant y nanosegundos desde epoch (la resolución nativa de Influx).
+ */
+final class EpochNanos {
+
+    private EpochNanos() {}
+
+    static long of(Instant t) {
+        return t.getEpochSecond() * 1_000_000_000L + t.getNano();
+    }
+
+    static Instant toInstant(long nanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+    }
+}
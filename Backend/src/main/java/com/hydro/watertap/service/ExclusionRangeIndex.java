@@ -0,0 +1,162 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.InfluxExclusionRange;
+import com.hydro.watertap.repository.InfluxExclusionRangeRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Índice en memoria de los rangos de exclusión (borrado lógico) por sensor. Cada sensor guarda sus rangos
+ * fusionados y ordenados como un arreglo plano [inicio0, fin0, inicio1, fin1, ...] en nanos (ambos inclusivos),
+ * reemplazado completo en cada inserción para que las lecturas no necesiten bloqueo.
+ */
+@Component
+public class ExclusionRangeIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ExclusionRangeIndex.class);
+    private static final long[] EMPTY = new long[0];
+
+    private final InfluxExclusionRangeRepository exclusionRepo;
+    private final Map<Integer, long[]> bySensor = new ConcurrentHashMap<>();
+
+    public ExclusionRangeIndex(InfluxExclusionRangeRepository exclusionRepo) {
+        this.exclusionRepo = exclusionRepo;
+    }
+
+    @PostConstruct
+    void load() {
+        List<InfluxExclusionRange> all = exclusionRepo.findAll();
+        for (InfluxExclusionRange ex : all) {
+            if (ex.getSensorId() == null || ex.getStartTime() == null || ex.getEndTime() == null) continue;
+            add(ex.getSensorId(), ex.getStartTime(), ex.getEndTime());
+        }
+        log.info("Índice de exclusiones cargado: {} rangos, {} sensores", all.size(), bySensor.size());
+    }
+
+    public boolean isEmpty() { return bySensor.isEmpty(); }
+
+    /**
+     * Inserta un rango fusionándolo con los que se solapen o toquen.
+     */
+    public synchronized void add(int sensorId, Instant start, Instant end) {
+        long s = EpochNanos.of(start);
+        long e = EpochNanos.of(end);
+        if (e < s) return;
+        long[] cur = bySensor.getOrDefault(sensorId, EMPTY);
+        long[] next = new long[cur.length + 2];
+        int n = 0;
+        int i = 0;
+        // rangos que terminan antes del nuevo
+        while (i < cur.length && cur[i + 1] < s - 1) { next[n++] = cur[i]; next[n++] = cur[i + 1]; i += 2; }
+        // rangos que se solapan: se absorben
+        while (i < cur.length && cur[i] <= e + 1) {
+            s = Math.min(s, cur[i]);
+            e = Math.max(e, cur[i + 1]);
+            i += 2;
+        }
+        next[n++] = s;
+        next[n++] = e;
+        while (i < cur.length) { next[n++] = cur[i]; next[n++] = cur[i + 1]; i += 2; }
+        bySensor.put(sensorId, n == next.length ? next : Arrays.copyOf(next, n));
+    }
+
+    /**
+     * Rangos fusionados del sensor que intersectan [from, to], como pares [inicio, fin] en nanos.
+     */
+    public long[] rangesFor(int sensorId, Instant from, Instant to) {
+        long[] iv = bySensor.getOrDefault(sensorId, EMPTY);
+        long f = EpochNanos.of(from);
+        long t = EpochNanos.of(to);
+        int lo = firstEndingAtOrAfter(iv, f);
+        int hi = lo;
+        while (hi < iv.length && iv[hi] <= t) hi += 2;
+        return lo == 0 && hi == iv.length ? iv : Arrays.copyOfRange(iv, lo, hi);
+    }
+
+    public Map<Integer, long[]> rangesFor(Instant from, Instant to) {
+        Map<Integer, long[]> out = new HashMap<>();
+        for (Integer sid : bySensor.keySet()) {
+            long[] iv = rangesFor(sid, from, to);
+            if (iv.length > 0) out.put(sid, iv);
+        }
+        return out;
+    }
+
+    /**
+     * Descarta las lecturas excluidas recorriendo una sola vez la lista (ordenada por tiempo) con un cursor
+     * por sensor sobre sus rangos. Si no hay nada que excluir devuelve la misma lista.
+     */
+    public List<SensorRecordDTO> filter(List<SensorRecordDTO> data) {
+        if (data == null || data.isEmpty() || bySensor.isEmpty()) return data;
+        Map<Integer, Cursor> cursors = new HashMap<>();
+        List<SensorRecordDTO> out = null;
+        for (int k = 0; k < data.size(); k++) {
+            SensorRecordDTO r = data.get(k);
+            boolean excluded = false;
+            if (r.sensorId() != null && r.timestamp() != null) {
+                Cursor c = cursors.computeIfAbsent(r.sensorId(), sid -> new Cursor(bySensor.getOrDefault(sid, EMPTY)));
+                excluded = c.covers(EpochNanos.of(r.timestamp()));
+            }
+            if (excluded && out == null) out = new ArrayList<>(data.subList(0, k));
+            else if (!excluded && out != null) out.add(r);
+        }
+        return out == null ? data : out;
+    }
+
+    /**
+     * Variante columnar de {@link #filter(List)}.
+     */
+    public SensorSeries filter(SensorSeries data) {
+        if (data == null || data.isEmpty() || bySensor.isEmpty()) return data;
+        Map<Integer, Cursor> cursors = new HashMap<>();
+        BitSet keep = new BitSet(data.size());
+        boolean any = false;
+        for (int i = 0; i < data.size(); i++) {
+            int sid = data.sensorId(i);
+            boolean excluded = false;
+            if (sid != SensorSeries.NO_SENSOR) {
+                Cursor c = cursors.computeIfAbsent(sid, k -> new Cursor(bySensor.getOrDefault(k, EMPTY)));
+                excluded = c.covers(data.timestampNanos(i));
+            }
+            if (excluded) any = true; else keep.set(i);
+        }
+        return any ? data.select(keep) : data;
+    }
+
+    private static int firstEndingAtOrAfter(long[] iv, long t) {
+        int lo = 0, hi = iv.length / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (iv[mid * 2 + 1] < t) lo = mid + 1; else hi = mid;
+        }
+        return lo * 2;
+    }
+
+    private static final class Cursor {
+        final long[] iv;
+        int idx = 0;
+        long last = Long.MIN_VALUE;
+
+        Cursor(long[] iv) { this.iv = iv; }
+
+        boolean covers(long t) {
+            if (iv.length == 0) return false;
+            if (t < last) idx = firstEndingAtOrAfter(iv, t); // entrada desordenada: reposicionar
+            last = t;
+            while (idx < iv.length && iv[idx + 1] < t) idx += 2;
+            return idx < iv.length && iv[idx] <= t;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Caché de historial por bloques de tiempo alineados. Los bloques ya cerrados (terminados hace más de
+ * history.cache.grace-seconds, para dar margen a escrituras tardías del WAL) se guardan completos bajo
+ * (tipo de consulta, inicio alineado) y se recortan al rango pedido; el tramo abierto final siempre se
+ * consulta de nuevo. Así dos peticiones "últimas N horas" comparten bloques aunque su {@code now()} difiera.
+ *
+ * LRU acotado por filas totales, con TTL, e invalidación por rango cuando se registra una exclusión o se escriben
+ * lecturas con timestamps pasados (replay atrasado del WAL, subidas con datos antiguos). Las series derivadas
+ * ({@link #getDerived}) se materializan en Influx con retraso: sus bloques se cierran tras
+ * history.cache.view-lag-seconds y no se cachean mientras una escritura reciente siga pendiente de materializar.
+ */
+@Component
+public class HistoryCache {
+
+    @Value("${history.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${history.cache.max-rows:2000000}")
+    private long maxRows;
+
+    @Value("${history.cache.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    @Value("${history.cache.grace-seconds:60}")
+    private long graceSeconds;
+
+    @Value("${history.cache.view-lag-seconds:900}")
+    private long viewLagSeconds;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalRows;
+    // Rangos escritos recientemente: {desde, hasta, instante de la escritura (nanoTime)}
+    private final ArrayDeque<long[]> written = new ArrayDeque<>();
+    // Sube con cada invalidación: una carga iniciada antes no debe volver a cachear lo que se acaba de descartar
+    private long generation;
+
+    public HistoryCache(MeterRegistry registry) {
+        this.hits = Counter.builder("history.cache.requests").tag("result", "hit")
+                .description("Bloques de historial servidos desde caché").register(registry);
+        this.misses = Counter.builder("history.cache.requests").tag("result", "miss")
+                .description("Bloques de historial consultados a Influx").register(registry);
+        Gauge.builder("history.cache.rows", this, c -> c.rowCount()).register(registry);
+    }
+
+    /**
+     * Devuelve [from, to] para {@code kind} armando bloques de tamaño {@code block} desde la caché. Los bloques
+     * que faltan se piden al loader agrupando los contiguos en una sola consulta; el loader recibe un rango
+     * cerrado [a, b] y debe devolver la serie ordenada por tiempo.
+     */
+    public SensorSeries get(String kind, Duration block, Instant from, Instant to,
+                            BiFunction<Instant, Instant, SensorSeries> loader) {
+        return get(kind, block, Duration.ofSeconds(graceSeconds), from, to, loader);
+    }
+
+    /**
+     * Como {@link #get}, para series que Influx deriva de las lecturas crudas (vistas agregadas).
+     */
+    public SensorSeries getDerived(String kind, Duration block, Instant from, Instant to,
+                                   BiFunction<Instant, Instant, SensorSeries> loader) {
+        return get(kind, block, Duration.ofSeconds(Math.max(graceSeconds, viewLagSeconds)), from, to, loader);
+    }
+
+    /**
+     * Avisa de que [from, to] recibió lecturas ya escritas en Influx. Si el rango puede caer en bloques cerrados
+     * se descartan y se evita volver a cachearlos mientras las vistas no se hayan materializado.
+     */
+    public void onWritten(Instant from, Instant to) {
+        if (!enabled || from == null || to == null) return;
+        if (!from.isBefore(Instant.now().minusSeconds(graceSeconds))) return;
+        long f = EpochNanos.of(from);
+        long t = EpochNanos.of(to);
+        synchronized (this) {
+            long now = System.nanoTime();
+            pruneWritten(now);
+            written.addLast(new long[] { f, t, now });
+        }
+        invalidate(from, to);
+    }
+
+    private SensorSeries get(String kind, Duration block, Duration lag, Instant from, Instant to,
+                             BiFunction<Instant, Instant, SensorSeries> loader) {
+        long blockNanos = block.toNanos();
+        long fromNanos = EpochNanos.of(from);
+        long toNanos = EpochNanos.of(to);
+        long closedEnd = Math.floorDiv(EpochNanos.of(Instant.now().minus(lag)), blockNanos) * blockNanos;
+        long first = Math.floorDiv(fromNanos, blockNanos) * blockNanos;
+        if (!enabled || toNanos < fromNanos || first + blockNanos > closedEnd) return loader.apply(from, to);
+
+        SensorSeries out = new SensorSeries();
+        long runStart = -1;
+        long b = first;
+        for (; b + blockNanos <= closedEnd && b <= toNanos; b += blockNanos) {
+            SensorSeries cached = lookup(new BlockKey(kind, blockNanos, b));
+            if (cached != null) {
+                if (runStart >= 0) { loadRun(kind, blockNanos, lag, runStart, b, loader, fromNanos, toNanos, out); runStart = -1; }
+                hits.increment();
+                appendTrimmed(cached, fromNanos, toNanos, out);
+            } else {
+                misses.increment();
+                if (runStart < 0) runStart = b;
+            }
+        }
+        if (runStart >= 0) loadRun(kind, blockNanos, lag, runStart, b, loader, fromNanos, toNanos, out);
+
+        // Tramo abierto: siempre fresco
+        if (toNanos >= b) {
+            out.appendAll(loader.apply(EpochNanos.toInstant(Math.max(b, fromNanos)), to));
+        }
+        return out;
+    }
+
+    /**
+     * Descarta los bloques que se solapan con [from, to], de cualquier tipo de consulta.
+     */
+    public synchronized void invalidate(Instant from, Instant to) {
+        long f = EpochNanos.of(from);
+        long t = EpochNanos.of(to);
+        generation++;
+        Iterator<Map.Entry<BlockKey, Block>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<BlockKey, Block> e = it.next();
+            BlockKey k = e.getKey();
+            if (k.start <= t && k.start + k.blockNanos > f) {
+                totalRows -= e.getValue().series.size();
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized long rowCount() { return totalRows; }
+
+    private synchronized long generation() { return generation; }
+
+    private void loadRun(String kind, long blockNanos, Duration lag, long runStart, long runEnd,
+                         BiFunction<Instant, Instant, SensorSeries> loader,
+                         long fromNanos, long toNanos, SensorSeries out) {
+        long startGeneration = generation();
+        SensorSeries run = loader.apply(EpochNanos.toInstant(runStart), EpochNanos.toInstant(runEnd - 1));
+        // Partir el resultado (ordenado) en bloques alineados
+        int row = 0;
+        List<BlockKey> keys = new ArrayList<>();
+        List<SensorSeries> parts = new ArrayList<>();
+        for (long s = runStart; s < runEnd; s += blockNanos) {
+            SensorSeries part = new SensorSeries(16);
+            while (row < run.size() && run.timestampNanos(row) < s + blockNanos) {
+                part.appendRow(run, row++);
+            }
+            keys.add(new BlockKey(kind, blockNanos, s));
+            parts.add(part);
+            appendTrimmed(part, fromNanos, toNanos, out);
+        }
+        synchronized (this) {
+            // Una exclusión registrada durante la carga: el resultado puede traer filas ya borradas
+            if (generation != startGeneration) return;
+            long now = System.nanoTime();
+            long expires = now + Duration.ofMinutes(ttlMinutes).toNanos();
+            pruneWritten(now);
+            for (int i = 0; i < keys.size(); i++) {
+                // Una escritura durante la carga (o aún sin materializar en la vista) deja el bloque sin cachear
+                if (recentlyWritten(keys.get(i), now - lag.toNanos())) continue;
+                Block prev = blocks.put(keys.get(i), new Block(parts.get(i), expires));
+                if (prev != null) totalRows -= prev.series.size();
+                totalRows += parts.get(i).size();
+            }
+            evict();
+        }
+    }
+
+    private boolean recentlyWritten(BlockKey k, long sinceNanos) {
+        for (long[] w : written) {
+            if (w[2] - sinceNanos > 0 && k.start <= w[1] && k.start + k.blockNanos > w[0]) return true;
+        }
+        return false;
+    }
+
+    private void pruneWritten(long now) {
+        long keep = Duration.ofSeconds(Math.max(graceSeconds, viewLagSeconds)).toNanos();
+        while (!written.isEmpty() && now - written.peekFirst()[2] > keep) written.removeFirst();
+    }
+
+    private synchronized SensorSeries lookup(BlockKey key) {
+        Block blk = blocks.get(key);
+        if (blk == null) return null;
+        if (System.nanoTime() - blk.expiresAt > 0) {
+            blocks.remove(key);
+            totalRows -= blk.series.size();
+            return null;
+        }
+        return blk.series;
+    }
+
+    private void evict() {
+        Iterator<Block> it = blocks.values().iterator();
+        while (totalRows > maxRows && it.hasNext()) {
+            totalRows -= it.next().series.size();
+            it.remove();
+        }
+    }
+
+    private static void appendTrimmed(SensorSeries block, long fromNanos, long toNanos, SensorSeries out) {
+        for (int i = 0; i < block.size(); i++) {
+            long t = block.timestampNanos(i);
+            if (t >= fromNanos && t <= toNanos) out.appendRow(block, i);
+        }
+    }
+
+    private record BlockKey(String kind, long blockNanos, long start) { }
+
+    private record Block(SensorSeries series, long expiresAt) { }
+}
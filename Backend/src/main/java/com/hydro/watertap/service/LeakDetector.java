@@ -0,0 +1,338 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detector de fugas en streaming: una máquina de estados por sensor alimentada desde la ingesta.
+ * <ul>
+ *   <li>Flujo continuo: mientras el flujo supere leak.flow-above se lleva la duración del episodio y los litros
+ *       acumulados desde que empezó (flujo en L/min integrado entre lecturas). Se avisa (HIGH) al superar
+ *       leak.continuous-minutes o leak.max-liters: una llave abierta.</li>
+ *   <li>Caudal mínimo nocturno: dentro de las ventanas leak.night-windows (hora local) se lleva el mínimo del
+ *       flujo desde que superó leak.night-flow-above; si ese mínimo se sostiene leak.night-minutes se avisa (MEDIUM):
+ *       un goteo que nunca baja a cero.</li>
+ * </ul>
+ * Un hueco sin lecturas de más de leak.max-gap-seconds corta el episodio. Cada aviso se da una vez por episodio
+ * y se rearma cuando el flujo vuelve a bajar. Las alertas llevan la solución de rules.flow-solution y se crean o
+ * actualizan con {@link SensorAlertService} en un hilo propio; si el servicio no la aplica (el sensor ya tiene una
+ * alerta activa más grave) el aviso no cuenta como dado y se reintenta pasado leak.retry-minutes (según el
+ * timestamp de las lecturas), no en cada lectura.
+ *
+ * Actualizar es O(1) y sin reservar memoria por lectura: el estado vive en arreglos primitivos por slot de
+ * sensor (como {@link SensorRuleEngine}) y las ventanas nocturnas en una máscara por minuto del día.
+ */
+@Component
+@Order(300)
+public class LeakDetector implements SensorIngestListener {
+
+    private static final Logger log = LoggerFactory.getLogger(LeakDetector.class);
+
+    private static final ZoneId ZONE = ZoneId.of("America/Bogota");
+    private static final long NEVER = Long.MIN_VALUE;
+    private static final int CONTINUOUS = 1, VOLUME = 2, NIGHT = 4, REASONS = 3;
+    private static final Pattern WINDOW = Pattern.compile("\\s*(\\d{1,2}):(\\d{2})\\s*-\\s*(\\d{1,2}):(\\d{2})\\s*");
+
+    private final SensorAlertService alertService;
+    private final Counter continuousRaised;
+    private final Counter volumeRaised;
+    private final Counter nightRaised;
+
+    @Value("${leak.enabled:true}")
+    private boolean enabled;
+
+    // Flujo (L/min) a partir del cual el grifo cuenta como abierto
+    @Value("${leak.flow-above:0.05}")
+    private double flowAbove;
+
+    @Value("${leak.continuous-minutes:60}")
+    private long continuousMinutes;
+
+    @Value("${leak.max-liters:200}")
+    private double maxLiters;
+
+    @Value("${leak.night-windows:00:00-05:00}")
+    private String nightWindows;
+
+    @Value("${leak.night-flow-above:0.02}")
+    private double nightFlowAbove;
+
+    @Value("${leak.night-minutes:30}")
+    private long nightMinutes;
+
+    @Value("${leak.max-gap-seconds:120}")
+    private long maxGapSeconds;
+
+    // Espera antes de reintentar un aviso que el servicio de alertas no aplicó
+    @Value("${leak.retry-minutes:10}")
+    private long retryMinutes;
+
+    @Value("${rules.flow-solution:cerrar llave de paso y revisar posible fuga}")
+    private String flowSolution;
+
+    private boolean[] nightMask;
+    private long continuousMs;
+    private long nightMs;
+    private long maxGapMs;
+    private long retryMs;
+    private ExecutorService raiser;
+    private final ZoneRules zoneRules = ZONE.getRules();
+    private int fixedOffsetSeconds;
+
+    // Estado por slot de sensor; protegido por el monitor del detector
+    private final LongIntHashMap slots = new LongIntHashMap();
+    private long[] lastTs = new long[16];
+    private double[] lastFlow = new double[16];
+    private long[] flowSince = new long[16];
+    private double[] liters = new double[16];
+    private long[] nightSince = new long[16];
+    private double[] nightMin = new double[16];
+    private int[] raisedMask = new int[16];
+    // Por slot y motivo (slot * REASONS + bit): hasta cuándo no reintentar un aviso no aplicado
+    private long[] retryAfter = new long[16 * REASONS];
+
+    private record Leak(int sensorId, int reason, String severity, String description, long ts) { }
+
+    public LeakDetector(SensorAlertService alertService, MeterRegistry registry) {
+        this.alertService = alertService;
+        this.continuousRaised = Counter.builder("leak.alerts.raised").tag("reason", "continuous").register(registry);
+        this.volumeRaised = Counter.builder("leak.alerts.raised").tag("reason", "volume").register(registry);
+        this.nightRaised = Counter.builder("leak.alerts.raised").tag("reason", "night").register(registry);
+    }
+
+    @PostConstruct
+    void start() {
+        nightMask = parseWindows(nightWindows);
+        continuousMs = continuousMinutes * 60_000L;
+        nightMs = nightMinutes * 60_000L;
+        maxGapMs = Math.max(1, maxGapSeconds) * 1000L;
+        retryMs = Math.max(0, retryMinutes) * 60_000L;
+        Arrays.fill(retryAfter, NEVER);
+        fixedOffsetSeconds = zoneRules.isFixedOffset() ? zoneRules.getOffset(Instant.EPOCH).getTotalSeconds() : 0;
+        Arrays.fill(lastTs, NEVER);
+        Arrays.fill(flowSince, NEVER);
+        Arrays.fill(nightSince, NEVER);
+        raiser = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "leak-detector-alerts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void stop() {
+        raiser.shutdown();
+    }
+
+    @Override
+    public void onReadings(List<SensorRecordDTO> records) {
+        if (!enabled) return;
+        List<Leak> found = evaluate(records, true);
+        for (Leak l : found) raiser.execute(() -> raise(l));
+    }
+
+    // Al arrancar solo se reconstruye el estado: lo que ya se había avisado no se repite
+    @Override
+    public void onWarmUp(List<SensorRecordDTO> records) {
+        if (!enabled) return;
+        List<SensorRecordDTO> sorted = new ArrayList<>(records.size());
+        for (SensorRecordDTO r : records) if (r.timestamp() != null) sorted.add(r);
+        sorted.sort(Comparator.comparing(SensorRecordDTO::timestamp));
+        evaluate(sorted, false);
+    }
+
+    private synchronized List<Leak> evaluate(List<SensorRecordDTO> records, boolean raise) {
+        List<Leak> out = null;
+        for (int i = 0, n = records.size(); i < n; i++) {
+            SensorRecordDTO r = records.get(i);
+            Integer sid = r.sensorId();
+            Double f = r.flowRate();
+            if (sid == null || sid < 0 || sid > 1_000_000_000 || r.timestamp() == null) continue;
+            if (f == null || !Double.isFinite(f) || f < 0) continue; // sin dato de flujo válido: no cambia el estado
+            double flow = f;
+            long ts = r.timestamp().toEpochMilli();
+            int s = slot(sid);
+            if (lastTs[s] != NEVER && ts < lastTs[s]) continue; // fuera de orden
+
+            boolean gap = lastTs[s] != NEVER && ts - lastTs[s] > maxGapMs;
+            boolean on = flow > flowAbove;
+            if (flowSince[s] != NEVER && !gap) liters[s] += lastFlow[s] * (ts - lastTs[s]) / 60_000.0;
+            if (on && (flowSince[s] == NEVER || gap)) {
+                flowSince[s] = ts;
+                liters[s] = 0;
+                raisedMask[s] &= ~(CONTINUOUS | VOLUME);
+            } else if (!on) {
+                flowSince[s] = NEVER;
+                liters[s] = 0;
+                raisedMask[s] &= ~(CONTINUOUS | VOLUME);
+            }
+
+            if (flow > nightFlowAbove && nightMask[minuteOfDay(ts)]) {
+                if (nightSince[s] == NEVER || gap) {
+                    nightSince[s] = ts;
+                    nightMin[s] = flow;
+                    raisedMask[s] &= ~NIGHT;
+                } else if (flow < nightMin[s]) {
+                    nightMin[s] = flow;
+                }
+            } else {
+                nightSince[s] = NEVER;
+                raisedMask[s] &= ~NIGHT;
+            }
+
+            lastTs[s] = ts;
+            lastFlow[s] = flow;
+
+            int fire = 0;
+            if (flowSince[s] != NEVER) {
+                if (ts - flowSince[s] >= continuousMs) fire |= CONTINUOUS;
+                if (maxLiters > 0 && liters[s] >= maxLiters) fire |= VOLUME;
+            }
+            if (nightSince[s] != NEVER && ts - nightSince[s] >= nightMs) fire |= NIGHT;
+            fire &= ~raisedMask[s];
+            fire &= ~waiting(s, ts);
+            if (fire == 0) continue;
+            raisedMask[s] |= fire;
+            if (!raise) continue;
+            if (out == null) out = new ArrayList<>();
+            out.add(leak(sid, s, fire, ts, flow));
+        }
+        return out == null ? List.of() : out;
+    }
+
+    private Leak leak(int sid, int s, int fire, long ts, double flow) {
+        if ((fire & (CONTINUOUS | VOLUME)) != 0) {
+            long minutes = (ts - flowSince[s]) / 60_000L;
+            double avg = minutes > 0 ? liters[s] / ((ts - flowSince[s]) / 60_000.0) : flow;
+            return new Leak(sid, fire, "HIGH", String.format(Locale.ROOT,
+                    "flujo continuo ~%.2f L/min entre %s y %s (%.2f L acumulados); posible llave abierta",
+                    avg, iso(flowSince[s]), iso(ts), liters[s]), ts);
+        }
+        return new Leak(sid, fire, "MEDIUM", String.format(Locale.ROOT,
+                "caudal mínimo nocturno %.2f L/min entre %s y %s sin bajar a cero; posible fuga",
+                nightMin[s], iso(nightSince[s]), iso(ts)), ts);
+    }
+
+    private void raise(Leak l) {
+        boolean applied = false;
+        try {
+            applied = alertService.createOrUpdateAlertForSensor(SensorAlertEntity.builder()
+                    .sensorId(l.sensorId())
+                    .severity(l.severity())
+                    .description(l.description())
+                    .solution(flowSolution)
+                    .active(true)
+                    .build()).isPresent();
+        } catch (Exception e) {
+            log.warn("No se pudo registrar la alerta de fuga del sensor {}: {}", l.sensorId(), e.getMessage());
+        }
+        if (!applied) {
+            unmark(l.sensorId(), l.reason(), l.ts());
+            return;
+        }
+        if ((l.reason() & CONTINUOUS) != 0) continuousRaised.increment();
+        if ((l.reason() & VOLUME) != 0) volumeRaised.increment();
+        if ((l.reason() & NIGHT) != 0) nightRaised.increment();
+    }
+
+    // Aviso no aplicado: vuelve a dispararse si el episodio sigue pasado leak.retry-minutes desde la lectura que lo
+    // disparó, no con cada lectura (cada intento ocupa el hilo de avisos y el monitor del servicio de alertas)
+    private synchronized void unmark(int sid, int reason, long ts) {
+        int s = slots.get(sid);
+        if (s == LongIntHashMap.MISSING) return;
+        raisedMask[s] &= ~reason;
+        for (int k = 0; k < REASONS; k++) {
+            if ((reason & (1 << k)) != 0) retryAfter[s * REASONS + k] = ts + retryMs;
+        }
+    }
+
+    // Motivos del slot cuyo reintento aún no toca
+    private int waiting(int s, long ts) {
+        int mask = 0;
+        for (int k = 0; k < REASONS; k++) {
+            long until = retryAfter[s * REASONS + k];
+            if (until != NEVER && ts < until) mask |= 1 << k;
+        }
+        return mask;
+    }
+
+    private int minuteOfDay(long ts) {
+        int offset = zoneRules.isFixedOffset() ? fixedOffsetSeconds
+                : zoneRules.getOffset(Instant.ofEpochMilli(ts)).getTotalSeconds();
+        return (int) Math.floorMod(Math.floorDiv(ts, 60_000L) + offset / 60, 1440L);
+    }
+
+    private static String iso(long ts) {
+        return Instant.ofEpochMilli(ts).truncatedTo(ChronoUnit.SECONDS).toString();
+    }
+
+    private int slot(int sid) {
+        int slot = slots.get(sid);
+        if (slot != LongIntHashMap.MISSING) return slot;
+        slot = slots.size();
+        if (slot == lastTs.length) grow();
+        slots.put(sid, slot);
+        return slot;
+    }
+
+    private void grow() {
+        int old = lastTs.length;
+        int cap = old * 2;
+        lastTs = Arrays.copyOf(lastTs, cap);
+        lastFlow = Arrays.copyOf(lastFlow, cap);
+        flowSince = Arrays.copyOf(flowSince, cap);
+        liters = Arrays.copyOf(liters, cap);
+        nightSince = Arrays.copyOf(nightSince, cap);
+        nightMin = Arrays.copyOf(nightMin, cap);
+        raisedMask = Arrays.copyOf(raisedMask, cap);
+        retryAfter = Arrays.copyOf(retryAfter, cap * REASONS);
+        Arrays.fill(retryAfter, old * REASONS, cap * REASONS, NEVER);
+        Arrays.fill(lastTs, old, cap, NEVER);
+        Arrays.fill(flowSince, old, cap, NEVER);
+        Arrays.fill(nightSince, old, cap, NEVER);
+    }
+
+    // "HH:mm-HH:mm" separadas por ','; una ventana puede cruzar la medianoche (p.ej. 22:00-05:00)
+    static boolean[] parseWindows(String spec) {
+        boolean[] mask = new boolean[1440];
+        if (spec == null) return mask;
+        for (String part : spec.split(",")) {
+            if (part.isBlank()) continue;
+            Matcher m = WINDOW.matcher(part);
+            if (!m.matches()) throw new IllegalArgumentException("Ventana inválida en leak.night-windows: " + part.trim());
+            int from = minutes(m.group(1), m.group(2), part);
+            int to = minutes(m.group(3), m.group(4), part);
+            for (int i = from; i != to; i = (i + 1) % 1440) mask[i] = true;
+        }
+        return mask;
+    }
+
+    private static int minutes(String h, String m, String part) {
+        int hh = Integer.parseInt(h), mm = Integer.parseInt(m);
+        if (hh > 23 || mm > 59) throw new IllegalArgumentException("Ventana inválida en leak.night-windows: " + part.trim());
+        return hh * 60 + mm;
+    }
+}
@@ -0,0 +1,79 @@
+package com.hydro.watertap.service;
+
+import java.util.Arrays;
+
+/**
+ * Mapa long -> int de direccionamiento abierto (sondeo lineal), sin boxing. Pensado para indexar estado
+ * en arreglos primitivos por clave (p.ej. sensor o sensor x bucket). No admite borrados.
+ */
+final class LongIntHashMap {
+
+    static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] vals;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    LongIntHashMap() {
+        this(64);
+    }
+
+    LongIntHashMap(int expected) {
+        int cap = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new long[cap];
+        vals = new int[cap];
+        used = new boolean[cap];
+        mask = cap - 1;
+    }
+
+    int size() { return size; }
+
+    int get(long key) {
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) return vals[i];
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    void put(long key, int value) {
+        if ((size + 1) * 2 > keys.length) rehash();
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) { vals[i] = value; return; }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = key;
+        vals[i] = value;
+        size++;
+    }
+
+    void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldVals = vals;
+        boolean[] oldUsed = used;
+        int cap = keys.length * 2;
+        keys = new long[cap];
+        vals = new int[cap];
+        used = new boolean[cap];
+        mask = cap - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) put(oldKeys[i], oldVals[i]);
+        }
+    }
+}
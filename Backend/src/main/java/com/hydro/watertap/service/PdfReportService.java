@@ -1,6 +1,5 @@
 package com.hydro.watertap.service;
 
-import com.hydro.watertap.model.dto.SensorRecordDTO;
 import com.lowagie.text.*;
 import com.lowagie.text.pdf.PdfPCell;
 import com.lowagie.text.pdf.PdfPTable;
@@ -42,15 +41,12 @@ public class PdfReportService {
         long minutes = ChronoUnit.MINUTES.between(from, to);
         int bucketMinutes = minutes < 12 * 60 ? 15 : 60;
 
-        List<SensorRecordDTO> input;
         if (days > 3) {
-            List<SensorRecordDTO> tenMin = sensorDataService.getRawHistoryAggregatedInMemory(from, to, Duration.ofMinutes(10));
-            input = tenMin;
             bucketMinutes = 60; // consolidaremos por hora en el PDF
-        } else {
-            input = sensorDataService.getRawHistory(from, to);
         }
 
+        // Una sola pasada sobre los datos crudos: min/max reales por bucket, no de promedios intermedios
+        SensorSeries input = sensorDataService.getRawHistorySeries(from, to);
         Map<Integer, List<BucketStat>> statsBySensor = aggregateByBucket(input, bucketMinutes);
 
         try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
@@ -129,23 +125,28 @@ public class PdfReportService {
         return d1 + " " + t1 + " – " + d2 + " " + t2;
     }
 
-    private Map<Integer, List<BucketStat>> aggregateByBucket(List<SensorRecordDTO> input, int bucketMinutes) {
-        long bucketMs = Duration.ofMinutes(bucketMinutes).toMillis();
-        Map<String, BucketAccum> map = new LinkedHashMap<>(); // key = sensorId|bucketStartMs
-        for (SensorRecordDTO r : input) {
-            if (r.sensorId() == null || r.timestamp() == null) continue;
-            long t = r.timestamp().toEpochMilli();
-            long b = (t / bucketMs) * bucketMs;
-            String key = r.sensorId() + "|" + b;
-            BucketAccum acc = map.computeIfAbsent(key, k -> new BucketAccum(r.sensorId(), b));
-            acc.accept(r);
-        }
+    private Map<Integer, List<BucketStat>> aggregateByBucket(SensorSeries input, int bucketMinutes) {
+        BucketAggregator agg = new BucketAggregator(Duration.ofMinutes(bucketMinutes)).acceptAll(input);
         Map<Integer, List<BucketStat>> out = new LinkedHashMap<>();
-        for (BucketAccum acc : map.values()) {
-            BucketStat s = acc.toStat();
+        // orderedSlots ya viene por bucket y sensor: cada lista queda ordenada por tiempo
+        for (int slot : agg.orderedSlots()) {
+            BucketStat s = new BucketStat();
+            s.sensorId = agg.sensorId(slot);
+            s.bucketStart = Instant.ofEpochMilli(agg.bucketStartMs(slot));
+            s.avgFlow = BucketAggregator.boxed(agg.mean(slot, SensorSeries.FLOW_RATE));
+            s.minFlow = BucketAggregator.boxed(agg.min(slot, SensorSeries.FLOW_RATE));
+            s.maxFlow = BucketAggregator.boxed(agg.max(slot, SensorSeries.FLOW_RATE));
+            s.avgPh = BucketAggregator.boxed(agg.mean(slot, SensorSeries.PH));
+            s.minPh = BucketAggregator.boxed(agg.min(slot, SensorSeries.PH));
+            s.maxPh = BucketAggregator.boxed(agg.max(slot, SensorSeries.PH));
+            s.avgTurb = BucketAggregator.boxed(agg.mean(slot, SensorSeries.TURBIDITY));
+            s.minTurb = BucketAggregator.boxed(agg.min(slot, SensorSeries.TURBIDITY));
+            s.maxTurb = BucketAggregator.boxed(agg.max(slot, SensorSeries.TURBIDITY));
+            s.avgCond = BucketAggregator.boxed(agg.mean(slot, SensorSeries.CONDUCTIVITY));
+            s.minCond = BucketAggregator.boxed(agg.min(slot, SensorSeries.CONDUCTIVITY));
+            s.maxCond = BucketAggregator.boxed(agg.max(slot, SensorSeries.CONDUCTIVITY));
             out.computeIfAbsent(s.sensorId, k -> new ArrayList<>()).add(s);
         }
-        for (List<BucketStat> list : out.values()) list.sort(Comparator.comparing(bs -> bs.bucketStart));
         return out;
     }
 
@@ -289,30 +290,6 @@ public class PdfReportService {
         return String.format(Locale.US, "%.2f", v);
     }
 
-    private static class BucketAccum {
-        final int sensorId; final long bucketStartMs;
-        double flowSum = 0; int flowN = 0; Double flowMin = null; Double flowMax = null;
-        double phSum = 0; int phN = 0; Double phMin = null; Double phMax = null;
-        double turbSum = 0; int turbN = 0; Double turbMin = null; Double turbMax = null;
-        double condSum = 0; int condN = 0; Double condMin = null; Double condMax = null;
-        BucketAccum(int sid, long ms) { this.sensorId = sid; this.bucketStartMs = ms; }
-        void accept(SensorRecordDTO r) {
-            if (r.flowRate() != null) { double v = r.flowRate(); flowSum += v; flowN++; flowMin = flowMin==null? v : Math.min(flowMin, v); flowMax = flowMax==null? v : Math.max(flowMax, v);}
-            if (r.ph() != null) { double v = r.ph(); phSum += v; phN++; phMin = phMin==null? v : Math.min(phMin, v); phMax = phMax==null? v : Math.max(phMax, v);}
-            if (r.turbidity() != null) { double v = r.turbidity(); turbSum += v; turbN++; turbMin = turbMin==null? v : Math.min(turbMin, v); turbMax = turbMax==null? v : Math.max(turbMax, v);}
-            if (r.conductivity() != null) { double v = r.conductivity(); condSum += v; condN++; condMin = condMin==null? v : Math.min(condMin, v); condMax = condMax==null? v : Math.max(condMax, v);}
-        }
-        BucketStat toStat() {
-            BucketStat s = new BucketStat();
-            s.sensorId = sensorId;
-            s.bucketStart = Instant.ofEpochMilli(bucketStartMs);
-            s.avgFlow = flowN>0? flowSum/flowN : null; s.minFlow = flowMin; s.maxFlow = flowMax;
-            s.avgPh = phN>0? phSum/phN : null; s.minPh = phMin; s.maxPh = phMax;
-            s.avgTurb = turbN>0? turbSum/turbN : null; s.minTurb = turbMin; s.maxTurb = turbMax;
-            s.avgCond = condN>0? condSum/condN : null; s.minCond = condMin; s.maxCond = condMax;
-            return s;
-        }
-    }
     private static class BucketStat {
         int sensorId; Instant bucketStart;
         Double avgFlow, minFlow, maxFlow;
@@ -0,0 +1,297 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Buffer circular en memoria con las lecturas de los últimos minutos por sensor, alimentado por la ingesta
+ * y precargado desde Influx al arrancar. Guarda arreglos primitivos (timestamps en nanos, métricas en double
+ * con NaN como nulo) y responde ventanas recientes sin consultar Influx.
+ *
+ * Cada lectura recibe un número de secuencia global creciente, que sirve de cursor para pedir solo lo nuevo
+ * ({@link #since(long)}). La secuencia se reinicia con el proceso; {@link #epoch()} identifica la instancia.
+ *
+ * Solo ve lo que entra por la ingesta: si nadie sube lecturas durante recent.buffer.stale-seconds (p.ej. datos
+ * escritos directo en Influx) deja de responder ventanas y los llamadores vuelven a Influx. Las lecturas
+ * más viejas que recent.buffer.minutes se descartan por tiempo, y los sensores sin lecturas se olvidan.
+ */
+@Component
+@Order(0) // antes que los listeners que leen de él (p.ej. SensorEventBus)
+public class RecentSensorBuffer implements SensorIngestListener {
+
+    private static final Comparator<SensorRecordDTO> BY_TIME =
+            Comparator.comparing(SensorRecordDTO::timestamp).thenComparing(SensorRecordDTO::sensorId);
+
+    @Value("${recent.buffer.minutes:15}")
+    private int retentionMinutes;
+
+    @Value("${recent.buffer.capacity:2048}")
+    private int capacityPerSensor;
+
+    @Value("${recent.buffer.stale-seconds:120}")
+    private long staleSeconds;
+
+    private final Map<Integer, Ring> rings = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean warm;
+    // Última vez (epoch ms) que la ingesta entregó lecturas; la precarga no cuenta
+    private volatile long lastFedAt;
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private long seq;
+    // Cursores menores son de antes de la precarga
+    private long warmSeq;
+    // Mayor secuencia descartada junto con el anillo de un sensor que dejó de enviar
+    private long droppedSeq;
+
+    /** Lecturas junto con la secuencia hasta la que incluyen datos. */
+    public record Slice(List<SensorRecordDTO> readings, long seq) { }
+
+    @Override
+    public void onReadings(List<SensorRecordDTO> records) {
+        if (records.isEmpty()) return;
+        append(records);
+        lastFedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Si la precarga llega tarde (reintento tras fallar Influx) ya puede haber lecturas en vivo: se juntan con
+     * las precargadas y se rearma todo en orden de tiempo con secuencias nuevas.
+     */
+    @Override
+    public void onWarmUp(List<SensorRecordDTO> records) {
+        lock.writeLock().lock();
+        try {
+            List<SensorRecordDTO> all = new ArrayList<>(records.size());
+            for (SensorRecordDTO r : records) {
+                if (r.sensorId() != null && r.timestamp() != null) all.add(r);
+            }
+            for (Map.Entry<Integer, Ring> e : rings.entrySet()) e.getValue().collect(e.getKey(), Long.MIN_VALUE, all);
+            all.sort(BY_TIME);
+            rings.clear();
+            append(all);
+            warmSeq = seq;
+            warm = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isWarm() { return warm; }
+
+    /**
+     * Precargado y alimentado por la ingesta hace menos de recent.buffer.stale-seconds.
+     */
+    public boolean isLive() {
+        return warm && System.currentTimeMillis() - lastFedAt <= staleSeconds * 1000;
+    }
+
+    /**
+     * Indica si el buffer puede responder una ventana de los últimos {@code minutes} minutos.
+     */
+    public boolean covers(int minutes) {
+        return isLive() && minutes <= retentionMinutes;
+    }
+
+    /**
+     * Lecturas con timestamp >= from, ordenadas por tiempo. Devuelve null si algún sensor ya sobrescribió
+     * lecturas dentro de la ventana (capacidad insuficiente) y por tanto no se puede responder completa.
+     */
+    public List<SensorRecordDTO> window(Instant from) {
+        long fromNanos = EpochNanos.of(from);
+        List<SensorRecordDTO> out = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Integer, Ring> e : rings.entrySet()) {
+                Ring ring = e.getValue();
+                if (ring.size == ring.ts.length && ring.ts[ring.head] > fromNanos) return null;
+                ring.collect(e.getKey(), fromNanos, out);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.sort(BY_TIME);
+        return out;
+    }
+
+    /** Identificador de esta instancia del buffer; un cursor de otra instancia no es válido. */
+    public String epoch() { return epoch; }
+
+    public long lastSeq() {
+        lock.readLock().lock();
+        try {
+            return seq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Igual que {@link #window(Instant)} pero junto con la secuencia actual, leídas de forma atómica, para
+     * continuar luego con {@link #since(long)} sin huecos ni duplicados. Null si el buffer no lo cubre.
+     */
+    public Slice snapshot(int minutes) {
+        if (!covers(minutes)) return null;
+        lock.readLock().lock();
+        try {
+            List<SensorRecordDTO> out = window(Instant.now().minusSeconds(minutes * 60L));
+            return out == null ? null : new Slice(out, seq);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lecturas con secuencia mayor que {@code cursor}, ordenadas por tiempo. Null si el cursor es de antes
+     * de la precarga, si alguna de esas lecturas ya se descartó o si el buffer no está al día (el cliente debe
+     * pedir un snapshot).
+     */
+    public Slice since(long cursor) {
+        if (!isLive() || cursor < 0) return null;
+        List<SensorRecordDTO> out = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (cursor > seq || cursor < warmSeq || droppedSeq > cursor) return null;
+            if (cursor == seq) return new Slice(List.of(), seq);
+            for (Map.Entry<Integer, Ring> e : rings.entrySet()) {
+                Ring ring = e.getValue();
+                if (ring.evictedSeq > cursor) return null;
+                ring.collectSince(e.getKey(), cursor, out);
+            }
+            out.sort(BY_TIME);
+            return new Slice(out, seq);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Descarta lo que salió de la retención y olvida los sensores que se quedaron sin lecturas.
+     */
+    @Scheduled(fixedDelayString = "${recent.buffer.sweep-ms:60000}")
+    public void expire() {
+        long cutoff = cutoffNanos();
+        lock.writeLock().lock();
+        try {
+            Iterator<Ring> it = rings.values().iterator();
+            while (it.hasNext()) {
+                Ring ring = it.next();
+                ring.expire(cutoff);
+                if (ring.size == 0) {
+                    droppedSeq = Math.max(droppedSeq, ring.evictedSeq);
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void append(List<SensorRecordDTO> records) {
+        long cutoff = cutoffNanos();
+        lock.writeLock().lock();
+        try {
+            for (SensorRecordDTO r : records) {
+                // Lo que ya salió de la retención (p.ej. un lote atrasado) no entra
+                if (r.sensorId() == null || r.timestamp() == null || EpochNanos.of(r.timestamp()) < cutoff) continue;
+                Ring ring = rings.computeIfAbsent(r.sensorId(), k -> new Ring(capacityPerSensor));
+                ring.expire(cutoff);
+                ring.add(r, ++seq);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long cutoffNanos() {
+        return EpochNanos.of(Instant.now().minusSeconds(retentionMinutes * 60L));
+    }
+
+    private static Double val(double v) {
+        return Double.isNaN(v) ? null : v;
+    }
+
+    private static double raw(Double v) {
+        return v == null ? Double.NaN : v;
+    }
+
+    private static final class Ring {
+        final long[] ts;
+        final long[] seqs;
+        final double[] ph, turbidity, conductivity, flowRate;
+        // head = posición de la lectura más antigua
+        int head = 0;
+        int size = 0;
+        // mayor secuencia sobrescrita o descartada por tiempo
+        long evictedSeq = 0;
+
+        Ring(int capacity) {
+            ts = new long[capacity];
+            seqs = new long[capacity];
+            ph = new double[capacity];
+            turbidity = new double[capacity];
+            conductivity = new double[capacity];
+            flowRate = new double[capacity];
+        }
+
+        void add(SensorRecordDTO r, long seq) {
+            int idx;
+            if (size < ts.length) {
+                idx = (head + size) % ts.length;
+                size++;
+            } else {
+                idx = head;
+                head = (head + 1) % ts.length;
+                evictedSeq = Math.max(evictedSeq, seqs[idx]);
+            }
+            ts[idx] = EpochNanos.of(r.timestamp());
+            seqs[idx] = seq;
+            ph[idx] = raw(r.ph());
+            turbidity[idx] = raw(r.turbidity());
+            conductivity[idx] = raw(r.conductivity());
+            flowRate[idx] = raw(r.flowRate());
+        }
+
+        // Las lecturas llegan casi en orden de tiempo: basta con recortar desde la más antigua
+        void expire(long cutoffNanos) {
+            while (size > 0 && ts[head] < cutoffNanos) {
+                evictedSeq = Math.max(evictedSeq, seqs[head]);
+                head = (head + 1) % ts.length;
+                size--;
+            }
+        }
+
+        void collect(int sensorId, long fromNanos, List<SensorRecordDTO> out) {
+            for (int i = 0; i < size; i++) {
+                int idx = (head + i) % ts.length;
+                if (ts[idx] < fromNanos) continue;
+                out.add(toDto(sensorId, idx));
+            }
+        }
+
+        // Las secuencias crecen en orden de inserción: se recorre desde la más reciente hacia atrás
+        void collectSince(int sensorId, long cursor, List<SensorRecordDTO> out) {
+            for (int i = size - 1; i >= 0; i--) {
+                int idx = (head + i) % ts.length;
+                if (seqs[idx] <= cursor) break;
+                out.add(toDto(sensorId, idx));
+            }
+        }
+
+        SensorRecordDTO toDto(int sensorId, int idx) {
+            return new SensorRecordDTO(EpochNanos.toInstant(ts[idx]), sensorId,
+                    val(ph[idx]), val(turbidity[idx]), val(conductivity[idx]), val(flowRate[idx]));
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Detector local de anomalías con línea base estacional por sensor: para cada hora de la semana (168, hora local
+ * de Bogotá) y métrica mantiene media y varianza con EWMA, y compara cada lectura con la línea base de su hora.
+ * La línea base aprende una vez por ocurrencia de la hora: las lecturas de la hora en curso se acumulan y, al
+ * cambiar de hora, entran como un solo paso de peso anomaly.alpha (por semana, no por lectura), así que la memoria
+ * es de ~1/alpha semanas sea cual sea la frecuencia de muestreo.
+ * Dos detectores por sensor y métrica:
+ * <ul>
+ *   <li>z-score: |z| &ge; anomaly.z-threshold durante anomaly.z-consecutive lecturas seguidas (picos).</li>
+ *   <li>CUSUM bilateral sobre z (holgura anomaly.cusum-k, umbral anomaly.cusum-h): desviaciones pequeñas pero
+ *       sostenidas, p.ej. un goteo a las 3 de la madrugada.</li>
+ * </ul>
+ * Una hora de la semana no se evalúa hasta haber aprendido anomaly.min-weeks ocurrencias suyas (cada una con al
+ * menos anomaly.min-hour-samples lecturas); la severidad es HIGH si la lectura que dispara está a anomaly.z-high
+ * desviaciones o más. La media de la hora entra en la línea base recortada a ±anomaly.clip-z desviaciones: una
+ * fuga que ocupe la hora entera la mueve como mucho alpha·clip-z desviaciones por semana.
+ *
+ * Coste O(1) por lectura y memoria fija por sensor (168 x 4 medias, varianzas y conteos, ~13 KB), en arreglos
+ * primitivos como {@link SensorRuleEngine}. Las alertas se crean o actualizan con {@link SensorAlertService} en
+ * un hilo propio; si el servicio no la aplica (el sensor ya tiene una alerta activa más grave) el aviso no cuenta
+ * para anomaly.cooldown-minutes.
+ * La línea base vive en memoria: al arrancar se puede reconstruir desde Influx (anomaly.bootstrap-days).
+ */
+@Component
+@Order(250)
+public class SeasonalAnomalyDetector implements SensorIngestListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SeasonalAnomalyDetector.class);
+
+    private static final ZoneId ZONE = ZoneId.of("America/Bogota");
+    private static final int METRICS = 4, FLOW = 3, HOURS = 168;
+    private static final String[] METRIC_LABELS = {"pH", "turbidez", "conductividad", "flujo"};
+    private static final String[] DAYS = {"lun", "mar", "mié", "jue", "vie", "sáb", "dom"};
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final SensorAlertService alertService;
+    private final SensorDataService sensorDataService;
+    private final Counter zRaised;
+    private final Counter cusumRaised;
+
+    @Value("${anomaly.enabled:true}")
+    private boolean enabled;
+
+    @Value("${anomaly.alpha:0.1}")
+    private double alpha;
+
+    @Value("${anomaly.min-weeks:2}")
+    private int minWeeks;
+
+    @Value("${anomaly.min-hour-samples:10}")
+    private int minHourSamples;
+
+    @Value("${anomaly.z-threshold:4.0}")
+    private double zThreshold;
+
+    @Value("${anomaly.z-consecutive:3}")
+    private int zConsecutive;
+
+    @Value("${anomaly.z-high:8.0}")
+    private double zHigh;
+
+    @Value("${anomaly.cusum-k:0.5}")
+    private double cusumK;
+
+    @Value("${anomaly.cusum-h:10.0}")
+    private double cusumH;
+
+    @Value("${anomaly.clip-z:3.0}")
+    private double clipZ;
+
+    // Desviación mínima por métrica: evita z enormes en horas donde el valor casi no varía
+    @Value("${anomaly.std-floor.ph:0.05}")
+    private double phFloor;
+
+    @Value("${anomaly.std-floor.turbidity:0.05}")
+    private double turbidityFloor;
+
+    @Value("${anomaly.std-floor.conductivity:5}")
+    private double conductivityFloor;
+
+    @Value("${anomaly.std-floor.flow:0.02}")
+    private double flowFloor;
+
+    @Value("${anomaly.cooldown-minutes:30}")
+    private long cooldownMinutes;
+
+    @Value("${anomaly.bootstrap-days:0}")
+    private int bootstrapDays;
+
+    @Value("${rules.flow-solution:cerrar llave de paso y revisar posible fuga}")
+    private String flowSolution;
+
+    private double[] floorSq;
+    private long cooldownMs;
+    private ExecutorService raiser;
+    private final ZoneRules zoneRules = ZONE.getRules();
+
+    // Línea base: [slot][hora de la semana][métrica]; detectores: [slot][métrica]. Protegido por el monitor
+    private final LongIntHashMap slots = new LongIntHashMap();
+    private double[] mean = new double[16 * HOURS * METRICS];
+    private double[] var = new double[mean.length];
+    // Ocurrencias de la hora de la semana ya aprendidas
+    private int[] weeks = new int[mean.length];
+    private final HourAccumulator live = new HourAccumulator();
+    private double[] cusumPos = new double[16 * METRICS];
+    private double[] cusumNeg = new double[cusumPos.length];
+    private long[] posSince = new long[cusumPos.length];
+    private long[] negSince = new long[cusumPos.length];
+    private int[] zRun = new int[cusumPos.length];
+    private long[] lastRaised = new long[cusumPos.length];
+
+    // detector = índice [slot][métrica]; previousRaised = lastRaised antes de este aviso
+    private record Anomaly(int sensorId, int metric, String severity, String description, boolean byZ,
+                           int detector, long raisedAt, long previousRaised) { }
+
+    public SeasonalAnomalyDetector(SensorAlertService alertService, SensorDataService sensorDataService,
+                                   MeterRegistry registry) {
+        this.alertService = alertService;
+        this.sensorDataService = sensorDataService;
+        this.zRaised = Counter.builder("anomaly.alerts.raised").tag("detector", "zscore").register(registry);
+        this.cusumRaised = Counter.builder("anomaly.alerts.raised").tag("detector", "cusum").register(registry);
+        Gauge.builder("anomaly.sensors", slots, LongIntHashMap::size).register(registry);
+    }
+
+    @PostConstruct
+    void start() {
+        floorSq = new double[]{phFloor * phFloor, turbidityFloor * turbidityFloor,
+                conductivityFloor * conductivityFloor, flowFloor * flowFloor};
+        cooldownMs = cooldownMinutes * 60_000L;
+        Arrays.fill(posSince, NEVER);
+        Arrays.fill(negSince, NEVER);
+        Arrays.fill(lastRaised, NEVER);
+        raiser = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "seasonal-anomaly-alerts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void stop() {
+        raiser.shutdown();
+    }
+
+    @Override
+    public void onReadings(List<SensorRecordDTO> records) {
+        if (!enabled) return;
+        List<Anomaly> found = evaluate(records);
+        for (Anomaly a : found) raiser.execute(() -> raise(a));
+    }
+
+    // Sin reconstrucción desde Influx, las lecturas de la precarga al menos empiezan la línea base
+    @Override
+    public void onWarmUp(List<SensorRecordDTO> records) {
+        if (!enabled || bootstrapDays > 0) return;
+        List<SensorRecordDTO> sorted = new ArrayList<>(records.size());
+        for (SensorRecordDTO r : records) if (r.timestamp() != null) sorted.add(r);
+        sorted.sort(Comparator.comparing(SensorRecordDTO::timestamp));
+        synchronized (this) {
+            for (SensorRecordDTO r : sorted) {
+                Integer sid = r.sensorId();
+                if (sid == null || sid < 0 || sid > 1_000_000_000) continue;
+                int slot = slot(sid);
+                if (!live.advance(slot, r.timestamp().toEpochMilli())) continue;
+                for (int m = 0; m < METRICS; m++) live.add(slot, m, value(r, m));
+            }
+        }
+    }
+
+    // Reconstruye la línea base con los últimos anomaly.bootstrap-days de Influx, un día por consulta para
+    // acotar la memoria, en un hilo aparte para no retrasar el arranque
+    @EventListener(ApplicationReadyEvent.class)
+    public void bootstrap() {
+        if (!enabled || bootstrapDays <= 0) return;
+        Thread t = new Thread(() -> {
+            Instant end = Instant.now();
+            long rows = 0;
+            // Acumulador propio: la ingesta en vivo sigue con el suyo mientras tanto. La última hora, incompleta,
+            // no se vuelca (la termina de acumular la ingesta)
+            HourAccumulator history = new HourAccumulator();
+            try {
+                for (int d = bootstrapDays; d > 0; d--) {
+                    Instant from = end.minus(d, ChronoUnit.DAYS);
+                    SensorSeries series = sensorDataService.getRawHistorySeries(from, from.plus(1, ChronoUnit.DAYS).minusNanos(1));
+                    train(series, history);
+                    rows += series.size();
+                }
+                log.info("Línea base estacional reconstruida con {} lecturas de {} días", rows, bootstrapDays);
+            } catch (Exception e) {
+                log.warn("No se pudo reconstruir la línea base estacional desde Influx: {}", e.getMessage());
+            }
+        }, "seasonal-anomaly-bootstrap");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private synchronized void train(SensorSeries series, HourAccumulator acc) {
+        for (int i = 0; i < series.size(); i++) {
+            int sid = series.sensorId(i);
+            if (sid == SensorSeries.NO_SENSOR || sid < 0 || sid > 1_000_000_000) continue;
+            int slot = slot(sid);
+            if (!acc.advance(slot, Math.floorDiv(series.timestampNanos(i), 1_000_000L))) continue;
+            for (int m = 0; m < METRICS; m++) acc.add(slot, m, valid(m, series.value(i, m)));
+        }
+    }
+
+    private synchronized List<Anomaly> evaluate(List<SensorRecordDTO> records) {
+        List<Anomaly> out = null;
+        for (SensorRecordDTO r : records) {
+            Integer sid = r.sensorId();
+            if (sid == null || sid < 0 || sid > 1_000_000_000 || r.timestamp() == null) continue;
+            long ts = r.timestamp().toEpochMilli();
+            int slot = slot(sid);
+            int how = hourOfWeek(ts);
+            int base = (slot * HOURS + how) * METRICS;
+            boolean learn = live.advance(slot, ts);
+            for (int m = 0; m < METRICS; m++) {
+                double v = value(r, m);
+                if (Double.isNaN(v)) continue;
+                int k = base + m;
+                if (weeks[k] >= minWeeks) {
+                    Anomaly a = score(sid, slot * METRICS + m, m, k, how, v, ts);
+                    if (a != null) {
+                        if (out == null) out = new ArrayList<>();
+                        out.add(a);
+                    }
+                }
+                if (learn) live.add(slot, m, v);
+            }
+        }
+        return out == null ? List.of() : out;
+    }
+
+    // z respecto a la línea base de la hora, y actualización de ambos detectores del sensor y métrica d
+    private Anomaly score(int sid, int d, int m, int k, int how, double v, long ts) {
+        double sd = Math.sqrt(var[k] + floorSq[m]);
+        double z = (v - mean[k]) / sd;
+
+        zRun[d] = Math.abs(z) >= zThreshold ? zRun[d] + 1 : 0;
+        double zc = Math.max(-clipZ, Math.min(clipZ, z));
+        if (cusumPos[d] == 0 && zc > cusumK) posSince[d] = ts;
+        if (cusumNeg[d] == 0 && -zc > cusumK) negSince[d] = ts;
+        cusumPos[d] = Math.max(0, cusumPos[d] + zc - cusumK);
+        cusumNeg[d] = Math.max(0, cusumNeg[d] - zc - cusumK);
+
+        String description = null;
+        boolean byZ = false;
+        double zAbs = Math.abs(z);
+        if (zRun[d] >= Math.max(1, zConsecutive)) {
+            byZ = true;
+            description = String.format(Locale.ROOT, "%s %.2f inusual para %s (habitual %.2f ± %.2f, z=%.1f) a las %s",
+                    METRIC_LABELS[m], v, hourLabel(how), mean[k], sd, z, iso(ts));
+        } else if (cusumPos[d] > cusumH || cusumNeg[d] > cusumH) {
+            boolean up = cusumPos[d] > cusumH;
+            description = String.format(Locale.ROOT,
+                    "%s %s de lo habitual para %s de forma sostenida entre %s y %s (habitual %.2f ± %.2f, última %.2f)",
+                    METRIC_LABELS[m], up ? "por encima" : "por debajo", hourLabel(how),
+                    iso(up ? posSince[d] : negSince[d]), iso(ts), mean[k], sd, v);
+        }
+        if (description == null) return null;
+
+        // Rearme de los detectores; el aviso se repite como mucho una vez por anomaly.cooldown-minutes
+        zRun[d] = 0;
+        cusumPos[d] = 0;
+        cusumNeg[d] = 0;
+        if (lastRaised[d] != NEVER && ts - lastRaised[d] < cooldownMs) return null;
+        long previous = lastRaised[d];
+        lastRaised[d] = ts;
+        return new Anomaly(sid, m, zAbs >= zHigh ? "HIGH" : "MEDIUM", description, byZ, d, ts, previous);
+    }
+
+    /**
+     * Una ocurrencia de la hora (media {@code mh} y varianza {@code vh} de sus lecturas) entra en la línea base
+     * como mezcla con peso a = max(alpha, 1/semanas): las primeras semanas se promedian por igual. Con la línea
+     * base ya en uso la media se recorta a ±clip-z desviaciones y la varianza a clip-z² varianzas.
+     */
+    private void learn(int k, int m, double mh, double vh) {
+        int w = weeks[k];
+        if (w >= minWeeks) {
+            double sdSq = var[k] + floorSq[m];
+            double sd = Math.sqrt(sdSq);
+            mh = Math.max(mean[k] - clipZ * sd, Math.min(mean[k] + clipZ * sd, mh));
+            vh = Math.min(vh, clipZ * clipZ * sdSq);
+        }
+        if (w < Integer.MAX_VALUE) weeks[k] = ++w;
+        double a = Math.max(alpha, 1.0 / w);
+        double d = mh - mean[k];
+        mean[k] += a * d;
+        var[k] = (1 - a) * (var[k] + a * d * d) + a * vh;
+    }
+
+    /**
+     * Media y varianza (Welford) de la hora en curso por sensor y métrica. Al llegar una lectura de otra hora se
+     * vuelca la anterior en la línea base de su hora de la semana; las lecturas de horas ya cerradas no aprenden.
+     * Protegido por el monitor del detector.
+     */
+    private final class HourAccumulator {
+        private long[] hour = new long[0];
+        private int[] n = new int[0];
+        private double[] hMean = new double[0];
+        private double[] hM2 = new double[0];
+
+        /** Abre la hora de {@code ts} para el slot; false si es de una hora anterior a la abierta. */
+        boolean advance(int slot, long ts) {
+            if (slot >= hour.length) grow(slot);
+            long h = Math.floorDiv(ts, 3_600_000L);
+            if (h == hour[slot]) return true;
+            if (h < hour[slot]) return false;
+            if (hour[slot] != NEVER) close(slot);
+            hour[slot] = h;
+            return true;
+        }
+
+        void add(int slot, int m, double v) {
+            if (Double.isNaN(v)) return;
+            int i = slot * METRICS + m;
+            int c = ++n[i];
+            double d = v - hMean[i];
+            hMean[i] += d / c;
+            hM2[i] += d * (v - hMean[i]);
+        }
+
+        private void close(int slot) {
+            int base = baseIndex(slot, hour[slot] * 3_600_000L);
+            for (int m = 0; m < METRICS; m++) {
+                int i = slot * METRICS + m;
+                if (n[i] >= Math.max(1, minHourSamples)) learn(base + m, m, hMean[i], hM2[i] / n[i]);
+                n[i] = 0;
+                hMean[i] = 0;
+                hM2[i] = 0;
+            }
+        }
+
+        private void grow(int slot) {
+            int old = hour.length;
+            int cap = Math.max(16, Integer.highestOneBit(slot) * 2);
+            hour = Arrays.copyOf(hour, cap);
+            Arrays.fill(hour, old, cap, NEVER);
+            n = Arrays.copyOf(n, cap * METRICS);
+            hMean = Arrays.copyOf(hMean, cap * METRICS);
+            hM2 = Arrays.copyOf(hM2, cap * METRICS);
+        }
+    }
+
+    private void raise(Anomaly a) {
+        boolean applied = false;
+        try {
+            applied = alertService.createOrUpdateAlertForSensor(SensorAlertEntity.builder()
+                    .sensorId(a.sensorId())
+                    .severity(a.severity())
+                    .description(a.description())
+                    .solution(a.metric() == FLOW ? flowSolution : null)
+                    .active(true)
+                    .build()).isPresent();
+        } catch (Exception e) {
+            log.warn("No se pudo registrar la anomalía estacional del sensor {}: {}", a.sensorId(), e.getMessage());
+        }
+        if (applied) {
+            (a.byZ() ? zRaised : cusumRaised).increment();
+        } else {
+            unmark(a);
+        }
+    }
+
+    // Aviso no aplicado: no cuenta para el cooldown (salvo que ya haya otro posterior)
+    private synchronized void unmark(Anomaly a) {
+        if (a.detector() < lastRaised.length && lastRaised[a.detector()] == a.raisedAt()) {
+            lastRaised[a.detector()] = a.previousRaised();
+        }
+    }
+
+    private int baseIndex(int slot, long ts) {
+        return (slot * HOURS + hourOfWeek(ts)) * METRICS;
+    }
+
+    // 0 = lunes 00:00 hora local
+    private int hourOfWeek(long ts) {
+        long local = Math.floorDiv(ts, 1000L) + zoneRules.getOffset(Instant.ofEpochMilli(ts)).getTotalSeconds();
+        // El 1970-01-01 fue jueves: +72 h para contar desde el lunes
+        return (int) Math.floorMod(Math.floorDiv(local, 3600L) + 72, (long) HOURS);
+    }
+
+    private static String hourLabel(int how) {
+        return String.format(Locale.ROOT, "%s %02d:00", DAYS[how / 24], how % 24);
+    }
+
+    private static String iso(long ts) {
+        return Instant.ofEpochMilli(ts).truncatedTo(ChronoUnit.SECONDS).toString();
+    }
+
+    private int slot(int sid) {
+        int slot = slots.get(sid);
+        if (slot != LongIntHashMap.MISSING) return slot;
+        slot = slots.size();
+        if (slot == cusumPos.length / METRICS) grow();
+        slots.put(sid, slot);
+        return slot;
+    }
+
+    private void grow() {
+        int cap = cusumPos.length / METRICS * 2;
+        mean = Arrays.copyOf(mean, cap * HOURS * METRICS);
+        var = Arrays.copyOf(var, mean.length);
+        weeks = Arrays.copyOf(weeks, mean.length);
+        int old = cusumPos.length;
+        cusumPos = Arrays.copyOf(cusumPos, cap * METRICS);
+        cusumNeg = Arrays.copyOf(cusumNeg, cusumPos.length);
+        zRun = Arrays.copyOf(zRun, cusumPos.length);
+        posSince = Arrays.copyOf(posSince, cusumPos.length);
+        negSince = Arrays.copyOf(negSince, cusumPos.length);
+        lastRaised = Arrays.copyOf(lastRaised, cusumPos.length);
+        Arrays.fill(posSince, old, posSince.length, NEVER);
+        Arrays.fill(negSince, old, negSince.length, NEVER);
+        Arrays.fill(lastRaised, old, lastRaised.length, NEVER);
+    }
+
+    private static double value(SensorRecordDTO r, int metric) {
+        Double v = switch (metric) {
+            case 0 -> r.ph();
+            case 1 -> r.turbidity();
+            case 2 -> r.conductivity();
+            default -> r.flowRate();
+        };
+        return v == null ? Double.NaN : valid(metric, v);
+    }
+
+    // Mismo criterio que el motor de reglas: pH <= 0, flujo negativo o valores no finitos no cuentan
+    private static double valid(int metric, double v) {
+        if (!Double.isFinite(v)) return Double.NaN;
+        if (metric == 0 && v <= 0) return Double.NaN;
+        if (metric == FLOW && v < 0) return Double.NaN;
+        return v;
+    }
+}
@@ -1,121 +1,244 @@
 package com.hydro.watertap.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hydro.watertap.model.entity.SensorAlertEntity;
 import com.hydro.watertap.repository.SensorAlertRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.Sinks;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
+/**
+ * Alertas de sensores. Las activas se sirven desde {@link ActiveAlertIndex} (reconstruido desde BD al arrancar);
+ * las altas se guardan al momento y los cambios de estado se escriben de forma diferida con
+ * {@link AlertWriteBehind}. Las entidades del índice no se modifican: cada cambio publica una copia nueva.
+ */
 @Service
-@Transactional(readOnly = true)
 public class SensorAlertService {
 
+    private static final Logger log = LoggerFactory.getLogger(SensorAlertService.class);
+
     private final SensorAlertRepository alertRepository;
-    private final Sinks.Many<SensorAlertEntity> alertSink;
+    private final ObjectMapper objectMapper;
+    // Cada alerta se serializa una vez al emitirse y se reparte a los buffers acotados de cada suscriptor
+    private final AlertFanout fanout;
+    private final ActiveAlertIndex activeIndex;
+    private final AlertWriteBehind writeBehind;
+    private final TransactionTemplate tx;
 
     @Value("${alerts.auto-resolve-minutes:0}")
     private int autoResolveMinutes;
 
-    public SensorAlertService(SensorAlertRepository alertRepository) {
+    @Value("${alerts.auto-resolve-chunk-size:500}")
+    private int autoResolveChunkSize;
+
+    public SensorAlertService(SensorAlertRepository alertRepository, ObjectMapper objectMapper, AlertFanout fanout,
+                              ActiveAlertIndex activeIndex, AlertWriteBehind writeBehind, TransactionTemplate tx) {
         this.alertRepository = alertRepository;
-        this.alertSink = Sinks.many().multicast().onBackpressureBuffer();
+        this.objectMapper = objectMapper;
+        this.fanout = fanout;
+        this.activeIndex = activeIndex;
+        this.writeBehind = writeBehind;
+        this.tx = tx;
+    }
+
+    @PostConstruct
+    void loadActiveAlerts() {
+        activeIndex.load(alertRepository.findByActiveTrue());
     }
 
-    // Crear y emitir alerta
-    @Transactional
-    public SensorAlertEntity createAlert(SensorAlertEntity alert) {
+    // Crear y emitir alerta (se guarda al momento para obtener el id)
+    public synchronized SensorAlertEntity createAlert(SensorAlertEntity alert) {
         alert.setActive(true);
-        SensorAlertEntity saved = alertRepository.save(alert);
-        alertSink.tryEmitNext(saved);
+        SensorAlertEntity saved = copy(alertRepository.save(alert));
+        activeIndex.put(saved);
+        emit(saved);
         return saved;
     }
 
     // Crear alerta solo si no existe activa con mismo sensorId+description+severity
-    @Transactional
-    public Optional<SensorAlertEntity> createAlertIfNotExists(SensorAlertEntity alert) {
-        return alertRepository
-                .findFirstBySensorIdAndDescriptionAndSeverityAndActiveTrue(alert.getSensorId(), alert.getDescription(), alert.getSeverity())
+    public synchronized Optional<SensorAlertEntity> createAlertIfNotExists(SensorAlertEntity alert) {
+        return activeIndex.forSensor(alert.getSensorId()).stream()
+                .filter(a -> Objects.equals(a.getDescription(), alert.getDescription())
+                        && Objects.equals(a.getSeverity(), alert.getSeverity()))
+                .findFirst()
                 .or(() -> Optional.of(createAlert(alert)));
     }
 
-    // Crear o actualizar alerta por sensor: si existe activa para el sensor, actualizar la descripción/solución; si no, crearla
-    @Transactional
-    public SensorAlertEntity createOrUpdateAlertForSensor(SensorAlertEntity incoming) {
+    /**
+     * Crear o actualizar la alerta activa del sensor. Es la única política para todas las fuentes (reglas, IA,
+     * detectores): si el sensor ya tiene una alerta activa de mayor severidad no se toca y se devuelve vacío;
+     * con igual o mayor severidad se reemplazan descripción y severidad, y la solución solo si la nueva trae una
+     * (un hallazgo de pH no borra el "cerrar llave" de una fuga activa); si no hay, se crea.
+     */
+    public synchronized Optional<SensorAlertEntity> createOrUpdateAlertForSensor(SensorAlertEntity incoming) {
         Integer sid = incoming.getSensorId();
         if (sid != null) {
-            List<SensorAlertEntity> existing = alertRepository.findBySensorIdAndActiveTrue(sid);
+            List<SensorAlertEntity> existing = activeIndex.forSensor(sid);
             if (!existing.isEmpty()) {
-                SensorAlertEntity current = existing.get(0);
+                int rank = severityRank(incoming.getSeverity());
+                for (SensorAlertEntity a : existing) {
+                    if (severityRank(a.getSeverity()) > rank) return Optional.empty();
+                }
+                SensorAlertEntity current = copy(existing.get(0));
                 current.setDescription(incoming.getDescription());
                 current.setSeverity(incoming.getSeverity());
-                current.setSolution(incoming.getSolution());
-                SensorAlertEntity saved = alertRepository.save(current);
-                alertSink.tryEmitNext(saved);
-                return saved;
+                if (incoming.getSolution() != null) current.setSolution(incoming.getSolution());
+                return Optional.of(update(current));
             }
         }
-        return createAlert(incoming);
+        return Optional.of(createAlert(incoming));
+    }
+
+    /**
+     * Reemplaza descripción (y solución, si trae) de la alerta {@code id} solo si sigue activa y tal como la dejó
+     * quien la levantó ({@code severity} y {@code expectedDescription}). Nunca crea: si se resolvió o alguien la
+     * actualizó entretanto devuelve vacío. Para redacciones diferidas, como las de {@link AiAnomalyService}.
+     */
+    public synchronized Optional<SensorAlertEntity> updateIfUnchanged(Long id, String severity, String expectedDescription,
+                                                                      String description, String solution) {
+        if (id == null) return Optional.empty();
+        return activeIndex.find(id)
+                .filter(a -> Objects.equals(a.getSeverity(), severity)
+                        && Objects.equals(a.getDescription(), expectedDescription))
+                .map(a -> {
+                    SensorAlertEntity current = copy(a);
+                    current.setDescription(description);
+                    if (solution != null) current.setSolution(solution);
+                    return update(current);
+                });
     }
 
-    // Scheduler para auto-resolver alertas antiguas si se configura alerts.auto-resolve-minutes > 0
+    // HIGH > MEDIUM > resto (LOW, desconocida o sin severidad)
+    static int severityRank(String severity) {
+        if (severity == null) return 1;
+        return switch (severity) {
+            case "HIGH" -> 3;
+            case "MEDIUM" -> 2;
+            default -> 1;
+        };
+    }
+
+    // Scheduler para auto-resolver alertas antiguas si se configura alerts.auto-resolve-minutes > 0.
+    // Se resuelve en BD por tramos de alerts.auto-resolve-chunk-size, cada uno en su propia transacción corta;
+    // si falla a mitad, lo ya resuelto queda hecho y el resto se retoma en la siguiente pasada
     @Scheduled(fixedRateString = "${alerts.auto-resolve-check-ms:60000}", initialDelay = 30000)
-    @Transactional
     public void autoResolveOldAlerts() {
         if (autoResolveMinutes <= 0) return; // desactivado
         LocalDateTime threshold = LocalDateTime.now().minusMinutes(autoResolveMinutes);
-        List<SensorAlertEntity> oldActives = alertRepository.findByActiveTrueAndCreatedAtBefore(threshold);
-        for (SensorAlertEntity a : oldActives) {
-            a.setActive(false);
-            SensorAlertEntity saved = alertRepository.save(a);
-            alertSink.tryEmitNext(saved);
-        }
+        int chunk = Math.max(1, autoResolveChunkSize);
+        int total = 0;
+        List<Long> ids;
+        do {
+            // Con la escritura diferida detenida: un lote pendiente no debe reactivar lo recién resuelto
+            ids = writeBehind.exclusive(() -> {
+                List<Long> resolved = tx.execute(status -> alertRepository.resolveExpiredChunk(threshold, chunk));
+                if (resolved != null && !resolved.isEmpty()) applyResolved(resolved);
+                return resolved;
+            });
+            total += ids == null ? 0 : ids.size();
+        } while (ids != null && ids.size() == chunk);
+        if (total > 0) log.info("Alertas auto-resueltas: {}", total);
     }
 
     // Desactivar alerta y emitir evento
-    @Transactional
-    public Optional<SensorAlertEntity> deactivateAlert(Long id) {
-        return alertRepository.findById(id).map(alert -> {
+    public synchronized Optional<SensorAlertEntity> deactivateAlert(Long id) {
+        return findCurrent(id).map(alert -> {
             alert.setActive(false);
-            SensorAlertEntity saved = alertRepository.save(alert);
-            alertSink.tryEmitNext(saved);
-            return saved;
+            return update(alert);
         });
     }
 
     // Activar alerta y emitir evento
-    @Transactional
-    public Optional<SensorAlertEntity> activateAlert(Long id) {
-        return alertRepository.findById(id).map(alert -> {
+    public synchronized Optional<SensorAlertEntity> activateAlert(Long id) {
+        return findCurrent(id).map(alert -> {
             alert.setActive(true);
-            SensorAlertEntity saved = alertRepository.save(alert);
-            alertSink.tryEmitNext(saved);
-            return saved;
+            return update(alert);
         });
     }
 
     // Eliminar alerta
-    @Transactional
-    public void deleteAlert(Long id) {
+    public synchronized void deleteAlert(Long id) {
+        writeBehind.discard(id);
+        activeIndex.remove(id);
         alertRepository.deleteById(id);
     }
 
     public void removeAlert(Long id) { deleteAlert(id); }
 
-    // Obtener alertas activas desde BD
-    public List<SensorAlertEntity> getActiveAlerts() { return alertRepository.findByActiveTrue(); }
+    // Alertas activas (desde memoria)
+    public List<SensorAlertEntity> getActiveAlerts() { return activeIndex.all(); }
 
-    // Flujo reactivo: snapshot + stream
-    public Flux<SensorAlertEntity> getAlertStreamWithSnapshot() {
-        return Flux.defer(() -> Flux.concat(
-                Flux.fromIterable(getActiveAlerts()),
-                alertSink.asFlux()
-        ));
+    // Flujo reactivo: snapshot (desde memoria) + stream, como JSON, solo de los sensores del filtro
+    public Flux<String> getAlertStreamWithSnapshot(SensorFilter filter) {
+        return fanout.subscribe(filter,
+                Flux.defer(() -> Flux.fromIterable(getActiveAlerts()))
+                        .filter(a -> filter.matches(a.getSensorId()))
+                        .map(this::toJson));
+    }
+
+    // Emisión serializada para conservar el orden de las alertas en cada suscriptor
+    private synchronized void emit(SensorAlertEntity alert) {
+        fanout.publish(alert.getSensorId(), toJson(alert));
+    }
+
+    // Copia de trabajo de la alerta: primero lo pendiente de escribir, luego el índice y por último la BD
+    private Optional<SensorAlertEntity> findCurrent(Long id) {
+        return writeBehind.pending(id)
+                .or(() -> activeIndex.find(id))
+                .or(() -> alertRepository.findById(id))
+                .map(SensorAlertService::copy);
+    }
+
+    // Refleja en memoria las alertas ya desactivadas en BD y las emite como un solo evento
+    private synchronized void applyResolved(List<Long> ids) {
+        LocalDateTime now = LocalDateTime.now();
+        List<AlertFanout.Item> batch = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Optional<SensorAlertEntity> pending = writeBehind.pending(id);
+            Optional<SensorAlertEntity> current = pending.or(() -> activeIndex.find(id));
+            if (current.isEmpty()) continue;
+            SensorAlertEntity resolved = copy(current.get());
+            resolved.setActive(false);
+            resolved.setUpdatedAt(now);
+            activeIndex.put(resolved);
+            // Lo pendiente se sobrescribiría sobre la fila resuelta: se reemplaza por el estado resuelto
+            if (pending.isPresent()) writeBehind.enqueue(resolved);
+            batch.add(new AlertFanout.Item(resolved.getSensorId(), toJson(resolved)));
+        }
+        if (!batch.isEmpty()) fanout.publishBatch(batch);
+    }
+
+    // Publica el nuevo estado en memoria y en el stream; la escritura en BD queda diferida
+    private SensorAlertEntity update(SensorAlertEntity alert) {
+        alert.setUpdatedAt(LocalDateTime.now());
+        activeIndex.put(alert);
+        writeBehind.enqueue(alert);
+        emit(alert);
+        return alert;
+    }
+
+    private static SensorAlertEntity copy(SensorAlertEntity a) {
+        return new SensorAlertEntity(a.getId(), a.getSensorId(), a.getDescription(), a.getSeverity(), a.getActive(),
+                a.getSolution(), a.getCreatedAt(), a.getUpdatedAt());
+    }
+
+    private String toJson(SensorAlertEntity alert) {
+        try {
+            return objectMapper.writeValueAsString(alert);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("No se pudo serializar la alerta " + alert.getId(), e);
+        }
     }
 }
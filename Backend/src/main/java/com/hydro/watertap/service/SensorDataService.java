@@ -1,7 +1,6 @@
 package com.hydro.watertap.service;
 
 import com.hydro.watertap.config.InfluxProperties;
-import com.hydro.watertap.model.dto.SensorRawRecord;
 import com.hydro.watertap.model.dto.SensorRecordDTO;
 import com.hydro.watertap.model.entity.InfluxExclusionRange;
 import com.hydro.watertap.repository.InfluxExclusionRangeRepository;
@@ -11,17 +10,30 @@ import com.influxdb.v3.client.PointValues;
 import com.influxdb.v3.client.query.QueryOptions;
 import com.influxdb.v3.client.query.QueryType;
 import com.influxdb.v3.client.write.WriteOptions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.arrow.vector.VectorSchemaRoot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 @Service
@@ -32,64 +44,123 @@ public class SensorDataService {
     private final InfluxDBClient influxDBClient;
     private final InfluxProperties influxProperties;
     private final InfluxExclusionRangeRepository exclusionRepo;
+    private final ExclusionRangeIndex exclusionIndex;
+    private final RecentSensorBuffer recentBuffer;
+    private final HistoryCache historyCache;
+    private final SingleFlight<String, SensorSeries> queryFlights;
+    private final SingleFlight<String, List<SensorRecordDTO>> historyFlights;
+    private final Counter queriesExecuted;
 
-    public SensorDataService(InfluxDBClient influxDBClient, InfluxProperties influxProperties, InfluxExclusionRangeRepository exclusionRepo) {
+    @Value("${influx.exclusions.max-predicates:64}")
+    private int maxExclusionPredicates;
+
+    @Value("${influx.query.parallelism:4}")
+    private int queryParallelism;
+
+    @Value("${influx.query.shard-min-hours:6}")
+    private int shardMinHours;
+
+    private ExecutorService queryPool;
+    // Se activa la primera vez que Influx responde con un esquema que no se puede leer por columnas
+    private volatile boolean rowDecoding;
+
+    public SensorDataService(InfluxDBClient influxDBClient, InfluxProperties influxProperties,
+                             InfluxExclusionRangeRepository exclusionRepo, ExclusionRangeIndex exclusionIndex,
+                             RecentSensorBuffer recentBuffer, HistoryCache historyCache, MeterRegistry registry) {
         this.influxDBClient = influxDBClient;
         this.influxProperties = influxProperties;
         this.exclusionRepo = exclusionRepo;
+        this.exclusionIndex = exclusionIndex;
+        this.recentBuffer = recentBuffer;
+        this.historyCache = historyCache;
+        Counter coalesced = Counter.builder("influx.query.coalesced")
+                .description("Consultas que reutilizaron una ejecución idéntica en curso").register(registry);
+        this.queryFlights = new SingleFlight<>(coalesced::increment);
+        this.historyFlights = new SingleFlight<>(coalesced::increment);
+        this.queriesExecuted = Counter.builder("influx.query.executed")
+                .description("Consultas enviadas a Influx").register(registry);
     }
 
-    private List<SensorRecordDTO> applyExclusions(List<SensorRecordDTO> data, Instant from, Instant to) {
-        if (data == null || data.isEmpty()) return data;
-        // recopilar sensorIds presentes
-        List<Integer> sensorIds = data.stream()
-                .map(SensorRecordDTO::sensorId)
-                .filter(java.util.Objects::nonNull)
-                .distinct()
-                .toList();
-        if (sensorIds.isEmpty()) return data;
-        List<InfluxExclusionRange> ranges = exclusionRepo.findOverlapping(sensorIds, from, to);
-        if (ranges.isEmpty()) return data;
-        return data.stream().filter(r -> {
-            if (r.sensorId() == null || r.timestamp() == null) return true;
-            Instant ts = r.timestamp();
-            for (InfluxExclusionRange ex : ranges) {
-                if (ex.getSensorId() != null && ex.getSensorId().equals(r.sensorId())) {
-                    if (!ts.isBefore(ex.getStartTime()) && !ts.isAfter(ex.getEndTime())) {
-                        return false; // excluir
-                    }
-                }
-            }
-            return true;
-        }).toList();
+    @PostConstruct
+    void startQueryPool() {
+        queryParallelism = Math.max(1, queryParallelism);
+        AtomicInteger n = new AtomicInteger();
+        queryPool = Executors.newFixedThreadPool(queryParallelism, r -> {
+            Thread t = new Thread(r, "influx-query-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void stopQueryPool() {
+        if (queryPool != null) queryPool.shutdownNow();
     }
 
+    private List<SensorRecordDTO> applyExclusions(List<SensorRecordDTO> data) {
+        return exclusionIndex.filter(data);
+    }
+
+    /**
+     * Ventana de los últimos minutos: se responde desde el buffer en memoria cuando lo cubre,
+     * y solo en caso contrario se consulta Influx.
+     */
     public List<SensorRecordDTO> getRecentSensorData(Integer minutes) {
-        String sql = "SELECT * FROM 'water_sensors' WHERE time >= now() - interval '" + minutes + " minutes' ORDER BY time ASC";
-        List<SensorRecordDTO> out = querySensorData(sql, Map.of());
         Instant to = Instant.now();
         Instant from = to.minus(Duration.ofMinutes(minutes));
-        return applyExclusions(out, from, to);
+        List<SensorRecordDTO> out = recentBuffer.covers(minutes) ? recentBuffer.window(from) : null;
+        if (out == null) out = queryRecentFromInflux(minutes);
+        return applyExclusions(out);
     }
 
+    /**
+     * Snapshot de los últimos minutos junto con el cursor del buffer desde el que continuar con
+     * {@link #getRecentSince(long)}. Si el buffer no lo cubre se consulta Influx, tomando el cursor antes de
+     * la consulta (a lo sumo se repiten lecturas, nunca se pierden).
+     */
+    public RecentSensorBuffer.Slice getRecentSnapshot(int minutes) {
+        RecentSensorBuffer.Slice slice = recentBuffer.snapshot(minutes);
+        if (slice == null) {
+            long seq = recentBuffer.lastSeq();
+            slice = new RecentSensorBuffer.Slice(queryRecentFromInflux(minutes), seq);
+        }
+        return new RecentSensorBuffer.Slice(applyExclusions(slice.readings()), slice.seq());
+    }
+
+    /**
+     * Lecturas llegadas después del cursor, o null si el buffer ya no puede responderlo.
+     */
+    public RecentSensorBuffer.Slice getRecentSince(long cursor) {
+        RecentSensorBuffer.Slice slice = recentBuffer.since(cursor);
+        if (slice == null || slice.readings().isEmpty()) return slice;
+        return new RecentSensorBuffer.Slice(applyExclusions(slice.readings()), slice.seq());
+    }
+
+    /**
+     * Lecturas crudas de los últimos minutos directamente desde Influx (sin exclusiones).
+     */
+    public List<SensorRecordDTO> queryRecentFromInflux(int minutes) {
+        String sql = "SELECT * FROM 'water_sensors' WHERE time >= now() - interval '" + minutes + " minutes' ORDER BY time ASC";
+        return querySeries(sql, Map.of()).toDtos();
+    }
+
+    /**
+     * Historial por rango. La fuente depende del tamaño del rango (crudo, vista 1h o vista 1d) y cada una se
+     * cachea por bloques alineados a su resolución.
+     */
     public List<SensorRecordDTO> getHistory(Instant from, Instant to) {
         long days = Duration.between(from, to).toDays();
 
-        String sql;
-        Map<String, Object> params = Map.of(
-                "from", from.toString(),
-                "to", to.toString()
-        );
-
         if (days <= 2) {
-            sql = "SELECT * FROM 'water_sensors' WHERE time >= :from AND time <= :to ORDER BY time ASC";
-        } else if (days <= 5) {
-            sql = "SELECT * FROM 'view_sensors' WHERE time >= :from AND time <= :to AND agg = '1h' ORDER BY time ASC";
-        } else {
-            sql = "SELECT * FROM 'view_sensors' WHERE time >= :from AND time <= :to AND agg = '1d' ORDER BY time ASC";
+            String sql = "SELECT * FROM 'water_sensors' WHERE time >= :from AND time <= :to";
+            return historyCache.get("raw", Duration.ofHours(1), from, to,
+                    (a, b) -> queryShardedExcluding(sql, a, b)).toDtos();
         }
-        List<SensorRecordDTO> out = querySensorData(sql, params);
-        return applyExclusions(out, from, to);
+        String agg = days <= 5 ? "1h" : "1d";
+        String sql = "SELECT * FROM 'view_sensors' WHERE time >= :from AND time <= :to AND agg = '" + agg + "'";
+        Duration block = days <= 5 ? Duration.ofDays(1) : Duration.ofDays(7);
+        return historyCache.getDerived("view:" + agg, block, from, to,
+                (a, b) -> queryExcluding(sql, Map.of(), a, b)).toDtos();
     }
 
     /**
@@ -97,19 +168,155 @@ public class SensorDataService {
      * Comando básico: solo contra la vista.
      */
     public List<SensorRecordDTO> getAggregatedHistory(Instant from, Instant to, String agg) {
-        String sql = "SELECT * FROM 'view_sensors' WHERE time >= :from AND time <= :to AND agg = :agg ORDER BY time ASC";
-        Map<String, Object> params = Map.of(
-                "from", from.toString(),
-                "to", to.toString(),
-                "agg", agg
-        );
-        List<SensorRecordDTO> out = querySensorData(sql, params);
-        return applyExclusions(out, from, to);
+        String sql = "SELECT * FROM 'view_sensors' WHERE time >= :from AND time <= :to AND agg = :agg";
+        return historyCache.getDerived("agg:" + agg, Duration.ofDays(1), from, to,
+                (a, b) -> queryExcluding(sql, Map.of("agg", agg), a, b)).toDtos();
+    }
+
+    /**
+     * Variantes reactivas para los controladores: peticiones idénticas concurrentes comparten una sola
+     * resolución completa (caché + Influx) y las que se unen esperan sin ocupar un hilo. Quien se suscribe
+     * decide el scheduler (ver {@link Bulkhead}); la ejecución líder bloquea.
+     */
+    public Mono<List<SensorRecordDTO>> getHistoryMono(Instant from, Instant to) {
+        return historyFlights.mono("history|" + from + "|" + to, () -> getHistory(from, to));
+    }
+
+    public Mono<List<SensorRecordDTO>> getAggregatedHistoryMono(Instant from, Instant to, String agg) {
+        return historyFlights.mono("agg|" + agg + "|" + from + "|" + to, () -> getAggregatedHistory(from, to, agg));
+    }
+
+    /**
+     * Para consultas crudas largas: parte [from, to] en tramos de tiempo contiguos que se consultan en paralelo
+     * (como máximo influx.query.parallelism a la vez en todo el servicio) y concatena los resultados en orden.
+     * Cada tramo es [inicio, siguiente inicio - 1ns]; el último conserva el extremo {@code to} inclusivo.
+     */
+    private SensorSeries queryShardedExcluding(String sql, Instant from, Instant to) {
+        List<Instant> bounds = planShards(from, to);
+        if (bounds.size() <= 2) return queryExcluding(sql, Map.of(), from, to);
+
+        List<Future<SensorSeries>> parts = new ArrayList<>(bounds.size() - 1);
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            Instant a = bounds.get(i);
+            Instant b = i + 2 == bounds.size() ? to : bounds.get(i + 1).minusNanos(1);
+            parts.add(queryPool.submit(() -> queryExcluding(sql, Map.of(), a, b)));
+        }
+        // Los tramos pueden estar compartidos (single-flight): se copian a una serie nueva
+        SensorSeries out = new SensorSeries();
+        try {
+            for (Future<SensorSeries> f : parts) out.appendAll(f.get());
+            return out;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Consulta de historial interrumpida", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<SensorSeries> f : parts) f.cancel(true);
+        }
+    }
+
+    /**
+     * Límites de los tramos (incluye from y to). Un solo tramo si el rango no supera influx.query.shard-min-hours
+     * o si no hay paralelismo; si no, tantos tramos iguales como permita el paralelismo sin bajar del mínimo.
+     */
+    private List<Instant> planShards(Instant from, Instant to) {
+        long span = Duration.between(from, to).toNanos();
+        long minShard = Duration.ofHours(Math.max(1, shardMinHours)).toNanos();
+        int shards = (int) Math.min(queryParallelism, span / minShard);
+        if (shards <= 1) return List.of(from, to);
+        long step = span / shards;
+        List<Instant> bounds = new ArrayList<>(shards + 1);
+        for (int i = 0; i < shards; i++) bounds.add(from.plusNanos(step * i));
+        bounds.add(to);
+        return bounds;
+    }
+
+    /**
+     * Ejecuta la consulta sobre [from, to] empujando a Influx los rangos de exclusión que la intersectan como
+     * predicados NOT (sensor_id = s AND time BETWEEN a AND b). Si son más de influx.exclusions.max-predicates
+     * se consulta sin ellos y se filtra en memoria.
+     */
+    private SensorSeries queryExcluding(String sql, Map<String, Object> baseParams, Instant from, Instant to) {
+        Map<String, Object> params = new HashMap<>(baseParams);
+        params.put("from", from.toString());
+        params.put("to", to.toString());
+
+        Map<Integer, long[]> ranges = exclusionIndex.rangesFor(from, to);
+        int predicates = 0;
+        for (long[] iv : ranges.values()) predicates += iv.length / 2;
+        boolean pushDown = predicates <= maxExclusionPredicates;
+
+        StringBuilder q = new StringBuilder(sql);
+        if (pushDown) appendExclusions(q, params, ranges);
+        q.append(" ORDER BY time ASC");
+        SensorSeries out = querySeries(q.toString(), params);
+        return pushDown ? out : exclusionIndex.filter(out);
+    }
+
+    /**
+     * Un predicado NOT (...) por rango. Las lecturas sin sensor_id nunca están excluidas (igual que en
+     * {@link ExclusionRangeIndex#filter}): sin el IS NOT NULL la comparación daría NULL y Influx las descartaría.
+     */
+    static void appendExclusions(StringBuilder q, Map<String, Object> params, Map<Integer, long[]> ranges) {
+        int k = 0;
+        for (Map.Entry<Integer, long[]> e : ranges.entrySet()) {
+            long[] iv = e.getValue();
+            for (int i = 0; i < iv.length; i += 2, k++) {
+                q.append(" AND NOT (sensor_id IS NOT NULL AND sensor_id = :exs").append(k)
+                 .append(" AND time >= :exa").append(k)
+                 .append(" AND time <= :exb").append(k).append(")");
+                params.put("exs" + k, String.valueOf(e.getKey()));
+                params.put("exa" + k, EpochNanos.toInstant(iv[i]).toString());
+                params.put("exb" + k, EpochNanos.toInstant(iv[i + 1]).toString());
+            }
+        }
     }
 
     public void saveSensorData(List<SensorRecordDTO> records) {
-        String database = "datos_agua";
-        List<Point> points = new ArrayList<>();
+        writePoints(toPoints(records));
+        Instant min = null;
+        Instant max = null;
+        for (SensorRecordDTO r : records) {
+            Instant ts = r.timestamp();
+            if (ts == null) continue;
+            if (min == null || ts.isBefore(min)) min = ts;
+            if (max == null || ts.isAfter(max)) max = ts;
+        }
+        markWritten(min, max);
+    }
+
+    /**
+     * Registra que [from, to] ya tiene lecturas nuevas en Influx, para que la caché de historial no sirva
+     * bloques cerrados sin ellas.
+     */
+    public void markWritten(Instant from, Instant to) {
+        historyCache.onWritten(from, to);
+    }
+
+    /**
+     * Asigna a las lecturas sin timestamp la misma marca que usaría {@link #toPoints(List)},
+     * para que todas las etapas de la ingesta vean el mismo instante.
+     */
+    public List<SensorRecordDTO> stampMissingTimestamps(List<SensorRecordDTO> records) {
+        Instant stamp = null;
+        List<SensorRecordDTO> out = new ArrayList<>(records.size());
+        for (SensorRecordDTO r : records) {
+            if (r.timestamp() == null) {
+                if (stamp == null) stamp = Instant.now().minusSeconds(records.size());
+                r = new SensorRecordDTO(stamp, r.sensorId(), r.ph(), r.turbidity(), r.conductivity(), r.flowRate());
+            }
+            out.add(r);
+        }
+        return out;
+    }
+
+    /**
+     * Convierte las lecturas en puntos de la medición 'water_sensors'.
+     * Las lecturas sin timestamp reciben una marca común relativa al momento de la llamada.
+     */
+    public List<Point> toPoints(List<SensorRecordDTO> records) {
+        List<Point> points = new ArrayList<>(records.size());
         Instant stamp = Instant.now().minusSeconds(records.size());
         for (SensorRecordDTO record : records) {
             Point point = Point.measurement("water_sensors")
@@ -121,7 +328,15 @@ public class SensorDataService {
                     .setTimestamp(record.timestamp() != null ? record.timestamp() : stamp);
             points.add(point);
         }
-        influxDBClient.writePoints(points, new WriteOptions.Builder().database(database).build());
+        return points;
+    }
+
+    /**
+     * Escritura bloqueante de un lote de puntos en Influx.
+     */
+    public void writePoints(List<Point> points) {
+        if (points.isEmpty()) return;
+        influxDBClient.writePoints(points, new WriteOptions.Builder().database("datos_agua").build());
     }
 
     private Double getDouble(PointValues pv, String field, Double defaultValue) {
@@ -137,21 +352,60 @@ public class SensorDataService {
         return Instant.ofEpochSecond(nanos / 1_000_000_000L, nanos % 1_000_000_000L);
     }
 
-    private List<SensorRecordDTO> querySensorData(String sql, Map<String, Object> params) {
-        try (Stream<PointValues> results = influxDBClient.queryPoints(sql, params, new QueryOptions("datos_agua", QueryType.SQL))) {
-            return results.map(pv -> SensorRecordDTO.fromRaw(
-                            new SensorRawRecord(
-                                    getInstant(pv),
-                                    getSensorId(pv),
-                                    Map.of(
-                                            "ph", getDouble(pv, "ph", null),
-                                            "turbidity", getDouble(pv, "turbidity", null),
-                                            "conductivity", getDouble(pv, "conductivity", null),
-                                            "flowRate", getDouble(pv, "flowRate", null)
-                                    )
-                            )
-                    )).toList();
+    /**
+     * Punto único de consulta a Influx: llamadas concurrentes con el mismo SQL y parámetros comparten una sola
+     * ejecución. El resultado es compartido y no debe modificarse.
+     */
+    private SensorSeries querySeries(String sql, Map<String, Object> params) {
+        return queryFlights.run(flightKey(sql, params), () -> executeSeries(sql, params));
+    }
+
+    private static String flightKey(String sql, Map<String, Object> params) {
+        return sql + '|' + new TreeMap<>(params);
+    }
+
+    /**
+     * Ejecuta la consulta y decodifica los record batches Arrow directamente a columnas. La decisión se toma
+     * con el esquema del primer batch: si no admite lectura columnar (tags con diccionario) se repite la
+     * consulta por filas (PointValues) y, como el esquema depende del servidor, las siguientes van directamente
+     * por filas.
+     */
+    private SensorSeries executeSeries(String sql, Map<String, Object> params) {
+        queriesExecuted.increment();
+        QueryOptions options = new QueryOptions("datos_agua", QueryType.SQL);
+        if (!rowDecoding) {
+            SensorSeries out = new SensorSeries();
+            try (Stream<VectorSchemaRoot> batches = influxDBClient.queryBatches(sql, params, options)) {
+                Iterator<VectorSchemaRoot> it = batches.iterator();
+                if (!it.hasNext()) return out;
+                VectorSchemaRoot first = it.next();
+                if (SensorSeriesDecoder.append(first, out)) {
+                    while (it.hasNext()) {
+                        if (!SensorSeriesDecoder.append(it.next(), out)) {
+                            throw new IllegalStateException("Esquema Arrow distinto a mitad de la consulta");
+                        }
+                    }
+                    return out;
+                }
+            }
+            rowDecoding = true;
+            log.info("Influx devuelve un esquema no columnar (p.ej. tags con diccionario): se decodifica por filas");
         }
+        SensorSeries rows = new SensorSeries();
+        try (Stream<PointValues> results = influxDBClient.queryPoints(sql, params, options)) {
+            results.forEach(pv -> appendPoint(pv, rows));
+        }
+        return rows;
+    }
+
+    private void appendPoint(PointValues pv, SensorSeries out) {
+        Integer sid = getSensorId(pv);
+        int row = out.addRow(EpochNanos.of(getInstant(pv)), sid != null ? sid : SensorSeries.NO_SENSOR);
+        Double v;
+        if ((v = getDouble(pv, "ph", null)) != null) out.set(row, SensorSeries.PH, v);
+        if ((v = getDouble(pv, "turbidity", null)) != null) out.set(row, SensorSeries.TURBIDITY, v);
+        if ((v = getDouble(pv, "conductivity", null)) != null) out.set(row, SensorSeries.CONDUCTIVITY, v);
+        if ((v = getDouble(pv, "flowRate", null)) != null) out.set(row, SensorSeries.FLOW_RATE, v);
     }
 
     private Integer getSensorId(PointValues pv) {
@@ -189,55 +443,47 @@ public class SensorDataService {
      * Igual que el anterior pero forzando a traer historial crudo (sin vistas agregadas) antes de agregar.
      */
     public List<SensorRecordDTO> getRawHistoryAggregatedInMemory(Instant from, Instant to, Duration bucket) {
-        List<SensorRecordDTO> raw = getRawHistory(from, to);
-        return aggregateList(raw, bucket);
+        return toMeans(new BucketAggregator(bucket).acceptAll(getRawHistorySeries(from, to)));
     }
 
     /**
      * Retorna historial crudo desde la medición 'water_sensors' en el rango [from, to], ordenado ascendente.
      */
     public List<SensorRecordDTO> getRawHistory(Instant from, Instant to) {
-        String sql = "SELECT * FROM 'water_sensors' WHERE time >= :from AND time <= :to ORDER BY time ASC";
-        Map<String, Object> params = Map.of(
-                "from", from.toString(),
-                "to", to.toString()
-        );
-        List<SensorRecordDTO> out = querySensorData(sql, params);
-        return applyExclusions(out, from, to);
+        return getRawHistorySeries(from, to).toDtos();
+    }
+
+    /**
+     * Igual que {@link #getRawHistory(Instant, Instant)} pero en formato columnar, sin crear DTOs por fila.
+     */
+    public SensorSeries getRawHistorySeries(Instant from, Instant to) {
+        String sql = "SELECT * FROM 'water_sensors' WHERE time >= :from AND time <= :to";
+        return queryShardedExcluding(sql, from, to);
     }
 
     private List<SensorRecordDTO> aggregateList(List<SensorRecordDTO> raw, Duration bucket) {
-        if (bucket == null || bucket.isZero() || bucket.isNegative()) bucket = Duration.ofMinutes(10);
-        long bucketMs = bucket.toMillis();
-        Map<String, Agg> acc = new LinkedHashMap<>();
-        for (SensorRecordDTO r : raw) {
-            if (r.timestamp() == null || r.sensorId() == null) continue;
-            long startMs = (r.timestamp().toEpochMilli() / bucketMs) * bucketMs;
-            String key = r.sensorId() + "|" + startMs;
-            Agg a = acc.computeIfAbsent(key, k -> new Agg(r.sensorId(), startMs));
-            if (r.ph() != null) { a.phSum += r.ph(); a.phCnt++; }
-            if (r.turbidity() != null) { a.turbSum += r.turbidity(); a.turbCnt++; }
-            if (r.conductivity() != null) { a.condSum += r.conductivity(); a.condCnt++; }
-            if (r.flowRate() != null) { a.flowSum += r.flowRate(); a.flowCnt++; }
-        }
-        List<SensorRecordDTO> out = new ArrayList<>(acc.size());
-        for (Agg a : acc.values()) {
+        return toMeans(new BucketAggregator(bucket).acceptAll(raw));
+    }
+
+    private static List<SensorRecordDTO> toMeans(BucketAggregator agg) {
+        List<SensorRecordDTO> out = new ArrayList<>(agg.size());
+        for (int s : agg.orderedSlots()) {
             out.add(new SensorRecordDTO(
-                    Instant.ofEpochMilli(a.startMs),
-                    a.sensorId,
-                    a.phCnt > 0 ? a.phSum / a.phCnt : null,
-                    a.turbCnt > 0 ? a.turbSum / a.turbCnt : null,
-                    a.condCnt > 0 ? a.condSum / a.condCnt : null,
-                    a.flowCnt > 0 ? a.flowSum / a.flowCnt : null
+                    Instant.ofEpochMilli(agg.bucketStartMs(s)),
+                    agg.sensorId(s),
+                    BucketAggregator.boxed(agg.mean(s, SensorSeries.PH)),
+                    BucketAggregator.boxed(agg.mean(s, SensorSeries.TURBIDITY)),
+                    BucketAggregator.boxed(agg.mean(s, SensorSeries.CONDUCTIVITY)),
+                    BucketAggregator.boxed(agg.mean(s, SensorSeries.FLOW_RATE))
             ));
         }
-        out.sort(Comparator.comparing(SensorRecordDTO::timestamp).thenComparing(SensorRecordDTO::sensorId));
         return out;
     }
 
     /**
      * Registra rangos de exclusión (borrado lógico) por sensor en la base de datos local,
-     * para que al consultar se ignoren esos datos en memoria.
+     * y en el índice en memoria (invalidando los bloques de historial cacheados), para que al consultar se
+     * ignoren esos datos.
      * Devuelve cuántos rangos se registraron correctamente.
      */
     public int deleteData(List<Integer> sensorIds, Instant from, Instant to) {
@@ -252,6 +498,8 @@ public class SensorDataService {
             try {
                 InfluxExclusionRange ex = new InfluxExclusionRange(sid, start, end);
                 exclusionRepo.save(ex);
+                exclusionIndex.add(sid, start, end);
+                historyCache.invalidate(start, end);
                 count++;
             } catch (Exception e) {
                 log.warn("No se pudo registrar exclusión para sensor_id={} de {} a {}: {}", sid, start, end, e.getMessage());
@@ -259,13 +507,4 @@ public class SensorDataService {
         }
         return count;
     }
-
-    private static class Agg {
-        final int sensorId; final long startMs;
-        double phSum = 0; int phCnt = 0;
-        double turbSum = 0; int turbCnt = 0;
-        double condSum = 0; int condCnt = 0;
-        double flowSum = 0; int flowCnt = 0;
-        Agg(int sid, long ms) { this.sensorId = sid; this.startMs = ms; }
-    }
 }
@@ -0,0 +1,99 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bus en proceso que avisa a los streams en vivo cuando la ingesta acepta lecturas nuevas, agrupando los
+ * avisos en micro-lotes (stream.push.flush-ms o stream.push.max-batch lecturas, lo que llegue antes).
+ * La señal solo indica qué sensores tuvieron lecturas: cada suscriptor lee lo nuevo del
+ * {@link RecentSensorBuffer} con su cursor, por eso este listener va después del buffer.
+ */
+@Component
+@Order(100)
+public class SensorEventBus implements SensorIngestListener {
+
+    @Value("${stream.push.flush-ms:250}")
+    private long flushMs;
+
+    @Value("${stream.push.max-batch:500}")
+    private int maxBatch;
+
+    /** Sensores con lecturas nuevas en un micro-lote; {@link #ALL} = cualquiera (p.ej. sondeo de respaldo). */
+    public record Touched(Set<Integer> sensorIds) {
+        public static final Touched ALL = new Touched(null);
+
+        public boolean isAll() { return sensorIds == null; }
+    }
+
+    // Sin buffer por suscriptor: las señales son idempotentes y un suscriptor lento solo pierde avisos
+    private final Sinks.Many<Touched> sink = Sinks.many().multicast().directBestEffort();
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> scheduled;
+    private int pending;
+    private Set<Integer> touched = new HashSet<>();
+
+    @PostConstruct
+    void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sensor-event-bus");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void stop() {
+        timer.shutdownNow();
+        sink.tryEmitComplete();
+    }
+
+    @Override
+    public synchronized void onReadings(List<SensorRecordDTO> records) {
+        if (records.isEmpty()) return;
+        pending += records.size();
+        for (SensorRecordDTO r : records) {
+            if (r.sensorId() != null) touched.add(r.sensorId());
+        }
+        if (pending >= maxBatch) {
+            flush();
+        } else if (scheduled == null) {
+            scheduled = timer.schedule(this::flushScheduled, flushMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Señales de "hay lecturas nuevas", una por micro-lote. */
+    public Flux<Touched> signals() {
+        return sink.asFlux();
+    }
+
+    private synchronized void flushScheduled() {
+        scheduled = null;
+        if (pending > 0) flush();
+    }
+
+    private void flush() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+        pending = 0;
+        Touched batch = new Touched(Set.copyOf(touched));
+        touched = new HashSet<>();
+        sink.tryEmitNext(batch);
+    }
+}
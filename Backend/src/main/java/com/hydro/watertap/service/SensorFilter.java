@@ -0,0 +1,44 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Filtro de suscripción por sensor para los streams. {@code sensorIds == null} significa todos los sensores.
+ * El conjunto se guarda ordenado e inmutable, así dos suscriptores con el mismo filtro comparten clave.
+ * Los ids nulos (p.ej. {@code ?sensorIds=1,,2}) se ignoran.
+ */
+public record SensorFilter(Set<Integer> sensorIds) {
+
+    public static final SensorFilter ALL = new SensorFilter(null);
+
+    public SensorFilter {
+        if (sensorIds != null) {
+            Set<Integer> sorted = new TreeSet<>();
+            for (Integer id : sensorIds) {
+                if (id != null) sorted.add(id);
+            }
+            sensorIds = Collections.unmodifiableSet(sorted);
+        }
+    }
+
+    public boolean isAll() { return sensorIds == null; }
+
+    public boolean matches(Integer sensorId) {
+        return sensorIds == null || (sensorId != null && sensorIds.contains(sensorId));
+    }
+
+    public List<SensorRecordDTO> apply(List<SensorRecordDTO> records) {
+        if (sensorIds == null) return records;
+        List<SensorRecordDTO> out = new ArrayList<>();
+        for (SensorRecordDTO r : records) {
+            if (matches(r.sensorId())) out.add(r);
+        }
+        return out;
+    }
+}
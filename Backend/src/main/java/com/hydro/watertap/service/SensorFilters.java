@@ -0,0 +1,67 @@
+package com.hydro.watertap.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Resuelve los parámetros de suscripción (sensorIds y sitios) a un {@link SensorFilter}. Los sitios se
+ * definen en stream.sites con el formato {@code sitio:1,2,3;otro-sitio:4,5}.
+ */
+@Component
+public class SensorFilters {
+
+    private static final Logger log = LoggerFactory.getLogger(SensorFilters.class);
+
+    @Value("${stream.sites:}")
+    private String sitesSpec;
+
+    private final Map<String, List<Integer>> sites = new HashMap<>();
+
+    @PostConstruct
+    void load() {
+        if (sitesSpec == null || sitesSpec.isBlank()) return;
+        for (String entry : sitesSpec.split(";")) {
+            int colon = entry.indexOf(':');
+            if (colon <= 0) continue;
+            List<Integer> ids = new ArrayList<>();
+            for (String id : entry.substring(colon + 1).split(",")) {
+                try {
+                    ids.add(Integer.parseInt(id.trim()));
+                } catch (NumberFormatException e) {
+                    log.warn("stream.sites: id de sensor inválido '{}' en {}", id, entry);
+                }
+            }
+            sites.put(entry.substring(0, colon).trim().toLowerCase(), ids);
+        }
+        log.info("Sitios para filtros de stream: {}", sites.keySet());
+    }
+
+    /**
+     * Sin parámetros devuelve {@link SensorFilter#ALL}; los ids vacíos ({@code ?sensorIds=1,,2}) llegan como null
+     * y no cuentan. Un sitio desconocido no aporta sensores.
+     */
+    public SensorFilter of(List<Integer> sensorIds, List<String> siteNames) {
+        boolean noIds = sensorIds == null || sensorIds.stream().allMatch(Objects::isNull);
+        boolean noSites = siteNames == null || siteNames.isEmpty();
+        if (noIds && noSites) return SensorFilter.ALL;
+        Set<Integer> ids = new HashSet<>();
+        if (!noIds) ids.addAll(sensorIds);
+        if (!noSites) {
+            for (String site : siteNames) {
+                if (site != null) ids.addAll(sites.getOrDefault(site.trim().toLowerCase(), List.of()));
+            }
+        }
+        return new SensorFilter(ids);
+    }
+}
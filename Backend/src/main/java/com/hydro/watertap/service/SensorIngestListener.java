@@ -0,0 +1,19 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+
+import java.util.List;
+
+/**
+ * Consumidor en proceso de las lecturas aceptadas por la ingesta (ya con timestamp asignado).
+ * Se invoca en el hilo de la petición, por lo que las implementaciones deben ser rápidas.
+ */
+public interface SensorIngestListener {
+
+    void onReadings(List<SensorRecordDTO> records);
+
+    /**
+     * Lecturas recientes leídas de Influx al arrancar, para reconstruir estado en memoria.
+     */
+    default void onWarmUp(List<SensorRecordDTO> records) {}
+}
@@ -0,0 +1,318 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.influxdb.v3.client.Point;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline de ingesta asíncrona: las peticiones de /sensors/upload encolan sus puntos en una cola acotada
+ * y un único escritor los agrupa (por tamaño o tiempo de espera) en escrituras grandes contra Influx.
+ * Con el WAL habilitado las lecturas se anexan al log local y es su replayer quien escribe en Influx.
+ * Las lecturas aceptadas se publican además a los {@link SensorIngestListener} en proceso.
+ *
+ * <p>Sin WAL y en modo QUEUED el acuse llega antes de escribir: si Influx falla, el escritor reintenta el lote
+ * {@code ingest.write-retries} veces con espera exponencial desde {@code ingest.retry-backoff-ms} (la cola sigue
+ * aceptando hasta llenarse y después aplica la backpressure). Agotados los reintentos el lote se descarta y se
+ * cuenta en {@code ingest.points.dropped}: la ventana de pérdida es lo encolado mientras Influx no responde más
+ * lo que haya en la cola si el proceso cae. Para no perder nada hay que usar el WAL o el modo FLUSHED.
+ */
+@Service
+public class SensorIngestService {
+
+    private static final Logger log = LoggerFactory.getLogger(SensorIngestService.class);
+
+    public enum Backpressure { REJECT, BLOCK, SPILL }
+
+    public enum AckMode { QUEUED, FLUSHED }
+
+    private final SensorDataService sensorDataService;
+    private final SensorWriteAheadLog wal;
+    private final List<SensorIngestListener> listeners;
+    private final BlockingQueue<PendingBatch> queue = new LinkedBlockingQueue<>();
+    private final Counter dropped;
+
+    @Value("${ingest.queue-capacity:50000}")
+    private int queueCapacity;
+
+    @Value("${ingest.batch-size:5000}")
+    private int batchSize;
+
+    @Value("${ingest.linger-ms:200}")
+    private long lingerMs;
+
+    @Value("${ingest.backpressure:REJECT}")
+    private Backpressure backpressure;
+
+    @Value("${ingest.block-timeout-ms:2000}")
+    private long blockTimeoutMs;
+
+    @Value("${ingest.ack-mode:QUEUED}")
+    private AckMode ackMode;
+
+    @Value("${ingest.write-retries:3}")
+    private int writeRetries;
+
+    @Value("${ingest.retry-backoff-ms:500}")
+    private long retryBackoffMs;
+
+    @Value("${recent.buffer.minutes:15}")
+    private int warmUpMinutes;
+
+    // Permisos = puntos que aún caben en la cola
+    private Semaphore capacity;
+    private Thread writer;
+    private volatile boolean running;
+    private volatile boolean warmedUp;
+    // Timestamp de la primera lectura publicada en vivo
+    private volatile Instant firstLiveAt;
+
+    public SensorIngestService(SensorDataService sensorDataService, SensorWriteAheadLog wal,
+                               List<SensorIngestListener> listeners, MeterRegistry registry) {
+        this.sensorDataService = sensorDataService;
+        this.wal = wal;
+        this.listeners = listeners;
+        this.dropped = Counter.builder("ingest.points.dropped").baseUnit("points").register(registry);
+    }
+
+    @PostConstruct
+    void start() {
+        if (wal.isEnabled() && ackMode == AckMode.FLUSHED) {
+            log.warn("ingest.ack-mode=FLUSHED no aplica con ingest.wal.enabled=true: se confirma al anexar al WAL");
+        }
+        capacity = new Semaphore(Math.max(1, queueCapacity));
+        running = true;
+        writer = new Thread(this::runWriter, "sensor-ingest-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        writer.join(Math.max(1000, lingerMs * 5));
+    }
+
+    // Precarga del estado en memoria de los listeners con los últimos minutos de Influx
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        tryWarmUp();
+    }
+
+    // Si Influx no respondía al arrancar, la precarga se reintenta hasta que funcione
+    @Scheduled(fixedDelayString = "${recent.warm-up.retry-ms:30000}", initialDelayString = "${recent.warm-up.retry-ms:30000}")
+    public void retryWarmUp() {
+        if (!warmedUp) tryWarmUp();
+    }
+
+    private synchronized void tryWarmUp() {
+        if (warmedUp) return;
+        try {
+            List<SensorRecordDTO> recent = sensorDataService.queryRecentFromInflux(warmUpMinutes);
+            // En un reintento lo posterior a la primera lectura en vivo ya llegó a los listeners por la ingesta
+            Instant live = firstLiveAt;
+            if (live != null) {
+                recent = new ArrayList<>(recent);
+                recent.removeIf(r -> r.timestamp() == null || !r.timestamp().isBefore(live));
+            }
+            for (SensorIngestListener l : listeners) l.onWarmUp(recent);
+            warmedUp = true;
+            log.info("Estado en memoria precargado con {} lecturas recientes", recent.size());
+        } catch (Exception e) {
+            log.warn("No se pudo precargar lecturas recientes desde Influx (se reintentará): {}", e.getMessage());
+        }
+    }
+
+    public AckMode getAckMode() { return wal.isEnabled() ? AckMode.QUEUED : ackMode; }
+
+    /**
+     * Acepta un lote de lecturas. Devuelve false si la cola está llena y la política de backpressure
+     * es REJECT (o BLOCK agotó su espera). En modo FLUSHED espera a que el lote llegue a Influx.
+     * Con WAL, el acuse se da tras anexar al log (el modo FLUSHED no aplica).
+     */
+    public boolean ingest(List<SensorRecordDTO> records) {
+        if (records == null || records.isEmpty()) return true;
+        records = sensorDataService.stampMissingTimestamps(records);
+        boolean accepted = wal.isEnabled() ? appendToWal(records) : enqueue(records);
+        if (accepted) publish(records);
+        return accepted;
+    }
+
+    private void publish(List<SensorRecordDTO> records) {
+        if (firstLiveAt == null) {
+            Instant min = null;
+            for (SensorRecordDTO r : records) {
+                if (r.timestamp() != null && (min == null || r.timestamp().isBefore(min))) min = r.timestamp();
+            }
+            firstLiveAt = min;
+        }
+        for (SensorIngestListener l : listeners) {
+            try {
+                l.onReadings(records);
+            } catch (Exception e) {
+                log.warn("Listener de ingesta {} falló: {}", l.getClass().getSimpleName(), e.getMessage());
+            }
+        }
+    }
+
+    private boolean enqueue(List<SensorRecordDTO> records) {
+        List<Point> points = sensorDataService.toPoints(records);
+        int permits = Math.min(points.size(), Math.max(1, queueCapacity));
+
+        if (!capacity.tryAcquire(permits)) {
+            switch (backpressure) {
+                case REJECT:
+                    return false;
+                case BLOCK:
+                    try {
+                        if (!capacity.tryAcquire(permits, blockTimeoutMs, TimeUnit.MILLISECONDS)) return false;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    break;
+                case SPILL:
+                    // Cola llena: escribir directamente en el hilo de la petición
+                    sensorDataService.saveSensorData(records);
+                    return true;
+            }
+        }
+
+        Instant min = null;
+        Instant max = null;
+        for (SensorRecordDTO r : records) {
+            if (min == null || r.timestamp().isBefore(min)) min = r.timestamp();
+            if (max == null || r.timestamp().isAfter(max)) max = r.timestamp();
+        }
+        PendingBatch batch = new PendingBatch(points, permits, min, max);
+        queue.add(batch);
+        if (ackMode == AckMode.FLUSHED) {
+            batch.done.join();
+        }
+        return true;
+    }
+
+    private boolean appendToWal(List<SensorRecordDTO> records) {
+        try {
+            if (wal.append(records)) return true;
+            switch (backpressure) {
+                case REJECT:
+                    return false;
+                case BLOCK:
+                    // Espera a que el replayer libere un segmento; ocupa un hilo del bulkhead, no el event loop
+                    return wal.append(records, blockTimeoutMs);
+                case SPILL:
+                default:
+                    sensorDataService.saveSensorData(records);
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo anexar al WAL", e);
+        }
+    }
+
+    private void runWriter() {
+        List<PendingBatch> taken = new ArrayList<>();
+        List<Point> points = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingBatch first = queue.poll(Math.max(1, lingerMs), TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                taken.add(first);
+                points.addAll(first.points);
+
+                // Agrupar peticiones hasta llenar el lote o agotar el tiempo de espera
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+                while (points.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) break;
+                    PendingBatch next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    taken.add(next);
+                    points.addAll(next.points);
+                }
+                flush(taken, points);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (PendingBatch b : taken) b.done.completeExceptionally(e);
+                return;
+            } catch (Exception e) {
+                log.warn("Escritor de ingesta falló: {}", e.getMessage());
+            } finally {
+                taken.clear();
+                points.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingBatch> taken, List<Point> points) throws InterruptedException {
+        int permits = 0;
+        for (PendingBatch b : taken) permits += b.permits;
+        try {
+            long backoff = Math.max(1, retryBackoffMs);
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    sensorDataService.writePoints(points);
+                    for (PendingBatch b : taken) {
+                        sensorDataService.markWritten(b.min, b.max);
+                        b.done.complete(null);
+                    }
+                    return;
+                } catch (Exception e) {
+                    if (attempt >= writeRetries) {
+                        // En QUEUED el cliente ya recibió el acuse: estos puntos se pierden
+                        dropped.increment(points.size());
+                        log.error("Descartado lote de {} puntos tras {} reintentos contra Influx: {}",
+                                points.size(), writeRetries, e.getMessage());
+                        for (PendingBatch b : taken) b.done.completeExceptionally(e);
+                        return;
+                    }
+                    log.warn("No se pudo escribir lote de {} puntos en Influx (reintento en {} ms): {}",
+                            points.size(), backoff, e.getMessage());
+                    Thread.sleep(backoff);
+                    backoff *= 2;
+                }
+            }
+        } finally {
+            capacity.release(permits);
+        }
+    }
+
+    private static class PendingBatch {
+        final List<Point> points;
+        final int permits;
+        // Rango de timestamps del lote, para invalidar la caché de historial tras escribirlo
+        final Instant min;
+        final Instant max;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        PendingBatch(List<Point> points, int permits, Instant min, Instant max) {
+            this.points = points;
+            this.permits = permits;
+            this.min = min;
+            this.max = max;
+        }
+    }
+}
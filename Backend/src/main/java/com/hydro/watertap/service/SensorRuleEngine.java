@@ -0,0 +1,305 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Motor de reglas de umbral sobre cada lectura aceptada por la ingesta. Una regla se dispara cuando su condición
+ * se cumple de forma continua durante al menos su duración (según el timestamp de las lecturas) y se rearma en
+ * cuanto una lectura válida deja de cumplirla. Un hueco sin lecturas del sensor de más de rules.max-gap-seconds
+ * corta la duración: no se sabe qué pasó entretanto, así que el episodio empieza de nuevo (y puede volver a
+ * avisar). El estado es O(1) por sensor y regla, en arreglos primitivos.
+ *
+ * Cuando se dispara una regla, la alerta del sensor (una por sensor: severidad máxima entre sus reglas
+ * disparadas) se crea o actualiza mediante {@link SensorAlertService} en un hilo propio, sin retrasar la
+ * ingesta. Las que el servicio aplica quedan además pendientes de que {@link AiAnomalyService} redacte su
+ * descripción.
+ *
+ * Reglas (rules.definitions), separadas por ';': {@code <métrica><op><umbral>@<segundos>:<severidad>}, con
+ * métrica ph|turbidity|conductivity|flowRate, op &lt; &lt;= &gt; &gt;= y severidad LOW|MEDIUM|HIGH.
+ */
+@Component
+@Order(200)
+public class SensorRuleEngine implements SensorIngestListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SensorRuleEngine.class);
+
+    private static final String[] METRICS = {"ph", "turbidity", "conductivity", "flowRate"};
+    private static final String[] METRIC_LABELS = {"pH", "turbidez", "conductividad", "flujo"};
+    private static final int FLOW = 3;
+    private static final long NOT_BREACHING = Long.MIN_VALUE;
+    private static final long NEVER = Long.MIN_VALUE;
+    private static final Pattern RULE = Pattern.compile(
+            "\\s*(ph|turbidity|conductivity|flowRate)\\s*(<=|>=|<|>)\\s*([0-9]+(?:\\.[0-9]+)?)\\s*@\\s*([0-9]+)\\s*:\\s*(LOW|MEDIUM|HIGH)\\s*");
+
+    record Rule(int metric, String op, double threshold, long durationMs, String severity) {
+        boolean breached(double v) {
+            return switch (op) {
+                case "<" -> v < threshold;
+                case "<=" -> v <= threshold;
+                case ">" -> v > threshold;
+                default -> v >= threshold;
+            };
+        }
+
+        boolean above() { return op.charAt(0) == '>'; }
+    }
+
+    /**
+     * Alerta levantada por el motor, con los datos que la justifican. {@code rules} identifica las reglas
+     * disparadas (sin valores ni fechas), p.ej. {@code ph<6.5,flowRate>0.8}; {@code alertId} es la alerta que
+     * creó o actualizó el servicio (null hasta aplicarse).
+     */
+    public record Finding(Integer sensorId, String severity, String rules, String description, String solution,
+                          Instant from, Instant to, Long alertId) {
+        Finding withAlert(Long id) {
+            return new Finding(sensorId, severity, rules, description, solution, from, to, id);
+        }
+    }
+
+    private final SensorAlertService alertService;
+    private final Counter raised;
+
+    @Value("${rules.definitions:ph<6.0@0:HIGH;ph>9.0@0:HIGH;ph<6.5@60:MEDIUM;ph>8.5@60:MEDIUM;turbidity>=2.0@0:HIGH;turbidity>=1.0@60:MEDIUM;conductivity>=800@0:HIGH;conductivity>=500@60:MEDIUM;flowRate>0.8@300:MEDIUM}")
+    private String definitions;
+
+    @Value("${rules.flow-solution:cerrar llave de paso y revisar posible fuga}")
+    private String flowSolution;
+
+    @Value("${rules.max-gap-seconds:120}")
+    private long maxGapSeconds;
+
+    private Rule[] rules = new Rule[0];
+    private long maxGapMs;
+    private ExecutorService raiser;
+    private final Map<Integer, Finding> pendingEnrichment = new ConcurrentHashMap<>();
+
+    // Estado por sensor (slot) y por sensor x regla (slot * reglas + r); protegido por el monitor del motor
+    private final LongIntHashMap slots = new LongIntHashMap();
+    private long[] lastTs = new long[16];
+    private long[] since = new long[0];
+    private double[] peak = new double[0];
+    private boolean[] firing = new boolean[0];
+
+    public SensorRuleEngine(SensorAlertService alertService, MeterRegistry registry) {
+        this.alertService = alertService;
+        this.raised = Counter.builder("rules.alerts.raised").register(registry);
+    }
+
+    @PostConstruct
+    void start() {
+        rules = parse(definitions);
+        maxGapMs = Math.max(1, maxGapSeconds) * 1000L;
+        Arrays.fill(lastTs, NEVER);
+        since = new long[lastTs.length * rules.length];
+        peak = new double[since.length];
+        firing = new boolean[since.length];
+        Arrays.fill(since, NOT_BREACHING);
+        raiser = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "rule-engine-alerts");
+            t.setDaemon(true);
+            return t;
+        });
+        log.info("Motor de reglas con {} reglas", rules.length);
+    }
+
+    @PreDestroy
+    void stop() {
+        raiser.shutdown();
+    }
+
+    @Override
+    public void onReadings(List<SensorRecordDTO> records) {
+        List<Finding> findings = evaluate(records, true);
+        for (Finding f : findings) {
+            raised.increment();
+            raiser.execute(() -> raise(f));
+        }
+    }
+
+    // Al arrancar solo se reconstruye el estado: lo que ya estaba disparado no se vuelve a levantar
+    @Override
+    public void onWarmUp(List<SensorRecordDTO> records) {
+        List<SensorRecordDTO> sorted = new ArrayList<>(records.size());
+        for (SensorRecordDTO r : records) if (r.timestamp() != null) sorted.add(r);
+        sorted.sort(Comparator.comparing(SensorRecordDTO::timestamp));
+        evaluate(sorted, false);
+    }
+
+    /**
+     * Alertas levantadas por el motor desde la última llamada (la más reciente por sensor).
+     */
+    public Map<Integer, Finding> drainPendingEnrichment() {
+        Map<Integer, Finding> out = new LinkedHashMap<>();
+        for (Integer sid : new ArrayList<>(pendingEnrichment.keySet())) {
+            Finding f = pendingEnrichment.remove(sid);
+            if (f != null) out.put(sid, f);
+        }
+        return out;
+    }
+
+    private synchronized List<Finding> evaluate(List<SensorRecordDTO> records, boolean raise) {
+        List<Finding> out = null;
+        int n = rules.length;
+        for (SensorRecordDTO r : records) {
+            Integer sid = r.sensorId();
+            if (sid == null || sid > 1_000_000_000 || r.timestamp() == null) continue;
+            long ts = r.timestamp().toEpochMilli();
+            int slot = slot(sid);
+            if (ts < lastTs[slot]) continue; // fuera de orden: no altera las duraciones
+            if (lastTs[slot] != NEVER && ts - lastTs[slot] > maxGapMs) {
+                for (int k = slot * n; k < slot * n + n; k++) {
+                    since[k] = NOT_BREACHING;
+                    firing[k] = false;
+                }
+            }
+            lastTs[slot] = ts;
+
+            boolean newlyFiring = false;
+            for (int i = 0; i < n; i++) {
+                Rule rule = rules[i];
+                double v = value(r, rule.metric());
+                if (Double.isNaN(v)) continue; // sin dato válido: no confirma ni rearma
+                int k = slot * n + i;
+                if (!rule.breached(v)) {
+                    since[k] = NOT_BREACHING;
+                    firing[k] = false;
+                    continue;
+                }
+                if (since[k] == NOT_BREACHING) {
+                    since[k] = ts;
+                    peak[k] = v;
+                } else {
+                    peak[k] = rule.above() ? Math.max(peak[k], v) : Math.min(peak[k], v);
+                }
+                if (!firing[k] && ts - since[k] >= rule.durationMs()) {
+                    firing[k] = true;
+                    newlyFiring = true;
+                }
+            }
+            if (newlyFiring && raise) {
+                if (out == null) out = new ArrayList<>();
+                out.add(finding(sid, slot, ts));
+            }
+        }
+        return out == null ? List.of() : out;
+    }
+
+    // Alerta compuesta del sensor a partir de todas sus reglas disparadas
+    private Finding finding(int sid, int slot, long ts) {
+        int n = rules.length;
+        String severity = null;
+        long from = ts;
+        boolean flow = false;
+        StringBuilder description = new StringBuilder();
+        StringBuilder fired = new StringBuilder();
+        Instant to = Instant.ofEpochMilli(ts).truncatedTo(ChronoUnit.SECONDS);
+        for (int i = 0; i < n; i++) {
+            int k = slot * n + i;
+            if (!firing[k]) continue;
+            Rule rule = rules[i];
+            if (severity == null || SensorAlertService.severityRank(rule.severity()) > SensorAlertService.severityRank(severity)) {
+                severity = rule.severity();
+            }
+            from = Math.min(from, since[k]);
+            flow |= rule.metric() == FLOW;
+            if (fired.length() > 0) fired.append(',');
+            fired.append(METRICS[rule.metric()]).append(rule.op()).append(rule.threshold());
+            if (description.length() > 0) description.append("; ");
+            description.append(METRIC_LABELS[rule.metric()]).append('~')
+                    .append(String.format(Locale.ROOT, "%.2f", peak[k]))
+                    .append(" (").append(rule.op()).append(' ')
+                    .append(String.format(Locale.ROOT, "%.2f", rule.threshold())).append(") entre ")
+                    .append(Instant.ofEpochMilli(since[k]).truncatedTo(ChronoUnit.SECONDS)).append(" y ").append(to);
+        }
+        return new Finding(sid, severity, fired.toString(), description.toString(), flow ? flowSolution : null,
+                Instant.ofEpochMilli(from).truncatedTo(ChronoUnit.SECONDS), to, null);
+    }
+
+    // Solo lo que el servicio aplicó queda pendiente de redactar: si lo suprimió (hay una alerta activa más grave)
+    // no hay alerta que enriquecer
+    private void raise(Finding f) {
+        try {
+            alertService.createOrUpdateAlertForSensor(SensorAlertEntity.builder()
+                    .sensorId(f.sensorId())
+                    .severity(f.severity())
+                    .description(f.description())
+                    .solution(f.solution())
+                    .active(true)
+                    .build())
+                    .ifPresent(a -> pendingEnrichment.put(f.sensorId(), f.withAlert(a.getId())));
+        } catch (Exception e) {
+            log.warn("No se pudo registrar la alerta del motor de reglas para el sensor {}: {}", f.sensorId(), e.getMessage());
+        }
+    }
+
+    private int slot(int sid) {
+        int slot = slots.get(sid);
+        if (slot != LongIntHashMap.MISSING) return slot;
+        slot = slots.size();
+        if (slot == lastTs.length) grow();
+        slots.put(sid, slot);
+        return slot;
+    }
+
+    private void grow() {
+        int cap = lastTs.length * 2;
+        int oldSlots = lastTs.length;
+        lastTs = Arrays.copyOf(lastTs, cap);
+        Arrays.fill(lastTs, oldSlots, cap, NEVER);
+        int old = since.length;
+        since = Arrays.copyOf(since, cap * rules.length);
+        Arrays.fill(since, old, since.length, NOT_BREACHING);
+        peak = Arrays.copyOf(peak, since.length);
+        firing = Arrays.copyOf(firing, since.length);
+    }
+
+    // Lecturas inválidas (pH <= 0, flujo negativo, valores no finitos) no cuentan
+    private static double value(SensorRecordDTO r, int metric) {
+        Double v = switch (metric) {
+            case 0 -> r.ph() != null && r.ph() > 0 ? r.ph() : null;
+            case 1 -> r.turbidity();
+            case 2 -> r.conductivity();
+            default -> r.flowRate() != null && r.flowRate() >= 0 ? r.flowRate() : null;
+        };
+        return v == null || !Double.isFinite(v) ? Double.NaN : v;
+    }
+
+    static Rule[] parse(String spec) {
+        List<Rule> out = new ArrayList<>();
+        if (spec != null) {
+            for (String part : spec.split(";")) {
+                if (part.isBlank()) continue;
+                Matcher m = RULE.matcher(part);
+                if (!m.matches()) throw new IllegalArgumentException("Regla inválida en rules.definitions: " + part.trim());
+                out.add(new Rule(Arrays.asList(METRICS).indexOf(m.group(1)), m.group(2), Double.parseDouble(m.group(3)),
+                        Long.parseLong(m.group(4)) * 1000, m.group(5)));
+            }
+        }
+        return out.toArray(Rule[]::new);
+    }
+}
@@ -0,0 +1,149 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Serie de lecturas en formato columnar: timestamps en nanos, ids de sensor, las cuatro métricas en arreglos
+ * double y un bitmap de nulos. Evita crear un objeto por fila; las vistas {@link SensorRecordDTO} se generan
+ * solo cuando se piden.
+ */
+public final class SensorSeries {
+
+    public static final int PH = 0;
+    public static final int TURBIDITY = 1;
+    public static final int CONDUCTIVITY = 2;
+    public static final int FLOW_RATE = 3;
+    public static final int METRICS = 4;
+
+    /** Id usado para filas sin sensor_id. */
+    public static final int NO_SENSOR = Integer.MIN_VALUE;
+
+    private long[] timestamps;
+    private int[] sensorIds;
+    private final double[][] values = new double[METRICS][];
+    // bit (fila * METRICS + métrica) encendido = valor nulo
+    private final BitSet nulls = new BitSet();
+    private int size;
+
+    public SensorSeries() {
+        this(256);
+    }
+
+    public SensorSeries(int capacity) {
+        capacity = Math.max(16, capacity);
+        timestamps = new long[capacity];
+        sensorIds = new int[capacity];
+        for (int m = 0; m < METRICS; m++) values[m] = new double[capacity];
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public long timestampNanos(int row) { return timestamps[row]; }
+
+    public int sensorId(int row) { return sensorIds[row]; }
+
+    public boolean isNull(int row, int metric) { return nulls.get(row * METRICS + metric); }
+
+    /** Valor de la métrica; NaN si es nulo. */
+    public double value(int row, int metric) {
+        return isNull(row, metric) ? Double.NaN : values[metric][row];
+    }
+
+    /**
+     * Agrega una fila vacía (todas las métricas nulas) y devuelve su índice.
+     */
+    public int addRow(long timestampNanos, int sensorId) {
+        if (size == timestamps.length) grow();
+        int row = size++;
+        timestamps[row] = timestampNanos;
+        sensorIds[row] = sensorId;
+        nulls.set(row * METRICS, row * METRICS + METRICS);
+        return row;
+    }
+
+    public void set(int row, int metric, double v) {
+        values[metric][row] = v;
+        nulls.clear(row * METRICS + metric);
+    }
+
+    public void add(SensorRecordDTO r) {
+        int row = addRow(r.timestamp() != null ? EpochNanos.of(r.timestamp()) : 0L,
+                r.sensorId() != null ? r.sensorId() : NO_SENSOR);
+        if (r.ph() != null) set(row, PH, r.ph());
+        if (r.turbidity() != null) set(row, TURBIDITY, r.turbidity());
+        if (r.conductivity() != null) set(row, CONDUCTIVITY, r.conductivity());
+        if (r.flowRate() != null) set(row, FLOW_RATE, r.flowRate());
+    }
+
+    /**
+     * Anexa al final todas las filas de {@code other}.
+     */
+    public void appendAll(SensorSeries other) {
+        for (int i = 0; i < other.size; i++) appendRow(other, i);
+    }
+
+    /**
+     * Anexa al final la fila {@code i} de {@code other}.
+     */
+    public void appendRow(SensorSeries other, int i) {
+        int row = addRow(other.timestamps[i], other.sensorIds[i]);
+        for (int m = 0; m < METRICS; m++) {
+            if (!other.isNull(i, m)) set(row, m, other.values[m][i]);
+        }
+    }
+
+    /**
+     * Nueva serie con solo las filas marcadas en {@code keep}.
+     */
+    public SensorSeries select(BitSet keep) {
+        SensorSeries out = new SensorSeries(keep.cardinality());
+        for (int i = keep.nextSetBit(0); i >= 0 && i < size; i = keep.nextSetBit(i + 1)) {
+            int row = out.addRow(timestamps[i], sensorIds[i]);
+            for (int m = 0; m < METRICS; m++) {
+                if (!isNull(i, m)) out.set(row, m, values[m][i]);
+            }
+        }
+        return out;
+    }
+
+    public SensorRecordDTO toDto(int row) {
+        return new SensorRecordDTO(
+                EpochNanos.toInstant(timestamps[row]),
+                sensorIds[row] == NO_SENSOR ? null : sensorIds[row],
+                boxed(row, PH),
+                boxed(row, TURBIDITY),
+                boxed(row, CONDUCTIVITY),
+                boxed(row, FLOW_RATE)
+        );
+    }
+
+    public List<SensorRecordDTO> toDtos() {
+        List<SensorRecordDTO> out = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) out.add(toDto(i));
+        return out;
+    }
+
+    public static SensorSeries of(List<SensorRecordDTO> records) {
+        SensorSeries s = new SensorSeries(records.size());
+        for (SensorRecordDTO r : records) s.add(r);
+        return s;
+    }
+
+    private Double boxed(int row, int metric) {
+        return isNull(row, metric) ? null : values[metric][row];
+    }
+
+    private void grow() {
+        int cap = timestamps.length * 2;
+        timestamps = Arrays.copyOf(timestamps, cap);
+        sensorIds = Arrays.copyOf(sensorIds, cap);
+        for (int m = 0; m < METRICS; m++) values[m] = Arrays.copyOf(values[m], cap);
+    }
+}
@@ -0,0 +1,109 @@
+package com.hydro.watertap.service;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.BaseIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.FloatingPointVector;
+import org.apache.arrow.vector.TimeStampVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+
+/**
+ * Decodifica los record batches Arrow de una consulta a Influx directamente sobre un {@link SensorSeries},
+ * leyendo las columnas como primitivos sin materializar objetos por fila.
+ */
+final class SensorSeriesDecoder {
+
+    private static final String[] METRIC_COLUMNS = {"ph", "turbidity", "conductivity", "flowRate"};
+
+    private SensorSeriesDecoder() {}
+
+    /**
+     * Si el esquema del batch se puede leer de forma columnar. Todos los batches de una consulta comparten
+     * esquema, así que basta con mirar el primero. No se puede, p.ej., con columnas de tag codificadas con
+     * diccionario: el cliente de Influx no expone los diccionarios.
+     */
+    static boolean readable(VectorSchemaRoot root) {
+        FieldVector sensor = sensorVector(root);
+        if (!(root.getVector("time") instanceof TimeStampVector) || !readableId(sensor)) return false;
+        for (String column : METRIC_COLUMNS) {
+            FieldVector v = root.getVector(column);
+            if (v != null && !(v instanceof FloatingPointVector) && !(v instanceof BaseIntVector)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Anexa las filas del batch a la serie. Devuelve false (sin anexar nada) si el esquema no es
+     * {@link #readable}.
+     */
+    static boolean append(VectorSchemaRoot root, SensorSeries out) {
+        if (!readable(root)) return false;
+        TimeStampVector ts = (TimeStampVector) root.getVector("time");
+        FieldVector sensor = sensorVector(root);
+        FieldVector[] metrics = new FieldVector[METRIC_COLUMNS.length];
+        for (int m = 0; m < metrics.length; m++) metrics[m] = root.getVector(METRIC_COLUMNS[m]);
+
+        long scale = nanosPerUnit(ts);
+        int rows = root.getRowCount();
+        for (int i = 0; i < rows; i++) {
+            long t = ts.isNull(i) ? 0L : ts.get(i) * scale;
+            int row = out.addRow(t, sensorId(sensor, i));
+            for (int m = 0; m < metrics.length; m++) {
+                FieldVector v = metrics[m];
+                if (v == null || v.isNull(i)) continue;
+                out.set(row, m, v instanceof FloatingPointVector f
+                        ? f.getValueAsDouble(i)
+                        : ((BaseIntVector) v).getValueAsLong(i));
+            }
+        }
+        return true;
+    }
+
+    private static FieldVector sensorVector(VectorSchemaRoot root) {
+        FieldVector sensor = root.getVector("sensor_id");
+        return sensor != null ? sensor : root.getVector("sensorId");
+    }
+
+    private static boolean readableId(FieldVector v) {
+        if (v == null || v.getField().getDictionary() != null) return false;
+        return v instanceof VarCharVector || v instanceof BaseIntVector;
+    }
+
+    private static int sensorId(FieldVector v, int i) {
+        if (v.isNull(i)) return SensorSeries.NO_SENSOR;
+        if (v instanceof BaseIntVector iv) {
+            long n = iv.getValueAsLong(i);
+            return n < Integer.MIN_VALUE || n > Integer.MAX_VALUE ? SensorSeries.NO_SENSOR : (int) n;
+        }
+        // Parsear el entero directamente desde los bytes UTF-8 del tag
+        VarCharVector s = (VarCharVector) v;
+        ArrowBuf data = s.getDataBuffer();
+        long pos = s.getStartOffset(i);
+        long end = pos + s.getValueLength(i);
+        if (pos == end) return SensorSeries.NO_SENSOR;
+        boolean negative = data.getByte(pos) == '-';
+        if (negative) pos++;
+        // Con 10 dígitos como mucho el acumulado cabe en un long; lo que no quepa en int no es un id válido
+        if (pos == end || end - pos > 10) return SensorSeries.NO_SENSOR;
+        long n = 0;
+        for (; pos < end; pos++) {
+            int d = data.getByte(pos) - '0';
+            if (d < 0 || d > 9) return SensorSeries.NO_SENSOR;
+            n = n * 10 + d;
+        }
+        if (n > Integer.MAX_VALUE) return SensorSeries.NO_SENSOR;
+        return (int) (negative ? -n : n);
+    }
+
+    private static long nanosPerUnit(TimeStampVector v) {
+        if (!(v.getField().getType() instanceof ArrowType.Timestamp t)) return 1L;
+        switch (t.getUnit()) {
+            case SECOND: return 1_000_000_000L;
+            case MILLISECOND: return 1_000_000L;
+            case MICROSECOND: return 1_000L;
+            default: return 1L;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.hydro.watertap.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams SSE de lecturas agrupados por filtro de sensores. Los suscriptores con el mismo
+ * {@link SensorFilter} comparten un grupo: el grupo lee y serializa a JSON una sola vez por disparo y
+ * reparte el mismo texto a todos. Un índice sensor -> grupos hace que cada micro-lote del
+ * {@link SensorEventBus} despierte solo a los grupos interesados; el sondeo cada
+ * stream.fallback-interval-ms queda solo como respaldo.
+ *
+ * Stream por deltas: snapshot inicial ("snapshot") y luego solo lecturas posteriores al cursor ("delta").
+ * El id de cada evento es el cursor ({@code epoch-seq} del buffer reciente), de modo que al reconectar con
+ * Last-Event-ID se continúa sin volver a pedir la ventana completa.
+ */
+@Service
+public class SensorStreamService {
+
+    private static final Logger log = LoggerFactory.getLogger(SensorStreamService.class);
+
+    static final String SNAPSHOT = "snapshot";
+    static final String DELTA = "delta";
+
+    private final SensorDataService sensorDataService;
+    private final RecentSensorBuffer recentBuffer;
+    private final SensorEventBus eventBus;
+    private final Bulkhead dashboard;
+    private final ObjectMapper objectMapper;
+
+    @Value("${stream.snapshot.minutes:5}")
+    private int snapshotMinutes;
+
+    // Sondeo de respaldo; si el buffer no está al día además se reenvía el snapshot con esta cadencia
+    @Value("${stream.fallback-interval-ms:15000}")
+    private long fallbackIntervalMs;
+
+    // Grupos por filtro e índice sensor -> grupos (los filtros "todos" van aparte)
+    private final Map<SensorFilter, Group> groups = new HashMap<>();
+    private final Map<Integer, Set<Group>> bySensor = new HashMap<>();
+    private final Set<Group> wildcard = new HashSet<>();
+    private Disposable dispatcher;
+
+    public SensorStreamService(SensorDataService sensorDataService, RecentSensorBuffer recentBuffer,
+                               SensorEventBus eventBus, @Qualifier("dashboardBulkhead") Bulkhead dashboard,
+                               ObjectMapper objectMapper) {
+        this.sensorDataService = sensorDataService;
+        this.recentBuffer = recentBuffer;
+        this.eventBus = eventBus;
+        this.dashboard = dashboard;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    void start() {
+        dispatcher = Flux.merge(
+                        eventBus.signals(),
+                        Flux.interval(Duration.ofMillis(fallbackIntervalMs)).map(t -> SensorEventBus.Touched.ALL))
+                .subscribe(this::dispatch);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (dispatcher != null) dispatcher.dispose();
+    }
+
+    /**
+     * Ventana reciente completa (stream clásico) como JSON ya serializado, recalculada a lo sumo cada
+     * stream.fallback-interval-ms; para tiempo real está {@link #deltaStream}.
+     */
+    public Flux<String> windowStream(SensorFilter filter) {
+        return Flux.defer(() -> {
+            Group g = join(filter, false);
+            return g.window.asFlux().doFinally(sig -> leave(g, false));
+        });
+    }
+
+    public Flux<ServerSentEvent<String>> deltaStream(String lastEventId, SensorFilter filter) {
+        return Flux.defer(() -> {
+            Group g = join(filter, true);
+            Subscriber sub = new Subscriber(g);
+            long resumeFrom = parseCursor(lastEventId);
+            Mono<ServerSentEvent<String>> first = dashboard.call(() -> sub.first(resumeFrom));
+            Flux<ServerSentEvent<String>> live = g.deltas.asFlux().concatMap(sub::onGroupEvent);
+            return first.concatWith(live).doFinally(sig -> leave(g, true));
+        });
+    }
+
+    String cursorId(long seq) {
+        return recentBuffer.epoch() + "-" + seq;
+    }
+
+    /** Cursor del Last-Event-ID, o -1 si falta, es inválido o es de otra instancia. */
+    long parseCursor(String lastEventId) {
+        if (lastEventId == null) return -1;
+        int dash = lastEventId.lastIndexOf('-');
+        if (dash <= 0 || !lastEventId.substring(0, dash).equals(recentBuffer.epoch())) return -1;
+        try {
+            return Long.parseLong(lastEventId.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void dispatch(SensorEventBus.Touched touched) {
+        List<Group> targets;
+        synchronized (this) {
+            if (touched.isAll()) {
+                targets = new ArrayList<>(groups.values());
+            } else {
+                Set<Group> hit = new HashSet<>(wildcard);
+                for (Integer sid : touched.sensorIds()) {
+                    Set<Group> gs = bySensor.get(sid);
+                    if (gs != null) hit.addAll(gs);
+                }
+                targets = new ArrayList<>(hit);
+            }
+        }
+        for (Group g : targets) g.refresh();
+    }
+
+    private synchronized Group join(SensorFilter filter, boolean delta) {
+        Group g = groups.get(filter);
+        if (g == null) {
+            g = new Group(filter);
+            groups.put(filter, g);
+            if (filter.isAll()) {
+                wildcard.add(g);
+            } else {
+                for (Integer sid : filter.sensorIds()) bySensor.computeIfAbsent(sid, k -> new HashSet<>()).add(g);
+            }
+        }
+        if (delta) {
+            g.deltaSubscribers++;
+        } else if (g.windowSubscribers++ == 0) {
+            g.lastWindowAt = 0;
+            g.refresh(); // primera ventana para este grupo
+        }
+        return g;
+    }
+
+    private synchronized void leave(Group g, boolean delta) {
+        if (delta) g.deltaSubscribers--; else g.windowSubscribers--;
+        if (g.deltaSubscribers > 0 || g.windowSubscribers > 0) return;
+        groups.remove(g.filter);
+        if (g.filter.isAll()) {
+            wildcard.remove(g);
+        } else {
+            for (Integer sid : g.filter.sensorIds()) {
+                Set<Group> gs = bySensor.get(sid);
+                if (gs != null && gs.remove(g) && gs.isEmpty()) bySensor.remove(sid);
+            }
+        }
+    }
+
+    private String json(List<SensorRecordDTO> readings) {
+        try {
+            return objectMapper.writeValueAsString(readings);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("No se pudo serializar lecturas", e);
+        }
+    }
+
+    private ServerSentEvent<String> sse(String type, long seq, String json) {
+        return ServerSentEvent.<String>builder(json).id(cursorId(seq)).event(type).build();
+    }
+
+    /**
+     * Evento de grupo ya serializado. Un delta cubre (from, to]; {@code json == null} si ninguna lectura
+     * pasó el filtro (solo avanza cursores).
+     */
+    private record GroupEvent(String type, long from, long to, String json) { }
+
+    private final class Group {
+        final SensorFilter filter;
+        int deltaSubscribers;
+        int windowSubscribers;
+        final Sinks.Many<GroupEvent> deltas = Sinks.many().multicast().directBestEffort();
+        final Sinks.Many<String> window = Sinks.many().replay().latest();
+
+        // Estado del productor, accedido solo dentro de drain()
+        private long cursor = -1;
+        private long lastSnapshotAt;
+        private volatile long lastWindowAt;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        Group(SensorFilter filter) {
+            this.filter = filter;
+            // Desde aquí: lo anterior lo cubre el primer evento propio de cada suscriptor
+            this.cursor = recentBuffer.isLive() ? recentBuffer.lastSeq() : -1;
+        }
+
+        /** Pide recalcular; los disparos que llegan mientras se calcula se funden en uno. */
+        void refresh() {
+            dirty.set(true);
+            if (running.compareAndSet(false, true)) {
+                dashboard.run(this::drain).subscribe(null, e -> {
+                    running.set(false);
+                    log.warn("Stream de sensores {}: {}", filter, e.getMessage());
+                });
+            }
+        }
+
+        private void drain() {
+            do {
+                while (dirty.getAndSet(false)) {
+                    try {
+                        produce();
+                    } catch (RuntimeException e) {
+                        log.warn("Stream de sensores {}: {}", filter, e.getMessage());
+                    }
+                }
+                running.set(false);
+            } while (dirty.get() && running.compareAndSet(false, true));
+        }
+
+        private void produce() {
+            int deltaSubs;
+            int windowSubs;
+            synchronized (SensorStreamService.this) {
+                deltaSubs = deltaSubscribers;
+                windowSubs = windowSubscribers;
+            }
+            if (deltaSubs > 0) produceDelta();
+            // La ventana completa se recalcula como mucho cada fallbackIntervalMs, no en cada micro-lote
+            // (con un 10% de holgura para que el tick del sondeo de respaldo no se la salte)
+            long now = System.currentTimeMillis();
+            if (windowSubs > 0 && now - lastWindowAt >= fallbackIntervalMs * 9 / 10) {
+                lastWindowAt = now;
+                window.tryEmitNext(json(filter.apply(sensorDataService.getRecentSensorData(snapshotMinutes))));
+            }
+        }
+
+        private void produceDelta() {
+            if (!recentBuffer.covers(snapshotMinutes)) {
+                // Buffer sin precargar o sin ingesta reciente: snapshot desde Influx cada fallbackIntervalMs
+                if (System.currentTimeMillis() - lastSnapshotAt < fallbackIntervalMs) return;
+                RecentSensorBuffer.Slice slice = sensorDataService.getRecentSnapshot(snapshotMinutes);
+                lastSnapshotAt = System.currentTimeMillis();
+                cursor = slice.seq();
+                deltas.tryEmitNext(new GroupEvent(SNAPSHOT, -1, slice.seq(), json(filter.apply(slice.readings()))));
+                return;
+            }
+            RecentSensorBuffer.Slice slice = cursor >= 0 ? sensorDataService.getRecentSince(cursor) : null;
+            if (slice == null) {
+                // Sin cursor o desbordado: los suscriptores se ponen al día por su cuenta con el siguiente evento
+                cursor = recentBuffer.lastSeq();
+                return;
+            }
+            List<SensorRecordDTO> readings = filter.apply(slice.readings());
+            deltas.tryEmitNext(new GroupEvent(DELTA, cursor, slice.seq(), readings.isEmpty() ? null : json(readings)));
+            cursor = slice.seq();
+        }
+    }
+
+    /** Estado de un suscriptor del stream por deltas; sus métodos se ejecutan en serie. */
+    private final class Subscriber {
+        private final Group group;
+        private long cursor = -1;
+
+        Subscriber(Group group) {
+            this.group = group;
+        }
+
+        ServerSentEvent<String> first(long resumeFrom) {
+            RecentSensorBuffer.Slice slice = resumeFrom >= 0 ? sensorDataService.getRecentSince(resumeFrom) : null;
+            if (slice != null) {
+                cursor = slice.seq();
+                return sse(DELTA, slice.seq(), json(group.filter.apply(slice.readings())));
+            }
+            return snapshot();
+        }
+
+        Mono<ServerSentEvent<String>> onGroupEvent(GroupEvent ev) {
+            if (SNAPSHOT.equals(ev.type())) {
+                cursor = ev.to();
+                return Mono.just(sse(SNAPSHOT, ev.to(), ev.json()));
+            }
+            if (ev.to() <= cursor) return Mono.empty(); // ya incluido
+            if (ev.from() == cursor) {
+                // Caso normal: se reenvía el texto compartido del grupo
+                cursor = ev.to();
+                return ev.json() == null ? Mono.empty() : Mono.just(sse(DELTA, ev.to(), ev.json()));
+            }
+            // Hueco o solapamiento (recién llegado, o se perdió un evento): ponerse al día por separado
+            return dashboard.call(this::catchUp); // null = nada que enviar
+        }
+
+        private ServerSentEvent<String> catchUp() {
+            RecentSensorBuffer.Slice slice = sensorDataService.getRecentSince(cursor);
+            if (slice == null) return snapshot();
+            cursor = slice.seq();
+            List<SensorRecordDTO> readings = group.filter.apply(slice.readings());
+            return readings.isEmpty() ? null : sse(DELTA, slice.seq(), json(readings));
+        }
+
+        private ServerSentEvent<String> snapshot() {
+            RecentSensorBuffer.Slice slice = sensorDataService.getRecentSnapshot(snapshotMinutes);
+            cursor = slice.seq();
+            return sse(SNAPSHOT, slice.seq(), json(group.filter.apply(slice.readings())));
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.influxdb.v3.client.InfluxDBApiHttpException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Write-ahead log local para la ingesta: las lecturas aceptadas se anexan a segmentos mapeados en memoria
+ * y un replayer en segundo plano las vuelca a Influx en lotes grandes, avanzando un checkpoint y borrando
+ * los segmentos ya volcados. Tras un reinicio se reanuda desde el checkpoint.
+ *
+ * Formato de registro (48 bytes): magic(1) nullMask(1) pad(2) sensorId(4) epochNanos(8) ph, turbidity,
+ * conductivity, flowRate (4 x 8). nullMask: bit 0..3 = métrica nula, bit 4 = sensorId nulo.
+ *
+ * Si Influx se cae el replayer reintenta sin límite (el backlog lo acota ingest.wal.max-segments). Un lote
+ * que Influx rechaza por inválido (400/422) se reintenta ingest.wal.max-replay-attempts veces y luego se copia
+ * a dead-letter/ y el checkpoint lo salta, para no bloquear el resto del log.
+ */
+@Component
+public class SensorWriteAheadLog {
+
+    private static final Logger log = LoggerFactory.getLogger(SensorWriteAheadLog.class);
+
+    static final int RECORD_BYTES = 48;
+    private static final byte MAGIC = 0x5A;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String DEAD_LETTER_DIR = "dead-letter";
+    private static final byte NULL_SENSOR = 16;
+
+    private final SensorDataService sensorDataService;
+    private final Counter deadLettered;
+
+    @Value("${ingest.wal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${ingest.wal.dir:./data/wal}")
+    private String dir;
+
+    @Value("${ingest.wal.segment-bytes:16777216}")
+    private int segmentBytes;
+
+    @Value("${ingest.wal.max-segments:64}")
+    private int maxSegments;
+
+    @Value("${ingest.wal.fsync:false}")
+    private boolean fsync;
+
+    @Value("${ingest.wal.replay-batch:5000}")
+    private int replayBatch;
+
+    @Value("${ingest.wal.replay-interval-ms:500}")
+    private long replayIntervalMs;
+
+    @Value("${ingest.wal.max-replay-attempts:5}")
+    private int maxReplayAttempts;
+
+    private Path walDir;
+    // seq -> ruta del segmento; el último es el activo
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private long activeSeq;
+    private MappedByteBuffer active;
+    private volatile int writePos;
+
+    // Posición del replayer (checkpoint)
+    private long replaySeq;
+    private int replayPos;
+    private long mappedReplaySeq = -1;
+    private MappedByteBuffer replayBuffer;
+    // Rechazos seguidos del lote en el checkpoint
+    private int rejectedAttempts;
+
+    private ScheduledExecutorService replayer;
+
+    public SensorWriteAheadLog(SensorDataService sensorDataService, MeterRegistry registry) {
+        this.sensorDataService = sensorDataService;
+        this.deadLettered = Counter.builder("ingest.wal.dead-lettered").baseUnit("readings").register(registry);
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    @PostConstruct
+    void open() throws IOException {
+        if (!enabled) return;
+        segmentBytes = Math.max(RECORD_BYTES, segmentBytes - segmentBytes % RECORD_BYTES);
+        walDir = Paths.get(dir);
+        Files.createDirectories(walDir);
+        try (Stream<Path> files = Files.list(walDir)) {
+            files.filter(f -> f.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                 .forEach(f -> segments.put(parseSeq(f), f));
+        }
+        if (segments.isEmpty()) {
+            openActive(1);
+        } else {
+            activeSeq = segments.lastKey();
+            active = map(segments.get(activeSeq));
+            writePos = validLength(active);
+        }
+        loadCheckpoint();
+        if (!segments.isEmpty()) {
+            long pending = countPending();
+            if (pending > 0) log.info("WAL: {} lecturas pendientes de volcar a Influx", pending);
+        }
+
+        replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sensor-wal-replayer");
+            t.setDaemon(true);
+            return t;
+        });
+        replayer.scheduleWithFixedDelay(this::replay, replayIntervalMs, replayIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void close() throws InterruptedException {
+        if (replayer == null) return;
+        replayer.shutdown();
+        replayer.awaitTermination(5, TimeUnit.SECONDS);
+        synchronized (this) {
+            if (active != null) active.force();
+        }
+    }
+
+    /**
+     * Anexa las lecturas al log. Devuelve false si el backlog superó ingest.wal.max-segments.
+     */
+    public synchronized boolean append(List<SensorRecordDTO> records) throws IOException {
+        if (!fits(records.size())) return false;
+        write(records);
+        return true;
+    }
+
+    /**
+     * Como {@link #append(List)}, pero si el backlog está lleno espera hasta {@code timeoutMs} a que el
+     * replayer libere un segmento (sin sondear: el replayer avisa al borrar cada segmento).
+     */
+    public synchronized boolean append(List<SensorRecordDTO> records, long timeoutMs)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!fits(records.size())) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+        write(records);
+        return true;
+    }
+
+    private boolean fits(int count) {
+        return segments.size() < maxSegments || writePos + (long) count * RECORD_BYTES <= segmentBytes;
+    }
+
+    private void write(List<SensorRecordDTO> records) throws IOException {
+        for (SensorRecordDTO r : records) {
+            if (writePos + RECORD_BYTES > segmentBytes) {
+                active.force();
+                openActive(activeSeq + 1);
+            }
+            encode(active, writePos, r);
+            writePos += RECORD_BYTES;
+        }
+        if (fsync) active.force();
+    }
+
+    void replay() {
+        try {
+            while (true) {
+                List<SensorRecordDTO> batch = new ArrayList<>(Math.min(replayBatch, 1024));
+                long seq;
+                int start;
+                int end;
+                synchronized (this) {
+                    seq = replaySeq;
+                    start = replayPos;
+                    MappedByteBuffer buf = replayBufferFor(seq);
+                    int limit = seq == activeSeq ? writePos : validLength(buf);
+                    end = start;
+                    while (end < limit && batch.size() < replayBatch) {
+                        batch.add(decode(buf, end));
+                        end += RECORD_BYTES;
+                    }
+                    if (batch.isEmpty()) {
+                        if (seq == activeSeq) return; // al día
+                        dropSegment(seq);
+                        continue;
+                    }
+                }
+
+                // Escritura fuera del lock: las peticiones siguen anexando mientras tanto
+                try {
+                    sensorDataService.saveSensorData(batch);
+                } catch (RuntimeException e) {
+                    if (!rejected(e)) throw e;
+                    synchronized (this) {
+                        if (++rejectedAttempts < maxReplayAttempts) throw e;
+                        deadLetter(seq, start, end);
+                        log.error("WAL: Influx rechazó {} veces un lote de {} lecturas ({}); copiado a {} y omitido",
+                                rejectedAttempts, batch.size(), e.getMessage(), DEAD_LETTER_DIR);
+                        deadLettered.increment(batch.size());
+                    }
+                }
+
+                synchronized (this) {
+                    rejectedAttempts = 0;
+                    replayPos = end;
+                    saveCheckpoint();
+                }
+            }
+        } catch (Exception e) {
+            log.warn("WAL: no se pudo volcar a Influx, se reintentará: {}", e.getMessage());
+        }
+    }
+
+    // Lote inválido para Influx (reintentarlo no sirve), a diferencia de caídas, 5xx, 429 o credenciales
+    private static boolean rejected(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof InfluxDBApiHttpException h) return h.statusCode() == 400 || h.statusCode() == 422;
+        }
+        return false;
+    }
+
+    private void deadLetter(long seq, int start, int end) throws IOException {
+        Path dlq = walDir.resolve(DEAD_LETTER_DIR);
+        Files.createDirectories(dlq);
+        Path p = dlq.resolve(String.format("%s%020d-%d%s", SEGMENT_PREFIX, seq, start, SEGMENT_SUFFIX));
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(replayBufferFor(seq).slice(start, end - start));
+        }
+    }
+
+    private MappedByteBuffer replayBufferFor(long seq) throws IOException {
+        if (seq == activeSeq) return active;
+        if (mappedReplaySeq != seq) {
+            replayBuffer = map(segments.get(seq));
+            mappedReplaySeq = seq;
+        }
+        return replayBuffer;
+    }
+
+    private void dropSegment(long seq) throws IOException {
+        Path p = segments.remove(seq);
+        replayBuffer = null;
+        mappedReplaySeq = -1;
+        if (p != null) Files.deleteIfExists(p);
+        replaySeq = segments.isEmpty() ? activeSeq : segments.firstKey();
+        replayPos = 0;
+        saveCheckpoint();
+        notifyAll(); // hay sitio para los anexados en espera
+    }
+
+    private void openActive(long seq) throws IOException {
+        Path p = walDir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+        segments.put(seq, p);
+        active = map(p);
+        activeSeq = seq;
+        writePos = 0;
+    }
+
+    private MappedByteBuffer map(Path p) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private int validLength(MappedByteBuffer buf) {
+        int pos = 0;
+        while (pos + RECORD_BYTES <= buf.capacity() && buf.get(pos) == MAGIC) pos += RECORD_BYTES;
+        return pos;
+    }
+
+    private long countPending() {
+        long total = 0;
+        for (long seq : segments.keySet()) {
+            if (seq < replaySeq) continue;
+            int len = seq == activeSeq ? writePos : segmentBytes;
+            total += (len - (seq == replaySeq ? replayPos : 0)) / RECORD_BYTES;
+        }
+        return Math.max(0, total);
+    }
+
+    private void loadCheckpoint() throws IOException {
+        replaySeq = segments.firstKey();
+        replayPos = 0;
+        Path cp = walDir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(cp)) return;
+        String[] parts = Files.readString(cp, StandardCharsets.UTF_8).trim().split("\\s+");
+        try {
+            long seq = Long.parseLong(parts[0]);
+            int pos = Integer.parseInt(parts[1]);
+            if (segments.containsKey(seq)) {
+                replaySeq = seq;
+                replayPos = pos;
+            }
+        } catch (RuntimeException e) {
+            log.warn("WAL: checkpoint inválido, se reproduce desde el primer segmento");
+        }
+    }
+
+    private void saveCheckpoint() throws IOException {
+        Path tmp = walDir.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(tmp, replaySeq + " " + replayPos, StandardCharsets.UTF_8);
+        Files.move(tmp, walDir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long parseSeq(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void encode(MappedByteBuffer buf, int pos, SensorRecordDTO r) {
+        byte mask = 0;
+        if (r.ph() == null) mask |= 1;
+        if (r.turbidity() == null) mask |= 2;
+        if (r.conductivity() == null) mask |= 4;
+        if (r.flowRate() == null) mask |= 8;
+        if (r.sensorId() == null) mask |= NULL_SENSOR;
+        buf.put(pos + 1, mask);
+        buf.putInt(pos + 4, r.sensorId() != null ? r.sensorId() : 0);
+        buf.putLong(pos + 8, EpochNanos.of(r.timestamp()));
+        buf.putDouble(pos + 16, r.ph() != null ? r.ph() : 0.0);
+        buf.putDouble(pos + 24, r.turbidity() != null ? r.turbidity() : 0.0);
+        buf.putDouble(pos + 32, r.conductivity() != null ? r.conductivity() : 0.0);
+        buf.putDouble(pos + 40, r.flowRate() != null ? r.flowRate() : 0.0);
+        // El magic se escribe al final: un registro a medias no se considera válido
+        buf.put(pos, MAGIC);
+    }
+
+    private static SensorRecordDTO decode(MappedByteBuffer buf, int pos) {
+        byte mask = buf.get(pos + 1);
+        long nanos = buf.getLong(pos + 8);
+        return new SensorRecordDTO(
+                EpochNanos.toInstant(nanos),
+                (mask & NULL_SENSOR) != 0 ? null : buf.getInt(pos + 4),
+                (mask & 1) != 0 ? null : buf.getDouble(pos + 16),
+                (mask & 2) != 0 ? null : buf.getDouble(pos + 24),
+                (mask & 4) != 0 ? null : buf.getDouble(pos + 32),
+                (mask & 8) != 0 ? null : buf.getDouble(pos + 40)
+        );
+    }
+}
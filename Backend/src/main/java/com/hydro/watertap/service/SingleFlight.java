@@ -0,0 +1,73 @@
+package com.hydro.watertap.service;
+
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalescencia de llamadas concurrentes idénticas: mientras una ejecución para una clave está en curso,
+ * las demás llamadas con la misma clave esperan y reciben ese mismo resultado (o excepción) en lugar de
+ * repetir el trabajo. Nada se guarda una vez terminada la ejecución.
+ *
+ * El resultado se comparte entre todos los llamadores, así que no deben modificarlo.
+ */
+public final class SingleFlight<K, V> {
+
+    /** Se notifica cada vez que una llamada se une a una ejecución ya en curso. */
+    public interface Listener {
+        void onCoalesced();
+    }
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Listener listener;
+
+    public SingleFlight(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Variante bloqueante: el primer llamador ejecuta {@code work} en su propio hilo.
+     */
+    public V run(K key, Supplier<V> work) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            listener.onCoalesced();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+        try {
+            V v = work.get();
+            mine.complete(v);
+            return v;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Variante reactiva: si ya hay una ejecución en curso se espera su futuro sin bloquear un hilo;
+     * si no, se ejecuta {@code work} al suscribirse (en el scheduler que elija el llamador).
+     */
+    public Mono<V> mono(K key, Supplier<V> work) {
+        return Mono.defer(() -> {
+            CompletableFuture<V> existing = inFlight.get(key);
+            if (existing != null) {
+                listener.onCoalesced();
+                // suppressCancel: cancelar este suscriptor no cancela la ejecución compartida
+                return Mono.fromFuture(existing, true);
+            }
+            return Mono.fromCallable(() -> run(key, work));
+        });
+    }
+}
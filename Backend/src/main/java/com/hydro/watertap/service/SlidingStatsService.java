@@ -0,0 +1,173 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estadísticos por sensor sobre ventanas deslizantes (stats.window-minutes), actualizados en la ingesta con
+ * {@link SlidingWindow}: media y varianza estables, min/max, lecturas con flujo activo y última lectura. Consultar
+ * un sensor es O(1), así que los consumidores (p.ej. el chequeo de IA) no necesitan releer Influx.
+ *
+ * Al arrancar solo se precargan los minutos de recent.buffer.minutes: las ventanas más largas se completan con
+ * el tiempo.
+ */
+@Component
+@Order(150)
+public class SlidingStatsService implements SensorIngestListener {
+
+    private static final int PH = 0, TURBIDITY = 1, CONDUCTIVITY = 2, FLOW = 3, METRICS = 4;
+
+    @Value("${stats.window-minutes:1,10,360}")
+    private String windowMinutes;
+
+    @Value("${stats.buckets-per-window:60}")
+    private int bucketsPerWindow;
+
+    // Umbral de flujo a partir del cual una lectura cuenta como "activa"
+    @Value("${stats.active-flow-above:0.1}")
+    private double activeFlowAbove;
+
+    private long[] windowsMs;
+    private final Map<Integer, SensorWindows> sensors = new ConcurrentHashMap<>();
+
+    public record MetricStats(long count, Double mean, Double std, Double min, Double max) {
+        static MetricStats of(SlidingWindow.Stats s) {
+            return new MetricStats(s.count(), BucketAggregator.boxed(s.mean()),
+                    BucketAggregator.boxed(Math.sqrt(s.variance())), BucketAggregator.boxed(s.min()),
+                    BucketAggregator.boxed(s.max()));
+        }
+    }
+
+    /**
+     * Estadísticos de un sensor en una ventana. {@code activeCount} = lecturas con flujo por encima de
+     * stats.active-flow-above; {@code lastFlow}/{@code lastTs} = última lectura recibida (aunque sea anterior).
+     */
+    public record SensorStats(Integer sensorId, Duration window, Instant firstTs, Instant lastTs, Double lastFlow,
+                              long activeCount, MetricStats ph, MetricStats turbidity, MetricStats conductivity,
+                              MetricStats flowRate) { }
+
+    @PostConstruct
+    void init() {
+        windowsMs = Arrays.stream(windowMinutes.split(",")).map(String::trim).filter(v -> !v.isEmpty())
+                .mapToLong(Long::parseLong).filter(m -> m > 0).distinct().sorted()
+                .map(m -> Duration.ofMinutes(m).toMillis()).toArray();
+        if (windowsMs.length == 0) windowsMs = new long[]{Duration.ofMinutes(10).toMillis()};
+    }
+
+    @Override
+    public void onReadings(List<SensorRecordDTO> records) {
+        for (SensorRecordDTO r : records) {
+            if (r.sensorId() == null || r.timestamp() == null) continue;
+            sensors.computeIfAbsent(r.sensorId(), SensorWindows::new).add(r);
+        }
+    }
+
+    @Override
+    public void onWarmUp(List<SensorRecordDTO> records) {
+        List<SensorRecordDTO> sorted = new ArrayList<>(records);
+        sorted.removeIf(r -> r.timestamp() == null);
+        sorted.sort(Comparator.comparing(SensorRecordDTO::timestamp));
+        onReadings(sorted);
+    }
+
+    /** Ventanas configuradas, de menor a mayor. */
+    public List<Duration> windows() {
+        return Arrays.stream(windowsMs).mapToObj(Duration::ofMillis).toList();
+    }
+
+    /**
+     * Estadísticos de todos los sensores con lecturas en la ventana configurada más pequeña que cubra
+     * {@code window} (o la mayor si ninguna la cubre), hasta ahora.
+     */
+    public List<SensorStats> snapshot(Duration window) {
+        int w = windowIndex(window);
+        long now = System.currentTimeMillis();
+        List<SensorStats> out = new ArrayList<>(sensors.size());
+        for (SensorWindows s : sensors.values()) {
+            SensorStats st = s.stats(w, now);
+            if (st != null) out.add(st);
+        }
+        out.sort((a, b) -> Integer.compare(a.sensorId(), b.sensorId()));
+        return out;
+    }
+
+    public SensorStats snapshot(Integer sensorId, Duration window) {
+        SensorWindows s = sensors.get(sensorId);
+        return s == null ? null : s.stats(windowIndex(window), System.currentTimeMillis());
+    }
+
+    private int windowIndex(Duration window) {
+        long ms = window.toMillis();
+        for (int i = 0; i < windowsMs.length; i++) {
+            if (windowsMs[i] >= ms) return i;
+        }
+        return windowsMs.length - 1;
+    }
+
+    private final class SensorWindows {
+        final int sensorId;
+        // [ventana][métrica]
+        final SlidingWindow[][] windows = new SlidingWindow[windowsMs.length][METRICS];
+        long lastTs = Long.MIN_VALUE;
+        double lastFlow = Double.NaN;
+
+        SensorWindows(Integer sensorId) {
+            this.sensorId = sensorId;
+            int buckets = Math.max(2, bucketsPerWindow);
+            for (int w = 0; w < windowsMs.length; w++) {
+                long bucketMs = Math.max(1, windowsMs[w] / buckets);
+                for (int m = 0; m < METRICS; m++) {
+                    windows[w][m] = new SlidingWindow(bucketMs, buckets, m == FLOW ? activeFlowAbove : Double.NaN);
+                }
+            }
+        }
+
+        synchronized void add(SensorRecordDTO r) {
+            long ts = r.timestamp().toEpochMilli();
+            if (ts >= lastTs) {
+                lastTs = ts;
+                lastFlow = r.flowRate() == null ? Double.NaN : r.flowRate();
+            }
+            double ph = value(r.ph()), turb = value(r.turbidity()), cond = value(r.conductivity()), flow = value(r.flowRate());
+            for (SlidingWindow[] w : windows) {
+                w[PH].add(ts, ph);
+                w[TURBIDITY].add(ts, turb);
+                w[CONDUCTIVITY].add(ts, cond);
+                w[FLOW].add(ts, flow);
+            }
+        }
+
+        synchronized SensorStats stats(int w, long now) {
+            SlidingWindow.Stats[] s = new SlidingWindow.Stats[METRICS];
+            long count = 0;
+            long first = Long.MAX_VALUE;
+            for (int m = 0; m < METRICS; m++) {
+                windows[w][m].advance(now);
+                s[m] = windows[w][m].stats();
+                count += s[m].count();
+                if (s[m].count() > 0) first = Math.min(first, s[m].firstTsMs());
+            }
+            if (count == 0) return null;
+            return new SensorStats(sensorId, Duration.ofMillis(windowsMs[w]), Instant.ofEpochMilli(first),
+                    Instant.ofEpochMilli(lastTs), BucketAggregator.boxed(lastFlow), s[FLOW].active(),
+                    MetricStats.of(s[PH]), MetricStats.of(s[TURBIDITY]), MetricStats.of(s[CONDUCTIVITY]),
+                    MetricStats.of(s[FLOW]));
+        }
+    }
+
+    private static double value(Double v) {
+        return v == null || !Double.isFinite(v) ? Double.NaN : v;
+    }
+}
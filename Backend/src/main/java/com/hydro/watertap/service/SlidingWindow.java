@@ -0,0 +1,215 @@
+package com.hydro.watertap.service;
+
+/**
+ * Estadísticos de una métrica sobre una ventana deslizante de tiempo, dividida en {@code buckets} intervalos de
+ * {@code bucketMs}. Cada intervalo acumula con Welford (conteo, media, M2, min, max); al cerrarse se combina
+ * (Chan) en el agregado de la ventana y al salir de ella se descuenta, así que tanto añadir como consultar son
+ * O(1) amortizado. Min/max usan colas monótonas sobre los intervalos cerrados. Cada {@code buckets} cierres el
+ * agregado se recalcula desde los intervalos para no acumular error de redondeo.
+ *
+ * Las lecturas atrasadas cuentan en el intervalo abierto. No es thread-safe.
+ */
+final class SlidingWindow {
+
+    private final long bucketMs;
+    private final int buckets;
+    private final double activeAbove;
+
+    // Intervalos cerrados dentro de la ventana, en anillo por número de secuencia (seq % buckets)
+    private final long[] bStart;
+    private final long[] bFirst;
+    private final long[] bN;
+    private final long[] bActive;
+    private final double[] bMean;
+    private final double[] bM2;
+    private final double[] bMin;
+    private final double[] bMax;
+    private long headSeq;
+    private long nextSeq;
+
+    // Colas monótonas (seq de intervalos cerrados): min creciente y max decreciente
+    private final long[] minQ;
+    private final long[] maxQ;
+    private int minHead, minSize, maxHead, maxSize;
+
+    // Agregado de los intervalos cerrados
+    private long aggN;
+    private long aggActive;
+    private double aggMean;
+    private double aggM2;
+    private int closesSinceRebuild;
+
+    // Intervalo abierto
+    private long openBucket = Long.MIN_VALUE;
+    private long oFirst;
+    private long oN;
+    private long oActive;
+    private double oMean;
+    private double oM2;
+    private double oMin;
+    private double oMax;
+
+    /**
+     * @param activeAbove se cuentan aparte las lecturas por encima de este valor (NaN = no contar)
+     */
+    SlidingWindow(long bucketMs, int buckets, double activeAbove) {
+        this.bucketMs = Math.max(1, bucketMs);
+        this.buckets = Math.max(2, buckets);
+        this.activeAbove = activeAbove;
+        bStart = new long[this.buckets];
+        bFirst = new long[this.buckets];
+        bN = new long[this.buckets];
+        bActive = new long[this.buckets];
+        bMean = new double[this.buckets];
+        bM2 = new double[this.buckets];
+        bMin = new double[this.buckets];
+        bMax = new double[this.buckets];
+        minQ = new long[this.buckets];
+        maxQ = new long[this.buckets];
+    }
+
+    long windowMs() { return bucketMs * buckets; }
+
+    void add(long tsMs, double v) {
+        advance(tsMs);
+        if (Double.isNaN(v)) return;
+        if (oN == 0) {
+            oFirst = tsMs;
+            oMin = v;
+            oMax = v;
+        } else {
+            oFirst = Math.min(oFirst, tsMs);
+            if (v < oMin) oMin = v;
+            if (v > oMax) oMax = v;
+        }
+        oN++;
+        double d = v - oMean;
+        oMean += d / oN;
+        oM2 += d * (v - oMean);
+        if (v > activeAbove) oActive++;
+    }
+
+    /**
+     * Mueve la ventana hasta {@code nowMs} (nunca hacia atrás).
+     */
+    void advance(long nowMs) {
+        long b = Math.floorDiv(nowMs, bucketMs);
+        if (openBucket == Long.MIN_VALUE) {
+            openBucket = b;
+            return;
+        }
+        if (b <= openBucket) return;
+        if (oN > 0) close();
+        openBucket = b;
+        oN = 0;
+        oActive = 0;
+        oMean = 0;
+        oM2 = 0;
+        long oldest = (b - buckets + 1) * bucketMs;
+        while (headSeq < nextSeq && bStart[ring(headSeq)] < oldest) expire();
+    }
+
+    /** Estadísticos de la ventana (cerrados + abierto); NaN cuando no hay lecturas. */
+    Stats stats() {
+        long n = aggN + oN;
+        if (n == 0) return Stats.EMPTY;
+        double mean;
+        double m2;
+        if (oN == 0) {
+            mean = aggMean;
+            m2 = aggM2;
+        } else if (aggN == 0) {
+            mean = oMean;
+            m2 = oM2;
+        } else {
+            double d = oMean - aggMean;
+            mean = aggMean + d * oN / n;
+            m2 = aggM2 + oM2 + d * d * aggN * oN / n;
+        }
+        double min = minSize > 0 ? bMin[ring(minQ[minHead])] : Double.NaN;
+        double max = maxSize > 0 ? bMax[ring(maxQ[maxHead])] : Double.NaN;
+        long first = headSeq < nextSeq ? bFirst[ring(headSeq)] : oFirst;
+        if (oN > 0) {
+            min = Double.isNaN(min) ? oMin : Math.min(min, oMin);
+            max = Double.isNaN(max) ? oMax : Math.max(max, oMax);
+        }
+        return new Stats(n, mean, Math.max(0.0, m2) / n, min, max, aggActive + oActive, first);
+    }
+
+    record Stats(long count, double mean, double variance, double min, double max, long active, long firstTsMs) {
+        static final Stats EMPTY = new Stats(0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, 0, Long.MIN_VALUE);
+    }
+
+    private void close() {
+        // Dentro de la ventana caben a lo sumo buckets - 1 cerrados; el anillo no debería llenarse nunca
+        if (nextSeq - headSeq >= buckets) expire();
+        long seq = nextSeq++;
+        int i = ring(seq);
+        bStart[i] = openBucket * bucketMs;
+        bFirst[i] = oFirst;
+        bN[i] = oN;
+        bActive[i] = oActive;
+        bMean[i] = oMean;
+        bM2[i] = oM2;
+        bMin[i] = oMin;
+        bMax[i] = oMax;
+
+        while (minSize > 0 && bMin[ring(minQ[(minHead + minSize - 1) % buckets])] >= oMin) minSize--;
+        minQ[(minHead + minSize++) % buckets] = seq;
+        while (maxSize > 0 && bMax[ring(maxQ[(maxHead + maxSize - 1) % buckets])] <= oMax) maxSize--;
+        maxQ[(maxHead + maxSize++) % buckets] = seq;
+
+        if (++closesSinceRebuild >= buckets) {
+            rebuild();
+        } else {
+            long n = aggN + oN;
+            double d = oMean - aggMean;
+            aggMean += d * oN / n;
+            aggM2 += oM2 + d * d * aggN * oN / n;
+            aggN = n;
+            aggActive += oActive;
+        }
+    }
+
+    private void expire() {
+        long seq = headSeq++;
+        int i = ring(seq);
+        if (minSize > 0 && minQ[minHead] == seq) { minHead = (minHead + 1) % buckets; minSize--; }
+        if (maxSize > 0 && maxQ[maxHead] == seq) { maxHead = (maxHead + 1) % buckets; maxSize--; }
+        long n = aggN - bN[i];
+        if (n <= 0) {
+            aggN = 0;
+            aggActive = 0;
+            aggMean = 0;
+            aggM2 = 0;
+            return;
+        }
+        double mean = (aggN * aggMean - bN[i] * bMean[i]) / n;
+        double d = bMean[i] - mean;
+        aggM2 = Math.max(0.0, aggM2 - bM2[i] - d * d * n * bN[i] / aggN);
+        aggMean = mean;
+        aggN = n;
+        aggActive -= bActive[i];
+    }
+
+    private void rebuild() {
+        closesSinceRebuild = 0;
+        aggN = 0;
+        aggActive = 0;
+        aggMean = 0;
+        aggM2 = 0;
+        for (long s = headSeq; s < nextSeq; s++) {
+            int i = ring(s);
+            long n = aggN + bN[i];
+            double d = bMean[i] - aggMean;
+            aggMean += d * bN[i] / n;
+            aggM2 += bM2[i] + d * d * aggN * bN[i] / n;
+            aggN = n;
+            aggActive += bActive[i];
+        }
+    }
+
+    private int ring(long seq) {
+        return (int) (seq % buckets);
+    }
+}
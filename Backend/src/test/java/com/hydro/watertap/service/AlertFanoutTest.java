@@ -0,0 +1,138 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AlertFanoutTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void dropOldestDiscardsTheOldestPendingAlert() {
+        AlertFanout fanout = fanout(AlertFanout.Overflow.DROP_OLDEST, 2);
+        Client client = subscribe(fanout, SensorFilter.ALL);
+
+        fanout.publish(1, "a");
+        fanout.publish(2, "b");
+        fanout.publish(1, "c");
+        client.request(10);
+
+        assertThat(client.received).containsExactly("snapshot", "b", "c");
+        assertThat(failures("dropped")).isEqualTo(1.0);
+    }
+
+    @Test
+    void coalesceKeepsOnlyTheLatestStatePerSensor() {
+        AlertFanout fanout = fanout(AlertFanout.Overflow.COALESCE, 2);
+        Client client = subscribe(fanout, SensorFilter.ALL);
+
+        fanout.publish(1, "a");
+        fanout.publish(2, "b");
+        fanout.publish(1, "c");
+        assertThat(registry.get("alerts.stream.buffered").gauge().value()).isEqualTo(2.0);
+        // Sensor nuevo con el buffer lleno: se descarta la más antigua
+        fanout.publish(3, "d");
+        client.request(10);
+
+        assertThat(client.received).containsExactly("snapshot", "c", "d");
+        assertThat(registry.counter("alerts.stream.coalesced").count()).isEqualTo(1.0);
+        assertThat(failures("dropped")).isEqualTo(1.0);
+        assertThat(registry.find("alerts.stream.emit.failures").tag("reason", "coalesced").counter()).isNull();
+    }
+
+    @Test
+    void disconnectClosesTheSlowSubscriberOnly() {
+        AlertFanout fanout = fanout(AlertFanout.Overflow.DISCONNECT, 1);
+        Client slow = subscribe(fanout, SensorFilter.ALL);
+        Client fast = subscribe(fanout, SensorFilter.ALL);
+        fast.request(10);
+
+        fanout.publish(1, "a");
+        fanout.publish(2, "b");
+
+        assertThat(slow.error).hasMessageContaining("demasiado lento");
+        assertThat(fast.received).containsExactly("snapshot", "a", "b");
+        assertThat(fast.error).isNull();
+        assertThat(failures("disconnected")).isEqualTo(1.0);
+        assertThat(registry.get("alerts.stream.subscribers").gauge().value()).isEqualTo(1.0);
+    }
+
+    @Test
+    void alertsPublishedDuringTheSnapshotAreDeliveredAfterIt() {
+        AlertFanout fanout = fanout(AlertFanout.Overflow.COALESCE, 4);
+        Client client = new Client();
+        // El snapshot se lee después de registrar al suscriptor
+        fanout.subscribe(SensorFilter.ALL, Flux.defer(() -> {
+            fanout.publish(1, "a");
+            return Flux.just("snapshot");
+        })).subscribe(client);
+        client.request(10);
+
+        assertThat(client.received).containsExactly("snapshot", "a");
+    }
+
+    @Test
+    void batchIsOneEventWithTheAlertsTheFilterAccepts() {
+        AlertFanout fanout = fanout(AlertFanout.Overflow.COALESCE, 4);
+        Client all = subscribe(fanout, SensorFilter.ALL);
+        Client two = subscribe(fanout, new SensorFilter(Set.of(2)));
+        Client three = subscribe(fanout, new SensorFilter(Set.of(3)));
+        all.request(10);
+        two.request(10);
+        three.request(10);
+
+        fanout.publishBatch(List.of(new AlertFanout.Item(1, "{\"id\":1}"), new AlertFanout.Item(2, "{\"id\":2}")));
+
+        assertThat(all.received).containsExactly("snapshot", "[{\"id\":1},{\"id\":2}]");
+        assertThat(two.received).containsExactly("snapshot", "{\"id\":2}");
+        assertThat(three.received).containsExactly("snapshot");
+    }
+
+    private AlertFanout fanout(AlertFanout.Overflow overflow, int bufferSize) {
+        AlertFanout fanout = new AlertFanout(registry);
+        ReflectionTestUtils.setField(fanout, "overflow", overflow);
+        ReflectionTestUtils.setField(fanout, "bufferSize", bufferSize);
+        return fanout;
+    }
+
+    // Pide solo el snapshot: las alertas en vivo quedan en el buffer hasta que el cliente pida más
+    private static Client subscribe(AlertFanout fanout, SensorFilter filter) {
+        Client client = new Client();
+        fanout.subscribe(filter, Flux.just("snapshot")).subscribe(client);
+        return client;
+    }
+
+    private double failures(String reason) {
+        return registry.counter("alerts.stream.emit.failures", "reason", reason).count();
+    }
+
+    private static final class Client extends BaseSubscriber<String> {
+        final List<String> received = new ArrayList<>();
+        Throwable error;
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            request(1);
+        }
+
+        @Override
+        protected void hookOnNext(String value) {
+            received.add(value);
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            error = throwable;
+        }
+    }
+}
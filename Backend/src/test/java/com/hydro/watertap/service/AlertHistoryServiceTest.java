@@ -0,0 +1,91 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.AlertPage;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import com.hydro.watertap.repository.SensorAlertRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AlertHistoryServiceTest {
+
+    private static final LocalDateTime T0 = LocalDateTime.of(2025, 1, 2, 3, 4, 5, 123_456_789);
+
+    private final SensorAlertRepository repo = mock(SensorAlertRepository.class);
+
+    @Test
+    void cursorRoundTripsThroughAnUrlSafeToken() {
+        AlertHistoryService.Cursor c = new AlertHistoryService.Cursor(T0, Long.MAX_VALUE);
+
+        String token = AlertHistoryService.encode(c);
+
+        assertThat(token).matches("[A-Za-z0-9_-]+");
+        assertThat(AlertHistoryService.decode(token)).isEqualTo(c);
+        AlertHistoryService.Cursor whole = new AlertHistoryService.Cursor(T0.withNano(0).withSecond(0), 1);
+        assertThat(AlertHistoryService.decode(AlertHistoryService.encode(whole))).isEqualTo(whole);
+    }
+
+    @Test
+    void malformedCursorIsABadRequest() {
+        for (String bad : List.of("%%%", token("2025-01-02T03:04:05"), token("ayer|7"), token("2025-01-02T03:04:05|x"))) {
+            assertThatThrownBy(() -> AlertHistoryService.decode(bad))
+                    .as(bad)
+                    .isInstanceOfSatisfying(ResponseStatusException.class,
+                            e -> assertThat(e.getStatusCode().value()).isEqualTo(400));
+        }
+    }
+
+    @Test
+    void fullPageCarriesTheCursorOfItsLastRow() {
+        AlertHistoryService service = service();
+        when(repo.findBy(any(Specification.class), any())).thenReturn(rows(4));
+
+        AlertPage page = service.findPage(null, null, null, null, null, null, 3);
+
+        assertThat(page.items()).extracting(SensorAlertEntity::getId).containsExactly(100L, 99L, 98L);
+        assertThat(AlertHistoryService.decode(page.nextCursor()))
+                .isEqualTo(new AlertHistoryService.Cursor(T0.minusMinutes(2), 98L));
+
+        // Con el cursor de la página anterior se piden las filas siguientes
+        when(repo.findBy(any(Specification.class), any())).thenReturn(rows(1));
+        AlertPage last = service.findPage(null, null, null, null, null, page.nextCursor(), 3);
+        assertThat(last.items()).hasSize(1);
+        assertThat(last.nextCursor()).isNull();
+    }
+
+    private AlertHistoryService service() {
+        AlertHistoryService service = new AlertHistoryService(repo);
+        ReflectionTestUtils.setField(service, "defaultPageSize", 100);
+        ReflectionTestUtils.setField(service, "maxPageSize", 500);
+        return service;
+    }
+
+    // n filas de la más reciente a la más antigua, una por minuto
+    private static List<SensorAlertEntity> rows(int n) {
+        List<SensorAlertEntity> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            SensorAlertEntity e = SensorAlertEntity.builder().sensorId(1).severity("HIGH").description("d").build();
+            e.setId(100L - i);
+            e.setCreatedAt(T0.minusMinutes(i));
+            out.add(e);
+        }
+        return out;
+    }
+
+    private static String token(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+}
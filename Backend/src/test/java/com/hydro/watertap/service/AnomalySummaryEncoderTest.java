@@ -0,0 +1,90 @@
+package com.hydro.watertap.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AnomalySummaryEncoderTest {
+
+    private static final Instant T0 = Instant.parse("2025-01-06T05:00:00.123456Z");
+
+    @Test
+    void encodesEachTableWithItsHeaderOnce() {
+        AnomalySummaryEncoder.Row row = new AnomalySummaryEncoder.Row(
+                finding(7, "flujo alto"),
+                stats(7, Duration.ofMinutes(10), 2.504, metric(7.1234, 6.9, 7.3), metric(0.5, 0.1, 1.0),
+                        metric(249.6, 200.0, 300.4), metric(2.0, 0.0, 3.456)),
+                stats(7, Duration.ofHours(6), null, metric(7.0, 6.5, 7.5), metric(0.25, 0.1, 0.4),
+                        metric(240.0, 230.0, 250.0), metric(0.5, 0.0, 1.0)));
+
+        String text = AnomalySummaryEncoder.encode(List.of(row), true, T0);
+
+        assertThat(text).isEqualTo("""
+                workTime=true generatedAt=2025-01-06T05:00:00Z
+                findings[sensorId|severity|from|to|rule]
+                7|HIGH|2025-01-06T05:00:00Z|2025-01-06T05:10:00Z|flujo alto
+                recent[sensorId|from|to|n|activeN|lastFlow|flowAvg|flowMax|phAvg|phMin|phMax|turbAvg|turbMax|condAvg|condMax]
+                7|2025-01-06T05:00:00Z|2025-01-06T05:10:00Z|10|4|2.5|2|3.46|7.12|6.9|7.3|0.5|1|250|300
+                base6h[sensorId|flowAvg|phAvg|turbAvg|condAvg]
+                7|0.5|7|0.25|240
+                """);
+    }
+
+    @Test
+    void missingValuesAreEmptyFieldsAndRowsWithoutStatsAreSkipped() {
+        SlidingStatsService.MetricStats empty = new SlidingStatsService.MetricStats(0, null, null, null, null);
+        AnomalySummaryEncoder.Row withGaps = new AnomalySummaryEncoder.Row(finding(1, "a|b\nc"),
+                stats(1, Duration.ofMinutes(10), Double.NaN, metric(-0.001, -0.004, 0.0), empty, empty, empty),
+                null);
+        AnomalySummaryEncoder.Row bare = new AnomalySummaryEncoder.Row(finding(2, null), null, null);
+
+        String text = AnomalySummaryEncoder.encode(List.of(withGaps, bare), false, T0);
+
+        assertThat(text.split("\n")).containsExactly(
+                "workTime=false generatedAt=2025-01-06T05:00:00Z",
+                AnomalySummaryEncoder.FINDINGS_HEADER,
+                // El separador y los saltos de línea de la descripción no rompen la tabla
+                "1|HIGH|2025-01-06T05:00:00Z|2025-01-06T05:10:00Z|a/b c",
+                "2|HIGH|2025-01-06T05:00:00Z|2025-01-06T05:10:00Z|",
+                AnomalySummaryEncoder.RECENT_HEADER,
+                "1|2025-01-06T05:00:00Z|2025-01-06T05:10:00Z|0|4||||0|0|0||||",
+                AnomalySummaryEncoder.BASE_HEADER);
+    }
+
+    @Test
+    void tokenEstimatesAddUpToTheEncodedPrompt() {
+        AnomalySummaryEncoder.Row row = new AnomalySummaryEncoder.Row(finding(3, "turbidez alta"),
+                stats(3, Duration.ofMinutes(10), 1.0, metric(7.0, 7.0, 7.0), metric(2.0, 1.0, 3.0),
+                        metric(250.0, 250.0, 250.0), metric(1.0, 1.0, 1.0)),
+                null);
+
+        String text = AnomalySummaryEncoder.encode(List.of(row, row), false, T0);
+
+        int estimated = AnomalySummaryEncoder.overheadTokens() + 2 * AnomalySummaryEncoder.estimateTokens(row);
+        // Cada parte se redondea hacia arriba por separado: la suma nunca queda por debajo del total
+        assertThat(estimated).isBetween(AnomalySummaryEncoder.estimateTokens(text),
+                AnomalySummaryEncoder.estimateTokens(text) + 3);
+    }
+
+    private static SensorRuleEngine.Finding finding(int sensorId, String description) {
+        return new SensorRuleEngine.Finding(sensorId, "HIGH", "flow>2", description, null,
+                T0, T0.plus(Duration.ofMinutes(10)), null);
+    }
+
+    private static SlidingStatsService.SensorStats stats(int sensorId, Duration window, Double lastFlow,
+                                                         SlidingStatsService.MetricStats ph,
+                                                         SlidingStatsService.MetricStats turbidity,
+                                                         SlidingStatsService.MetricStats conductivity,
+                                                         SlidingStatsService.MetricStats flowRate) {
+        return new SlidingStatsService.SensorStats(sensorId, window, T0, T0.plus(Duration.ofMinutes(10)), lastFlow,
+                4, ph, turbidity, conductivity, flowRate);
+    }
+
+    private static SlidingStatsService.MetricStats metric(double mean, double min, double max) {
+        return new SlidingStatsService.MetricStats(10, mean, 0.1, min, max);
+    }
+}
@@ -0,0 +1,133 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class BucketAggregatorTest {
+
+    private static final long MIN10 = 600_000L;
+    private static final long T0 = Instant.parse("2025-01-01T00:00:00Z").toEpochMilli();
+    private static final double NAN = Double.NaN;
+
+    @Test
+    void welfordMatchesATwoPassComputationEvenWithALargeOffset() {
+        BucketAggregator agg = new BucketAggregator(Duration.ofMinutes(10));
+        Random rnd = new Random(3);
+        double[] values = new double[5_000];
+        for (int i = 0; i < values.length; i++) {
+            // Desplazamiento grande: la fórmula sum(x²) - n·media² perdería toda la precisión
+            values[i] = 1e9 + rnd.nextGaussian();
+            agg.accept(T0 + i, 1, NAN, NAN, NAN, values[i]);
+        }
+        double mean = Arrays.stream(values).average().orElseThrow();
+        double var = Arrays.stream(values).map(v -> (v - mean) * (v - mean)).sum() / values.length;
+
+        assertThat(agg.size()).isEqualTo(1);
+        assertThat(agg.count(0, SensorSeries.FLOW_RATE)).isEqualTo(values.length);
+        assertThat(agg.mean(0, SensorSeries.FLOW_RATE)).isCloseTo(mean, within(1e-6));
+        assertThat(agg.variance(0, SensorSeries.FLOW_RATE)).isCloseTo(var, within(1e-6));
+        assertThat(agg.min(0, SensorSeries.FLOW_RATE)).isEqualTo(Arrays.stream(values).min().orElseThrow());
+        assertThat(agg.max(0, SensorSeries.FLOW_RATE)).isEqualTo(Arrays.stream(values).max().orElseThrow());
+        // Sin valores de pH: NaN, no 0
+        assertThat(agg.count(0, SensorSeries.PH)).isZero();
+        assertThat(agg.mean(0, SensorSeries.PH)).isNaN();
+        assertThat(agg.variance(0, SensorSeries.PH)).isNaN();
+        assertThat(BucketAggregator.boxed(agg.min(0, SensorSeries.PH))).isNull();
+    }
+
+    @Test
+    void statsOfASmallBucket() {
+        BucketAggregator agg = new BucketAggregator(Duration.ofMinutes(10));
+        agg.accept(T0, 1, 7.0, NAN, 100, 1.0);
+        agg.accept(T0 + 1, 1, 8.0, NAN, NAN, 3.0);
+        agg.accept(T0 + 2, 1, NAN, NAN, NAN, 8.0);
+
+        assertThat(agg.sum(0, SensorSeries.FLOW_RATE)).isEqualTo(12.0);
+        assertThat(agg.mean(0, SensorSeries.FLOW_RATE)).isCloseTo(4.0, within(1e-12));
+        assertThat(agg.variance(0, SensorSeries.FLOW_RATE)).isCloseTo(26.0 / 3, within(1e-12));
+        assertThat(agg.mean(0, SensorSeries.PH)).isEqualTo(7.5);
+        assertThat(agg.count(0, SensorSeries.CONDUCTIVITY)).isEqualTo(1);
+        assertThat(agg.variance(0, SensorSeries.CONDUCTIVITY)).isZero();
+    }
+
+    @Test
+    void bucketsAreHalfOpenAndFloorBeforeTheEpoch() {
+        BucketAggregator agg = new BucketAggregator(Duration.ofMinutes(10));
+        agg.accept(T0 + MIN10 - 1, 2, 7.0, NAN, NAN, NAN);
+        agg.accept(T0 + MIN10, 2, 7.0, NAN, NAN, NAN);
+        agg.accept(T0, 1, 7.0, NAN, NAN, NAN);
+        agg.accept(T0 + MIN10, 1, 7.0, NAN, NAN, NAN);
+
+        int[] order = agg.orderedSlots();
+        assertThat(order).hasSize(4);
+        assertThat(Arrays.stream(order).mapToObj(s -> agg.bucketStartMs(s) + "/" + agg.sensorId(s)))
+                .containsExactly(T0 + "/1", T0 + "/2", (T0 + MIN10) + "/1", (T0 + MIN10) + "/2");
+
+        BucketAggregator before = new BucketAggregator(Duration.ofMinutes(10));
+        before.accept(-1, 1, 7.0, NAN, NAN, NAN);
+        assertThat(before.bucketStartMs(0)).isEqualTo(-MIN10);
+    }
+
+    @Test
+    void keysDoNotCollideAcrossSensorsOrFarApartBuckets() {
+        BucketAggregator agg = new BucketAggregator(Duration.ofMillis(1));
+        // Mismos 32 bits bajos de bucket: antes caían en el mismo slot
+        agg.accept(T0, 1, 1.0, NAN, NAN, NAN);
+        agg.accept(T0 + (1L << 31) - 1, 1, 2.0, NAN, NAN, NAN);
+        agg.accept(T0 - (1L << 31), 1, 3.0, NAN, NAN, NAN);
+        // Sensores negativos, cero y positivos en el mismo bucket
+        agg.accept(T0, -1, 4.0, NAN, NAN, NAN);
+        agg.accept(T0, 0, 5.0, NAN, NAN, NAN);
+
+        assertThat(agg.size()).isEqualTo(5);
+        for (int s = 0; s < agg.size(); s++) assertThat(agg.count(s, SensorSeries.PH)).isEqualTo(1);
+
+        assertThatThrownBy(() -> agg.accept(T0 + (1L << 32), 1, 1.0, NAN, NAN, NAN))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void invalidOrSubMillisecondBucketsFallBack() {
+        assertThat(new BucketAggregator(Duration.ofNanos(10)).acceptAll(List.of(reading(T0, 1))).size()).isEqualTo(1);
+        BucketAggregator fallback = new BucketAggregator(Duration.ZERO);
+        fallback.acceptAll(List.of(reading(T0 + MIN10 - 1, 1), reading(T0, 1)));
+        assertThat(fallback.size()).isEqualTo(1);
+    }
+
+    @Test
+    void seriesAndListInputsAgreeAndSkipRowsWithoutSensorOrTime() {
+        List<SensorRecordDTO> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++) records.add(reading(T0 + i * 60_000L, i % 3));
+        records.add(new SensorRecordDTO(Instant.ofEpochMilli(T0), null, 7.0, 1.0, 1.0, 1.0));
+        records.add(new SensorRecordDTO(null, 1, 7.0, 1.0, 1.0, 1.0));
+
+        BucketAggregator fromList = new BucketAggregator(Duration.ofMinutes(10)).acceptAll(records);
+        BucketAggregator fromSeries = new BucketAggregator(Duration.ofMinutes(10))
+                .acceptAll(SensorSeries.of(records.subList(0, 51)));
+
+        assertThat(fromList.size()).isEqualTo(15);
+        assertThat(fromSeries.size()).isEqualTo(fromList.size());
+        int[] a = fromList.orderedSlots();
+        int[] b = fromSeries.orderedSlots();
+        for (int k = 0; k < a.length; k++) {
+            assertThat(fromSeries.bucketStartMs(b[k])).isEqualTo(fromList.bucketStartMs(a[k]));
+            assertThat(fromSeries.sensorId(b[k])).isEqualTo(fromList.sensorId(a[k]));
+            assertThat(fromSeries.mean(b[k], SensorSeries.FLOW_RATE)).isEqualTo(fromList.mean(a[k], SensorSeries.FLOW_RATE));
+        }
+    }
+
+    private static SensorRecordDTO reading(long epochMs, int sensorId) {
+        return new SensorRecordDTO(Instant.ofEpochMilli(epochMs), sensorId, 7.0, 0.5, 250.0, epochMs % 7 / 10.0);
+    }
+}
@@ -0,0 +1,59 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BulkheadTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private Bulkhead bulkhead;
+
+    @AfterEach
+    void dispose() {
+        if (bulkhead != null) bulkhead.dispose();
+    }
+
+    @Test
+    void queueCapacityIsSharedByAllThreads() throws Exception {
+        bulkhead = new Bulkhead("test", 2, 3, registry);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(2);
+        List<CompletableFuture<Integer>> accepted = new ArrayList<>();
+
+        // Dos ocupan los hilos y tres esperan en cola
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            accepted.add(bulkhead.call(() -> {
+                running.countDown();
+                release.await();
+                return n;
+            }).toFuture());
+            if (i == 1) assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        }
+        assertThat(registry.get("bulkhead.queued").tag("name", "test").gauge().value()).isEqualTo(3.0);
+
+        assertThatThrownBy(() -> bulkhead.call(() -> -1).block(Duration.ofSeconds(5)))
+                .isInstanceOfSatisfying(ResponseStatusException.class,
+                        e -> assertThat(e.getStatusCode().value()).isEqualTo(503));
+        assertThat(registry.get("bulkhead.rejected").tag("name", "test").counter().count()).isEqualTo(1.0);
+
+        release.countDown();
+        for (int i = 0; i < accepted.size(); i++) {
+            assertThat(accepted.get(i).get(5, TimeUnit.SECONDS)).isEqualTo(i);
+        }
+        assertThat(registry.get("bulkhead.queued").tag("name", "test").gauge().value()).isZero();
+        assertThat(bulkhead.call(() -> 7).block(Duration.ofSeconds(5))).isEqualTo(7);
+    }
+}
@@ -0,0 +1,81 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CircuitBreakerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void opensAfterConsecutiveFailuresOnly() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60_000, registry);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire()).isTrue();
+
+        breaker.onFailure();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(registry.get("circuit.state").tag("name", "test").gauge().value()).isEqualTo(2.0);
+    }
+
+    @Test
+    void halfOpenLetsASingleTrialThroughAndClosesOnSuccess() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 50, registry);
+        breaker.onFailure();
+        assertThat(breaker.tryAcquire()).isFalse();
+
+        Thread.sleep(80);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isFalse();
+
+        breaker.onSuccess();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void failedTrialReopensForAnotherPeriod() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 5, 50, registry);
+        for (int i = 0; i < 5; i++) breaker.onFailure();
+
+        Thread.sleep(80);
+        assertThat(breaker.tryAcquire()).isTrue();
+        // En semiabierto basta un fallo, sin esperar al umbral
+        breaker.onFailure();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+
+        Thread.sleep(80);
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void trialWithoutOutcomeIsReleasedForTheNextCall() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 50, registry);
+        breaker.onFailure();
+        Thread.sleep(80);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isFalse();
+        // Llamada cancelada o sin respuesta: ni éxito ni fallo
+        breaker.release();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire()).isTrue();
+
+        // Tras un resultado, liberar no cambia nada
+        breaker.onSuccess();
+        breaker.release();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+}
@@ -0,0 +1,133 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.InfluxExclusionRange;
+import com.hydro.watertap.repository.InfluxExclusionRangeRepository;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ExclusionRangeIndexTest {
+
+    private static final Instant T0 = Instant.parse("2025-01-01T00:00:00Z");
+
+    private final InfluxExclusionRangeRepository repo = mock(InfluxExclusionRangeRepository.class);
+    private final ExclusionRangeIndex index = new ExclusionRangeIndex(repo);
+
+    @Test
+    void mergesOverlappingAndTouchingRangesKeepingOrder() {
+        index.add(1, at(100), at(200));
+        index.add(1, at(10), at(20));
+        index.add(1, at(300), at(400));
+        assertThat(ranges(1)).containsExactly(n(10), n(20), n(100), n(200), n(300), n(400));
+
+        // Solapa el segundo y toca el tercero (fin + 1 ns): se funden los tres
+        index.add(1, at(150), at(300).minusNanos(1));
+        assertThat(ranges(1)).containsExactly(n(10), n(20), n(100), n(400));
+
+        // Contenido en uno existente: no cambia nada
+        index.add(1, at(110), at(120));
+        assertThat(ranges(1)).containsExactly(n(10), n(20), n(100), n(400));
+
+        // Abarca todos
+        index.add(1, at(0), at(500));
+        assertThat(ranges(1)).containsExactly(n(0), n(500));
+
+        // Rango invertido: se ignora
+        index.add(2, at(50), at(40));
+        assertThat(ranges(2)).isEmpty();
+    }
+
+    @Test
+    void rangesForReturnsOnlyThoseIntersectingTheWindow() {
+        index.add(1, at(10), at(20));
+        index.add(1, at(100), at(200));
+        index.add(1, at(300), at(400));
+
+        assertThat(index.rangesFor(1, at(150), at(350))).containsExactly(n(100), n(200), n(300), n(400));
+        assertThat(index.rangesFor(1, at(20), at(20))).containsExactly(n(10), n(20));
+        assertThat(index.rangesFor(1, at(21), at(99))).isEmpty();
+        assertThat(index.rangesFor(7, at(0), at(1000))).isEmpty();
+        assertThat(index.rangesFor(at(0), at(50))).containsOnlyKeys(1);
+    }
+
+    @Test
+    void filterWalksEachSensorOnceAndHandlesUnorderedInput() {
+        index.add(1, at(10), at(20));
+        index.add(1, at(40), at(50));
+        index.add(2, at(0), at(100));
+
+        List<SensorRecordDTO> data = new ArrayList<>();
+        for (int s = 0; s <= 60; s += 5) data.add(reading(1, s));
+        data.add(reading(3, 15));
+        data.add(reading(null, 15));
+        // Lectura atrasada tras haber avanzado el cursor
+        data.add(reading(1, 12));
+        data.add(reading(1, 30));
+        data.add(reading(2, 200));
+
+        List<SensorRecordDTO> kept = index.filter(data);
+
+        assertThat(kept).extracting(r -> r.sensorId() + "@" + (r.timestamp().getEpochSecond() - T0.getEpochSecond()))
+                .containsExactly("1@0", "1@5", "1@25", "1@30", "1@35", "1@55", "1@60", "3@15", "null@15",
+                        "1@30", "2@200");
+    }
+
+    @Test
+    void filterReturnsTheSameInstanceWhenNothingIsExcluded() {
+        List<SensorRecordDTO> data = List.of(reading(1, 0), reading(1, 5));
+        assertThat(index.filter(data)).isSameAs(data);
+
+        index.add(1, at(100), at(200));
+        assertThat(index.filter(data)).isSameAs(data);
+    }
+
+    @Test
+    void columnarFilterMatchesTheListVariant() {
+        index.add(1, at(10), at(20));
+        index.add(2, at(0), at(5));
+
+        List<SensorRecordDTO> data = List.of(reading(1, 5), reading(2, 5), reading(1, 10), reading(1, 20),
+                reading(2, 6), reading(1, 21));
+        SensorSeries series = SensorSeries.of(data);
+
+        assertThat(index.filter(series).toDtos()).containsExactlyElementsOf(index.filter(data));
+        assertThat(index.filter(data)).containsExactly(reading(1, 5), reading(2, 6), reading(1, 21));
+    }
+
+    @Test
+    void loadsPersistedRangesSkippingIncompleteRows() {
+        when(repo.findAll()).thenReturn(List.of(
+                new InfluxExclusionRange(1, at(0), at(10)),
+                new InfluxExclusionRange(1, at(10), at(20)),
+                new InfluxExclusionRange(null, at(0), at(10)),
+                new InfluxExclusionRange(2, null, at(10))));
+
+        index.load();
+
+        assertThat(ranges(1)).containsExactly(n(0), n(20));
+        assertThat(ranges(2)).isEmpty();
+    }
+
+    private long[] ranges(int sensorId) {
+        return index.rangesFor(sensorId, Instant.EPOCH, at(100_000));
+    }
+
+    private static Instant at(int second) {
+        return T0.plusSeconds(second);
+    }
+
+    private static long n(int second) {
+        return EpochNanos.of(at(second));
+    }
+
+    private static SensorRecordDTO reading(Integer sensorId, int second) {
+        return new SensorRecordDTO(at(second), sensorId, 7.0, 0.5, 250.0, 1.0);
+    }
+}
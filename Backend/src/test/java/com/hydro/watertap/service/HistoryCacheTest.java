@@ -0,0 +1,116 @@
+package com.hydro.watertap.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistoryCacheTest {
+
+    // Dos días cerrados, alineados a la hora
+    private final Instant from = Instant.now().truncatedTo(ChronoUnit.HOURS).minus(Duration.ofDays(3));
+    private final Instant to = from.plus(Duration.ofDays(2)).minusNanos(1);
+
+    private final List<Instant[]> loads = new ArrayList<>();
+    private HistoryCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new HistoryCache(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "maxRows", 1_000_000L);
+        ReflectionTestUtils.setField(cache, "ttlMinutes", 30L);
+        ReflectionTestUtils.setField(cache, "graceSeconds", 60L);
+        ReflectionTestUtils.setField(cache, "viewLagSeconds", 900L);
+    }
+
+    @Test
+    void servesClosedBlocksFromCacheAndTrimsToTheRange() {
+        SensorSeries first = cache.get("raw", Duration.ofHours(1), from, to, loader());
+        assertThat(loads).hasSize(1);
+        assertThat(first.size()).isEqualTo(48);
+
+        Instant a = from.plus(Duration.ofMinutes(90));
+        Instant b = from.plus(Duration.ofHours(5));
+        SensorSeries part = cache.get("raw", Duration.ofHours(1), a, b, loader());
+        assertThat(loads).hasSize(1);
+        assertThat(part.size()).isEqualTo(4);
+        assertThat(part.timestampNanos(0)).isEqualTo(EpochNanos.of(from.plus(Duration.ofHours(2))));
+    }
+
+    @Test
+    void writeOfPastTimestampsReloadsOnlyTheAffectedBlocks() {
+        cache.get("raw", Duration.ofHours(1), from, to, loader());
+
+        Instant backfill = from.plus(Duration.ofMinutes(300));
+        cache.onWritten(backfill, backfill.plusSeconds(30));
+        cache.get("raw", Duration.ofHours(1), from, to, loader());
+
+        assertThat(loads).hasSize(2);
+        assertThat(loads.get(1)[0]).isEqualTo(from.plus(Duration.ofHours(5)));
+        assertThat(loads.get(1)[1]).isEqualTo(from.plus(Duration.ofHours(6)).minusNanos(1));
+    }
+
+    @Test
+    void derivedBlocksAreNotCachedUntilTheWriteIsMaterialized() {
+        Instant day = Instant.now().truncatedTo(ChronoUnit.DAYS).minus(Duration.ofDays(3));
+        Instant end = day.plus(Duration.ofDays(2)).minusNanos(1);
+        cache.getDerived("view:1h", Duration.ofDays(1), day, end, loader());
+        cache.onWritten(day.plusSeconds(10), day.plusSeconds(20));
+
+        cache.getDerived("view:1h", Duration.ofDays(1), day, end, loader());
+        cache.getDerived("view:1h", Duration.ofDays(1), day, end, loader());
+
+        // El primer día se relee cada vez; el segundo sigue en caché
+        assertThat(loads).hasSize(3);
+        assertThat(loads.get(2)[0]).isEqualTo(day);
+        assertThat(loads.get(2)[1]).isEqualTo(day.plus(Duration.ofDays(1)).minusNanos(1));
+    }
+
+    @Test
+    void recentWritesDoNotTouchTheCache() {
+        cache.get("raw", Duration.ofHours(1), from, to, loader());
+        cache.onWritten(Instant.now().minusSeconds(5), Instant.now());
+        cache.get("raw", Duration.ofHours(1), from, to, loader());
+        assertThat(loads).hasSize(1);
+    }
+
+    @Test
+    void deleteDuringALoadKeepsTheStaleResultOutOfTheCache() {
+        BiFunction<Instant, Instant, SensorSeries> base = loader();
+        // El borrado (exclusión + invalidate) se registra mientras Influx responde la primera carga
+        SensorSeries stale = cache.get("raw", Duration.ofHours(1), from, to, (a, b) -> {
+            SensorSeries s = base.apply(a, b);
+            cache.invalidate(from.plus(Duration.ofHours(3)), from.plus(Duration.ofHours(4)));
+            return s;
+        });
+        assertThat(stale.size()).isEqualTo(48);
+
+        cache.get("raw", Duration.ofHours(1), from, to, loader());
+        assertThat(loads).hasSize(2);
+        cache.get("raw", Duration.ofHours(1), from, to, loader());
+        assertThat(loads).hasSize(2);
+    }
+
+    // Una lectura por hora en punto dentro del rango pedido
+    private BiFunction<Instant, Instant, SensorSeries> loader() {
+        return (a, b) -> {
+            loads.add(new Instant[] { a, b });
+            SensorSeries s = new SensorSeries();
+            for (Instant t = a.truncatedTo(ChronoUnit.HOURS); !t.isAfter(b); t = t.plus(Duration.ofHours(1))) {
+                if (t.isBefore(a)) continue;
+                s.set(s.addRow(EpochNanos.of(t), 1), SensorSeries.FLOW_RATE, 1.0);
+            }
+            return s;
+        };
+    }
+}
@@ -0,0 +1,241 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LeakDetectorTest {
+
+    // Mediodía y la medianoche siguiente en Bogotá (UTC-5)
+    private static final Instant NOON = Instant.parse("2025-01-02T17:00:00Z");
+    private static final Instant MIDNIGHT = Instant.parse("2025-01-03T05:00:00Z");
+
+    private final SensorAlertService alertService = mock(SensorAlertService.class);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private LeakDetector detector;
+
+    @AfterEach
+    void stop() {
+        if (detector != null) detector.stop();
+    }
+
+    @Test
+    void parsesWindowsIncludingOnesThatCrossMidnight() {
+        boolean[] mask = LeakDetector.parseWindows(" 22:30 - 01:00 , 12:00-12:02,");
+
+        assertThat(mask).hasSize(1440);
+        assertThat(count(mask)).isEqualTo(150 + 2);
+        assertThat(mask[22 * 60 + 29]).isFalse();
+        assertThat(mask[22 * 60 + 30]).isTrue();
+        assertThat(mask[1439]).isTrue();
+        assertThat(mask[0]).isTrue();
+        assertThat(mask[59]).isTrue();
+        assertThat(mask[60]).isFalse();
+        assertThat(mask[12 * 60 + 1]).isTrue();
+        assertThat(mask[12 * 60 + 2]).isFalse();
+
+        assertThat(count(LeakDetector.parseWindows(null))).isZero();
+        assertThat(count(LeakDetector.parseWindows("03:00-03:00"))).isZero();
+    }
+
+    @Test
+    void rejectsInvalidWindows() {
+        assertThatThrownBy(() -> LeakDetector.parseWindows("00:00-05:00,24:00-01:00"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("24:00-01:00");
+        assertThatThrownBy(() -> LeakDetector.parseWindows("1:60-2:00"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> LeakDetector.parseWindows("noche"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void continuousFlowRaisesOncePerEpisodeAndRearmsWhenItStops() throws Exception {
+        start();
+
+        feed(1, NOON, 0, 59, 1.0);
+        assertThat(raised()).isEmpty();
+
+        feed(1, NOON, 60, 70, 1.0);
+        List<SensorAlertEntity> alerts = raised();
+        assertThat(alerts).singleElement().satisfies(a -> {
+            assertThat(a.getSensorId()).isEqualTo(1);
+            assertThat(a.getSeverity()).isEqualTo("HIGH");
+            assertThat(a.getDescription()).contains("1.00 L/min").contains("posible llave abierta");
+            assertThat(a.getSolution()).isEqualTo("cerrar llave");
+        });
+        assertThat(registry.counter("leak.alerts.raised", "reason", "continuous").count()).isEqualTo(1.0);
+
+        // El grifo se cierra y se vuelve a abrir: episodio nuevo
+        feed(1, NOON, 71, 71, 0.0);
+        feed(1, NOON, 72, 132, 1.0);
+        assertThat(raised()).hasSize(2);
+    }
+
+    @Test
+    void accumulatedVolumeRaisesBeforeTheDurationLimit() throws Exception {
+        ReflectionTestUtils.setField(newDetector(), "maxLiters", 10.0);
+        detector.start();
+
+        // 5 L/min: 10 L a los dos minutos
+        feed(2, NOON, 0, 1, 5.0);
+        assertThat(raised()).isEmpty();
+        feed(2, NOON, 2, 2, 5.0);
+        assertThat(raised()).singleElement()
+                .satisfies(a -> assertThat(a.getDescription()).contains("10.00 L acumulados"));
+        assertThat(registry.counter("leak.alerts.raised", "reason", "volume").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void gapLongerThanMaxGapRestartsTheEpisode() throws Exception {
+        start();
+
+        // Lecturas cada 5 minutos con max-gap de 2: nunca hay una hora seguida
+        for (int minute = 0; minute <= 120; minute += 5) feed(3, NOON, minute, minute, 1.0);
+        assertThat(raised()).isEmpty();
+    }
+
+    @Test
+    void nightTrickleRaisesOnlyInsideTheWindow() throws Exception {
+        start();
+
+        // 0.03 L/min: por debajo del umbral de grifo abierto, por encima del mínimo nocturno
+        feed(4, NOON, 0, 45, 0.03);
+        assertThat(raised()).isEmpty();
+
+        feed(4, MIDNIGHT, 0, 29, 0.03);
+        assertThat(raised()).isEmpty();
+        feed(4, MIDNIGHT, 30, 30, 0.04);
+        assertThat(raised()).singleElement().satisfies(a -> {
+            assertThat(a.getSeverity()).isEqualTo("MEDIUM");
+            assertThat(a.getDescription()).contains("caudal mínimo nocturno 0.03 L/min");
+        });
+        assertThat(registry.counter("leak.alerts.raised", "reason", "night").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void alertNotAppliedIsRetriedAfterTheRetryDelay() throws Exception {
+        start();
+        doReturn(Optional.empty())
+                .doAnswer(inv -> Optional.of(inv.getArgument(0)))
+                .when(alertService).createOrUpdateAlertForSensor(any());
+
+        feed(5, NOON, 0, 60, 1.0);
+        assertThat(raised()).hasSize(1);
+        assertThat(registry.counter("leak.alerts.raised", "reason", "continuous").count()).isZero();
+
+        // Dentro de leak.retry-minutes las lecturas no vuelven a intentarlo
+        feed(5, NOON, 61, 69, 1.0);
+        assertThat(raised()).hasSize(1);
+
+        feed(5, NOON, 70, 70, 1.0);
+        assertThat(raised()).hasSize(2);
+        assertThat(registry.counter("leak.alerts.raised", "reason", "continuous").count()).isEqualTo(1.0);
+
+        feed(5, NOON, 71, 71, 1.0);
+        assertThat(raised()).hasSize(2);
+    }
+
+    @Test
+    void suppressedNightAlertDoesNotDelayTheFlowAlert() throws Exception {
+        start();
+        // Goteo nocturno suprimido (hay una alerta más grave): el reintento no retrasa el aviso de flujo continuo
+        doReturn(Optional.empty())
+                .doAnswer(inv -> Optional.of(inv.getArgument(0)))
+                .when(alertService).createOrUpdateAlertForSensor(any());
+
+        feed(7, MIDNIGHT, 0, 30, 0.03);
+        assertThat(raised()).hasSize(1);
+        feed(7, MIDNIGHT, 31, 39, 1.0);
+        assertThat(raised()).hasSize(1);
+
+        // El nocturno se reintenta a los 10 minutos; el continuo salta a su hora, a los 60 de abrirse el grifo
+        feed(7, MIDNIGHT, 40, 95, 1.0);
+        assertThat(raised()).extracting(SensorAlertEntity::getSeverity).containsExactly("MEDIUM", "MEDIUM", "HIGH");
+    }
+
+    @Test
+    void warmUpRebuildsStateWithoutRaising() throws Exception {
+        start();
+        List<SensorRecordDTO> history = new ArrayList<>();
+        for (int minute = 70; minute >= 0; minute--) history.add(reading(6, NOON, minute, 1.0));
+
+        detector.onWarmUp(history);
+        flush();
+        verify(alertService, never()).createOrUpdateAlertForSensor(any());
+
+        // Ya se había avisado antes del reinicio: no se repite
+        feed(6, NOON, 71, 71, 1.0);
+        assertThat(raised()).isEmpty();
+    }
+
+    private void start() {
+        newDetector();
+        detector.start();
+    }
+
+    private LeakDetector newDetector() {
+        when(alertService.createOrUpdateAlertForSensor(any())).thenAnswer(inv -> Optional.of(inv.getArgument(0)));
+        detector = new LeakDetector(alertService, registry);
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "flowAbove", 0.05);
+        ReflectionTestUtils.setField(detector, "continuousMinutes", 60L);
+        ReflectionTestUtils.setField(detector, "maxLiters", 0.0);
+        ReflectionTestUtils.setField(detector, "nightWindows", "00:00-05:00");
+        ReflectionTestUtils.setField(detector, "nightFlowAbove", 0.02);
+        ReflectionTestUtils.setField(detector, "nightMinutes", 30L);
+        ReflectionTestUtils.setField(detector, "maxGapSeconds", 120L);
+        ReflectionTestUtils.setField(detector, "retryMinutes", 10L);
+        ReflectionTestUtils.setField(detector, "flowSolution", "cerrar llave");
+        return detector;
+    }
+
+    // Una lectura por minuto en [fromMinute, toMinute]
+    private void feed(int sensorId, Instant base, int fromMinute, int toMinute, double flow) {
+        List<SensorRecordDTO> batch = new ArrayList<>();
+        for (int m = fromMinute; m <= toMinute; m++) batch.add(reading(sensorId, base, m, flow));
+        detector.onReadings(batch);
+    }
+
+    private List<SensorAlertEntity> raised() throws Exception {
+        flush();
+        ArgumentCaptor<SensorAlertEntity> captor = ArgumentCaptor.forClass(SensorAlertEntity.class);
+        verify(alertService, atLeast(0)).createOrUpdateAlertForSensor(captor.capture());
+        return captor.getAllValues();
+    }
+
+    // Las alertas se registran en el hilo propio del detector: esperar a que termine lo encolado
+    private void flush() throws Exception {
+        ((ExecutorService) ReflectionTestUtils.getField(detector, "raiser")).submit(() -> { }).get();
+    }
+
+    private static SensorRecordDTO reading(int sensorId, Instant base, int minute, double flow) {
+        return new SensorRecordDTO(base.plusSeconds(minute * 60L), sensorId, 7.0, 0.3, 250.0, flow);
+    }
+
+    private static int count(boolean[] mask) {
+        int n = 0;
+        for (boolean b : mask) if (b) n++;
+        return n;
+    }
+}
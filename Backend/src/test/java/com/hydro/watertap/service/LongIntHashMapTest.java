@@ -0,0 +1,60 @@
+package com.hydro.watertap.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongIntHashMapTest {
+
+    @Test
+    void putGetAndOverwrite() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertThat(map.get(42)).isEqualTo(LongIntHashMap.MISSING);
+
+        map.put(42, 1);
+        map.put(0, 2);
+        map.put(-7, 3);
+        map.put(Long.MIN_VALUE, 4);
+        map.put(42, 5);
+
+        assertThat(map.size()).isEqualTo(4);
+        assertThat(map.get(42)).isEqualTo(5);
+        assertThat(map.get(0)).isEqualTo(2);
+        assertThat(map.get(-7)).isEqualTo(3);
+        assertThat(map.get(Long.MIN_VALUE)).isEqualTo(4);
+        assertThat(map.get(43)).isEqualTo(LongIntHashMap.MISSING);
+    }
+
+    @Test
+    void growsPastTheInitialCapacityKeepingEveryEntry() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random rnd = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            // Claves tipo sensor x bucket: muchas comparten los bits bajos
+            long key = i % 3 == 0 ? rnd.nextLong() : ((long) (i % 50) << 32) | (i / 50);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        expected.forEach((k, v) -> assertThat(map.get(k)).isEqualTo(v));
+    }
+
+    @Test
+    void clearEmptiesTheMapForReuse() {
+        LongIntHashMap map = new LongIntHashMap();
+        for (int i = 0; i < 100; i++) map.put(i, i);
+        map.clear();
+
+        assertThat(map.size()).isZero();
+        assertThat(map.get(5)).isEqualTo(LongIntHashMap.MISSING);
+        map.put(5, 50);
+        assertThat(map.get(5)).isEqualTo(50);
+        assertThat(map.size()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,82 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentSensorBufferTest {
+
+    private final Instant now = Instant.now().minusSeconds(30);
+    private final RecentSensorBuffer buffer = buffer(4);
+
+    @Test
+    void sinceReturnsOnlyReadingsAfterTheCursorInTimeOrder() {
+        buffer.onWarmUp(List.of(reading(1, 0)));
+        buffer.onReadings(List.of(reading(1, 1), reading(2, 2)));
+        long cursor = buffer.lastSeq();
+
+        buffer.onReadings(List.of(reading(2, 4), reading(1, 3)));
+
+        RecentSensorBuffer.Slice slice = buffer.since(cursor);
+        assertThat(slice.seq()).isEqualTo(cursor + 2);
+        assertThat(slice.readings()).extracting(SensorRecordDTO::timestamp)
+                .containsExactly(now.plusSeconds(3), now.plusSeconds(4));
+        assertThat(buffer.since(slice.seq()).readings()).isEmpty();
+    }
+
+    @Test
+    void snapshotThenSinceHasNoGapsOrDuplicates() {
+        buffer.onWarmUp(List.of(reading(1, 0)));
+        buffer.onReadings(List.of(reading(2, 1)));
+        RecentSensorBuffer.Slice snapshot = buffer.snapshot(5);
+        assertThat(snapshot.readings()).hasSize(2);
+
+        buffer.onReadings(List.of(reading(1, 2)));
+
+        assertThat(buffer.since(snapshot.seq()).readings()).containsExactly(reading(1, 2));
+    }
+
+    @Test
+    void cursorTheBufferCanNoLongerAnswerNeedsASnapshot() {
+        buffer.onReadings(List.of(reading(1, 0)));
+        // Sin precargar el buffer no responde
+        assertThat(buffer.since(0)).isNull();
+
+        buffer.onWarmUp(List.of());
+        long warm = buffer.lastSeq();
+        // Cursor de antes de la precarga (las secuencias se rearmaron) o de una secuencia que aún no existe
+        assertThat(buffer.since(warm - 1)).isNull();
+        assertThat(buffer.since(warm + 1)).isNull();
+        assertThat(buffer.since(-1)).isNull();
+        assertThat(buffer.since(warm).readings()).isEmpty();
+    }
+
+    @Test
+    void overwrittenReadingsInvalidateOlderCursors() {
+        buffer.onWarmUp(List.of());
+        long start = buffer.lastSeq();
+        for (int i = 1; i <= 6; i++) buffer.onReadings(List.of(reading(1, i)));
+
+        // Capacidad 4: las dos primeras lecturas se sobrescribieron
+        assertThat(buffer.since(start)).isNull();
+        assertThat(buffer.since(start + 1)).isNull();
+        assertThat(buffer.since(start + 2).readings()).hasSize(4);
+    }
+
+    private static RecentSensorBuffer buffer(int capacity) {
+        RecentSensorBuffer b = new RecentSensorBuffer();
+        ReflectionTestUtils.setField(b, "retentionMinutes", 15);
+        ReflectionTestUtils.setField(b, "capacityPerSensor", capacity);
+        ReflectionTestUtils.setField(b, "staleSeconds", 120L);
+        return b;
+    }
+
+    private SensorRecordDTO reading(int sensorId, int second) {
+        return new SensorRecordDTO(now.plusSeconds(second), sensorId, 7.0, 0.3, 250.0, 1.0);
+    }
+}
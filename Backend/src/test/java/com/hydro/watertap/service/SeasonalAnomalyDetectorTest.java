@@ -0,0 +1,159 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SeasonalAnomalyDetectorTest {
+
+    // Lunes 00:00 en Bogotá (UTC-5)
+    private static final Instant MONDAY = Instant.parse("2025-01-06T05:00:00Z");
+    private static final Duration WEEK = Duration.ofDays(7);
+
+    private final SensorAlertService alertService = mock(SensorAlertService.class);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private SeasonalAnomalyDetector detector;
+
+    @AfterEach
+    void stop() {
+        if (detector != null) detector.stop();
+    }
+
+    @Test
+    void hourIsNotScoredUntilMinWeeksHaveBeenLearned() throws Exception {
+        start();
+        learnWeek(1, MONDAY);
+
+        // Solo una semana aprendida: ni un pico enorme avisa
+        feed(1, MONDAY.plus(WEEK), 0, 10, 50.0);
+        assertThat(raised()).isEmpty();
+    }
+
+    @Test
+    void spikeRaisesAfterConsecutiveReadingsAndRespectsCooldown() throws Exception {
+        start();
+        learnWeek(1, MONDAY);
+        learnWeek(1, MONDAY.plus(WEEK));
+        Instant week3 = MONDAY.plus(WEEK.multipliedBy(2));
+
+        feed(1, week3, 0, 1, 5.0);
+        assertThat(raised()).isEmpty();
+        feed(1, week3, 2, 2, 5.0);
+        assertThat(raised()).singleElement().satisfies(a -> {
+            assertThat(a.getSensorId()).isEqualTo(1);
+            assertThat(a.getSeverity()).isEqualTo("HIGH");
+            assertThat(a.getDescription()).startsWith("flujo 5.00 inusual para lun 00:00");
+            assertThat(a.getSolution()).isEqualTo("cerrar llave");
+        });
+        assertThat(registry.counter("anomaly.alerts.raised", "detector", "zscore").count()).isEqualTo(1.0);
+
+        // Dentro de anomaly.cooldown-minutes no se repite
+        feed(1, week3, 3, 20, 5.0);
+        assertThat(raised()).hasSize(1);
+    }
+
+    @Test
+    void smallSustainedShiftIsCaughtByCusum() throws Exception {
+        start();
+        learnWeek(2, MONDAY);
+        learnWeek(2, MONDAY.plus(WEEK));
+        Instant week3 = MONDAY.plus(WEEK.multipliedBy(2));
+
+        // z ~ 2: por debajo del umbral del z-score, pero sostenido
+        feed(2, week3, 0, 5, 1.3);
+        assertThat(raised()).isEmpty();
+        feed(2, week3, 6, 10, 1.3);
+        assertThat(raised()).singleElement().satisfies(a -> {
+            assertThat(a.getSeverity()).isEqualTo("MEDIUM");
+            assertThat(a.getDescription()).contains("flujo por encima de lo habitual para lun 00:00");
+        });
+        assertThat(registry.counter("anomaly.alerts.raised", "detector", "cusum").count()).isEqualTo(1.0);
+        assertThat(registry.counter("anomaly.alerts.raised", "detector", "zscore").count()).isZero();
+    }
+
+    @Test
+    void alertNotAppliedDoesNotStartTheCooldown() throws Exception {
+        start();
+        learnWeek(3, MONDAY);
+        learnWeek(3, MONDAY.plus(WEEK));
+        Instant week3 = MONDAY.plus(WEEK.multipliedBy(2));
+        doReturn(Optional.empty())
+                .doAnswer(inv -> Optional.of(inv.getArgument(0)))
+                .when(alertService).createOrUpdateAlertForSensor(any());
+
+        feed(3, week3, 0, 2, 5.0);
+        assertThat(raised()).hasSize(1);
+        assertThat(registry.counter("anomaly.alerts.raised", "detector", "zscore").count()).isZero();
+
+        feed(3, week3, 3, 5, 5.0);
+        assertThat(raised()).hasSize(2);
+        assertThat(registry.counter("anomaly.alerts.raised", "detector", "zscore").count()).isEqualTo(1.0);
+    }
+
+    private void start() {
+        when(alertService.createOrUpdateAlertForSensor(any())).thenAnswer(inv -> Optional.of(inv.getArgument(0)));
+        detector = new SeasonalAnomalyDetector(alertService, mock(SensorDataService.class), registry);
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "alpha", 0.1);
+        ReflectionTestUtils.setField(detector, "minWeeks", 2);
+        ReflectionTestUtils.setField(detector, "minHourSamples", 10);
+        ReflectionTestUtils.setField(detector, "zThreshold", 4.0);
+        ReflectionTestUtils.setField(detector, "zConsecutive", 3);
+        ReflectionTestUtils.setField(detector, "zHigh", 8.0);
+        ReflectionTestUtils.setField(detector, "cusumK", 0.5);
+        ReflectionTestUtils.setField(detector, "cusumH", 10.0);
+        ReflectionTestUtils.setField(detector, "clipZ", 3.0);
+        ReflectionTestUtils.setField(detector, "phFloor", 0.05);
+        ReflectionTestUtils.setField(detector, "turbidityFloor", 0.05);
+        ReflectionTestUtils.setField(detector, "conductivityFloor", 5.0);
+        ReflectionTestUtils.setField(detector, "flowFloor", 0.02);
+        ReflectionTestUtils.setField(detector, "cooldownMinutes", 30L);
+        ReflectionTestUtils.setField(detector, "flowSolution", "cerrar llave");
+        detector.start();
+    }
+
+    // Una hora de lunes con flujo 1.0 / 1.2 alterno (media 1.1, desviación 0.1); la lectura de la 01:00 la cierra
+    private void learnWeek(int sensorId, Instant monday) {
+        List<SensorRecordDTO> batch = new ArrayList<>();
+        for (int m = 0; m < 60; m++) batch.add(reading(sensorId, monday, m, m % 2 == 0 ? 1.0 : 1.2));
+        batch.add(reading(sensorId, monday, 60, 1.1));
+        detector.onReadings(batch);
+    }
+
+    // Una lectura por minuto en [fromMinute, toMinute]
+    private void feed(int sensorId, Instant base, int fromMinute, int toMinute, double flow) {
+        List<SensorRecordDTO> batch = new ArrayList<>();
+        for (int m = fromMinute; m <= toMinute; m++) batch.add(reading(sensorId, base, m, flow));
+        detector.onReadings(batch);
+    }
+
+    private List<SensorAlertEntity> raised() throws Exception {
+        ((ExecutorService) ReflectionTestUtils.getField(detector, "raiser")).submit(() -> { }).get();
+        ArgumentCaptor<SensorAlertEntity> captor = ArgumentCaptor.forClass(SensorAlertEntity.class);
+        verify(alertService, atLeast(0)).createOrUpdateAlertForSensor(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static SensorRecordDTO reading(int sensorId, Instant base, int minute, double flow) {
+        return new SensorRecordDTO(base.plusSeconds(minute * 60L), sensorId, 7.0, 0.3, 250.0, flow);
+    }
+}
@@ -0,0 +1,131 @@
+package com.hydro.watertap.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import com.hydro.watertap.repository.SensorAlertRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SensorAlertServiceTest {
+
+    private final SensorAlertRepository repo = mock(SensorAlertRepository.class);
+    private final AlertWriteBehind writeBehind = mock(AlertWriteBehind.class);
+    private final ActiveAlertIndex index = new ActiveAlertIndex();
+    private final AtomicLong ids = new AtomicLong();
+    private SensorAlertService service;
+
+    @BeforeEach
+    void setUp() {
+        when(repo.save(any())).thenAnswer(inv -> {
+            SensorAlertEntity e = inv.getArgument(0);
+            e.setId(ids.incrementAndGet());
+            return e;
+        });
+        service = new SensorAlertService(repo, mock(ObjectMapper.class), mock(AlertFanout.class), index, writeBehind,
+                mock(TransactionTemplate.class));
+    }
+
+    @Test
+    void createsWhenTheSensorHasNoActiveAlert() {
+        Optional<SensorAlertEntity> created = service.createOrUpdateAlertForSensor(alert(1, "MEDIUM", "pH bajo", null));
+
+        assertThat(created).hasValueSatisfying(a -> {
+            assertThat(a.getId()).isEqualTo(1L);
+            assertThat(a.getActive()).isTrue();
+        });
+        assertThat(index.forSensor(1)).hasSize(1);
+    }
+
+    @Test
+    void equalOrHigherSeverityUpdatesTheActiveAlertInPlace() {
+        service.createOrUpdateAlertForSensor(alert(1, "MEDIUM", "pH bajo", null));
+
+        Optional<SensorAlertEntity> same = service.createOrUpdateAlertForSensor(alert(1, "MEDIUM", "pH 6.20", null));
+        Optional<SensorAlertEntity> higher = service.createOrUpdateAlertForSensor(alert(1, "HIGH", "pH 5.50", null));
+
+        assertThat(same).hasValueSatisfying(a -> assertThat(a.getDescription()).isEqualTo("pH 6.20"));
+        assertThat(higher).hasValueSatisfying(a -> {
+            assertThat(a.getId()).isEqualTo(1L);
+            assertThat(a.getSeverity()).isEqualTo("HIGH");
+        });
+        assertThat(index.forSensor(1)).singleElement()
+                .satisfies(a -> assertThat(a.getDescription()).isEqualTo("pH 5.50"));
+        verify(repo).save(any());
+    }
+
+    @Test
+    void lowerSeverityIsSuppressedWhileAMoreSevereAlertIsActive() {
+        service.createOrUpdateAlertForSensor(alert(1, "HIGH", "flujo continuo", "cerrar llave"));
+
+        assertThat(service.createOrUpdateAlertForSensor(alert(1, "MEDIUM", "goteo nocturno", null))).isEmpty();
+        assertThat(service.createOrUpdateAlertForSensor(alert(1, null, "sin severidad", null))).isEmpty();
+        assertThat(index.forSensor(1)).singleElement()
+                .satisfies(a -> assertThat(a.getDescription()).isEqualTo("flujo continuo"));
+        verify(writeBehind, never()).enqueue(any());
+
+        // Otro sensor no se ve afectado
+        assertThat(service.createOrUpdateAlertForSensor(alert(2, "LOW", "turbidez", null))).isPresent();
+    }
+
+    @Test
+    void updateWithoutSolutionKeepsTheActiveOne() {
+        service.createOrUpdateAlertForSensor(alert(1, "HIGH", "flujo continuo", "cerrar llave"));
+
+        Optional<SensorAlertEntity> ph = service.createOrUpdateAlertForSensor(alert(1, "HIGH", "pH 5.50", null));
+        assertThat(ph).hasValueSatisfying(a -> {
+            assertThat(a.getDescription()).isEqualTo("pH 5.50");
+            assertThat(a.getSolution()).isEqualTo("cerrar llave");
+        });
+
+        Optional<SensorAlertEntity> flow = service.createOrUpdateAlertForSensor(alert(1, "HIGH", "flujo", "revisar fuga"));
+        assertThat(flow).hasValueSatisfying(a -> assertThat(a.getSolution()).isEqualTo("revisar fuga"));
+    }
+
+    @Test
+    void deferredEnrichmentOnlyTouchesTheUnchangedActiveAlert() {
+        Long id = service.createOrUpdateAlertForSensor(alert(1, "MEDIUM", "pH~6.20", null)).orElseThrow().getId();
+
+        assertThat(service.updateIfUnchanged(id, "MEDIUM", "pH~6.20", "pH ligeramente ácido", null))
+                .hasValueSatisfying(a -> assertThat(a.getDescription()).isEqualTo("pH ligeramente ácido"));
+
+        // Otra fuente la actualizó entretanto: la redacción ya no aplica
+        service.createOrUpdateAlertForSensor(alert(1, "MEDIUM", "conductividad alta", null));
+        assertThat(service.updateIfUnchanged(id, "MEDIUM", "pH ligeramente ácido", "redacción vieja", null)).isEmpty();
+        assertThat(index.find(id)).hasValueSatisfying(a -> assertThat(a.getDescription()).isEqualTo("conductividad alta"));
+    }
+
+    @Test
+    void deferredEnrichmentNeverRevivesAResolvedAlert() {
+        Long id = service.createOrUpdateAlertForSensor(alert(1, "HIGH", "flujo", "cerrar llave")).orElseThrow().getId();
+        service.deactivateAlert(id);
+
+        assertThat(service.updateIfUnchanged(id, "HIGH", "flujo", "flujo continuo", null)).isEmpty();
+        assertThat(service.updateIfUnchanged(null, "HIGH", "flujo", "flujo continuo", null)).isEmpty();
+        assertThat(index.forSensor(1)).isEmpty();
+        verify(repo).save(any());
+    }
+
+    @Test
+    void severityRankOrdersHighMediumAndTheRest() {
+        assertThat(SensorAlertService.severityRank("HIGH")).isGreaterThan(SensorAlertService.severityRank("MEDIUM"));
+        assertThat(SensorAlertService.severityRank("MEDIUM")).isGreaterThan(SensorAlertService.severityRank("LOW"));
+        assertThat(SensorAlertService.severityRank(null)).isEqualTo(SensorAlertService.severityRank("LOW"));
+        assertThat(SensorAlertService.severityRank("CRITICAL")).isEqualTo(SensorAlertService.severityRank("LOW"));
+    }
+
+    private static SensorAlertEntity alert(int sensorId, String severity, String description, String solution) {
+        return SensorAlertEntity.builder().sensorId(sensorId).severity(severity).description(description)
+                .solution(solution).build();
+    }
+}
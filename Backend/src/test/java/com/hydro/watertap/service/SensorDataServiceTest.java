@@ -0,0 +1,49 @@
+package com.hydro.watertap.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SensorDataServiceTest {
+
+    private static final Instant T0 = Instant.parse("2025-01-01T00:00:00Z");
+
+    @Test
+    void pushedDownExclusionsKeepReadingsWithoutSensorId() {
+        Map<Integer, long[]> ranges = new LinkedHashMap<>();
+        ranges.put(1, new long[] { n(10), n(20), n(40), n(50) });
+        ranges.put(2, new long[] { n(0), n(5) });
+        StringBuilder q = new StringBuilder("SELECT * FROM water_sensors WHERE time >= :from");
+        Map<String, Object> params = new HashMap<>();
+
+        SensorDataService.appendExclusions(q, params, ranges);
+
+        // Con sensor_id NULL cada NOT (...) vale TRUE, como en el filtro en memoria
+        assertThat(q.toString()).isEqualTo("SELECT * FROM water_sensors WHERE time >= :from"
+                + " AND NOT (sensor_id IS NOT NULL AND sensor_id = :exs0 AND time >= :exa0 AND time <= :exb0)"
+                + " AND NOT (sensor_id IS NOT NULL AND sensor_id = :exs1 AND time >= :exa1 AND time <= :exb1)"
+                + " AND NOT (sensor_id IS NOT NULL AND sensor_id = :exs2 AND time >= :exa2 AND time <= :exb2)");
+        assertThat(params).containsEntry("exs0", "1").containsEntry("exs1", "1").containsEntry("exs2", "2")
+                .containsEntry("exa1", T0.plusSeconds(40).toString())
+                .containsEntry("exb2", T0.plusSeconds(5).toString())
+                .hasSize(9);
+    }
+
+    @Test
+    void noRangesLeaveTheQueryUntouched() {
+        StringBuilder q = new StringBuilder("SELECT 1");
+        Map<String, Object> params = new HashMap<>();
+        SensorDataService.appendExclusions(q, params, Map.of());
+        assertThat(q.toString()).isEqualTo("SELECT 1");
+        assertThat(params).isEmpty();
+    }
+
+    private static long n(int second) {
+        return EpochNanos.of(T0.plusSeconds(second));
+    }
+}
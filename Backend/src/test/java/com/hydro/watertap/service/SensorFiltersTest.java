@@ -0,0 +1,44 @@
+package com.hydro.watertap.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SensorFiltersTest {
+
+    @Test
+    void blankSensorIdsAreIgnored() {
+        SensorFilters filters = filters("");
+
+        // ?sensorIds=3,,1 llega como [3, null, 1]
+        SensorFilter filter = filters.of(Arrays.asList(3, null, 1), null);
+        assertThat(filter.sensorIds()).containsExactly(1, 3);
+        assertThat(filter).isEqualTo(filters.of(List.of(1, 3), null));
+        assertThat(filter.matches(null)).isFalse();
+
+        // Solo ids vacíos equivale a no filtrar
+        assertThat(filters.of(Arrays.asList(null, null), null)).isEqualTo(SensorFilter.ALL);
+    }
+
+    @Test
+    void sitesAddTheirSensorsToTheExplicitIds() {
+        SensorFilters filters = filters("Norte:1,2,x; sur:5");
+
+        assertThat(filters.of(List.of(9), List.of("norte ")).sensorIds()).containsExactly(1, 2, 9);
+        assertThat(filters.of(null, List.of("SUR")).sensorIds()).containsExactly(5);
+        // Sitio desconocido: filtro vacío, no "todos"
+        assertThat(filters.of(null, List.of("otro")).matches(1)).isFalse();
+        assertThat(filters.of(null, null)).isEqualTo(SensorFilter.ALL);
+    }
+
+    private static SensorFilters filters(String sites) {
+        SensorFilters filters = new SensorFilters();
+        ReflectionTestUtils.setField(filters, "sitesSpec", sites);
+        filters.load();
+        return filters;
+    }
+}
@@ -0,0 +1,182 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.influxdb.v3.client.Point;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SensorIngestServiceTest {
+
+    private static final Instant T0 = Instant.parse("2025-01-01T00:00:00Z");
+
+    private final SensorDataService influx = mock(SensorDataService.class);
+    private final SensorWriteAheadLog wal = mock(SensorWriteAheadLog.class);
+    private final SensorIngestListener listener = mock(SensorIngestListener.class);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CountDownLatch influxDown = new CountDownLatch(1);
+    private SensorIngestService service;
+
+    @AfterEach
+    void stop() throws Exception {
+        influxDown.countDown();
+        if (service != null) service.stop();
+    }
+
+    @Test
+    void queuedAckReturnsBeforeTheWriteAndPublishesToListeners() throws Exception {
+        blockWrites();
+        start(SensorIngestService.Backpressure.REJECT, SensorIngestService.AckMode.QUEUED, 10, 0);
+        List<SensorRecordDTO> batch = readings(0, 3);
+
+        assertThat(service.ingest(batch)).isTrue();
+        verify(listener).onReadings(batch);
+        verify(influx, never()).markWritten(any(), any());
+
+        influxDown.countDown();
+        verify(influx, timeout(2000)).markWritten(T0, T0.plusSeconds(2));
+    }
+
+    @Test
+    void flushedAckWaitsForTheWrite() {
+        start(SensorIngestService.Backpressure.REJECT, SensorIngestService.AckMode.FLUSHED, 10, 0);
+
+        assertThat(service.ingest(readings(0, 2))).isTrue();
+
+        // Al volver del ingest el lote ya está en Influx
+        verify(influx).writePoints(anyList());
+        verify(influx).markWritten(T0, T0.plusSeconds(1));
+    }
+
+    @Test
+    void rejectRefusesWhenTheQueueIsFull() throws Exception {
+        blockWrites();
+        start(SensorIngestService.Backpressure.REJECT, SensorIngestService.AckMode.QUEUED, 4, 0);
+
+        assertThat(service.ingest(readings(0, 4))).isTrue();
+        verify(influx, timeout(2000)).writePoints(anyList());
+        List<SensorRecordDTO> refused = readings(4, 1);
+        assertThat(service.ingest(refused)).isFalse();
+        verify(listener, never()).onReadings(refused);
+        verify(influx, never()).saveSensorData(anyList());
+    }
+
+    @Test
+    void blockWaitsForRoomUntilItsTimeout() throws Exception {
+        blockWrites();
+        start(SensorIngestService.Backpressure.BLOCK, SensorIngestService.AckMode.QUEUED, 4, 0);
+        ReflectionTestUtils.setField(service, "blockTimeoutMs", 50L);
+
+        assertThat(service.ingest(readings(0, 4))).isTrue();
+        verify(influx, timeout(2000)).writePoints(anyList());
+        assertThat(service.ingest(readings(4, 1))).isFalse();
+
+        // Si el escritor libera espacio durante la espera, el lote entra
+        ReflectionTestUtils.setField(service, "blockTimeoutMs", 2000L);
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> service.ingest(readings(5, 1)));
+        Thread.sleep(50);
+        assertThat(waiting).isNotDone();
+        influxDown.countDown();
+        assertThat(waiting.get(2, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void spillWritesInTheRequestThreadWhenTheQueueIsFull() throws Exception {
+        blockWrites();
+        start(SensorIngestService.Backpressure.SPILL, SensorIngestService.AckMode.QUEUED, 4, 0);
+
+        assertThat(service.ingest(readings(0, 4))).isTrue();
+        verify(influx, timeout(2000)).writePoints(anyList());
+        List<SensorRecordDTO> spilled = readings(4, 2);
+        assertThat(service.ingest(spilled)).isTrue();
+        verify(influx).saveSensorData(spilled);
+        verify(listener).onReadings(spilled);
+    }
+
+    @Test
+    void failedWriteIsRetriedWithBackoff() {
+        doThrow(new RuntimeException("influx caído"))
+                .doThrow(new RuntimeException("influx caído"))
+                .doNothing()
+                .when(influx).writePoints(anyList());
+        start(SensorIngestService.Backpressure.REJECT, SensorIngestService.AckMode.FLUSHED, 10, 3);
+
+        assertThat(service.ingest(readings(0, 2))).isTrue();
+
+        verify(influx, times(3)).writePoints(anyList());
+        verify(influx).markWritten(T0, T0.plusSeconds(1));
+        assertThat(registry.counter("ingest.points.dropped").count()).isZero();
+    }
+
+    @Test
+    void exhaustedRetriesDropTheBatchAndCountItsPoints() {
+        doThrow(new RuntimeException("influx caído")).when(influx).writePoints(anyList());
+        start(SensorIngestService.Backpressure.REJECT, SensorIngestService.AckMode.FLUSHED, 10, 2);
+
+        assertThatThrownBy(() -> service.ingest(readings(0, 3))).isInstanceOf(CompletionException.class);
+
+        verify(influx, times(3)).writePoints(anyList());
+        verify(influx, never()).markWritten(any(), any());
+        assertThat(registry.counter("ingest.points.dropped").count()).isEqualTo(3.0);
+
+        // Los permisos del lote descartado se devuelven a la cola
+        doNothing().when(influx).writePoints(anyList());
+        assertThat(service.ingest(readings(3, 10))).isTrue();
+    }
+
+    private void start(SensorIngestService.Backpressure backpressure, SensorIngestService.AckMode ackMode,
+                       int queueCapacity, int writeRetries) {
+        when(influx.stampMissingTimestamps(anyList())).thenAnswer(inv -> inv.getArgument(0));
+        when(influx.toPoints(anyList())).thenAnswer(inv ->
+                new ArrayList<>(Collections.nCopies(inv.<List<?>>getArgument(0).size(), (Point) null)));
+        service = new SensorIngestService(influx, wal, List.of(listener), registry);
+        ReflectionTestUtils.setField(service, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(service, "batchSize", 100);
+        ReflectionTestUtils.setField(service, "lingerMs", 5L);
+        ReflectionTestUtils.setField(service, "backpressure", backpressure);
+        ReflectionTestUtils.setField(service, "blockTimeoutMs", 2000L);
+        ReflectionTestUtils.setField(service, "ackMode", ackMode);
+        ReflectionTestUtils.setField(service, "writeRetries", writeRetries);
+        ReflectionTestUtils.setField(service, "retryBackoffMs", 1L);
+        service.start();
+    }
+
+    // El escritor queda dentro de writePoints (sin liberar la cola) hasta que Influx "vuelve"
+    private void blockWrites() {
+        doAnswer(inv -> {
+            influxDown.await();
+            return null;
+        }).when(influx).writePoints(anyList());
+    }
+
+    // n lecturas, una por segundo desde T0 + from segundos
+    private static List<SensorRecordDTO> readings(int from, int n) {
+        List<SensorRecordDTO> out = new ArrayList<>();
+        for (int i = from; i < from + n; i++) out.add(new SensorRecordDTO(T0.plusSeconds(i), 1, 7.0, 0.3, 250.0, 1.0));
+        return out;
+    }
+}
@@ -0,0 +1,169 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.hydro.watertap.model.entity.SensorAlertEntity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SensorRuleEngineTest {
+
+    private static final Instant T0 = Instant.parse("2025-01-01T00:00:00Z");
+
+    private final SensorAlertService alertService = mock(SensorAlertService.class);
+    private SensorRuleEngine engine;
+
+    @AfterEach
+    void stop() {
+        if (engine != null) engine.stop();
+    }
+
+    @Test
+    void parsesRulesWithSpacesAndDurationsInSeconds() {
+        SensorRuleEngine.Rule[] rules = SensorRuleEngine.parse(" ph < 6.5 @ 60 : MEDIUM ;; flowRate>=0.8@300:HIGH; ");
+
+        assertThat(rules).containsExactly(
+                new SensorRuleEngine.Rule(0, "<", 6.5, 60_000, "MEDIUM"),
+                new SensorRuleEngine.Rule(3, ">=", 0.8, 300_000, "HIGH"));
+        assertThat(rules[0].breached(6.4)).isTrue();
+        assertThat(rules[0].breached(6.5)).isFalse();
+        assertThat(rules[1].breached(0.8)).isTrue();
+        assertThat(SensorRuleEngine.parse(null)).isEmpty();
+    }
+
+    @Test
+    void rejectsInvalidRules() {
+        assertThatThrownBy(() -> SensorRuleEngine.parse("ph<6.5@60:MEDIUM;temperature>30@0:HIGH"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("temperature>30@0:HIGH");
+        assertThatThrownBy(() -> SensorRuleEngine.parse("ph<6.5:MEDIUM"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SensorRuleEngine.parse("ph<6.5@60:CRITICAL"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void firesOnceWhenTheConditionHoldsForItsDuration() {
+        start("flowRate>0.8@60:MEDIUM", 120);
+
+        feed(flow(0, 1.0), flow(30, 1.2), flow(59, 1.1));
+        assertThat(drained()).isEmpty();
+
+        feed(flow(60, 0.9));
+        Map<Integer, SensorRuleEngine.Finding> fired = drained();
+        assertThat(fired).containsOnlyKeys(1);
+        SensorRuleEngine.Finding f = fired.get(1);
+        assertThat(f.severity()).isEqualTo("MEDIUM");
+        assertThat(f.rules()).isEqualTo("flowRate>0.8");
+        assertThat(f.from()).isEqualTo(T0);
+        assertThat(f.to()).isEqualTo(T0.plusSeconds(60));
+        assertThat(f.description()).contains("1.20");
+        assertThat(f.solution()).isNotNull();
+
+        // Sigue disparada: no se repite hasta rearmarse
+        feed(flow(90, 1.0));
+        assertThat(drained()).isEmpty();
+        feed(flow(100, 0.1), flow(110, 1.0), flow(170, 1.0));
+        assertThat(drained()).containsOnlyKeys(1);
+    }
+
+    @Test
+    void readingBelowThresholdRestartsTheDuration() {
+        start("flowRate>0.8@60:MEDIUM", 120);
+
+        feed(flow(0, 1.0), flow(40, 0.2), flow(80, 1.0), flow(120, 1.0));
+        assertThat(drained()).isEmpty();
+        feed(flow(140, 1.0));
+        assertThat(drained().get(1).from()).isEqualTo(T0.plusSeconds(80));
+    }
+
+    @Test
+    void gapLongerThanMaxGapRestartsTheDuration() {
+        start("flowRate>0.8@300:MEDIUM", 120);
+
+        // Dos lecturas sobre el umbral separadas 10 minutos no prueban 5 minutos seguidos
+        feed(flow(0, 1.0), flow(600, 1.0));
+        assertThat(drained()).isEmpty();
+
+        feed(flow(700, 1.0), flow(800, 1.0), flow(900, 1.0));
+        assertThat(drained().get(1).from()).isEqualTo(T0.plusSeconds(600));
+    }
+
+    @Test
+    void keepsTheHighestSeverityAndIgnoresOutOfOrderReadings() {
+        start("ph<6.5@0:MEDIUM;ph<6.0@0:HIGH", 120);
+
+        feed(new SensorRecordDTO(T0, 2, 6.3, null, null, null));
+        assertThat(drained().get(2).severity()).isEqualTo("MEDIUM");
+
+        feed(new SensorRecordDTO(T0.plusSeconds(10), 2, 5.8, null, null, null));
+        SensorRuleEngine.Finding f = drained().get(2);
+        assertThat(f.severity()).isEqualTo("HIGH");
+        assertThat(f.rules()).isEqualTo("ph<6.5,ph<6.0");
+
+        // Una lectura atrasada no rearma las reglas
+        feed(new SensorRecordDTO(T0.plusSeconds(5), 2, 7.0, null, null, null),
+                new SensorRecordDTO(T0.plusSeconds(20), 2, 5.8, null, null, null));
+        assertThat(drained()).isEmpty();
+    }
+
+    @Test
+    void findingCarriesTheIdOfTheAlertItCreated() {
+        start("ph<6.5@0:MEDIUM", 120);
+        doReturn(Optional.of(SensorAlertEntity.builder().id(42L).sensorId(3).build()))
+                .when(alertService).createOrUpdateAlertForSensor(any());
+
+        feed(new SensorRecordDTO(T0, 3, 6.0, null, null, null));
+        assertThat(drained().get(3).alertId()).isEqualTo(42L);
+    }
+
+    @Test
+    void suppressedAlertIsNotQueuedForEnrichment() {
+        start("ph<6.5@0:MEDIUM", 120);
+        doReturn(Optional.empty()).when(alertService).createOrUpdateAlertForSensor(any());
+
+        feed(new SensorRecordDTO(T0, 3, 6.0, null, null, null));
+        assertThat(drained()).isEmpty();
+    }
+
+    private void start(String definitions, long maxGapSeconds) {
+        when(alertService.createOrUpdateAlertForSensor(any())).thenAnswer(inv -> Optional.of(inv.getArgument(0)));
+        engine = new SensorRuleEngine(alertService, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(engine, "definitions", definitions);
+        ReflectionTestUtils.setField(engine, "flowSolution", "cerrar llave");
+        ReflectionTestUtils.setField(engine, "maxGapSeconds", maxGapSeconds);
+        engine.start();
+    }
+
+    // Las alertas se registran en el hilo propio del motor: esperar a que termine lo encolado
+    private Map<Integer, SensorRuleEngine.Finding> drained() {
+        try {
+            ((ExecutorService) ReflectionTestUtils.getField(engine, "raiser")).submit(() -> { }).get();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return engine.drainPendingEnrichment();
+    }
+
+    private void feed(SensorRecordDTO... readings) {
+        engine.onReadings(List.of(readings));
+    }
+
+    private static SensorRecordDTO flow(int second, double flowRate) {
+        return new SensorRecordDTO(T0.plusSeconds(second), 1, 7.0, 0.3, 250.0, flowRate);
+    }
+}
@@ -0,0 +1,161 @@
+package com.hydro.watertap.service;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.BaseIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.FloatingPointVector;
+import org.apache.arrow.vector.TimeStampVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+// Los vectores Arrow se simulan con Mockito: solo se usan los accesos que hace el decodificador
+class SensorSeriesDecoderTest {
+
+    private static final int NO = SensorSeries.NO_SENSOR;
+
+    @Test
+    void decodesIntTagsMetricsAndNullsScalingTheTimestamp() {
+        VectorSchemaRoot root = root(2,
+                time(TimeUnit.MILLISECOND, 1_000L, 2_000L),
+                intIds(7L, null),
+                floats(7.1, null),
+                null,
+                ints(250L, 300L));
+
+        SensorSeries out = new SensorSeries();
+        assertThat(SensorSeriesDecoder.append(root, out)).isTrue();
+
+        assertThat(out.size()).isEqualTo(2);
+        assertThat(out.timestampNanos(0)).isEqualTo(1_000_000_000L);
+        assertThat(out.sensorId(0)).isEqualTo(7);
+        assertThat(out.sensorId(1)).isEqualTo(NO);
+        assertThat(out.value(0, SensorSeries.PH)).isEqualTo(7.1);
+        assertThat(out.isNull(1, SensorSeries.PH)).isTrue();
+        assertThat(out.value(1, SensorSeries.CONDUCTIVITY)).isEqualTo(300.0);
+        assertThat(out.isNull(0, SensorSeries.FLOW_RATE)).isTrue();
+    }
+
+    @Test
+    void parsesStringTagsRejectingWhatIsNotAnInt() {
+        String[] tags = {"17", "-3", "0", "", "-", "12a", "2147483647", "2147483648", "-2147483647", "99999999999", null};
+        int[] expected = {17, -3, 0, NO, NO, NO, Integer.MAX_VALUE, NO, -2147483647, NO, NO};
+        long[] times = new long[tags.length];
+
+        SensorSeries out = new SensorSeries();
+        assertThat(SensorSeriesDecoder.append(root(tags.length, time(TimeUnit.NANOSECOND, times), stringIds(tags)), out))
+                .isTrue();
+
+        for (int i = 0; i < tags.length; i++) {
+            assertThat(out.sensorId(i)).as(String.valueOf(tags[i])).isEqualTo(expected[i]);
+        }
+    }
+
+    @Test
+    void intTagsOutsideTheIntRangeAreNotSensors() {
+        SensorSeries out = new SensorSeries();
+        SensorSeriesDecoder.append(root(3, time(TimeUnit.SECOND, 1, 2, 3),
+                intIds((long) Integer.MAX_VALUE + 1, (long) Integer.MIN_VALUE - 1, -5L)), out);
+
+        assertThat(out.sensorId(0)).isEqualTo(NO);
+        assertThat(out.sensorId(1)).isEqualTo(NO);
+        assertThat(out.sensorId(2)).isEqualTo(-5);
+        assertThat(out.timestampNanos(2)).isEqualTo(3_000_000_000L);
+    }
+
+    @Test
+    void dictionaryTagsOrUnsupportedColumnsAreNotReadable() {
+        FieldVector dictionary = stringIds("1");
+        Field encoded = mock(Field.class);
+        when(encoded.getDictionary()).thenReturn(mock(DictionaryEncoding.class));
+        when(dictionary.getField()).thenReturn(encoded);
+        VectorSchemaRoot withDictionary = root(1, time(TimeUnit.NANOSECOND, 0), dictionary);
+
+        SensorSeries out = new SensorSeries();
+        assertThat(SensorSeriesDecoder.readable(withDictionary)).isFalse();
+        assertThat(SensorSeriesDecoder.append(withDictionary, out)).isFalse();
+        assertThat(out.size()).isZero();
+
+        VectorSchemaRoot textMetric = root(1, time(TimeUnit.NANOSECOND, 0), intIds(1L), stringIds("7.0"));
+        assertThat(SensorSeriesDecoder.readable(textMetric)).isFalse();
+        assertThat(SensorSeriesDecoder.readable(root(1, null, intIds(1L)))).isFalse();
+        assertThat(SensorSeriesDecoder.readable(root(1, time(TimeUnit.NANOSECOND, 0), null))).isFalse();
+    }
+
+    // Columnas: time, sensor_id y luego las métricas en orden ph, turbidity, conductivity, flowRate
+    private static VectorSchemaRoot root(int rows, FieldVector time, FieldVector sensor, FieldVector... metrics) {
+        VectorSchemaRoot root = mock(VectorSchemaRoot.class);
+        when(root.getRowCount()).thenReturn(rows);
+        when(root.getVector("time")).thenReturn(time);
+        when(root.getVector("sensor_id")).thenReturn(sensor);
+        String[] names = {"ph", "turbidity", "conductivity", "flowRate"};
+        for (int m = 0; m < metrics.length; m++) when(root.getVector(names[m])).thenReturn(metrics[m]);
+        return root;
+    }
+
+    private static FieldVector time(TimeUnit unit, long... values) {
+        TimeStampVector v = mock(TimeStampVector.class);
+        Field field = mock(Field.class);
+        when(field.getType()).thenReturn(new ArrowType.Timestamp(unit, "UTC"));
+        when(v.getField()).thenReturn(field);
+        when(v.get(anyInt())).thenAnswer(inv -> values[(int) inv.getArgument(0)]);
+        return v;
+    }
+
+    private static FieldVector intIds(Long... values) {
+        return ints(values);
+    }
+
+    private static FieldVector ints(Long... values) {
+        FieldVector v = mock(FieldVector.class, withSettings().extraInterfaces(BaseIntVector.class));
+        when(v.getField()).thenReturn(mock(Field.class));
+        when(v.isNull(anyInt())).thenAnswer(inv -> values[(int) inv.getArgument(0)] == null);
+        when(((BaseIntVector) v).getValueAsLong(anyInt())).thenAnswer(inv -> values[(int) inv.getArgument(0)]);
+        return v;
+    }
+
+    private static FieldVector floats(Double... values) {
+        FieldVector v = mock(FieldVector.class, withSettings().extraInterfaces(FloatingPointVector.class));
+        when(v.isNull(anyInt())).thenAnswer(inv -> values[(int) inv.getArgument(0)] == null);
+        when(((FloatingPointVector) v).getValueAsDouble(anyInt())).thenAnswer(inv -> values[(int) inv.getArgument(0)]);
+        return v;
+    }
+
+    // Tags UTF-8 contiguos en un buffer, con sus offsets, como los guarda Arrow
+    private static VarCharVector stringIds(String... values) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int[] start = new int[values.length];
+        int[] length = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            byte[] b = values[i] == null ? new byte[0] : values[i].getBytes(StandardCharsets.UTF_8);
+            start[i] = bytes.size();
+            length[i] = b.length;
+            bytes.writeBytes(b);
+        }
+        byte[] data = bytes.toByteArray();
+        ArrowBuf buf = mock(ArrowBuf.class);
+        when(buf.getByte(anyLong())).thenAnswer(inv -> data[(int) (long) inv.getArgument(0)]);
+
+        VarCharVector v = mock(VarCharVector.class);
+        when(v.getField()).thenReturn(mock(Field.class));
+        when(v.getDataBuffer()).thenReturn(buf);
+        when(v.isNull(anyInt())).thenAnswer(inv -> values[(int) inv.getArgument(0)] == null);
+        when(v.getStartOffset(anyInt())).thenAnswer(inv -> start[(int) inv.getArgument(0)]);
+        when(v.getValueLength(anyInt())).thenAnswer(inv -> length[(int) inv.getArgument(0)]);
+        return v;
+    }
+}
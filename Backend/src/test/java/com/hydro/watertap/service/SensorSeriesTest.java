@@ -0,0 +1,56 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SensorSeriesTest {
+
+    private static final Instant T0 = Instant.parse("2025-01-01T00:00:00.123456789Z");
+
+    @Test
+    void roundTripsReadingsKeepingNullsAndNanos() {
+        List<SensorRecordDTO> records = new ArrayList<>();
+        // Más filas que la capacidad inicial, con nulos repartidos
+        for (int i = 0; i < 100; i++) {
+            records.add(new SensorRecordDTO(T0.plusNanos(i), i % 3 == 0 ? null : i,
+                    i % 2 == 0 ? 7.0 + i : null, 0.5, i % 5 == 0 ? null : 250.0, -0.0));
+        }
+
+        SensorSeries s = SensorSeries.of(records);
+
+        assertThat(s.size()).isEqualTo(100);
+        assertThat(s.sensorId(0)).isEqualTo(SensorSeries.NO_SENSOR);
+        assertThat(s.value(1, SensorSeries.PH)).isNaN();
+        assertThat(s.isNull(1, SensorSeries.TURBIDITY)).isFalse();
+        assertThat(s.toDtos()).containsExactlyElementsOf(records);
+    }
+
+    @Test
+    void selectAndAppendCopyWholeRows() {
+        SensorSeries s = new SensorSeries(1);
+        for (int i = 0; i < 5; i++) s.set(s.addRow(i, i), SensorSeries.FLOW_RATE, i / 10.0);
+        BitSet keep = new BitSet();
+        keep.set(1);
+        keep.set(3);
+        keep.set(7);
+
+        SensorSeries picked = s.select(keep);
+        assertThat(picked.size()).isEqualTo(2);
+        assertThat(picked.sensorId(1)).isEqualTo(3);
+        assertThat(picked.value(1, SensorSeries.FLOW_RATE)).isEqualTo(0.3);
+        assertThat(picked.isNull(1, SensorSeries.PH)).isTrue();
+
+        picked.appendAll(s);
+        picked.appendRow(s, 4);
+        assertThat(picked.size()).isEqualTo(8);
+        assertThat(picked.timestampNanos(7)).isEqualTo(4);
+        assertThat(picked.value(7, SensorSeries.FLOW_RATE)).isEqualTo(0.4);
+    }
+}
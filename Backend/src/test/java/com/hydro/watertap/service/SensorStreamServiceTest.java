@@ -0,0 +1,164 @@
+package com.hydro.watertap.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SensorStreamServiceTest {
+
+    private final Instant now = Instant.now().minusSeconds(30);
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final SensorDataService data = mock(SensorDataService.class);
+    private final RecentSensorBuffer buffer = new RecentSensorBuffer();
+    private final SensorEventBus bus = new SensorEventBus();
+    private final Bulkhead dashboard = new Bulkhead("dashboard", 2, 16, new SimpleMeterRegistry());
+    // Lo que la ingesta escribió en Influx
+    private final List<SensorRecordDTO> written = new ArrayList<>();
+    private final List<Disposable> subscriptions = new ArrayList<>();
+    private SensorStreamService service;
+
+    @BeforeEach
+    void start() {
+        ReflectionTestUtils.setField(buffer, "retentionMinutes", 15);
+        ReflectionTestUtils.setField(buffer, "capacityPerSensor", 4);
+        ReflectionTestUtils.setField(buffer, "staleSeconds", 120L);
+        // Un aviso por lote de ingesta, sin esperar al temporizador
+        ReflectionTestUtils.setField(bus, "flushMs", 10L);
+        ReflectionTestUtils.setField(bus, "maxBatch", 1);
+        bus.start();
+        when(data.getRecentSince(anyLong())).thenAnswer(inv -> buffer.since(inv.getArgument(0)));
+        // Como SensorDataService: si el buffer no cubre la ventana se lee de Influx
+        when(data.getRecentSnapshot(anyInt())).thenAnswer(inv -> {
+            RecentSensorBuffer.Slice slice = buffer.snapshot(inv.getArgument(0));
+            return slice != null ? slice : new RecentSensorBuffer.Slice(List.copyOf(written), buffer.lastSeq());
+        });
+
+        service = new SensorStreamService(data, buffer, bus, dashboard, objectMapper);
+        ReflectionTestUtils.setField(service, "snapshotMinutes", 5);
+        // Sin ticks del sondeo de respaldo durante el test
+        ReflectionTestUtils.setField(service, "fallbackIntervalMs", 60_000L);
+        service.start();
+        buffer.onWarmUp(List.of());
+    }
+
+    @AfterEach
+    void stop() {
+        subscriptions.forEach(Disposable::dispose);
+        service.stop();
+        bus.stop();
+        dashboard.dispose();
+    }
+
+    @Test
+    void lastEventIdResumesWithOnlyTheMissedReadings() throws Exception {
+        feed(reading(1, 0), reading(2, 1));
+        String lastEventId = service.cursorId(buffer.lastSeq());
+        SensorRecordDTO missed = reading(1, 2);
+        feed(missed);
+
+        BlockingQueue<ServerSentEvent<String>> events = subscribe(lastEventId, SensorFilter.ALL);
+
+        assertEvent(events, SensorStreamService.DELTA, List.of(missed));
+
+        // Después sigue en vivo desde ese cursor
+        SensorRecordDTO live = reading(2, 3);
+        feed(live);
+        assertEvent(events, SensorStreamService.DELTA, List.of(live));
+    }
+
+    @Test
+    void cursorOfAnotherInstanceStartsWithASnapshot() throws Exception {
+        feed(reading(1, 0), reading(2, 1));
+
+        BlockingQueue<ServerSentEvent<String>> events = subscribe("otro-2", SensorFilter.ALL);
+
+        assertEvent(events, SensorStreamService.SNAPSHOT, List.of(reading(1, 0), reading(2, 1)));
+    }
+
+    @Test
+    void subscriberAheadOfTheGroupCatchesUpOnItsOwn() throws Exception {
+        SensorFilter onlyTwo = new SensorFilter(Set.of(2));
+        feed(reading(1, 0));
+        BlockingQueue<ServerSentEvent<String>> first = subscribe(null, onlyTwo);
+        assertEvent(first, SensorStreamService.SNAPSHOT, List.of());
+
+        // Lectura de otro sensor: el grupo no despierta y su cursor se queda atrás del nuevo suscriptor
+        feed(reading(1, 1));
+        long joinedAt = buffer.lastSeq();
+        BlockingQueue<ServerSentEvent<String>> second = subscribe(null, onlyTwo);
+        assertEvent(second, SensorStreamService.SNAPSHOT, List.of());
+
+        SensorRecordDTO r = reading(2, 2);
+        feed(r);
+
+        // El primero recibe el texto compartido del grupo; el segundo se pone al día desde su cursor
+        assertEvent(first, SensorStreamService.DELTA, List.of(r));
+        assertEvent(second, SensorStreamService.DELTA, List.of(r));
+        verify(data, timeout(2000)).getRecentSince(joinedAt);
+    }
+
+    @Test
+    void subscriberWhoseCursorWasOverwrittenGetsANewSnapshot() throws Exception {
+        feed(reading(1, 0));
+        long cursor = buffer.lastSeq();
+        BlockingQueue<ServerSentEvent<String>> events = subscribe(null, SensorFilter.ALL);
+        assertEvent(events, SensorStreamService.SNAPSHOT, List.of(reading(1, 0)));
+
+        // Más lecturas de las que caben en el buffer: el grupo no puede responder desde su cursor y no emite nada
+        feed(reading(1, 1), reading(1, 2), reading(1, 3), reading(1, 4), reading(1, 5));
+        verify(data, timeout(2000)).getRecentSince(cursor);
+
+        feed(reading(1, 6));
+        List<SensorRecordDTO> all = new ArrayList<>();
+        for (int i = 0; i <= 6; i++) all.add(reading(1, i));
+        assertEvent(events, SensorStreamService.SNAPSHOT, all);
+    }
+
+    private BlockingQueue<ServerSentEvent<String>> subscribe(String lastEventId, SensorFilter filter) {
+        BlockingQueue<ServerSentEvent<String>> events = new LinkedBlockingQueue<>();
+        subscriptions.add(service.deltaStream(lastEventId, filter).subscribe(events::add));
+        return events;
+    }
+
+    private void assertEvent(BlockingQueue<ServerSentEvent<String>> events, String type,
+                             List<SensorRecordDTO> readings) throws Exception {
+        ServerSentEvent<String> ev = events.poll(2, TimeUnit.SECONDS);
+        assertThat(ev).as("evento %s", type).isNotNull();
+        assertThat(ev.event()).isEqualTo(type);
+        assertThat(ev.id()).isEqualTo(service.cursorId(buffer.lastSeq()));
+        assertThat(ev.data()).isEqualTo(objectMapper.writeValueAsString(readings));
+    }
+
+    // Como la ingesta: primero el buffer y luego el bus
+    private void feed(SensorRecordDTO... records) {
+        written.addAll(List.of(records));
+        buffer.onReadings(List.of(records));
+        bus.onReadings(List.of(records));
+    }
+
+    private SensorRecordDTO reading(int sensorId, int second) {
+        return new SensorRecordDTO(now.plusSeconds(second), sensorId, 7.0, 0.3, 250.0, 1.0);
+    }
+}
@@ -0,0 +1,156 @@
+package com.hydro.watertap.service;
+
+import com.hydro.watertap.model.dto.SensorRecordDTO;
+import com.influxdb.v3.client.InfluxDBApiHttpException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SensorWriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    private final SensorDataService influx = mock(SensorDataService.class);
+    private final List<SensorWriteAheadLog> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeAll() throws Exception {
+        for (SensorWriteAheadLog wal : opened) wal.close();
+    }
+
+    @Test
+    void replaysRecordsWithNullsAndResumesFromCheckpointAfterRestart() throws Exception {
+        List<SensorRecordDTO> records = List.of(
+                new SensorRecordDTO(Instant.parse("2025-01-01T00:00:00.123456789Z"), 7, 7.1, 0.4, 250.0, 3.5),
+                new SensorRecordDTO(Instant.parse("2025-01-01T00:00:05Z"), 8, null, 0.5, null, 0.0),
+                new SensorRecordDTO(Instant.parse("2025-01-01T00:00:10Z"), null, 6.9, null, 240.0, null));
+
+        SensorWriteAheadLog wal = open(1 << 16, 8);
+        assertThat(wal.append(records)).isTrue();
+        wal.replay();
+
+        ArgumentCaptor<List<SensorRecordDTO>> saved = ArgumentCaptor.captor();
+        verify(influx).saveSensorData(saved.capture());
+        assertThat(saved.getValue()).containsExactlyElementsOf(records);
+
+        // Tras reiniciar, lo ya volcado no se repite y lo nuevo sí se vuelca
+        wal.close();
+        SensorWriteAheadLog reopened = open(1 << 16, 8);
+        reopened.replay();
+        verify(influx, times(1)).saveSensorData(anyList());
+
+        SensorRecordDTO next = new SensorRecordDTO(Instant.parse("2025-01-01T00:00:15Z"), 7, 7.0, 0.4, 250.0, 1.0);
+        reopened.append(List.of(next));
+        reopened.replay();
+        verify(influx).saveSensorData(List.of(next));
+    }
+
+    @Test
+    void keepsCheckpointWhileInfluxIsDown() throws Exception {
+        SensorWriteAheadLog wal = open(1 << 16, 8);
+        List<SensorRecordDTO> records = List.of(reading(1, 0), reading(1, 5));
+        wal.append(records);
+
+        doThrow(new RuntimeException("connection refused")).doNothing().when(influx).saveSensorData(anyList());
+        for (int i = 0; i < 10; i++) wal.replay();
+
+        verify(influx, times(2)).saveSensorData(records);
+        assertThat(Files.readString(dir.resolve("checkpoint"))).isEqualTo("1 96");
+    }
+
+    @Test
+    void movesRejectedBatchToDeadLetterAndContinues() throws Exception {
+        SensorWriteAheadLog wal = open(1 << 16, 8);
+        ReflectionTestUtils.setField(wal, "maxReplayAttempts", 3);
+        List<SensorRecordDTO> poison = List.of(reading(1, 0));
+        wal.append(poison);
+
+        InfluxDBApiHttpException badRequest = mock(InfluxDBApiHttpException.class);
+        when(badRequest.statusCode()).thenReturn(400);
+        doThrow(badRequest).when(influx).saveSensorData(poison);
+
+        wal.replay();
+        wal.replay();
+        try (var files = Files.list(dir)) {
+            assertThat(files.anyMatch(p -> p.endsWith("dead-letter"))).isFalse();
+        }
+        wal.replay();
+
+        try (var files = Files.list(dir.resolve("dead-letter"))) {
+            assertThat(files.toList()).singleElement()
+                    .satisfies(p -> assertThat(Files.size(p)).isEqualTo(SensorWriteAheadLog.RECORD_BYTES));
+        }
+
+        List<SensorRecordDTO> next = List.of(reading(1, 5));
+        doNothing().when(influx).saveSensorData(next);
+        wal.append(next);
+        wal.replay();
+        verify(influx).saveSensorData(next);
+        verify(influx, times(3)).saveSensorData(poison);
+    }
+
+    @Test
+    void blockedAppendWaitsForReplayToFreeASegment() throws Exception {
+        // Dos lecturas por segmento y como mucho dos segmentos
+        SensorWriteAheadLog wal = open(2 * SensorWriteAheadLog.RECORD_BYTES, 2);
+        assertThat(wal.append(List.of(reading(1, 0), reading(1, 5)))).isTrue();
+        assertThat(wal.append(List.of(reading(1, 10), reading(1, 15)))).isTrue();
+        assertThat(wal.append(List.of(reading(1, 20)))).isFalse();
+        assertThat(wal.append(List.of(reading(1, 20)), 20)).isFalse();
+        verify(influx, never()).saveSensorData(anyList());
+
+        CompletableFuture<Boolean> blocked = CompletableFuture.supplyAsync(() -> {
+            try {
+                return wal.append(List.of(reading(1, 20)), 10_000);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(blocked).isNotDone();
+
+        wal.replay();
+        assertThat(blocked.get(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private SensorWriteAheadLog open(int segmentBytes, int maxSegments) throws Exception {
+        SensorWriteAheadLog wal = new SensorWriteAheadLog(influx, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(wal, "enabled", true);
+        ReflectionTestUtils.setField(wal, "dir", dir.toString());
+        ReflectionTestUtils.setField(wal, "segmentBytes", segmentBytes);
+        ReflectionTestUtils.setField(wal, "maxSegments", maxSegments);
+        ReflectionTestUtils.setField(wal, "replayBatch", 5000);
+        // El replayer propio no debe interferir: el test llama a replay() directamente
+        ReflectionTestUtils.setField(wal, "replayIntervalMs", TimeUnit.HOURS.toMillis(1));
+        ReflectionTestUtils.setField(wal, "maxReplayAttempts", 5);
+        wal.open();
+        opened.add(wal);
+        return wal;
+    }
+
+    private static SensorRecordDTO reading(int sensorId, int second) {
+        return new SensorRecordDTO(Instant.parse("2025-01-01T00:00:00Z").plusSeconds(second), sensorId, 7.0, 0.4, 250.0, 1.0);
+    }
+}
@@ -0,0 +1,115 @@
+package com.hydro.watertap.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+
+    private final AtomicInteger coalesced = new AtomicInteger();
+    private final SingleFlight<String, String> flight = new SingleFlight<>(coalesced::incrementAndGet);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger executions = new AtomicInteger();
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void stop() {
+        release.countDown();
+        pool.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersShareOneExecution() throws Exception {
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> flight.run("k", this::slowWork), pool);
+        started.await();
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> flight.run("k", this::slowWork), pool);
+        awaitCoalesced(1);
+
+        release.countDown();
+        assertThat(first.get(2, TimeUnit.SECONDS)).isEqualTo("v1");
+        assertThat(second.get(2, TimeUnit.SECONDS)).isEqualTo("v1");
+        assertThat(executions).hasValue(1);
+    }
+
+    @Test
+    void otherKeysAndLaterCallsRunOnTheirOwn() throws Exception {
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> flight.run("k", this::slowWork), pool);
+        started.await();
+
+        // Otra clave no espera a la ejecución en curso
+        assertThat(flight.run("otra", () -> "x")).isEqualTo("x");
+        release.countDown();
+        assertThat(first.get(2, TimeUnit.SECONDS)).isEqualTo("v1");
+
+        // Terminada la ejecución no queda nada guardado
+        assertThat(flight.run("k", () -> "v2")).isEqualTo("v2");
+        assertThat(coalesced).hasValue(0);
+    }
+
+    @Test
+    void failureIsSharedWithTheCallersThatJoined() throws Exception {
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> flight.run("k", () -> {
+            slowWork();
+            throw new IllegalStateException("influx caído");
+        }), pool);
+        started.await();
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> flight.run("k", this::slowWork), pool);
+        awaitCoalesced(1);
+
+        release.countDown();
+        assertThatThrownBy(() -> first.get(2, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> second.get(2, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(IllegalStateException.class)
+                .hasRootCauseMessage("influx caído");
+        assertThat(executions).hasValue(1);
+    }
+
+    @Test
+    void cancellingAJoinedMonoDoesNotCancelTheSharedExecution() throws Exception {
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> flight.run("k", this::slowWork), pool);
+        started.await();
+
+        Disposable cancelled = flight.mono("k", this::slowWork).subscribe();
+        cancelled.dispose();
+        CompletableFuture<String> joined = flight.mono("k", this::slowWork).toFuture();
+        assertThat(coalesced).hasValue(2);
+
+        release.countDown();
+        assertThat(first.get(2, TimeUnit.SECONDS)).isEqualTo("v1");
+        assertThat(joined.get(2, TimeUnit.SECONDS)).isEqualTo("v1");
+        assertThat(executions).hasValue(1);
+
+        // Sin ejecución en curso, el mono ejecuta el trabajo al suscribirse
+        assertThat(flight.mono("k", () -> "v2").block(Duration.ofSeconds(2))).isEqualTo("v2");
+    }
+
+    private String slowWork() {
+        int n = executions.incrementAndGet();
+        started.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "v" + n;
+    }
+
+    // El segundo llamador se une de forma asíncrona: esperar a que lo haga antes de liberar la ejecución
+    private void awaitCoalesced(int n) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (coalesced.get() < n && System.nanoTime() < deadline) Thread.sleep(1);
+        assertThat(coalesced).hasValue(n);
+    }
+}
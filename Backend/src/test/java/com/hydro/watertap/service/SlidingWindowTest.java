@@ -0,0 +1,143 @@
+package com.hydro.watertap.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class SlidingWindowTest {
+
+    private static final long BUCKET_MS = 1000;
+    private static final int BUCKETS = 10;
+
+    @Test
+    void emptyWindowReportsNaN() {
+        SlidingWindow w = new SlidingWindow(BUCKET_MS, BUCKETS, 0.5);
+        assertThat(w.stats()).isEqualTo(SlidingWindow.Stats.EMPTY);
+        w.add(0, Double.NaN);
+        assertThat(w.stats().count()).isZero();
+        assertThat(w.windowMs()).isEqualTo(10_000);
+    }
+
+    @Test
+    void readingsLeaveTheWindowBucketByBucket() {
+        SlidingWindow w = new SlidingWindow(BUCKET_MS, BUCKETS, 0.5);
+        w.add(0, 1.0);
+        w.add(500, 3.0);
+        w.add(1_000, 10.0);
+        w.add(9_999, 2.0);
+
+        SlidingWindow.Stats s = w.stats();
+        assertThat(s.count()).isEqualTo(4);
+        assertThat(s.mean()).isCloseTo(4.0, within(1e-12));
+        assertThat(s.variance()).isCloseTo(12.5, within(1e-12));
+        assertThat(s.min()).isEqualTo(1.0);
+        assertThat(s.max()).isEqualTo(10.0);
+        assertThat(s.active()).isEqualTo(4);
+        assertThat(s.firstTsMs()).isZero();
+
+        // El intervalo [0, 1000) sale de la ventana: el mínimo pasa al siguiente
+        w.advance(10_000);
+        s = w.stats();
+        assertThat(s.count()).isEqualTo(2);
+        assertThat(s.mean()).isCloseTo(6.0, within(1e-12));
+        assertThat(s.min()).isEqualTo(2.0);
+        assertThat(s.max()).isEqualTo(10.0);
+        assertThat(s.firstTsMs()).isEqualTo(1_000);
+
+        // Y luego el máximo
+        w.advance(11_000);
+        s = w.stats();
+        assertThat(s.count()).isEqualTo(1);
+        assertThat(s.max()).isEqualTo(2.0);
+
+        w.advance(60_000);
+        assertThat(w.stats().count()).isZero();
+    }
+
+    @Test
+    void lateReadingsCountInTheOpenBucket() {
+        SlidingWindow w = new SlidingWindow(BUCKET_MS, BUCKETS, Double.NaN);
+        w.add(5_000, 1.0);
+        w.add(100, 7.0);
+
+        w.advance(14_999);
+        SlidingWindow.Stats s = w.stats();
+        assertThat(s.count()).isEqualTo(2);
+        assertThat(s.active()).isZero();
+        assertThat(s.firstTsMs()).isEqualTo(100);
+
+        w.advance(15_000);
+        assertThat(w.stats().count()).isZero();
+    }
+
+    @Test
+    void matchesBruteForceOverARandomStream() {
+        Random rnd = new Random(42);
+        SlidingWindow w = new SlidingWindow(BUCKET_MS, BUCKETS, 5.0);
+        List<long[]> seen = new ArrayList<>();      // {ts, bucket asignado}
+        List<Double> values = new ArrayList<>();
+        long now = 0;
+        long open = Long.MIN_VALUE;
+
+        for (int i = 0; i < 50_000; i++) {
+            int r = rnd.nextInt(1000);
+            if (r == 0) now += 30_000;               // hueco mayor que la ventana
+            else now += rnd.nextInt(400);
+            long ts = r < 50 ? now - rnd.nextInt(2_500) : now;
+            double v = r > 990 ? Double.NaN : 1_000 + rnd.nextGaussian() * 3;
+            if (r % 7 == 0) v = rnd.nextInt(10);
+
+            w.add(ts, v);
+            open = Math.max(open, Math.floorDiv(ts, BUCKET_MS));
+            if (!Double.isNaN(v)) {
+                seen.add(new long[] { ts, open });
+                values.add(v);
+            }
+            if (i % 13 == 0) assertMatches(w.stats(), seen, values, open - BUCKETS + 1);
+        }
+    }
+
+    private static void assertMatches(SlidingWindow.Stats s, List<long[]> seen, List<Double> values, long oldest) {
+        long n = 0;
+        long active = 0;
+        double sum = 0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        long firstBucket = Long.MAX_VALUE;
+        long first = Long.MIN_VALUE;
+        for (int k = 0; k < seen.size(); k++) {
+            long[] e = seen.get(k);
+            if (e[1] < oldest) continue;
+            double v = values.get(k);
+            n++;
+            sum += v;
+            if (v > 5.0) active++;
+            min = Double.isNaN(min) ? v : Math.min(min, v);
+            max = Double.isNaN(max) ? v : Math.max(max, v);
+            if (e[1] < firstBucket || (e[1] == firstBucket && e[0] < first)) {
+                firstBucket = e[1];
+                first = e[0];
+            }
+        }
+        assertThat(s.count()).isEqualTo(n);
+        if (n == 0) return;
+        double mean = sum / n;
+        double m2 = 0;
+        for (int k = 0; k < seen.size(); k++) {
+            if (seen.get(k)[1] < oldest) continue;
+            double d = values.get(k) - mean;
+            m2 += d * d;
+        }
+        assertThat(s.mean()).isCloseTo(mean, within(1e-6));
+        assertThat(s.variance()).isCloseTo(m2 / n, within(1e-6 * Math.max(1, m2 / n)));
+        assertThat(s.min()).isEqualTo(min);
+        assertThat(s.max()).isEqualTo(max);
+        assertThat(s.active()).isEqualTo(active);
+        assertThat(s.firstTsMs()).isEqualTo(first);
+    }
+}
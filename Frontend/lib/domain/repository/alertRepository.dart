@@ -23,13 +23,18 @@ class AlertService {
   /**
    * Abre un stream de eventos (SSE) para recibir alertas en tiempo real.
    * Retorna un Stream de SensorAlertModel que el UI puede escuchar.
+   * Opcional: sensorIds y/o site para recibir solo las alertas de esos sensores.
    */
-  Stream<SensorAlertModel> streamAlerts() {
+  Stream<SensorAlertModel> streamAlerts({List<int>? sensorIds, String? site}) {
+    final params = <String>[];
+    if (sensorIds != null && sensorIds.isNotEmpty) params.add('sensorIds=${sensorIds.join(',')}');
+    if (site != null && site.isNotEmpty) params.add('site=${Uri.encodeQueryComponent(site)}');
+    final query = params.isEmpty ? '' : '?${params.join('&')}';
 
     // El método subscribeToSSE AHORA devuelve el Stream.
     // Usamos .map() en el Stream devuelto para transformar el SseModel a SensorAlertModel.
     return SSEClient.subscribeToSSE(
-      url: '$_apiBaseUrl/stream',
+      url: '$_apiBaseUrl/stream$query',
 
       // El ejemplo confirma el uso del enum SSERequestType.GET
       method: SSERequestType.GET,
@@ -44,10 +49,13 @@ class AlertService {
 
     )
         .where((event) => event.data != null && event.data!.isNotEmpty)
-        .map((event) {
-      // Parseamos el JSON del campo 'data' del evento SSE
-      final Map<String, dynamic> jsonMap = json.decode(event.data!);
-      return SensorAlertModel.fromJson(jsonMap);
+        .expand((event) {
+      // Parseamos el JSON del campo 'data' del evento SSE: una alerta o un lote (array) de alertas
+      final decoded = json.decode(event.data!);
+      if (decoded is List) {
+        return decoded.map((e) => SensorAlertModel.fromJson(e as Map<String, dynamic>));
+      }
+      return [SensorAlertModel.fromJson(decoded as Map<String, dynamic>)];
     })
         .handleError((error) {
       print('Error en el stream de alertas (SSE): $error');
@@ -14,11 +14,29 @@ import '../models/dto/sensor_record_model.dart';
 // Configuraciones
 // -----------------------------------------------------------------------------
 const String _apiBaseUrl = 'http://localhost:8080';
+// Espera antes de reabrir el stream por deltas tras un corte
+const Duration _deltaReconnectDelay = Duration(seconds: 3);
+
+/// Evento del stream por deltas: snapshot (ventana reciente completa) o delta (solo lecturas nuevas).
+class SensorStreamEvent {
+  final bool isSnapshot;
+  final List<SensorRecordModel> records;
+
+  const SensorStreamEvent({required this.isSnapshot, required this.records});
+}
 
 class SensorRepository {
   // Dio es el equivalente moderno de Dart/Flutter a la función 'fetch' de JavaScript.
   final Dio _dio = Dio();
 
+  // Query string de suscripción (?sensorIds=1,2&site=x); vacío si no hay filtro
+  String _filterQuery(List<int>? sensorIds, String? site) {
+    final params = <String>[];
+    if (sensorIds != null && sensorIds.isNotEmpty) params.add('sensorIds=${sensorIds.join(',')}');
+    if (site != null && site.isNotEmpty) params.add('site=${Uri.encodeQueryComponent(site)}');
+    return params.isEmpty ? '' : '?${params.join('&')}';
+  }
+
 // -----------------------------------------------------------------------------
 // 1. streamSensorData (Equivalente a streamSensorData JS)
 // -----------------------------------------------------------------------------
@@ -26,9 +44,11 @@ class SensorRepository {
   /**
    * Abre un stream de eventos (SSE) para recibir listas de SensorRecordModel en tiempo real.
    * Retorna un Stream de List<SensorRecordModel> que el UI puede escuchar.
+   * @param sensorIds - Opcional: solo estos sensores (el servidor filtra, no el cliente).
+   * @param site - Opcional: sitio configurado en el servidor (stream.sites).
    */
-  Stream<List<SensorRecordModel>> streamSensorData() {
-    final url = '$_apiBaseUrl/sensors/stream';
+  Stream<List<SensorRecordModel>> streamSensorData({List<int>? sensorIds, String? site}) {
+    final url = '$_apiBaseUrl/sensors/stream${_filterQuery(sensorIds, site)}';
     debugPrint('API Service: Abriendo conexión SSE a: $url');
 
     // SSEClient.subscribeToSSE devuelve un Stream<SseModel>
@@ -71,6 +91,74 @@ class SensorRepository {
         .asBroadcastStream();
   }
 
+// -----------------------------------------------------------------------------
+// 1b. streamSensorDeltas (/sensors/stream/delta)
+// -----------------------------------------------------------------------------
+
+  /**
+   * Stream por deltas: un snapshot inicial y después solo las lecturas nuevas, en lugar de la ventana
+   * completa en cada disparo. Si la conexión se corta se reabre enviando el último id recibido como
+   * Last-Event-ID, y el servidor continúa desde ese cursor (o manda un snapshot nuevo si ya no puede).
+   * @param sensorIds - Opcional: solo estos sensores (el servidor filtra, no el cliente).
+   * @param site - Opcional: sitio configurado en el servidor (stream.sites).
+   */
+  Stream<SensorStreamEvent> streamSensorDeltas({List<int>? sensorIds, String? site}) {
+    final url = '$_apiBaseUrl/sensors/stream/delta${_filterQuery(sensorIds, site)}';
+    late final StreamController<SensorStreamEvent> controller;
+    StreamSubscription? subscription;
+    String? lastEventId;
+    bool reconnecting = false;
+
+    late void Function() open;
+
+    void reconnect() {
+      if (reconnecting || controller.isClosed) return;
+      reconnecting = true;
+      subscription?.cancel();
+      Timer(_deltaReconnectDelay, () {
+        reconnecting = false;
+        if (!controller.isClosed) open();
+      });
+    }
+
+    open = () {
+      debugPrint('API Service: Abriendo conexión SSE a: $url (Last-Event-ID: $lastEventId)');
+      subscription = SSEClient.subscribeToSSE(
+        url: url,
+        method: SSERequestType.GET,
+        header: {
+          'Accept': 'text/event-stream',
+          'Cache-Control': 'no-cache',
+          if (lastEventId != null) 'Last-Event-ID': lastEventId!,
+        },
+      ).where((event) => event.data != null && event.data!.isNotEmpty).listen((event) {
+        try {
+          final List<dynamic> jsonList = json.decode(event.data!);
+          final records = jsonList
+              .map((jsonItem) => SensorRecordModel.fromJson(jsonItem as Map<String, dynamic>))
+              .toList();
+          controller.add(SensorStreamEvent(isSnapshot: event.event == 'snapshot', records: records));
+          // El cursor solo avanza cuando el evento ya se entregó
+          if (event.id != null && event.id!.isNotEmpty) lastEventId = event.id;
+        } catch (e) {
+          debugPrint('API Service: Error al analizar los datos del stream por deltas: $e');
+        }
+      }, onError: (error) {
+        debugPrint('API Service: Stream por deltas falló: $error');
+        reconnect();
+      }, onDone: reconnect);
+    };
+
+    controller = StreamController<SensorStreamEvent>(
+      onListen: () => open(),
+      onCancel: () async {
+        await subscription?.cancel();
+        await controller.close();
+      },
+    );
+    return controller.stream;
+  }
+
 // -----------------------------------------------------------------------------
 // 2. getHistoryData (Equivalente a getHistoryData JS)
 // -----------------------------------------------------------------------------
@@ -34,7 +34,11 @@ final FilterState _initialFilters = FilterState(
 );
 
 class ChartsPage extends StatefulWidget {
-  const ChartsPage({super.key});
+  // Opcional: lecturas en vivo solo de estos sensores o de un sitio (filtrado en el servidor)
+  final List<int>? sensorIds;
+  final String? site;
+
+  const ChartsPage({super.key, this.sensorIds, this.site});
 
   @override
   State<ChartsPage> createState() => _ChartsPageState();
@@ -47,6 +51,15 @@ class _ChartsPageState extends State<ChartsPage> {
   String _searchTerm = "";
   String? _dataError;
   bool _hasInitialData = false;
+  // Lecturas en vivo mientras el rango elegido llegue hasta ahora
+  StreamSubscription<SensorStreamEvent>? _liveSubscription;
+  Set<SensorRecordModel> _seen = {};
+
+  @override
+  void dispose() {
+    _liveSubscription?.cancel();
+    super.dispose();
+  }
 
   void _handleFiltersChange(FilterState newFilters) {
     setState(() {
@@ -152,6 +165,7 @@ class _ChartsPageState extends State<ChartsPage> {
   Future<void> _handleGenerate() async {
     final DateTime? apiDateFrom = _filters.dateFrom;
     final DateTime? apiDateTo = _filters.dateTo;
+    _stopLive();
 
     if (apiDateFrom == null || apiDateTo == null) {
       setState(() {
@@ -166,11 +180,18 @@ class _ChartsPageState extends State<ChartsPage> {
       _dataError = null;
     });
 
+    // Se pide al servidor solo el tramo de fecha y hora elegido, no los días completos
+    final DateTime start = _combineDateAndTime(apiDateFrom, _filters.timeFrom ?? const TimeOfDay(hour: 0, minute: 0));
+    final DateTime end = _combineDateAndTime(apiDateTo, _filters.timeTo ?? const TimeOfDay(hour: 23, minute: 59))
+        .add(const Duration(seconds: 59));
+    final DateTime now = DateTime.now();
+
     try {
       final List<SensorRecordModel> data = await _sensorRepository.getHistoryData(
-        from: apiDateFrom,
-        to: apiDateTo.add(const Duration(days: 1)).subtract(const Duration(minutes: 1)),
+        from: start,
+        to: end.isAfter(now) ? now : end,
       );
+      if (end.isAfter(now)) _startLive(end);
 
       if (data.isEmpty) {
         setState(() {
@@ -185,6 +206,7 @@ class _ChartsPageState extends State<ChartsPage> {
       if (mounted) {
         setState(() {
           _allSensorData = data;
+          _seen = data.toSet();
           _hasInitialData = true;
         });
         _applyFilters(data, _filters);
@@ -202,10 +224,39 @@ class _ChartsPageState extends State<ChartsPage> {
     }
   }
 
+  // Stream por deltas: añade a la gráfica las lecturas nuevas hasta el fin del rango elegido
+  void _startLive(DateTime end) {
+    _liveSubscription = _sensorRepository
+        .streamSensorDeltas(sensorIds: widget.sensorIds, site: widget.site)
+        .listen((event) {
+      if (!mounted) return;
+      if (DateTime.now().isAfter(end)) {
+        _stopLive();
+        return;
+      }
+      // El snapshot (inicial o tras reconectar) se solapa con lo ya cargado: solo se añade lo no visto
+      final fresh = event.records.where((record) => !record.timestamp.isAfter(end) && _seen.add(record)).toList();
+      if (fresh.isEmpty) return;
+      setState(() {
+        _allSensorData = [..._allSensorData, ...fresh];
+      });
+      _applyFilters(_allSensorData, _filters);
+    }, onError: (error) {
+      debugPrint('Error en el stream SSE de la gráfica: $error');
+    });
+  }
+
+  void _stopLive() {
+    _liveSubscription?.cancel();
+    _liveSubscription = null;
+  }
+
   void _handleReset() {
+    _stopLive();
     setState(() {
       _filters = _initialFilters;
       _allSensorData = [];
+      _seen = {};
       _filteredData = [];
       _searchTerm = "";
       _dataError = null;
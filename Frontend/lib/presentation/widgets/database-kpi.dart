@@ -11,7 +11,11 @@ import '../../domain/models/dto/sensor_record_model.dart';
 final SensorRepository _sensorRepository = SensorRepository();
 
 class DatabaseKPI extends StatefulWidget {
-  const DatabaseKPI({super.key});
+  // Opcional: contar solo estos sensores o los de un sitio (filtrado en el servidor)
+  final List<int>? sensorIds;
+  final String? site;
+
+  const DatabaseKPI({super.key, this.sensorIds, this.site});
 
   @override
   State<DatabaseKPI> createState() => _DatabaseKPIState();
@@ -20,7 +24,7 @@ class DatabaseKPI extends StatefulWidget {
 class _DatabaseKPIState extends State<DatabaseKPI> {
   int _count = 0;
   DateTime _lastUpdateTime = DateTime.now();
-  StreamSubscription<List<SensorRecordModel>>? _streamSubscription;
+  StreamSubscription<SensorStreamEvent>? _streamSubscription;
 
   @override
   void initState() {
@@ -46,9 +50,15 @@ class _DatabaseKPIState extends State<DatabaseKPI> {
         to: now,
       );
 
+      // /sensors/history no filtra por sensor: con sensorIds se cuentan aquí (un site solo lo resuelve el stream)
+      final ids = widget.sensorIds;
+      final Iterable<SensorRecordModel> counted = ids == null || ids.isEmpty
+          ? initialData
+          : initialData.where((record) => ids.contains(record.sensorId));
+
       if (mounted) {
         setState(() {
-          _count = initialData.length;
+          _count = counted.length;
         });
       }
     } catch (error) {
@@ -57,19 +67,18 @@ class _DatabaseKPIState extends State<DatabaseKPI> {
     }
   }
 
-  // Equivalente a const eventSource = streamSensorData(...)
+  // Stream por deltas: el conteo inicial ya viene del historial, así que solo se suman las lecturas nuevas
   void _openStream() {
-    // Suscribirse al Stream SSE devuelto por el repositorio
-    _streamSubscription = _sensorRepository.streamSensorData().listen(
-          (data) {
-        // Callback para el Stream
-        if (mounted) {
-          setState(() {
-            // data es List<SensorRecordModel>, actualizamos el conteo sumando la longitud
-            _count += data.length;
-            _lastUpdateTime = DateTime.now();
-          });
-        }
+    _streamSubscription = _sensorRepository
+        .streamSensorDeltas(sensorIds: widget.sensorIds, site: widget.site)
+        .listen(
+          (event) {
+        // El snapshot repite la ventana reciente, ya incluida en el conteo inicial
+        if (event.isSnapshot || !mounted) return;
+        setState(() {
+          _count += event.records.length;
+          _lastUpdateTime = DateTime.now();
+        });
       },
       onError: (error) {
         debugPrint('Error en el stream SSE: $error');